@@ -47,6 +47,12 @@ android {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
         }
     }
+    // BurstWriter, shared with the other capture apps
+    sourceSets {
+        getByName("main") {
+            java.srcDir("../../shared/burstwriter/src/main/java")
+        }
+    }
 }
 
 dependencies {
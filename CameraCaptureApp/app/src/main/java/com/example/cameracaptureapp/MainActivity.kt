@@ -20,10 +20,10 @@ import androidx.activity.result.contract.ActivityResultContracts
 import androidx.appcompat.app.AppCompatActivity
 import androidx.camera.core.CameraSelector
 import androidx.camera.core.ImageCapture
-import androidx.camera.core.ImageCaptureException
 import androidx.camera.core.Preview
 import androidx.camera.lifecycle.ProcessCameraProvider
 import androidx.core.content.ContextCompat
+import com.example.burstwriter.BurstWriter
 import androidx.lifecycle.LifecycleOwner
 import java.io.File
 import java.io.FileWriter
@@ -42,6 +42,9 @@ class MainActivity : AppCompatActivity() {
     private var accelerometerData = FloatArray(3)
     private val handler = Handler()
     private lateinit var captureRunnable: Runnable
+    private val writer by lazy {
+        BurstWriter(BurstWriter.fileSink(getExternalFilesDir(Environment.DIRECTORY_PICTURES)!!))
+    }
 
      override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -147,23 +150,19 @@ class MainActivity : AppCompatActivity() {
         handler.post(captureRunnable)
     }
 
+    // Into memory; the writer saves it in the background. The CSV row is
+    // written at capture time so location and accelerometer match the shot.
     private fun captureImage() {
         val imageCapture = imageCapture ?: return
 
-        val photoFile = File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "${System.currentTimeMillis()}.jpg")
-
-        val outputOptions = ImageCapture.OutputFileOptions.Builder(photoFile).build()
-
-        imageCapture.takePicture(outputOptions, cameraExecutor, object : ImageCapture.OnImageSavedCallback {
-             fun onImageSaved(outputFileResults: ImageCapture.OutputFileResults) {
-                Log.d("MainActivity", "Image saved: ${photoFile.absolutePath}")
-                saveDataToCSV(photoFile.name)
+        val name = "${System.currentTimeMillis()}"
+        writer.capture(imageCapture, name) { captured ->
+            if (captured) {
+                saveDataToCSV("$name.jpg")
+            } else {
+                Log.e("MainActivity", "Image capture failed: $name")
             }
-
-             fun onError(exception: ImageCaptureException) {
-                Log.e("MainActivity", "Image capture failed: ${exception.message}", exception)
-            }
-        })
+        }
     }
 
     private fun saveDataToCSV(imageName: String) {
@@ -191,5 +190,9 @@ class MainActivity : AppCompatActivity() {
         super.onDestroy()
         cameraExecutor.shutdown()
         handler.removeCallbacks(captureRunnable)
+        val stats = writer.stats()
+        Log.d("MainActivity", "Saved ${stats.written} images (%.1f/s, %.0f ms each), %d refused, %d failed"
+            .format(stats.shotsPerSecond, stats.meanWriteMs, stats.refused, stats.failed))
+        writer.close()
     }
 }
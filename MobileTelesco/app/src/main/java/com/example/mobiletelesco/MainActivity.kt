@@ -2,31 +2,59 @@ package com.example.mobiletelesco
 
 import android.Manifest
 import android.content.pm.PackageManager
+import android.graphics.Bitmap
+import android.graphics.Matrix
 import android.os.Bundle
+import android.util.Log
 import android.widget.Toast
 import androidx.activity.ComponentActivity
 import androidx.activity.compose.setContent
 import androidx.camera.core.CameraSelector
+import androidx.camera.core.ImageAnalysis
 import androidx.camera.core.Preview
-import androidx.camera.core.PreviewView
+import androidx.camera.core.resolutionselector.ResolutionSelector
+import androidx.camera.core.resolutionselector.ResolutionStrategy
 import androidx.camera.lifecycle.ProcessCameraProvider
+import androidx.camera.view.PreviewView
+import androidx.compose.foundation.Canvas
+import androidx.compose.foundation.clickable
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Box
+import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.foundation.layout.padding
+import androidx.compose.material3.Button
 import androidx.compose.material3.Scaffold
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.mutableIntStateOf
+import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.remember
+import androidx.compose.runtime.setValue
+import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.nativeCanvas
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.tooling.preview.Preview as ComposePreview
+import androidx.compose.ui.unit.dp
 import androidx.compose.ui.viewinterop.AndroidView
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
 import com.example.mobiletelesco.ui.theme.MobileTelescoTheme
+import java.io.File
+import java.io.FileOutputStream
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import kotlin.concurrent.thread
 
 class MainActivity : ComponentActivity() {
     private lateinit var cameraExecutor: ExecutorService
+    // Registration and merging, one thread per core
+    private val processingExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+    private val burst = BurstRecorder()
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -55,42 +83,165 @@ class MainActivity : ComponentActivity() {
     @Composable
     fun CameraPreview(modifier: Modifier) {
         val context = LocalContext.current
-        val cameraProviderFuture = ProcessCameraProvider.getInstance(context)
-
-        AndroidView(factory = { ctx ->
-            PreviewView(ctx).apply {
-                layoutParams = androidx.compose.ui.unit.LayoutParams(
-                    androidx.compose.ui.unit.LayoutParams.MATCH_PARENT,
-                    androidx.compose.ui.unit.LayoutParams.MATCH_PARENT
-                )
-            }
-        }, modifier = modifier) { previewView ->
-            cameraProviderFuture.addListener({
-                val cameraProvider = cameraProviderFuture.get()
+        var zoom by remember { mutableIntStateOf(2) }
+        var status by remember { mutableStateOf("") }
+        var result by remember { mutableStateOf<SuperResResult?>(null) }
 
-                // Create Preview use case
-                val preview = Preview.Builder().build().also {
-                    it.setSurfaceProvider(previewView.surfaceProvider)
-                }
+        Box(modifier = modifier) {
+            // Bound once, when the view is created: an update block would run
+            // again on every recomposition (each status or zoom change) and
+            // rebind the camera each time
+            AndroidView(factory = { ctx ->
+                val previewView = PreviewView(ctx)
+                val cameraProviderFuture = ProcessCameraProvider.getInstance(ctx)
+                cameraProviderFuture.addListener({
+                    val cameraProvider = cameraProviderFuture.get()
+
+                    // Create Preview use case
+                    val preview = Preview.Builder().build().also {
+                        it.setSurfaceProvider(previewView.surfaceProvider)
+                    }
+
+                    // Full-resolution YUV frames for the burst; the analyzer copies
+                    // nothing unless a burst is armed
+                    val analysis = ImageAnalysis.Builder()
+                        .setResolutionSelector(
+                            ResolutionSelector.Builder()
+                                .setResolutionStrategy(ResolutionStrategy.HIGHEST_AVAILABLE_STRATEGY)
+                                .build()
+                        )
+                        .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                        .build()
+                        .also { it.setAnalyzer(cameraExecutor, burst) }
+
+                    val cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
 
-                val cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
+                    try {
+                        cameraProvider.unbindAll()
+                        cameraProvider.bindToLifecycle(this@MainActivity, cameraSelector, preview, analysis)
+                    } catch (e: Exception) {
+                        Toast.makeText(context, "Camera initialization failed: ${e.message}", Toast.LENGTH_SHORT).show()
+                    }
+                }, ContextCompat.getMainExecutor(context))
+                previewView
+            }, modifier = Modifier.fillMaxSize())
 
-                try {
-                    cameraProvider.unbindAll()
-                    cameraProvider.bindToLifecycle(this, cameraSelector, preview)
-                } catch (e: Exception) {
-                    Toast.makeText(context, "Camera initialization failed: ${e.message}", Toast.LENGTH_SHORT).show()
+            // The merged image, fitted and rotated upright; tap to go back
+            result?.let { shown ->
+                Canvas(modifier = Modifier.fillMaxSize().clickable { result = null }) {
+                    val bitmap = shown.bitmap
+                    val rotated = shown.rotationDegrees % 180 != 0
+                    val uprightWidth = if (rotated) bitmap.height else bitmap.width
+                    val uprightHeight = if (rotated) bitmap.width else bitmap.height
+                    val fit = minOf(size.width / uprightWidth, size.height / uprightHeight)
+                    val matrix = Matrix().apply {
+                        setTranslate(-bitmap.width / 2f, -bitmap.height / 2f)
+                        postRotate(shown.rotationDegrees.toFloat())
+                        postScale(fit, fit)
+                        postTranslate(size.width / 2f, size.height / 2f)
+                    }
+                    drawContext.canvas.nativeCanvas.drawBitmap(bitmap, matrix, null)
                 }
-            }, ContextCompat.getMainExecutor(context))
+            }
+
+            Column(
+                modifier = Modifier
+                    .align(Alignment.BottomCenter)
+                    .padding(16.dp),
+                horizontalAlignment = Alignment.CenterHorizontally
+            ) {
+                Text(text = status, color = Color.White)
+                Row(horizontalArrangement = Arrangement.spacedBy(8.dp)) {
+                    for (factor in ZOOM_FACTORS) {
+                        Button(onClick = { zoom = factor }, enabled = zoom != factor) { Text("${factor}x") }
+                    }
+                    Button(onClick = {
+                        status = "Hold still…"
+                        val factor = zoom
+                        burst.start(BURST_FRAMES, factor) { frames, rotationDegrees ->
+                            // Off the camera thread; the tiles go to the pool
+                            thread(name = "SuperResolution") {
+                                val timings = SuperResolution.Timings()
+                                val bitmap = SuperResolution(factor, processingExecutor).process(frames, timings)
+                                val text = "${factor}x: ${timings.framesUsed}/${frames.size} frames, " +
+                                    "${bitmap.width}x${bitmap.height} in ${timings.totalMs} ms " +
+                                    "(register ${timings.registerMs}, merge ${timings.mergeMs})"
+                                Log.d("SuperResolution", text)
+                                save(bitmap)
+                                runOnUiThread {
+                                    status = text
+                                    result = SuperResResult(bitmap, rotationDegrees)
+                                }
+                            }
+                        }
+                    }) {
+                        Text("Super-res")
+                    }
+                }
+            }
         }
     }
 
+    private fun save(bitmap: Bitmap) {
+        val dir = File(getExternalFilesDir(null), "superres").apply { mkdirs() }
+        val file = File(dir, "superres_${System.currentTimeMillis()}.jpg")
+        FileOutputStream(file).use { bitmap.compress(Bitmap.CompressFormat.JPEG, 95, it) }
+        Log.d("SuperResolution", "Saved ${file.absolutePath}")
+    }
+
     override fun onDestroy() {
         super.onDestroy()
         cameraExecutor.shutdown()
+        processingExecutor.shutdown()
     }
 
     companion object {
         private const val CAMERA_REQUEST_CODE = 101
+        private val ZOOM_FACTORS = intArrayOf(2, 3, 4)
+        // Enough distinct sub-pixel offsets for 4x, short enough to hold still for
+        private const val BURST_FRAMES = 8
+    }
+}
+
+class SuperResResult(val bitmap: Bitmap, val rotationDegrees: Int)
+
+// Collects the next frames of the camera stream as crops around the centre:
+// 1/zoom of the field plus the merge margin, which is all super-resolution
+// needs, so a 12 MP burst costs a fraction of 12 MP per frame to copy.
+class BurstRecorder : ImageAnalysis.Analyzer {
+    private var frames = ArrayList<BurstFrame>()
+    private var remaining = 0
+    private var zoom = 2
+    private var onDone: ((List<BurstFrame>, Int) -> Unit)? = null
+
+    @Synchronized
+    fun start(count: Int, zoom: Int, onDone: (List<BurstFrame>, Int) -> Unit) {
+        frames = ArrayList(count)
+        remaining = count
+        this.zoom = zoom
+        this.onDone = onDone
+    }
+
+    override fun analyze(image: androidx.camera.core.ImageProxy) {
+        val done: ((List<BurstFrame>, Int) -> Unit)?
+        val collected: List<BurstFrame>
+        synchronized(this) {
+            if (remaining == 0) {
+                image.close()
+                return
+            }
+            val margin = SuperResolution.MARGIN_PX
+            val width = (image.width / zoom + 2 * margin).coerceAtMost(image.width) and 1.inv()
+            val height = (image.height / zoom + 2 * margin).coerceAtMost(image.height) and 1.inv()
+            val left = ((image.width - width) / 2) and 1.inv()
+            val top = ((image.height - height) / 2) and 1.inv()
+            frames.add(BurstFrame.crop(image, left, top, width, height))
+            remaining--
+            done = if (remaining == 0) onDone else null
+            collected = frames
+        }
+        val rotationDegrees = image.imageInfo.rotationDegrees
+        image.close()
+        done?.invoke(collected, rotationDegrees)
     }
 }
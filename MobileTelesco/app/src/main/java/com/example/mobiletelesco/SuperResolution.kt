@@ -0,0 +1,371 @@
+package com.example.mobiletelesco
+
+import android.graphics.Bitmap
+import android.os.SystemClock
+import androidx.camera.core.ImageProxy
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import kotlin.math.abs
+import kotlin.math.exp
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+// One frame of a burst: the same crop of every frame, luma at full resolution
+// and chroma at half, copied out of the camera's YUV_420_888 buffer
+class BurstFrame(val width: Int, val height: Int, val y: ByteArray, val u: ByteArray, val v: ByteArray) {
+    companion object {
+        // left, top, width and height must be even
+        fun crop(image: ImageProxy, left: Int, top: Int, width: Int, height: Int): BurstFrame {
+            val y = ByteArray(width * height)
+            val yPlane = image.planes[0]
+            val yBuffer = yPlane.buffer
+            for (row in 0 until height) {
+                yBuffer.position((top + row) * yPlane.rowStride + left)
+                yBuffer.get(y, row * width, width)
+            }
+            val cw = width / 2
+            val ch = height / 2
+            val u = ByteArray(cw * ch)
+            val v = ByteArray(cw * ch)
+            val uPlane = image.planes[1]
+            val vPlane = image.planes[2]
+            val uBuffer = uPlane.buffer
+            val vBuffer = vPlane.buffer
+            for (row in 0 until ch) {
+                val uRow = (top / 2 + row) * uPlane.rowStride + (left / 2) * uPlane.pixelStride
+                val vRow = (top / 2 + row) * vPlane.rowStride + (left / 2) * vPlane.pixelStride
+                for (col in 0 until cw) {
+                    u[row * cw + col] = uBuffer.get(uRow + col * uPlane.pixelStride)
+                    v[row * cw + col] = vBuffer.get(vRow + col * vPlane.pixelStride)
+                }
+            }
+            yBuffer.rewind()
+            return BurstFrame(width, height, y, u, v)
+        }
+    }
+}
+
+// Multi-frame super-resolution for digital zoom. Hand shake moves every frame
+// of a burst by a different sub-pixel amount, so together they sample the
+// scene more finely than one frame does. The sharpest frame becomes the
+// reference; the others are registered to it (translation, coarse search then
+// Lucas-Kanade), and every output pixel of a scale-times finer grid is a
+// kernel-weighted mix of the nearest samples of every frame. A frame whose
+// samples disagree with the reference there (motion, a bad registration) is
+// weighted down, so nothing ghosts. Luma only; chroma is upsampled from the
+// reference, which the eye doesn't notice. Output rows are split into tiles
+// over the executor.
+class SuperResolution(private val scale: Int, private val executor: ExecutorService) {
+
+    class Timings {
+        var registerMs = 0L
+        var mergeMs = 0L
+        var totalMs = 0L
+        var framesUsed = 0
+    }
+
+    // frames are crops of equal size with MARGIN_PX on every side of the view.
+    // Returns an ARGB_8888 bitmap scale times the size of the view.
+    fun process(frames: List<BurstFrame>, timings: Timings): Bitmap {
+        val start = SystemClock.elapsedRealtime()
+        val width = frames[0].width
+        val height = frames[0].height
+
+        // The least blurred frame is the best one to register against
+        val sharpness = executor.invokeAll(frames.map { f -> Callable { gradientEnergy(f) } }).map { it.get() }
+        val reference = frames[sharpness.indices.maxByOrNull { sharpness[it] }!!]
+
+        val shifts = executor.invokeAll(frames.map { f ->
+            Callable { if (f === reference) floatArrayOf(0f, 0f) else register(reference, f) }
+        }).map { it.get() }
+        // Anything that drifted out of the margin can't be sampled
+        val used = frames.indices.filter { i ->
+            val s = shifts[i]
+            s[0].isFinite() && abs(s[0]) < MARGIN_PX - 2 && abs(s[1]) < MARGIN_PX - 2
+        }
+        val registered = SystemClock.elapsedRealtime()
+
+        val viewWidth = width - 2 * MARGIN_PX
+        val viewHeight = height - 2 * MARGIN_PX
+        val outWidth = viewWidth * scale
+        val outHeight = viewHeight * scale
+        val kernels = used.map { kernelTable(shifts[it][0], shifts[it][1]) }
+        val referenceKernel = bilinearTable()
+        val output = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888)
+        val tiles = (outHeight + TILE_ROWS - 1) / TILE_ROWS
+        executor.invokeAll((0 until tiles).map { tile ->
+            Callable {
+                val y0 = tile * TILE_ROWS
+                val y1 = min(y0 + TILE_ROWS, outHeight)
+                val pixels = IntArray(outWidth * (y1 - y0))
+                mergeRows(used.map { frames[it] }, kernels, reference, referenceKernel, outWidth, y0, y1, pixels)
+                synchronized(output) { output.setPixels(pixels, 0, outWidth, 0, y0, outWidth, y1 - y0) }
+            }
+        }).forEach { it.get() }
+        val merged = SystemClock.elapsedRealtime()
+
+        timings.registerMs = registered - start
+        timings.mergeMs = merged - registered
+        timings.totalMs = merged - start
+        timings.framesUsed = used.size
+        return output
+    }
+
+    // Per frame and output phase (ox mod scale, oy mod scale): the integer
+    // offset of the top-left of the 2x2 samples around the output pixel, and
+    // their four weights. Output pixel ox sits at view x (ox + 0.5) / scale -
+    // 0.5, so with a global shift the fractional position only depends on the
+    // phase.
+    private class Kernel(val offsetX: IntArray, val offsetY: IntArray, val weights: FloatArray)
+
+    private fun kernelTable(dx: Float, dy: Float): Kernel =
+        table(dx, dy) { d -> exp(-d * d / (2f * KERNEL_SIGMA * KERNEL_SIGMA)) }
+
+    private fun bilinearTable(): Kernel = table(0f, 0f) { d -> 1f - d }
+
+    private fun table(dx: Float, dy: Float, weight: (Float) -> Float): Kernel {
+        val offsetX = IntArray(scale)
+        val offsetY = IntArray(scale)
+        val fracX = FloatArray(scale)
+        val fracY = FloatArray(scale)
+        for (r in 0 until scale) {
+            val px = (r + 0.5f) / scale - 0.5f + MARGIN_PX + dx
+            val py = (r + 0.5f) / scale - 0.5f + MARGIN_PX + dy
+            offsetX[r] = floor(px).toInt()
+            offsetY[r] = floor(py).toInt()
+            fracX[r] = px - offsetX[r]
+            fracY[r] = py - offsetY[r]
+        }
+        val weights = FloatArray(scale * scale * 4)
+        for (ry in 0 until scale) {
+            for (rx in 0 until scale) {
+                val wx0 = weight(fracX[rx])
+                val wx1 = weight(1f - fracX[rx])
+                val wy0 = weight(fracY[ry])
+                val wy1 = weight(1f - fracY[ry])
+                val o = (ry * scale + rx) * 4
+                weights[o] = wx0 * wy0
+                weights[o + 1] = wx1 * wy0
+                weights[o + 2] = wx0 * wy1
+                weights[o + 3] = wx1 * wy1
+            }
+        }
+        return Kernel(offsetX, offsetY, weights)
+    }
+
+    private fun mergeRows(
+        frames: List<BurstFrame>, kernels: List<Kernel>,
+        reference: BurstFrame, referenceKernel: Kernel,
+        outWidth: Int, y0: Int, y1: Int, out: IntArray
+    ) {
+        val width = reference.width
+        val chromaWidth = width / 2
+        val n = frames.size
+        for (oy in y0 until y1) {
+            val qy = oy / scale
+            val ry = oy - qy * scale
+            for (ox in 0 until outWidth) {
+                val qx = ox / scale
+                val rx = ox - qx * scale
+                val phase = (ry * scale + rx) * 4
+
+                // What the reference alone says, and how much it varies here
+                var base = (qy + referenceKernel.offsetY[ry]) * width + qx + referenceKernel.offsetX[rx]
+                val ry0 = reference.y
+                val a = ry0[base].toInt() and 0xff
+                val b = ry0[base + 1].toInt() and 0xff
+                val c = ry0[base + width].toInt() and 0xff
+                val d = ry0[base + width + 1].toInt() and 0xff
+                val rw = referenceKernel.weights
+                val estimate = a * rw[phase] + b * rw[phase + 1] + c * rw[phase + 2] + d * rw[phase + 3]
+                val range = max(max(a, b), max(c, d)) - min(min(a, b), min(c, d))
+                val tolerance = ROBUST_FLOOR_DN + range
+                val tolerance2 = (tolerance * tolerance).toFloat()
+
+                var sum = 0f
+                var weightSum = 0f
+                for (k in 0 until n) {
+                    val kernel = kernels[k]
+                    val y = frames[k].y
+                    base = (qy + kernel.offsetY[ry]) * width + qx + kernel.offsetX[rx]
+                    val w = kernel.weights
+                    val w0 = w[phase]
+                    val w1 = w[phase + 1]
+                    val w2 = w[phase + 2]
+                    val w3 = w[phase + 3]
+                    val spatial = w0 + w1 + w2 + w3
+                    val local = ((y[base].toInt() and 0xff) * w0 + (y[base + 1].toInt() and 0xff) * w1 +
+                        (y[base + width].toInt() and 0xff) * w2 + (y[base + width + 1].toInt() and 0xff) * w3)
+                    // Cauchy weight on the disagreement with the reference
+                    val diff = local / spatial - estimate
+                    val robust = tolerance2 / (tolerance2 + diff * diff)
+                    sum += local * robust
+                    weightSum += spatial * robust
+                }
+                val luma = if (weightSum > 0f) sum / weightSum else estimate
+
+                // Chroma, bilinear from the reference
+                val cx = ((ox + 0.5f) / scale - 0.5f + MARGIN_PX) * 0.5f
+                val cy = ((oy + 0.5f) / scale - 0.5f + MARGIN_PX) * 0.5f
+                val ix = cx.toInt()
+                val iy = cy.toInt()
+                val fx = cx - ix
+                val fy = cy - iy
+                val ci = iy * chromaWidth + ix
+                val u = bilinear(reference.u, ci, chromaWidth, fx, fy) - 128f
+                val v = bilinear(reference.v, ci, chromaWidth, fx, fy) - 128f
+                out[(oy - y0) * outWidth + ox] = argb(luma, u, v)
+            }
+        }
+    }
+
+    private fun bilinear(plane: ByteArray, i: Int, stride: Int, fx: Float, fy: Float): Float {
+        val a = plane[i].toInt() and 0xff
+        val b = plane[i + 1].toInt() and 0xff
+        val c = plane[i + stride].toInt() and 0xff
+        val d = plane[i + stride + 1].toInt() and 0xff
+        val top = a + (b - a) * fx
+        val bottom = c + (d - c) * fx
+        return top + (bottom - top) * fy
+    }
+
+    // Full-range BT.601, as camera YUV is
+    private fun argb(y: Float, u: Float, v: Float): Int {
+        val r = clamp(y + 1.402f * v)
+        val g = clamp(y - 0.344136f * u - 0.714136f * v)
+        val b = clamp(y + 1.772f * u)
+        return (0xff shl 24) or (r shl 16) or (g shl 8) or b
+    }
+
+    private fun clamp(v: Float): Int = min(255, max(0, v.roundToInt()))
+
+    // Sum of absolute gradients over the view, every other pixel
+    private fun gradientEnergy(f: BurstFrame): Long {
+        var sum = 0L
+        for (y in MARGIN_PX until f.height - MARGIN_PX step 2) {
+            val row = y * f.width
+            for (x in MARGIN_PX until f.width - MARGIN_PX step 2) {
+                val p = f.y[row + x].toInt() and 0xff
+                sum += abs((f.y[row + x + 1].toInt() and 0xff) - p) + abs((f.y[row + x + f.width].toInt() and 0xff) - p)
+            }
+        }
+        return sum
+    }
+
+    // Shift of f against the reference: f(x + dx, y + dy) ~ reference(x, y).
+    // Whole pixels by block matching at quarter resolution, then sub-pixel by
+    // inverse-compositional Lucas-Kanade at full resolution.
+    private fun register(reference: BurstFrame, f: BurstFrame): FloatArray {
+        val coarse = coarseShift(reference, f)
+        var dx = coarse[0].toFloat()
+        var dy = coarse[1].toFloat()
+
+        val w = reference.width
+        val inset = MARGIN_PX + 2
+        // Reference gradients and the 2x2 Hessian are fixed across iterations
+        var hxx = 0.0
+        var hxy = 0.0
+        var hyy = 0.0
+        for (y in inset until reference.height - inset step LK_STEP) {
+            for (x in inset until w - inset step LK_STEP) {
+                val gx = ((reference.y[y * w + x + 1].toInt() and 0xff) - (reference.y[y * w + x - 1].toInt() and 0xff)) * 0.5
+                val gy = ((reference.y[(y + 1) * w + x].toInt() and 0xff) - (reference.y[(y - 1) * w + x].toInt() and 0xff)) * 0.5
+                hxx += gx * gx
+                hxy += gx * gy
+                hyy += gy * gy
+            }
+        }
+        val det = hxx * hyy - hxy * hxy
+        if (det <= 1e-6) return floatArrayOf(dx, dy)
+
+        for (iteration in 0 until LK_ITERATIONS) {
+            if (abs(dx) >= MARGIN_PX - 2 || abs(dy) >= MARGIN_PX - 2) break
+            var bx = 0.0
+            var by = 0.0
+            for (y in inset until reference.height - inset step LK_STEP) {
+                val sy = y + dy
+                val iy = floor(sy).toInt()
+                val fy = sy - iy
+                for (x in inset until w - inset step LK_STEP) {
+                    val sx = x + dx
+                    val ix = floor(sx).toInt()
+                    val fx = sx - ix
+                    val sample = bilinear(f.y, iy * w + ix, w, fx, fy)
+                    val e = sample - (reference.y[y * w + x].toInt() and 0xff)
+                    val gx = ((reference.y[y * w + x + 1].toInt() and 0xff) - (reference.y[y * w + x - 1].toInt() and 0xff)) * 0.5
+                    val gy = ((reference.y[(y + 1) * w + x].toInt() and 0xff) - (reference.y[(y - 1) * w + x].toInt() and 0xff)) * 0.5
+                    bx += gx * e
+                    by += gy * e
+                }
+            }
+            val stepX = ((hyy * bx - hxy * by) / det).toFloat()
+            val stepY = ((hxx * by - hxy * bx) / det).toFloat()
+            dx -= stepX
+            dy -= stepY
+            if (abs(stepX) < LK_CONVERGED_PX && abs(stepY) < LK_CONVERGED_PX) break
+        }
+        return floatArrayOf(dx, dy)
+    }
+
+    private fun coarseShift(reference: BurstFrame, f: BurstFrame): IntArray {
+        val ref = downsample(reference)
+        val cur = downsample(f)
+        val w = reference.width / COARSE
+        val h = reference.height / COARSE
+        val range = MARGIN_PX / COARSE - 1
+        var best = Long.MAX_VALUE
+        var bestX = 0
+        var bestY = 0
+        for (sy in -range..range) {
+            for (sx in -range..range) {
+                var sad = 0L
+                for (y in range until h - range step 2) {
+                    for (x in range until w - range step 2) {
+                        sad += abs(cur[(y + sy) * w + x + sx] - ref[y * w + x])
+                    }
+                }
+                if (sad < best) {
+                    best = sad
+                    bestX = sx
+                    bestY = sy
+                }
+            }
+        }
+        return intArrayOf(bestX * COARSE, bestY * COARSE)
+    }
+
+    private fun downsample(f: BurstFrame): IntArray {
+        val w = f.width / COARSE
+        val h = f.height / COARSE
+        val out = IntArray(w * h)
+        for (y in 0 until h) {
+            for (x in 0 until w) {
+                var sum = 0
+                for (j in 0 until COARSE) {
+                    val row = (y * COARSE + j) * f.width + x * COARSE
+                    for (i in 0 until COARSE) sum += f.y[row + i].toInt() and 0xff
+                }
+                out[y * w + x] = sum
+            }
+        }
+        return out
+    }
+
+    companion object {
+        // The burst is cropped with this much margin around the zoomed view, so
+        // shifted frames can be sampled everywhere
+        const val MARGIN_PX = 48
+        private const val TILE_ROWS = 32
+        private const val COARSE = 4
+        private const val LK_STEP = 2
+        private const val LK_ITERATIONS = 10
+        private const val LK_CONVERGED_PX = 0.01f
+        // Kernel width in input pixels: narrow enough that each output pixel
+        // leans on the samples that actually landed closest to it
+        private const val KERNEL_SIGMA = 0.4f
+        // Disagreement tolerated everywhere, on top of the local contrast
+        private const val ROBUST_FLOOR_DN = 8
+    }
+}
@@ -41,6 +41,11 @@ android {
     buildFeatures {
         compose = true
     }
+    androidResources {
+        // Binary assets are memory-mapped in place (AASSET_MODE_BUFFER), which
+        // only works for entries stored uncompressed
+        noCompress += "bin"
+    }
     composeOptions {
         kotlinCompilerExtensionVersion = "1.5.14"
     }
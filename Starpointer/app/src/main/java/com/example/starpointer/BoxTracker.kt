@@ -0,0 +1,120 @@
+package com.example.starpointer
+
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+
+// Cheap frame-to-frame tracker for the boxes of the last NanoDet run
+// (luminance template match + constant-velocity filter, see box_tracker.cpp).
+// Meant to be driven from the analyzer thread only.
+class BoxTracker : AutoCloseable {
+    private var handle = nativeCreate()
+
+    // Starts tracking the detections in boxes, which were found on frame; the
+    // templates come from that frame, and the next update() searches for them
+    // on the current one, however far they have moved since
+    fun reset(frame: LumaFrame, boxes: DetectionBuffer): Unit = synchronized(this) {
+        if (handle == 0L) return
+        if (frame.width == 0) {
+            nativeClear(handle)
+            return
+        }
+        nativeReset(
+            handle,
+            frame.buffer, frame.width, frame.height, frame.rowStride, frame.rotationDegrees,
+            boxes.count, boxes.classIds, boxes.values
+        )
+    }
+
+    // Moves the tracked boxes onto image and writes them to out. Scores are the
+    // detection score scaled by match quality, so they fall as tracking degrades.
+    fun update(image: ImageProxy, out: DetectionBuffer): Unit = synchronized(this) {
+        val rotated = image.imageInfo.rotationDegrees % 180 != 0
+        out.frameWidth = if (rotated) image.height else image.width
+        out.frameHeight = if (rotated) image.width else image.height
+        if (handle == 0L) {
+            out.clear()
+            return
+        }
+        val y = image.planes[0]
+        val u = image.planes[1]
+        val v = image.planes[2]
+        out.count = nativeUpdate(
+            handle,
+            y.buffer, u.buffer, v.buffer,
+            image.width, image.height,
+            y.rowStride, u.rowStride, u.pixelStride,
+            image.imageInfo.rotationDegrees,
+            out.classIds, out.values
+        )
+    }
+
+    override fun close() = synchronized(this) {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        init {
+            System.loadLibrary("nanodet")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
+
+        @JvmStatic
+        private external fun nativeClear(handle: Long)
+
+        @JvmStatic
+        private external fun nativeReset(
+            handle: Long,
+            yBuffer: ByteBuffer, width: Int, height: Int, yRowStride: Int,
+            rotationDegrees: Int, count: Int,
+            classIds: IntArray, values: FloatArray
+        )
+
+        @JvmStatic
+        private external fun nativeUpdate(
+            handle: Long,
+            yBuffer: ByteBuffer, uBuffer: ByteBuffer, vBuffer: ByteBuffer,
+            width: Int, height: Int,
+            yRowStride: Int, uvRowStride: Int, uvPixelStride: Int,
+            rotationDegrees: Int,
+            classIds: IntArray, values: FloatArray
+        ): Int
+    }
+}
+
+// A copy of one frame's Y plane, kept with a detection so the tracker can take
+// its templates from the frame the detection ran on rather than a later one
+class LumaFrame {
+    // Direct, for the native side; grown as needed and reused
+    var buffer: ByteBuffer = ByteBuffer.allocateDirect(0)
+        private set
+    var width = 0 // 0 until copied
+        private set
+    var height = 0
+        private set
+    var rowStride = 0
+        private set
+    var rotationDegrees = 0
+        private set
+
+    fun copyFrom(image: ImageProxy) {
+        val y = image.planes[0]
+        val source = y.buffer.duplicate()
+        source.rewind()
+        if (buffer.capacity() < source.remaining()) buffer = ByteBuffer.allocateDirect(source.remaining())
+        buffer.clear()
+        buffer.put(source)
+        buffer.flip()
+        width = image.width
+        height = image.height
+        rowStride = y.rowStride
+        rotationDegrees = image.imageInfo.rotationDegrees
+    }
+}
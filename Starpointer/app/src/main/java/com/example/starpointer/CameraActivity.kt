@@ -6,12 +6,10 @@ import android.content.pm.PackageManager
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.graphics.ImageFormat
+import android.graphics.Matrix
 import android.graphics.Rect
 import androidx.compose.foundation.layout.Arrangement
-import android.graphics.RectF
-import android.hardware.Sensor
-import android.hardware.SensorEvent
-import android.hardware.SensorEventListener
+import android.hardware.GeomagneticField
 import android.hardware.SensorManager
 import android.os.Build
 import android.os.Bundle
@@ -33,26 +31,26 @@ import androidx.camera.lifecycle.ProcessCameraProvider
 import androidx.camera.view.PreviewView
 import androidx.compose.foundation.Canvas
 import androidx.compose.foundation.layout.Box
+import androidx.compose.foundation.layout.Column
 import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.foundation.layout.fillMaxWidth
-import androidx.compose.foundation.layout.offset
 import androidx.compose.foundation.layout.padding
 import androidx.compose.material3.Button
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.DisposableEffect
+import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.getValue
-import androidx.compose.runtime.mutableStateListOf
+import androidx.compose.runtime.mutableIntStateOf
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.rememberUpdatedState
 import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
-import androidx.compose.ui.geometry.Offset
-import androidx.compose.ui.geometry.Size
 import androidx.compose.ui.graphics.Color
-import androidx.compose.ui.graphics.drawscope.Stroke
+import androidx.compose.ui.graphics.nativeCanvas
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.platform.LocalLifecycleOwner
 import androidx.compose.ui.unit.dp
@@ -60,17 +58,43 @@ import androidx.compose.ui.unit.sp
 import androidx.compose.ui.viewinterop.AndroidView
 import androidx.core.content.ContextCompat
 import com.example.starpointer.ui.theme.StarpointerTheme
+import com.google.android.gms.location.LocationCallback
+import com.google.android.gms.location.LocationRequest
+import com.google.android.gms.location.LocationResult
 import com.google.android.gms.location.LocationServices
+import com.google.android.gms.location.Priority
 import java.io.File
-import java.io.FileOutputStream
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+import kotlinx.coroutines.delay
 
 
 
+// Sensor readouts are refreshed at most this often
+private const val SENSOR_UI_INTERVAL_MS = 100L
+
+// Frames in flight through the analysis pipeline, and how many of them may be
+// full detections (one in inference, one preprocessed behind it)
+private const val ANALYSIS_SLOTS = 3
+private const val MAX_DETECTIONS_IN_FLIGHT = 2
+
+// Sensor period (200 Hz, the most Android allows without the high sampling
+// rate permission) and location interval while a session is recorded
+private const val RECORDING_SAMPLING_PERIOD_US = 5000
+private const val RECORDING_LOCATION_INTERVAL_MS = 5000L
+
 class CameraActivity : ComponentActivity() {
+    // Analysis threads outlive recompositions; CameraScreen binds its stages to them
+    private val pipeline = FramePipeline(List(ANALYSIS_SLOTS) { AnalysisSlot() })
+    // Null until AnalysisEngines.load() finishes in the background; the preview
+    // starts without waiting for it
+    private val engines = mutableStateOf<AnalysisEngines?>(null)
+
     private val locationPermissionLauncher = registerForActivityResult(
         ActivityResultContracts.RequestMultiplePermissions()
     ) { permissions ->
@@ -109,60 +133,53 @@ class CameraActivity : ComponentActivity() {
         )
         storagePermissionLauncher.launch(android.Manifest.permission.WRITE_EXTERNAL_STORAGE)
 
-        // Copy NCNN model files from assets to internal storage
-        val modelDir = File(filesDir, "models")
-        if (!modelDir.exists()) modelDir.mkdirs()
-        copyAssetToFile("nanodet.param", File(modelDir, "nanodet.param"))
-        copyAssetToFile("nanodet.bin", File(modelDir, "nanodet.bin"))
-        copyAssetToFile("labels.txt", File(modelDir, "labels.txt"))
-
-        // Initialize NCNN
-        System.loadLibrary("nanodet")
-        val initialized = initNanoDet(modelDir.absolutePath, File(modelDir, "labels.txt").absolutePath)
-        if (!initialized) {
-            Log.e("CameraActivity", "Failed to initialize NanoDet")
-        }
-
         val selectedObject = intent.getStringExtra("SELECTED_OBJECT") ?: "Unknown"
+        // adb shell am start -n com.example.starpointer/.CameraActivity --ez LEGACY_BITMAP_PATH true
+        val useBitmapPath = intent.getBooleanExtra("LEGACY_BITMAP_PATH", false)
+        // adb shell am start -n com.example.starpointer/.CameraActivity --ez STAR_DETECTOR true
+        val useStarDetector = intent.getBooleanExtra("STAR_DETECTOR", false)
+        // adb shell am start -n com.example.starpointer/.CameraActivity --ez RECORD_SESSION true
+        val recordSession = intent.getBooleanExtra("RECORD_SESSION", false)
+        // adb shell am start -n com.example.starpointer/.CameraActivity --ez STACK true
+        val stack = intent.getBooleanExtra("STACK", false)
+
+        // Library load, model probe and init all happen off the main thread
+        thread(name = "AnalysisInit") {
+            val loaded = AnalysisEngines.load(applicationContext, useStarDetector, stack)
+            runOnUiThread {
+                if (isDestroyed) loaded.close() else engines.value = loaded
+            }
+        }
 
         setContent {
             StarpointerTheme @androidx.annotation.RequiresPermission(allOf = [android.Manifest.permission.ACCESS_FINE_LOCATION, android.Manifest.permission.ACCESS_COARSE_LOCATION]) {
-                CameraScreen(selectedObject) {
+                CameraScreen(selectedObject, engines.value, pipeline, useBitmapPath, useStarDetector, recordSession, stack) {
                     finish()
                 }
             }
         }
     }
 
-    // Copy asset to internal storage
-    private fun copyAssetToFile(assetName: String, outputFile: File) {
-        if (!outputFile.exists()) {
-            assets.open(assetName).use { input ->
-                FileOutputStream(outputFile).use { output ->
-                    input.copyTo(output)
-                }
-            }
-        }
-    }
-
-    // JNI declarations
-    private external fun initNanoDet(modelPath: String, labelsPath: String): Boolean
-    external fun detectObjects(bitmap: Bitmap): Array<Detection>
-
-    data class Detection(val box: RectF, val label: String, val score: Float)
-
-    companion object {
-        // For accessing detectObjects without instantiating CameraActivity
-        fun detectObjectsStatic(bitmap: Bitmap): Array<Detection> {
-            return CameraActivity().detectObjects(bitmap)
-        }
+    override fun onDestroy() {
+        super.onDestroy()
+        pipeline.close()
+        engines.value?.close()
     }
 }
 
 @RequiresApi(Build.VERSION_CODES.O)
 @RequiresPermission(allOf = [Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION])
 @Composable
-fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
+fun CameraScreen(
+    selectedObject: String,
+    engines: AnalysisEngines?,
+    pipeline: FramePipeline<AnalysisSlot>,
+    useBitmapPath: Boolean = false,
+    useStarDetector: Boolean = false,
+    recordSession: Boolean = false,
+    stack: Boolean = false,
+    onBackClick: () -> Unit
+) {
     val context = LocalContext.current
     val lifecycleOwner = LocalLifecycleOwner.current
 
@@ -173,31 +190,153 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
     var locationValues by remember { mutableStateOf("Lat: 0.0 Long: 0.0") }
     var currentTime by remember { mutableStateOf("Time: 00:00:00") }
 
-    // Detections state
-    val detections = remember { mutableStateListOf<CameraActivity.Detection>() }
+    // Detections: each frame's slot is filled in place and the publish stage
+    // hands the UI an immutable copy. Only the overlay's draw pass reads it, so
+    // a new frame redraws the Canvas without recomposition or layout.
+    var overlay by remember { mutableStateOf(OverlaySnapshot.EMPTY) }
+    // The camera thread and callbacks set up once must see the engines arrive
+    val currentEngines by rememberUpdatedState(engines)
+    val selectedClassId = remember(engines, selectedObject) { engines?.nanoDet?.classIdOf(selectedObject) ?: -1 }
+    val currentClassId by rememberUpdatedState(selectedClassId)
+    val frameRateMeter = remember {
+        FrameRateMeter(if (stack) "stack" else if (useStarDetector) "stars" else if (useBitmapPath) "bitmap" else "yuv")
+    }
+    // Catalog objects around the pointing, labelled on the overlay
+    val catalog = remember { StarCatalog.open(context) }
+    val overlayRenderer = remember {
+        // Star boxes are stars; the renderer names the one the solve puts the target on
+        OverlayRenderer(catalog) { classId ->
+            if (useStarDetector) "star" else currentEngines?.nanoDet?.labels?.getOrNull(classId) ?: "unknown"
+        }
+    }
+    // Full inference every N frames, tracking in between
+    val scheduler = remember {
+        DetectionScheduler(context) { saving ->
+            // setOptions waits for a running inference; keep that off the main thread
+            thread(name = "NanoDetOptions") {
+                currentEngines?.nanoDet?.setOptions(if (saving) NanoDetOptions.POWER_SAVING else NanoDetOptions())
+            }
+        }
+    }
+    val roiController = remember { RoiController() }
+    // The tracker, scheduler and ROI controller belong to the preprocess thread;
+    // finished detections come back to it through the mailbox
+    val mailbox = remember { DetectionMailbox() }
+    val seed = remember { DetectionBuffer() }
+    val lastPublishedNs = remember { AtomicLong() }
+    // Sensors, location and published boxes, when asked to record the session
+    val recorder = remember { if (recordSession) SessionRecorder.create(context) else null }
+    // Stack mode: the stacker runs on the preprocess thread, which reports back
+    // through the session
+    var stackPreview by remember { mutableStateOf<StackPreview?>(null) }
+    var stackStatus by remember { mutableStateOf("") }
+    val stackSession = remember { StackSession({ stackPreview = it }, { stackStatus = it }) }
+    // What the analyzer may feed the pipeline: set only while stages are bound
+    val boundEngines = remember { AtomicReference<AnalysisEngines?>() }
+    DisposableEffect(pipeline, engines, selectedClassId) {
+        val nanoDet = engines?.nanoDet
+        val plateSolver = engines?.plateSolver
+        if (nanoDet != null) pipeline.bind(
+            inference = { slot ->
+                val start = System.nanoTime()
+                when (slot.mode) {
+                    AnalysisSlot.Mode.STARS ->
+                        if (plateSolver?.solve(slot.detections, PlateSolver.DEFAULT_FOV_DEGREES, slot.solution) != true) {
+                            slot.solution.matches = 0
+                        }
+                    AnalysisSlot.Mode.DETECT -> {
+                        val bitmap = slot.bitmap
+                        if (bitmap != null) {
+                            nanoDet.detect(bitmap, selectedClassId, slot.detections)
+                            slot.bitmap = null
+                        } else {
+                            nanoDet.detect(slot.input, selectedClassId, slot.detections)
+                        }
+                    }
+                    AnalysisSlot.Mode.TRACK -> Unit
+                }
+                slot.busyNs += System.nanoTime() - start
+            },
+            publish = { slot ->
+                if (slot.mode == AnalysisSlot.Mode.DETECT) {
+                    slot.luma = mailbox.post(slot.detections, slot.busyNs, slot.luma)
+                }
+                frameRateMeter.onFrame(slot.busyNs)
+                recorder?.recordDetections(slot.timestampNs, slot.mode.ordinal, slot.detections)
+                // Tracked frames skip inference and can overtake a detection;
+                // never replace a newer overlay with an older one
+                if (slot.timestampNs > lastPublishedNs.get()) {
+                    lastPublishedNs.set(slot.timestampNs)
+                    overlay = OverlaySnapshot(slot.detections, if (useStarDetector) slot.solution else null)
+                }
+            }
+        )
+        boundEngines.set(engines)
+        onDispose {
+            boundEngines.set(null)
+            pipeline.unbind()
+        }
+    }
+    DisposableEffect(Unit) {
+        onDispose { scheduler.close() }
+    }
 
-    // Setup sensors
+    // Sensor fusion runs on its own thread; the UI samples it at a capped rate
+    // instead of recomposing on every sensor event
     val sensorManager = context.getSystemService(Context.SENSOR_SERVICE) as SensorManager
-    val accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER)
-    val gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE)
-    val magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD)
-
-    val sensorListener = remember {
-        object : SensorEventListener {
-            override fun onSensorChanged(event: SensorEvent?) {
-                event?.let {
-                    val x = it.values[0]
-                    val y = it.values[1]
-                    val z = it.values[2]
-                    when (it.sensor.type) {
-                        Sensor.TYPE_ACCELEROMETER -> accValues = "Acc: X=%.1f Y=%.1f Z=%.1f".format(x, y, z)
-                        Sensor.TYPE_GYROSCOPE -> gyroValues = "Gyro: X=%.1f Y=%.1f Z=%.1f".format(x, y, z)
-                        Sensor.TYPE_MAGNETIC_FIELD -> magValues = "Mag: X=%.1f Y=%.1f Z=%.1f".format(x, y, z)
+    val fusion = remember { SensorFusion(sensorManager) }
+    val orientation = remember { SensorFusion.Orientation() }
+    var pointingValues by remember { mutableStateOf("Alt: 0.0 Az: 0.0") }
+
+    // Where the target and the catalog are in the local sky. Everything below
+    // runs on the main thread, which owns the ephemeris.
+    val ephemeris = remember { Ephemeris() }
+    val observer = remember { doubleArrayOf(Double.NaN, Double.NaN) } // lat, lon; NaN until located
+    val targetPlanet = remember(selectedObject) { Ephemeris.Planet.byName(selectedObject) }
+    val targetIndex = remember(catalog, selectedObject) {
+        if (targetPlanet == null) catalog?.indexOf(selectedObject) ?: -1 else -1
+    }
+    val target = remember { FloatArray(3) }
+    val targetHorizontal = remember { FloatArray(2) }
+    var targetValues by remember { mutableStateOf("") }
+    var skyFrame by remember { mutableIntStateOf(0) }
+    DisposableEffect(Unit) {
+        // The log wants the sensors at full rate, not at the UI's
+        fusion.recorder = recorder
+        fusion.start(if (recorder != null) RECORDING_SAMPLING_PERIOD_US else SensorManager.SENSOR_DELAY_GAME)
+        onDispose {
+            fusion.stop()
+            fusion.recorder = null
+            recorder?.close()
+        }
+    }
+    LaunchedEffect(Unit) {
+        while (true) {
+            fusion.read(orientation)
+            accValues = "Acc: X=%.1f Y=%.1f Z=%.1f".format(orientation.accel[0], orientation.accel[1], orientation.accel[2])
+            gyroValues = "Gyro: X=%.1f Y=%.1f Z=%.1f".format(orientation.gyro[0], orientation.gyro[1], orientation.gyro[2])
+            magValues = "Mag: X=%.1f Y=%.1f Z=%.1f".format(orientation.mag[0], orientation.mag[1], orientation.mag[2])
+            pointingValues = "Alt: %.1f Az: %.1f".format(orientation.altitudeDeg, orientation.azimuthDeg)
+            if (!observer[0].isNaN()) {
+                // Cheap unless a second boundary was crossed
+                ephemeris.update(System.currentTimeMillis(), observer[0], observer[1])
+                val known = when {
+                    targetPlanet != null -> { ephemeris.planetJ2000(targetPlanet, target); true }
+                    targetIndex >= 0 && catalog != null -> {
+                        target[0] = catalog.x(targetIndex)
+                        target[1] = catalog.y(targetIndex)
+                        target[2] = catalog.z(targetIndex)
+                        true
                     }
+                    else -> false
                 }
+                if (known) {
+                    ephemeris.horizontal(target[0], target[1], target[2], targetHorizontal)
+                    targetValues = "  Alt %.1f Az %.1f".format(targetHorizontal[0], targetHorizontal[1])
+                }
+                skyFrame++
             }
-
-            override fun onAccuracyChanged(sensor: Sensor?, accuracy: Int) {}
+            delay(SENSOR_UI_INTERVAL_MS)
         }
     }
 
@@ -206,9 +345,33 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
     fusedLocationProvider.lastLocation.addOnSuccessListener { location ->
         if (location != null) {
             locationValues = "Lat: %.4f Long: %.4f".format(location.latitude, location.longitude)
+            observer[0] = location.latitude
+            observer[1] = location.longitude
+            recorder?.recordLocation(location)
+            // Azimuth relative to true rather than magnetic north
+            fusion.declinationDeg = GeomagneticField(
+                location.latitude.toFloat(), location.longitude.toFloat(), location.altitude.toFloat(),
+                System.currentTimeMillis()
+            ).declination
         }
     }
 
+    // A session log gets a fix every few seconds, not just the last known one
+    DisposableEffect(recorder) {
+        val callback = object : LocationCallback() {
+            override fun onLocationResult(result: LocationResult) {
+                result.lastLocation?.let { recorder?.recordLocation(it) }
+            }
+        }
+        if (recorder != null) {
+            fusedLocationProvider.requestLocationUpdates(
+                LocationRequest.Builder(Priority.PRIORITY_HIGH_ACCURACY, RECORDING_LOCATION_INTERVAL_MS).build(),
+                callback, Looper.getMainLooper()
+            )
+        }
+        onDispose { fusedLocationProvider.removeLocationUpdates(callback) }
+    }
+
     // Time update
     val handler = Handler(Looper.getMainLooper())
     val timeUpdater = object : Runnable {
@@ -222,17 +385,8 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
         onDispose { handler.removeCallbacks(timeUpdater) }
     }
 
-    // Register sensors
-    DisposableEffect(Unit) {
-        sensorManager.registerListener(sensorListener, accelerometer, SensorManager.SENSOR_DELAY_NORMAL)
-        sensorManager.registerListener(sensorListener, gyroscope, SensorManager.SENSOR_DELAY_NORMAL)
-        sensorManager.registerListener(sensorListener, magnetometer, SensorManager.SENSOR_DELAY_NORMAL)
-        onDispose { sensorManager.unregisterListener(sensorListener) }
-    }
-
     // Camera setup
     var imageCapture by remember { mutableStateOf<ImageCapture?>(null) }
-    val executor = Executors.newSingleThreadExecutor()
     Box(modifier = Modifier.fillMaxSize()) {
         AndroidView(
             factory = { viewContext ->
@@ -250,23 +404,84 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
                         .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                         .build()
                         .also { analysis ->
-                            analysis.setAnalyzer(executor) { imageProxy ->
-                                val bitmap = imageProxy.toBitmap()
-                                val results = CameraActivity.detectObjectsStatic(bitmap)
-                                detections.clear()
-                                detections.addAll(results.filter { it.label == selectedObject })
+                            // Preprocess stage: everything that needs the camera buffer, which
+                            // is released before inference so the camera can move on
+                            analysis.setAnalyzer(pipeline.preprocessExecutor) { imageProxy ->
+                                // Nothing to do until the engines are loaded, or at all if the
+                                // model doesn't know the selected object
+                                val e = boundEngines.get()
+                                val selectedClassId = currentClassId
+                                if (e == null || (e.stacker == null && e.starDetector == null && selectedClassId < 0)) {
+                                    imageProxy.close()
+                                    return@setAnalyzer
+                                }
+                                val stacker = e.stacker
+                                if (stacker != null) {
+                                    // Stacking needs every pixel of the frame, so it happens here
+                                    // and skips the pipeline
+                                    val start = System.nanoTime()
+                                    stackSession.add(stacker, imageProxy)
+                                    frameRateMeter.onFrame(System.nanoTime() - start)
+                                    stackSession.refresh(stacker)
+                                    return@setAnalyzer
+                                }
+                                val tracker = e.tracker
+                                val starDetector = e.starDetector
+                                val slot = pipeline.acquire()
+                                if (slot == null) {
+                                    imageProxy.close()
+                                    return@setAnalyzer
+                                }
+                                val start = System.nanoTime()
+                                slot.timestampNs = imageProxy.imageInfo.timestamp
+                                // A detection finished since the last frame: track from it. The
+                                // boxes are a frame or two old by now, so the templates come
+                                // from the frame they were found on, and the next update
+                                // searches for them on the current one.
+                                val detectedNs = mailbox.take(seed)
+                                if (detectedNs >= 0L) {
+                                    if (!useBitmapPath) roiController.onDetections(seed)
+                                    tracker.reset(mailbox.takenFrame, seed)
+                                    scheduler.onDetected(detectedNs, seed)
+                                }
+                                // The scheduler sees every frame, even ones the pipeline
+                                // has no room to detect on
+                                val detectDue = starDetector == null &&
+                                    scheduler.shouldDetect(imageProxy.imageInfo.timestamp)
+                                var infer = true
+                                if (starDetector != null) {
+                                    starDetector.detect(imageProxy, selectedClassId, slot.detections)
+                                    slot.mode = AnalysisSlot.Mode.STARS
+                                } else if (detectDue && pipeline.inferenceInFlight < MAX_DETECTIONS_IN_FLIGHT) {
+                                    if (useBitmapPath) {
+                                        slot.bitmap = imageProxy.toBitmapViaJpeg()
+                                    } else {
+                                        e.nanoDet.preprocess(imageProxy, roiController.nextRoi(), slot.input)
+                                    }
+                                    slot.luma.copyFrom(imageProxy)
+                                    scheduler.onDetectionStarted()
+                                    slot.mode = AnalysisSlot.Mode.DETECT
+                                } else {
+                                    tracker.update(imageProxy, slot.detections)
+                                    scheduler.onTracked(System.nanoTime() - start, slot.detections)
+                                    slot.mode = AnalysisSlot.Mode.TRACK
+                                    infer = false
+                                }
                                 imageProxy.close()
+                                slot.busyNs = System.nanoTime() - start
+                                pipeline.submit(slot, start, infer)
                             }
                         }
                     try {
                         cameraProvider.unbindAll()
-                        cameraProvider.bindToLifecycle(
+                        val camera = cameraProvider.bindToLifecycle(
                             lifecycleOwner,
                             CameraSelector.DEFAULT_BACK_CAMERA,
                             preview,
                             imageCapture,
                             imageAnalyzer
                         )
+                        recorder?.setFrameTimestampSource(camera.cameraInfo)
                     } catch (exc: Exception) {
                         Log.e("CameraScreen", "Use case binding failed", exc)
                     }
@@ -276,46 +491,33 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
             modifier = Modifier.fillMaxSize()
         )
 
-        // Draw bounding boxes and labels
-        Canvas(modifier = Modifier.fillMaxSize()) {
-            val canvasWidth = size.width
-            val canvasHeight = size.height
-            detections.forEach { detection ->
-                val box = detection.box
-                val scaleX = canvasWidth / 416f
-                val scaleY = canvasHeight / 416f
-                val scaledBox = RectF(
-                    box.left * scaleX,
-                    box.top * scaleY,
-                    box.right * scaleX,
-                    box.bottom * scaleY
-                )
-                drawRect(
-                    color = Color.Green,
-                    topLeft = Offset(scaledBox.left, scaledBox.top),
-                    size = Size(scaledBox.width(), scaledBox.height()),
-                    style = Stroke(width = 4f)
-                )
+        // The live stack over the preview, rotated upright and cropped the way
+        // FILL_CENTER crops the preview
+        stackPreview?.let { preview ->
+            Canvas(modifier = Modifier.fillMaxSize()) {
+                val bitmap = preview.bitmap
+                val rotated = preview.rotationDegrees % 180 != 0
+                val uprightWidth = if (rotated) bitmap.height else bitmap.width
+                val uprightHeight = if (rotated) bitmap.width else bitmap.height
+                val scale = maxOf(size.width / uprightWidth, size.height / uprightHeight)
+                val matrix = Matrix().apply {
+                    setTranslate(-bitmap.width / 2f, -bitmap.height / 2f)
+                    postRotate(preview.rotationDegrees.toFloat())
+                    postScale(scale, scale)
+                    postTranslate(size.width / 2f, size.height / 2f)
+                }
+                drawContext.canvas.nativeCanvas.drawBitmap(bitmap, matrix, null)
+                preview.markDrawn()
             }
         }
 
-        // Bounding box labels as Text
-        detections.forEach { detection ->
-            val box = detection.box
-            val scaleX = LocalContext.current.resources.displayMetrics.widthPixels / 416f
-            val scaleY = LocalContext.current.resources.displayMetrics.heightPixels / 416f
-            val scaledBox = RectF(
-                box.left * scaleX,
-                box.top * scaleY,
-                box.right * scaleX,
-                box.bottom * scaleY
-            )
-            Text(
-                text = "${detection.label} (${String.format("%.2f", detection.score)})",
-                color = Color.Green,
-                fontSize = 14.sp,
-                modifier = Modifier
-                    .offset(x = scaledBox.left.dp, y = (scaledBox.top - 20).dp)
+        // Boxes, labels and sky markers in one draw pass
+        Canvas(modifier = Modifier.fillMaxSize()) {
+            skyFrame // redraw whenever the attitude has been sampled
+            overlayRenderer.draw(
+                drawContext.canvas.nativeCanvas, overlay,
+                if (observer[0].isNaN()) null else ephemeris, orientation,
+                if (targetPlanet != null) target else null, targetIndex, selectedObject
             )
         }
 
@@ -329,6 +531,7 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
             Text(text = accValues, fontSize = 10.sp, color = Color.White)
             Text(text = gyroValues, fontSize = 10.sp, color = Color.White)
             Text(text = magValues, fontSize = 10.sp, color = Color.White)
+            Text(text = pointingValues, fontSize = 10.sp, color = Color.White)
             Text(text = locationValues, fontSize = 10.sp, color = Color.White)
             Text(text = currentTime, fontSize = 10.sp, color = Color.White)
         }
@@ -343,6 +546,21 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
             Text("Capture")
         }
 
+        // Stack status and reset (Bottom-Left); the reset is picked up by the
+        // preprocess thread, which owns the stacker
+        if (stack) {
+            Column(
+                modifier = Modifier
+                    .align(Alignment.BottomStart)
+                    .padding(16.dp)
+            ) {
+                Text(text = stackStatus, fontSize = 12.sp, color = Color.White)
+                Button(onClick = { stackSession.requestReset() }) {
+                    Text("Reset stack")
+                }
+            }
+        }
+
         // Back Button (Top-Left)
         Button(
             onClick = onBackClick,
@@ -353,9 +571,19 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
             Text("Back")
         }
 
+        // Readiness: the preview runs while the detector loads
+        if (engines == null) {
+            Text(
+                text = "Loading detector…",
+                fontSize = 16.sp,
+                color = Color.White,
+                modifier = Modifier.align(Alignment.Center)
+            )
+        }
+
         // Selected Object (Bottom-Center)
         Text(
-            text = "Tracking: $selectedObject",
+            text = "Tracking: $selectedObject$targetValues",
             fontSize = 16.sp,
             color = Color.White,
             modifier = Modifier
@@ -365,6 +593,104 @@ fun CameraScreen(selectedObject: String, onBackClick: () -> Unit) {
     }
 }
 
+// One frame's work as it moves through the FramePipeline
+class AnalysisSlot : AutoCloseable {
+    enum class Mode { DETECT, TRACK, STARS }
+
+    var mode = Mode.TRACK
+    var timestampNs = 0L
+    // Time spent preprocessing and inferring, excluding queueing
+    var busyNs = 0L
+    // Created on first use by the preprocess stage, once the library is loaded
+    private val inputDelegate = lazy { NanoDetEngine.Input() }
+    val input by inputDelegate
+    var bitmap: Bitmap? = null // legacy Bitmap path only
+    val detections = DetectionBuffer()
+    val solution = PlateSolution()
+    // DETECT only: the frame the detection runs on, for the tracker's templates
+    var luma = LumaFrame()
+
+    override fun close() {
+        if (inputDelegate.isInitialized()) input.close()
+    }
+}
+
+// The native side of analysis: the model plus the tracker, star detector and
+// plate solver. Built off the main thread, since creating the first of them
+// loads libnanodet and the model has to be probed and loaded.
+class AnalysisEngines private constructor(
+    val nanoDet: NanoDetEngine,
+    val tracker: BoxTracker,
+    // Point sources don't need the CNN; the centroid detector is cheap enough for every frame...
+    val starDetector: StarDetector?,
+    // ...and their pattern tells where the camera points
+    val plateSolver: PlateSolver?,
+    // Stack mode replaces detection altogether
+    val stacker: FrameStacker?
+) : AutoCloseable {
+    override fun close() {
+        tracker.close()
+        starDetector?.close()
+        plateSolver?.close()
+        stacker?.close()
+        nanoDet.close()
+    }
+
+    companion object {
+        fun load(context: Context, useStarDetector: Boolean, stack: Boolean = false): AnalysisEngines {
+            val nanoDet = NanoDetEngine()
+            // The star and stack paths never run the model, so skip the probe and load
+            if (!useStarDetector && !stack && !nanoDet.init(context.assets, ModelSelector(context).select())) {
+                Log.e("CameraActivity", "Failed to initialize NanoDet")
+            }
+            return AnalysisEngines(
+                nanoDet,
+                BoxTracker(),
+                if (useStarDetector) StarDetector() else null,
+                if (useStarDetector) PlateSolver(context.assets) else null,
+                if (stack) FrameStacker() else null
+            )
+        }
+    }
+}
+
+// Hands the latest finished detection from the publish stage back to the
+// preprocess stage. Only the newest is kept. The Y plane it ran on travels
+// with it by swapping LumaFrames rather than copying them.
+private class DetectionMailbox {
+    private val boxes = DetectionBuffer()
+    private var busyNs = -1L
+    private var frame = LumaFrame()
+    // The frame of the detection last taken; preprocess stage only
+    var takenFrame = LumaFrame()
+        private set
+
+    // Keeps frame and returns a spare for the poster to reuse
+    @Synchronized
+    fun post(from: DetectionBuffer, busyNs: Long, frame: LumaFrame): LumaFrame {
+        boxes.copyFrom(from)
+        this.busyNs = busyNs
+        val spare = this.frame
+        this.frame = frame
+        return spare
+    }
+
+    // Copies a posted detection into out, moves its frame to takenFrame and
+    // returns its cost, or -1 if none
+    @Synchronized
+    fun take(out: DetectionBuffer): Long {
+        val ns = busyNs
+        if (ns >= 0L) {
+            out.copyFrom(boxes)
+            busyNs = -1L
+            val taken = frame
+            frame = takenFrame
+            takenFrame = taken
+        }
+        return ns
+    }
+}
+
 // Helper: Capture Image
 private fun captureImage(context: Context, imageCapture: ImageCapture?) {
     val photoFile = File(
@@ -388,9 +714,10 @@ private fun captureImage(context: Context, imageCapture: ImageCapture?) {
     )
 }
 
-// Helper: Convert ImageProxy to Bitmap
+// Helper: Convert ImageProxy to Bitmap through a JPEG round trip (the legacy
+// path). Not named toBitmap(): CameraX's member of that name would win.
 @RequiresApi(Build.VERSION_CODES.O)
-private fun androidx.camera.core.ImageProxy.toBitmap(): Bitmap {
+private fun androidx.camera.core.ImageProxy.toBitmapViaJpeg(): Bitmap {
     val yBuffer = planes[0].buffer
     val uBuffer = planes[1].buffer
     val vBuffer = planes[2].buffer
@@ -0,0 +1,39 @@
+package com.example.starpointer
+
+// Flat, reusable detection results filled in place by the native side.
+// Entry i is classIds[i] plus values[i * STRIDE until (i + 1) * STRIDE] =
+// score, left, top, right, bottom in upright frame pixels.
+class DetectionBuffer(val capacity: Int = 64) {
+    val classIds = IntArray(capacity)
+    val values = FloatArray(capacity * STRIDE)
+    var count = 0
+    // Size of the (upright) frame the boxes are expressed in
+    var frameWidth = 0
+    var frameHeight = 0
+
+    fun classId(i: Int) = classIds[i]
+    fun score(i: Int) = values[i * STRIDE]
+    fun left(i: Int) = values[i * STRIDE + 1]
+    fun top(i: Int) = values[i * STRIDE + 2]
+    fun right(i: Int) = values[i * STRIDE + 3]
+    fun bottom(i: Int) = values[i * STRIDE + 4]
+
+    fun clear() {
+        count = 0
+    }
+
+    fun copyFrom(other: DetectionBuffer) {
+        val n = minOf(other.count, capacity)
+        System.arraycopy(other.classIds, 0, classIds, 0, n)
+        System.arraycopy(other.values, 0, values, 0, n * STRIDE)
+        count = n
+        frameWidth = other.frameWidth
+        frameHeight = other.frameHeight
+    }
+
+    companion object {
+        const val STRIDE = 5
+        // Pass as the class filter to keep every class
+        const val ALL_CLASSES = -1
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.starpointer
+
+import android.content.Context
+import android.os.Build
+import android.os.PowerManager
+import kotlin.math.ceil
+
+// Decides, frame by frame, whether to run full NanoDet or let BoxTracker carry
+// the previous boxes forward. The detection interval N follows measured
+// inference latency (keep inference to about dutyCycle of the frame time) and
+// is stretched further as the device heats up. N counts frames from the one a
+// detection was dispatched on, not from when its result came back. Until the
+// first result gives a latency to size N by, no second detection is started.
+// Detection is forced early when a tracked box's score falls below
+// refreshScore or a box is lost.
+// onPowerSaving is told (on the main thread) when the device gets hot enough
+// that inference itself should trade latency for power, and when it cools.
+class DetectionScheduler(
+    context: Context,
+    private val dutyCycle: Float = 0.3f,
+    private val maxInterval: Int = 30,
+    private val refreshScore: Float = 0.3f,
+    private val onPowerSaving: ((Boolean) -> Unit)? = null
+) : AutoCloseable {
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+
+    @Volatile
+    private var thermalStatus = 0
+    private var powerSaving = false
+    private val thermalListener: Any? = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        PowerManager.OnThermalStatusChangedListener { status -> onThermalStatus(status) }
+            .also {
+                onThermalStatus(powerManager.currentThermalStatus)
+                powerManager.addThermalStatusListener(it)
+            }
+    } else {
+        null
+    }
+
+    // Exponential moving averages
+    private var inferenceMs = 0f
+    private var frameIntervalMs = 33f
+    private var lastFrameTimestampNs = 0L
+
+    private var framesSinceDetection = 0
+    private var trackedCount = 0
+    private var forceDetection = true
+    // The first detection is out and its latency unknown
+    private var awaitingFirst = false
+
+    private val detectMeter = FrameRateMeter("detect")
+    private val trackMeter = FrameRateMeter("track")
+
+    // Current number of frames between full detections
+    var interval = 1
+        private set
+
+    val detectionFps: Float get() = detectMeter.fps
+    val trackedFps: Float get() = trackMeter.fps
+
+    // Call once per frame with ImageInfo.getTimestamp(), whether or not a
+    // detection could be started on it
+    fun shouldDetect(frameTimestampNs: Long): Boolean {
+        if (lastFrameTimestampNs != 0L) {
+            val delta = (frameTimestampNs - lastFrameTimestampNs) / 1_000_000f
+            if (delta > 0f) frameIntervalMs += (delta - frameIntervalMs) * 0.1f
+        }
+        lastFrameTimestampNs = frameTimestampNs
+        framesSinceDetection++
+        // A first detection that never comes back (its frame was dropped)
+        // holds things up for maxInterval frames at most
+        if (awaitingFirst && framesSinceDetection < maxInterval) return false
+        return forceDetection || framesSinceDetection >= interval
+    }
+
+    // A detection was dispatched on this frame
+    fun onDetectionStarted() {
+        framesSinceDetection = 0
+        forceDetection = false
+        awaitingFirst = inferenceMs == 0f
+    }
+
+    fun onDetected(elapsedNs: Long, boxes: DetectionBuffer) {
+        val ms = elapsedNs / 1_000_000f
+        inferenceMs = if (inferenceMs == 0f) ms else inferenceMs + (ms - inferenceMs) * 0.2f
+        awaitingFirst = false
+        trackedCount = boxes.count
+        interval = computeInterval()
+        detectMeter.onFrame(elapsedNs)
+    }
+
+    fun onTracked(elapsedNs: Long, boxes: DetectionBuffer) {
+        var weakest = Float.MAX_VALUE
+        for (i in 0 until boxes.count) {
+            if (boxes.score(i) < weakest) weakest = boxes.score(i)
+        }
+        if (boxes.count < trackedCount || (boxes.count > 0 && weakest < refreshScore)) {
+            forceDetection = true
+        }
+        trackedCount = boxes.count
+        trackMeter.onFrame(elapsedNs)
+    }
+
+    private fun onThermalStatus(status: Int) {
+        thermalStatus = status
+        val saving = status >= PowerManager.THERMAL_STATUS_MODERATE
+        if (saving != powerSaving) {
+            powerSaving = saving
+            onPowerSaving?.invoke(saving)
+        }
+    }
+
+    private fun computeInterval(): Int {
+        val base = ceil(inferenceMs / (frameIntervalMs * dutyCycle)).toInt()
+        val thermalFactor = when {
+            thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE -> 4
+            thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE -> 2
+            else -> 1
+        }
+        return (base * thermalFactor).coerceIn(1, maxInterval)
+    }
+
+    override fun close() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener as PowerManager.OnThermalStatusChangedListener)
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.starpointer
+
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.asin
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+// Where things are in the local sky. update() folds precession (J2000 to
+// date), sidereal time and the observer's latitude into one 3x3 matrix taking
+// J2000 unit vectors (as stored in StarCatalog) to local East-North-Up, and
+// computes planet positions. Both are cached per whole second and observer
+// location, so per-object work on a frame is a matrix-vector product.
+// Not thread-safe; use one instance per thread.
+class Ephemeris {
+    // Planets from the JPL approximate Keplerian elements (Standish, valid
+    // 1800-2050, arcminute accuracy). Element rates are per Julian century.
+    enum class Planet(
+        val displayName: String,
+        val a: Double, val aRate: Double,
+        val e: Double, val eRate: Double,
+        val i: Double, val iRate: Double,
+        val l: Double, val lRate: Double,
+        val peri: Double, val periRate: Double,
+        val node: Double, val nodeRate: Double
+    ) {
+        VENUS("Venus", 0.72333566, 0.00000390, 0.00677672, -0.00004107, 3.39467605, -0.00078890,
+            181.97909950, 58517.81538729, 131.60246718, 0.00268329, 76.67984255, -0.27769418),
+        MARS("Mars", 1.52371034, 0.00001847, 0.09339410, 0.00007882, 1.84969142, -0.00813131,
+            -4.55343205, 19140.30268499, -23.94362959, 0.44441088, 49.55953891, -0.29257343),
+        JUPITER("Jupiter", 5.20288700, -0.00011607, 0.04838624, -0.00013253, 1.30439695, -0.00183714,
+            34.39644051, 3034.74612775, 14.72847983, 0.21252668, 100.47390909, 0.20469106),
+        SATURN("Saturn", 9.53667594, -0.00125060, 0.05386179, -0.00050991, 2.48599187, 0.00193609,
+            49.95424423, 1222.49362201, 92.59887831, -0.41897216, 113.66242448, -0.28867794);
+
+        companion object {
+            fun byName(name: String): Planet? = values().firstOrNull { it.displayName.equals(name, ignoreCase = true) }
+        }
+    }
+
+    // J2000 -> local ENU, row-major
+    private val horizon = DoubleArray(9)
+    private val planets = FloatArray(Planet.values().size * 3)
+    private val scratch = DoubleArray(3)
+    private val earth = DoubleArray(3)
+
+    private var cachedSecond = Long.MIN_VALUE
+    private var cachedLatitude = Double.NaN
+    private var cachedLongitude = Double.NaN
+
+    var localSiderealDeg = 0.0
+        private set
+
+    // Recomputes only when the second or the observer changed; returns true if it did
+    fun update(timeMs: Long, latitudeDeg: Double, longitudeDeg: Double): Boolean {
+        val second = Math.floorDiv(timeMs, 1000L)
+        if (second == cachedSecond && latitudeDeg == cachedLatitude && longitudeDeg == cachedLongitude) return false
+        val secondChanged = second != cachedSecond
+        cachedSecond = second
+        cachedLatitude = latitudeDeg
+        cachedLongitude = longitudeDeg
+
+        val jd = second / 86400.0 + 2440587.5
+        val t = (jd - 2451545.0) / 36525.0
+        localSiderealDeg = normalizeDegrees(gmstDegrees(jd, t) + longitudeDeg)
+
+        // Precession J2000 -> date (IAU 1976)
+        val zeta = arcsec(2306.2181 * t + 0.30188 * t * t + 0.017998 * t * t * t)
+        val z = arcsec(2306.2181 * t + 1.09468 * t * t + 0.018203 * t * t * t)
+        val theta = arcsec(2004.3109 * t - 0.42665 * t * t - 0.041833 * t * t * t)
+        val cZeta = cos(zeta); val sZeta = sin(zeta)
+        val cZ = cos(z); val sZ = sin(z)
+        val cTheta = cos(theta); val sTheta = sin(theta)
+        val p11 = cZeta * cZ * cTheta - sZeta * sZ
+        val p12 = -sZeta * cZ * cTheta - cZeta * sZ
+        val p13 = -cZ * sTheta
+        val p21 = cZeta * sZ * cTheta + sZeta * cZ
+        val p22 = -sZeta * sZ * cTheta + cZeta * cZ
+        val p23 = -sZ * sTheta
+        val p31 = cZeta * sTheta
+        val p32 = -sZeta * sTheta
+        val p33 = cTheta
+
+        // Rotate by -LST so x points at the meridian (hour angle 0), then tilt
+        // by latitude: E = y, N = cos(lat) z - sin(lat) x, U = sin(lat) z + cos(lat) x
+        val lst = Math.toRadians(localSiderealDeg)
+        val cL = cos(lst); val sL = sin(lst)
+        val lat = Math.toRadians(latitudeDeg)
+        val cPhi = cos(lat); val sPhi = sin(lat)
+        // Rows of Rz(-lst) * P
+        val r11 = cL * p11 + sL * p21; val r12 = cL * p12 + sL * p22; val r13 = cL * p13 + sL * p23
+        val r21 = -sL * p11 + cL * p21; val r22 = -sL * p12 + cL * p22; val r23 = -sL * p13 + cL * p23
+        horizon[0] = r21; horizon[1] = r22; horizon[2] = r23
+        horizon[3] = cPhi * p31 - sPhi * r11; horizon[4] = cPhi * p32 - sPhi * r12; horizon[5] = cPhi * p33 - sPhi * r13
+        horizon[6] = sPhi * p31 + cPhi * r11; horizon[7] = sPhi * p32 + cPhi * r12; horizon[8] = sPhi * p33 + cPhi * r13
+
+        if (secondChanged) {
+            heliocentric(EARTH_MOON, t, earth)
+            for (planet in Planet.values()) {
+                heliocentric(planet.elements(), t, scratch)
+                val gx = scratch[0] - earth[0]
+                val gy = scratch[1] - earth[1]
+                val gz = scratch[2] - earth[2]
+                val n = sqrt(gx * gx + gy * gy + gz * gz)
+                val o = planet.ordinal * 3
+                planets[o] = (gx / n).toFloat()
+                planets[o + 1] = (gy / n).toFloat()
+                planets[o + 2] = (gz / n).toFloat()
+            }
+        }
+        return true
+    }
+
+    // Geocentric J2000 unit vector of a planet at the last update()
+    fun planetJ2000(planet: Planet, out: FloatArray) {
+        val o = planet.ordinal * 3
+        out[0] = planets[o]
+        out[1] = planets[o + 1]
+        out[2] = planets[o + 2]
+    }
+
+    // J2000 unit vector -> out[0] altitude, out[1] azimuth (north through east), degrees
+    fun horizontal(x: Float, y: Float, z: Float, out: FloatArray) {
+        val e = horizon[0] * x + horizon[1] * y + horizon[2] * z
+        val n = horizon[3] * x + horizon[4] * y + horizon[5] * z
+        val u = horizon[6] * x + horizon[7] * y + horizon[8] * z
+        out[0] = Math.toDegrees(asin(u.coerceIn(-1.0, 1.0))).toFloat()
+        val az = Math.toDegrees(atan2(e, n)).toFloat()
+        out[1] = if (az < 0f) az + 360f else az
+    }
+
+    // Inverse of horizontal(): the J2000 unit vector at (altitude, azimuth)
+    fun equatorial(altitudeDeg: Float, azimuthDeg: Float, out: FloatArray) {
+        val alt = Math.toRadians(altitudeDeg.toDouble())
+        val az = Math.toRadians(azimuthDeg.toDouble())
+        val e = cos(alt) * sin(az)
+        val n = cos(alt) * cos(az)
+        val u = sin(alt)
+        // The matrix is a rotation, so its transpose inverts it
+        out[0] = (horizon[0] * e + horizon[3] * n + horizon[6] * u).toFloat()
+        out[1] = (horizon[1] * e + horizon[4] * n + horizon[7] * u).toFloat()
+        out[2] = (horizon[2] * e + horizon[5] * n + horizon[8] * u).toFloat()
+    }
+
+    // J2000 unit vector -> screen pixels for a device at orientation q
+    // (device -> ENU, as from SensorFusion) looking through the back camera,
+    // with the screen in the device's natural orientation. False if behind.
+    fun projectToScreen(
+        x: Float, y: Float, z: Float, q: FloatArray,
+        focalPx: Float, width: Int, height: Int, out: FloatArray
+    ): Boolean {
+        val e = horizon[0] * x + horizon[1] * y + horizon[2] * z
+        val n = horizon[3] * x + horizon[4] * y + horizon[5] * z
+        val u = horizon[6] * x + horizon[7] * y + horizon[8] * z
+        val w = q[0]; val qx = q[1]; val qy = q[2]; val qz = q[3]
+        // Device axes = R(q)^T * enu; the columns of R(q) are the device axes in ENU
+        val dx = (1 - 2 * (qy * qy + qz * qz)) * e + 2 * (qx * qy + w * qz) * n + 2 * (qx * qz - w * qy) * u
+        val dy = 2 * (qx * qy - w * qz) * e + (1 - 2 * (qx * qx + qz * qz)) * n + 2 * (qy * qz + w * qx) * u
+        val dz = 2 * (qx * qz + w * qy) * e + 2 * (qy * qz - w * qx) * n + (1 - 2 * (qx * qx + qy * qy)) * u
+        if (dz >= -1e-6) return false
+        out[0] = (width * 0.5 + focalPx * dx / -dz).toFloat()
+        out[1] = (height * 0.5 - focalPx * dy / -dz).toFloat()
+        return true
+    }
+
+    private class Elements(
+        val a: Double, val aRate: Double, val e: Double, val eRate: Double,
+        val i: Double, val iRate: Double, val l: Double, val lRate: Double,
+        val peri: Double, val periRate: Double, val node: Double, val nodeRate: Double
+    )
+
+    private fun Planet.elements() = Elements(a, aRate, e, eRate, i, iRate, l, lRate, peri, periRate, node, nodeRate)
+
+    companion object {
+        private const val OBLIQUITY_J2000 = 23.43928 * PI / 180.0
+
+        private val EARTH_MOON = Elements(
+            1.00000261, 0.00000562, 0.01671123, -0.00004392, -0.00001531, -0.01294668,
+            100.46457166, 35999.37244981, 102.93768193, 0.32327364, 0.0, 0.0
+        )
+
+        // Greenwich mean sidereal time (IAU 1982), degrees
+        fun gmstDegrees(jd: Double, t: Double): Double =
+            normalizeDegrees(
+                280.46061837 + 360.98564736629 * (jd - 2451545.0) + 0.000387933 * t * t - t * t * t / 38710000.0
+            )
+
+        private fun normalizeDegrees(d: Double): Double {
+            val r = d % 360.0
+            return if (r < 0.0) r + 360.0 else r
+        }
+
+        private fun arcsec(s: Double): Double = Math.toRadians(s / 3600.0)
+
+        // Heliocentric J2000 equatorial position in AU
+        private fun heliocentric(el: Elements, t: Double, out: DoubleArray) {
+            val a = el.a + el.aRate * t
+            val e = el.e + el.eRate * t
+            val i = Math.toRadians(el.i + el.iRate * t)
+            val l = el.l + el.lRate * t
+            val peri = el.peri + el.periRate * t
+            val node = Math.toRadians(el.node + el.nodeRate * t)
+            val w = Math.toRadians(peri) - node
+            val m = Math.toRadians(normalizeDegrees(l - peri))
+
+            // Kepler's equation by Newton iteration
+            var ea = m + e * sin(m)
+            for (k in 0 until 8) {
+                val delta = (ea - e * sin(ea) - m) / (1 - e * cos(ea))
+                ea -= delta
+                if (abs(delta) < 1e-10) break
+            }
+            val xp = a * (cos(ea) - e)
+            val yp = a * sqrt(1 - e * e) * sin(ea)
+
+            val cw = cos(w); val sw = sin(w)
+            val cn = cos(node); val sn = sin(node)
+            val ci = cos(i); val si = sin(i)
+            val x = (cw * cn - sw * sn * ci) * xp + (-sw * cn - cw * sn * ci) * yp
+            val y = (cw * sn + sw * cn * ci) * xp + (-sw * sn + cw * cn * ci) * yp
+            val z = (sw * si) * xp + (cw * si) * yp
+
+            val ce = cos(OBLIQUITY_J2000); val se = sin(OBLIQUITY_J2000)
+            out[0] = x
+            out[1] = ce * y - se * z
+            out[2] = se * y + ce * z
+        }
+    }
+}
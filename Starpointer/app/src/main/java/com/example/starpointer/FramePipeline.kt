@@ -0,0 +1,182 @@
+package com.example.starpointer
+
+import android.os.SystemClock
+import android.util.Log
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+// Three-stage frame analysis: preprocess -> inference -> publish, one thread
+// each, so preprocessing frame N+1 overlaps inference on frame N. Work moves
+// between stages in a fixed pool of slots; the pool size bounds the frames in
+// flight and so every hand-off queue, and a frame that finds no free slot is
+// dropped at the door. The executors live as long as the pipeline (owned by the
+// activity, not by composition); a screen plugs its stage functions in with
+// bind(). Per-stage latency and queue depth are logged every reportIntervalMs:
+//   adb logcat -s FramePipeline
+class FramePipeline<T>(
+    private val slots: List<T>,
+    private val reportIntervalMs: Long = 2000
+) : AutoCloseable {
+
+    // Moving average and worst case of one stage's run time
+    class StageStats(val name: String) {
+        @Volatile
+        var avgMs = 0f
+            private set
+        @Volatile
+        var maxMs = 0f
+            private set
+
+        internal fun record(elapsedNs: Long) {
+            val ms = elapsedNs / 1_000_000f
+            avgMs = if (avgMs == 0f) ms else avgMs + (ms - avgMs) * 0.1f
+            if (ms > maxMs) maxMs = ms
+        }
+
+        internal fun resetMax() {
+            maxMs = 0f
+        }
+    }
+
+    // Hand the analyzer this executor; its thread is the preprocess stage
+    val preprocessExecutor: ExecutorService = stageExecutor("preprocess")
+    private val inferenceExecutor = stageExecutor("inference")
+    private val publishExecutor = stageExecutor("publish")
+    private val free = ArrayBlockingQueue<T>(slots.size).apply { addAll(slots) }
+
+    @Volatile
+    private var inference: ((T) -> Unit)? = null
+    @Volatile
+    private var publish: ((T) -> Unit)? = null
+
+    val preprocessStats = StageStats("preprocess")
+    val inferenceStats = StageStats("inference")
+    val publishStats = StageStats("publish")
+    private val droppedFrames = AtomicLong()
+    private val inferring = AtomicInteger()
+    private var lastReportMs = 0L
+
+    val dropped: Long get() = droppedFrames.get()
+    // Slots submitted for inference and not yet back in the pool, whether or
+    // not a publish stage was bound to see them
+    val inferenceInFlight: Int get() = inferring.get()
+    val inferenceQueueDepth: Int get() = (inferenceExecutor as ThreadPoolExecutor).queue.size
+    val publishQueueDepth: Int get() = (publishExecutor as ThreadPoolExecutor).queue.size
+
+    fun bind(inference: (T) -> Unit, publish: (T) -> Unit) {
+        this.inference = inference
+        this.publish = publish
+    }
+
+    // Slots already in flight finish without running the unbound stages
+    fun unbind() {
+        inference = null
+        publish = null
+    }
+
+    // A free slot for a new frame, or null if the pipeline is full and the
+    // frame should be dropped. Call from the preprocess stage.
+    fun acquire(): T? = free.poll() ?: run {
+        droppedFrames.incrementAndGet()
+        null
+    }
+
+    // Returns a slot taken with acquire() that won't be submitted
+    fun release(slot: T) {
+        free.offer(slot)
+    }
+
+    // Passes a preprocessed slot on. Frames that need no inference (infer =
+    // false) go straight to publish and may overtake earlier frames still in
+    // inference; publish should ignore results older than what it has shown.
+    fun submit(slot: T, preprocessStartNs: Long, infer: Boolean = true) {
+        preprocessStats.record(System.nanoTime() - preprocessStartNs)
+        if (!infer) {
+            publishExecutor.execute { runPublish(slot, false) }
+            return
+        }
+        inferring.incrementAndGet()
+        inferenceExecutor.execute {
+            val start = System.nanoTime()
+            try {
+                inference?.invoke(slot)
+            } catch (e: RuntimeException) {
+                Log.e("FramePipeline", "Inference stage failed", e)
+            }
+            inferenceStats.record(System.nanoTime() - start)
+            publishExecutor.execute { runPublish(slot, true) }
+        }
+    }
+
+    private fun runPublish(slot: T, inferred: Boolean) {
+        val start = System.nanoTime()
+        try {
+            publish?.invoke(slot)
+        } catch (e: RuntimeException) {
+            Log.e("FramePipeline", "Publish stage failed", e)
+        } finally {
+            if (inferred) inferring.decrementAndGet()
+            free.offer(slot)
+        }
+        publishStats.record(System.nanoTime() - start)
+
+        val now = SystemClock.elapsedRealtime()
+        if (now - lastReportMs >= reportIntervalMs) {
+            lastReportMs = now
+            Log.i(
+                "FramePipeline",
+                "preprocess %.1f/%.1f ms, inference %.1f/%.1f ms (queue %d), publish %.1f/%.1f ms (queue %d), dropped %d".format(
+                    preprocessStats.avgMs, preprocessStats.maxMs,
+                    inferenceStats.avgMs, inferenceStats.maxMs, inferenceQueueDepth,
+                    publishStats.avgMs, publishStats.maxMs, publishQueueDepth, dropped
+                )
+            )
+            preprocessStats.resetMax()
+            inferenceStats.resetMax()
+            publishStats.resetMax()
+        }
+    }
+
+    // Returns at once. The stages are shut down in order on a background
+    // thread, each once the one feeding it has terminated, so no stage hands
+    // work to a shut-down executor; the slots are closed only once all three
+    // have terminated, since one may still be using them. A stage that doesn't
+    // drain in time leaves the rest running and the slots open.
+    override fun close() {
+        unbind()
+        preprocessExecutor.shutdown()
+        thread(name = "FramePipeline-close") {
+            if (!drain(preprocessExecutor)) return@thread
+            inferenceExecutor.shutdown()
+            if (!drain(inferenceExecutor)) return@thread
+            publishExecutor.shutdown()
+            if (!drain(publishExecutor)) return@thread
+            for (slot in slots) (slot as? AutoCloseable)?.close()
+        }
+    }
+
+    private fun drain(executor: ExecutorService): Boolean {
+        val terminated = try {
+            executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+            false
+        }
+        if (!terminated) Log.w("FramePipeline", "A stage did not finish within $CLOSE_TIMEOUT_MS ms; slots left open")
+        return terminated
+    }
+
+    // One thread; its queue never needs more room than there are slots
+    private fun stageExecutor(name: String): ExecutorService =
+        ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, ArrayBlockingQueue(slots.size + 1)) { r ->
+            Thread(r, "FramePipeline-$name")
+        }
+
+    companion object {
+        private const val CLOSE_TIMEOUT_MS = 5000L
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.starpointer
+
+import android.os.SystemClock
+import android.util.Log
+
+// Rolling frames-per-second and per-frame cost, logged every reportIntervalMs.
+// Used to compare the YUV and Bitmap detection paths on the same device:
+//   adb logcat -s FrameRateMeter
+// (jni/host/replay.cpp --compare-bitmap does the same on recorded frames).
+class FrameRateMeter(private val name: String, private val reportIntervalMs: Long = 2000) {
+    private var windowStart = 0L
+    private var frames = 0
+    private var busyNanos = 0L
+
+    var fps = 0f
+        private set
+    var avgFrameMs = 0f
+        private set
+
+    // Call once per analyzed frame with the time spent processing it
+    fun onFrame(processingNanos: Long) {
+        val now = SystemClock.elapsedRealtime()
+        if (windowStart == 0L) windowStart = now
+        frames++
+        busyNanos += processingNanos
+
+        val elapsed = now - windowStart
+        if (elapsed >= reportIntervalMs) {
+            fps = frames * 1000f / elapsed
+            avgFrameMs = busyNanos / 1_000_000f / frames
+            Log.i("FrameRateMeter", "$name: %.1f fps, %.1f ms/frame".format(fps, avgFrameMs))
+            windowStart = now
+            frames = 0
+            busyNanos = 0L
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.starpointer
+
+import android.graphics.Bitmap
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+
+// Live deep-sky stacking of the luminance plane (see frame_stacker.cpp): every
+// frame is registered to the first by its stars and folded into a per-pixel
+// running mean with sigma clipping, so noise drops with the number of frames
+// while satellites and planes are rejected. Memory is fixed by the frame size,
+// not the frame count. Costs a few tens of milliseconds per 1080p frame, spread
+// over up to four cores.
+class FrameStacker(
+    clipSigma: Float = 3f,
+    minFramesToClip: Int = 5,
+    threads: Int = 0
+) : AutoCloseable {
+    enum class Result { REFERENCE, STACKED, TOO_FEW_STARS, NOT_ALIGNED, FAILED }
+
+    class Stats {
+        var frames = 0
+        var rejectedFrames = 0
+        var stars = 0
+        var matches = 0
+        var residualPx = 0f
+        var rotationDeg = 0f
+        var dx = 0f
+        var dy = 0f
+        var clippedFraction = 0f
+    }
+
+    private var handle = nativeCreate(clipSigma, minFramesToClip, threads)
+    private val raw = FloatArray(9)
+
+    fun add(image: ImageProxy): Result = synchronized(this) {
+        if (handle == 0L) return Result.FAILED
+        val y = image.planes[0]
+        val u = image.planes[1]
+        val v = image.planes[2]
+        val result = nativeAdd(
+            handle,
+            y.buffer, u.buffer, v.buffer,
+            image.width, image.height,
+            y.rowStride, u.rowStride, u.pixelStride
+        )
+        Result.entries.getOrElse(result) { Result.FAILED }
+    }
+
+    // Stretched greyscale of the stack in sensor orientation, scaled to the
+    // bitmap (ARGB_8888, any size)
+    fun render(bitmap: Bitmap): Boolean = synchronized(this) {
+        handle != 0L && nativeRender(handle, bitmap)
+    }
+
+    fun stats(out: Stats): Unit = synchronized(this) {
+        if (handle == 0L) return
+        nativeStats(handle, raw)
+        out.frames = raw[0].toInt()
+        out.rejectedFrames = raw[1].toInt()
+        out.stars = raw[2].toInt()
+        out.matches = raw[3].toInt()
+        out.residualPx = raw[4]
+        out.rotationDeg = raw[5]
+        out.dx = raw[6]
+        out.dy = raw[7]
+        out.clippedFraction = raw[8]
+    }
+
+    // Starts over with the next frame as the reference
+    fun reset() = synchronized(this) {
+        if (handle != 0L) nativeReset(handle)
+    }
+
+    override fun close() = synchronized(this) {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        init {
+            System.loadLibrary("nanodet")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(clipSigma: Float, minFramesToClip: Int, threads: Int): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
+
+        @JvmStatic
+        private external fun nativeReset(handle: Long)
+
+        @JvmStatic
+        private external fun nativeAdd(
+            handle: Long,
+            yBuffer: ByteBuffer, uBuffer: ByteBuffer, vBuffer: ByteBuffer,
+            width: Int, height: Int,
+            yRowStride: Int, uvRowStride: Int, uvPixelStride: Int
+        ): Int
+
+        @JvmStatic
+        private external fun nativeStats(handle: Long, stats: FloatArray)
+
+        @JvmStatic
+        private external fun nativeRender(handle: Long, bitmap: Bitmap): Boolean
+    }
+}
@@ -4,15 +4,17 @@ import android.content.Intent
 import android.os.Bundle
 import androidx.activity.ComponentActivity
 import androidx.activity.compose.setContent
+import androidx.compose.foundation.clickable
 import androidx.compose.foundation.layout.Arrangement
 import androidx.compose.foundation.layout.Column
 import androidx.compose.foundation.layout.fillMaxSize
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.heightIn
 import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.items
 import androidx.compose.material3.Button
-import androidx.compose.material3.DropdownMenuItem
-import androidx.compose.material3.ExperimentalMaterial3Api
-import androidx.compose.material3.ExposedDropdownMenuBox
-import androidx.compose.material3.ExposedDropdownMenuDefaults
+import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.material3.TextField
 import androidx.compose.runtime.Composable
@@ -22,6 +24,8 @@ import androidx.compose.runtime.remember
 import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import com.example.starpointer.ui.theme.StarpointerTheme
@@ -29,9 +33,10 @@ import com.example.starpointer.ui.theme.StarpointerTheme
 class MainActivity : ComponentActivity() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
+        val catalog = StarCatalog.open(this)
         setContent {
             StarpointerTheme {
-                MainSelectionScreen { selectedObject ->
+                MainSelectionScreen(catalog) { selectedObject ->
                     val intent = Intent(this, CameraActivity::class.java)
                     intent.putExtra("SELECTED_OBJECT", selectedObject)
                     startActivity(intent)
@@ -41,12 +46,20 @@ class MainActivity : ComponentActivity() {
     }
 }
 
-@OptIn(ExperimentalMaterial3Api::class)
+// The catalog runs to thousands of names, so it is searched and listed lazily
+// rather than put in a dropdown menu that would compose every entry
 @Composable
-fun MainSelectionScreen(onStartCapture: (String) -> Unit) {
-    var expanded by remember { mutableStateOf(false) }
+fun MainSelectionScreen(catalog: StarCatalog?, onStartCapture: (String) -> Unit) {
+    var query by remember { mutableStateOf("") }
     var selectedObject by remember { mutableStateOf("Pleiades") }
-    val objects = listOf("Pleiades", "Jupiter", "Betelgeuse", "Aldebaran", "Zeta Tauri", "Elnath", "Hassaleh", "Bellatrix")
+    // Planets move, so they come from the ephemeris rather than the catalog
+    val objects = remember(catalog) {
+        Ephemeris.Planet.values().map { it.displayName } + (catalog?.let { c -> List(c.size) { rank -> c.name(c.brightest(rank)) } } ?: emptyList())
+    }
+    val matches = remember(objects, query) {
+        val text = query.trim()
+        if (text.isEmpty()) objects else objects.filter { it.contains(text, ignoreCase = true) }
+    }
 
     Column(
         modifier = Modifier.fillMaxSize(),
@@ -56,39 +69,42 @@ fun MainSelectionScreen(onStartCapture: (String) -> Unit) {
         Text(
             text = "Select Object to Track",
             fontSize = 24.sp,
-            color = androidx.compose.ui.graphics.Color.White
+            color = Color.White
         )
-        ExposedDropdownMenuBox(
-            expanded = expanded,
-            onExpandedChange = { expanded = !expanded },
-            modifier = Modifier.padding(16.dp)
+        TextField(
+            value = query,
+            onValueChange = { query = it },
+            label = { Text("Search") },
+            singleLine = true,
+            modifier = Modifier
+                .padding(16.dp)
+                .fillMaxWidth()
+        )
+        LazyColumn(
+            modifier = Modifier
+                .fillMaxWidth()
+                .heightIn(max = 320.dp)
         ) {
-            TextField(
-                readOnly = true,
-                value = selectedObject,
-                onValueChange = { },
-                label = { Text("Object") },
-                trailingIcon = { ExposedDropdownMenuDefaults.TrailingIcon(expanded = expanded) },
-                colors = ExposedDropdownMenuDefaults.textFieldColors(),
-                modifier = Modifier.menuAnchor()
-            )
-            ExposedDropdownMenu(
-                expanded = expanded,
-                onDismissRequest = { expanded = false }
-            ) {
-                objects.forEach { obj ->
-                    DropdownMenuItem(
-                        text = { Text(obj) },
-                        onClick = {
-                            selectedObject = obj
-                            expanded = false
-                        }
-                    )
-                }
+            items(matches) { obj ->
+                val selected = obj == selectedObject
+                Text(
+                    text = obj,
+                    color = if (selected) MaterialTheme.colorScheme.primary else Color.White,
+                    fontWeight = if (selected) FontWeight.Bold else FontWeight.Normal,
+                    modifier = Modifier
+                        .fillMaxWidth()
+                        .clickable { selectedObject = obj }
+                        .padding(horizontal = 24.dp, vertical = 12.dp)
+                )
             }
         }
+        Text(
+            text = "Selected: $selectedObject",
+            color = Color.White,
+            modifier = Modifier.padding(16.dp)
+        )
         Button(onClick = { onStartCapture(selectedObject) }) {
             Text("Start Capture")
         }
     }
-}
\ No newline at end of file
+}
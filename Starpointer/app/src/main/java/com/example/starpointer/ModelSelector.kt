@@ -0,0 +1,129 @@
+package com.example.starpointer
+
+import android.content.Context
+import android.content.pm.PackageManager
+import android.os.Build
+import android.util.Log
+import java.io.FileNotFoundException
+import java.io.IOException
+import org.json.JSONException
+import org.json.JSONObject
+
+// NanoDet exports the app knows how to run. Files are <baseName>.param/.bin in
+// assets (any subset may be bundled). Every export but the fp32 reference
+// ships a <baseName>.json next to them with its measured accuracy, e.g.
+//   {"relativeAccuracy": 0.97}
+// = the export's COCO mAP over the fp32 reference's, from the same eval run.
+enum class ModelVariant(
+    val baseName: String,
+    val inputSize: Int,
+    val roiInputSize: Int,
+    val fp16Arithmetic: Boolean,
+    val isReference: Boolean = false
+) {
+    FP32("nanodet", 416, 320, false, isReference = true),
+    FP16("nanodet-fp16", 416, 320, true),
+    INT8("nanodet-int8", 416, 320, false),
+    INT8_320("nanodet-int8-320", 320, 256, false);
+
+    val paramFile get() = "$baseName.param"
+    val binFile get() = "$baseName.bin"
+    val metadataFile get() = "$baseName.json"
+}
+
+// Picks the variant to run on this device: every bundled variant whose measured
+// accuracy is high enough is loaded once and timed, and the fastest wins; one
+// without measured accuracy is never picked over one with. The choice is kept in
+// SharedPreferences against the build fingerprint and APK install time, so
+// later cold starts skip the probe until the OS or the app (and its models)
+// change. Takes a few seconds on first run; keep it off the main thread.
+class ModelSelector(
+    context: Context,
+    private val minRelativeAccuracy: Float = 0.95f
+) {
+    private val assets = context.assets
+    private val prefs = context.getSharedPreferences("model_selector", Context.MODE_PRIVATE)
+    private val probeKey = Build.FINGERPRINT + "/" + installTime(context)
+
+    fun select(): ModelVariant {
+        val files = assets.list("")?.toSet() ?: emptySet()
+        val bundled = ModelVariant.entries.filter { it.paramFile in files && it.binFile in files }
+        if (bundled.size <= 1) return bundled.firstOrNull() ?: ModelVariant.FP32
+
+        if (prefs.getString(KEY_PROBE, null) == probeKey) {
+            val remembered = prefs.getString(KEY_VARIANT, null)
+            bundled.firstOrNull { it.name == remembered }?.let { return it }
+        }
+
+        val accuracy = bundled.associateWith { relativeAccuracy(it) }
+        // If nothing qualifies (or loads), fall back to the most accurate
+        // measured export, or any if none is measured
+        var best = bundled.maxByOrNull { accuracy[it] ?: -1f }!!
+        var bestMs = Float.MAX_VALUE
+        for (variant in bundled) {
+            val measured = accuracy[variant]
+            if (measured == null) {
+                Log.w("ModelSelector", "${variant.name}: no measured accuracy in ${variant.metadataFile}, skipped")
+                continue
+            }
+            if (measured < minRelativeAccuracy) continue
+            NanoDetEngine().use { engine ->
+                if (!engine.init(assets, variant)) return@use
+                val ms = engine.benchmark(WARMUP_RUNS, TIMED_RUNS)
+                Log.i("ModelSelector", "${variant.name}: %.1f ms".format(ms))
+                if (ms > 0f && ms < bestMs) {
+                    best = variant
+                    bestMs = ms
+                }
+            }
+        }
+        Log.i("ModelSelector", "Selected ${best.name}")
+        prefs.edit()
+            .putString(KEY_VARIANT, best.name)
+            .putString(KEY_PROBE, probeKey)
+            .apply()
+        return best
+    }
+
+    // The export's mAP relative to the fp32 reference, from its metadata
+    // asset; null if it has none or it can't be read
+    private fun relativeAccuracy(variant: ModelVariant): Float? {
+        if (variant.isReference) return 1f
+        return try {
+            val json = assets.open(variant.metadataFile).bufferedReader().use { it.readText() }
+            val value = JSONObject(json).getDouble("relativeAccuracy").toFloat()
+            value.takeIf { it > 0f }
+        } catch (e: FileNotFoundException) {
+            null
+        } catch (e: IOException) {
+            Log.e("ModelSelector", "Cannot read ${variant.metadataFile}", e)
+            null
+        } catch (e: JSONException) {
+            Log.e("ModelSelector", "Bad ${variant.metadataFile}", e)
+            null
+        }
+    }
+
+    // Forget the remembered choice, e.g. after changing minRelativeAccuracy
+    fun clear() {
+        prefs.edit().clear().apply()
+    }
+
+    companion object {
+        private const val KEY_VARIANT = "variant"
+        private const val KEY_PROBE = "probe_key"
+        private const val WARMUP_RUNS = 2
+        private const val TIMED_RUNS = 5
+
+        private fun installTime(context: Context): Long {
+            val packageManager = context.packageManager
+            val info = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                packageManager.getPackageInfo(context.packageName, PackageManager.PackageInfoFlags.of(0))
+            } else {
+                @Suppress("DEPRECATION")
+                packageManager.getPackageInfo(context.packageName, 0)
+            }
+            return info.lastUpdateTime
+        }
+    }
+}
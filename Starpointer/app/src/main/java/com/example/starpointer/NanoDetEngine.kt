@@ -0,0 +1,246 @@
+package com.example.starpointer
+
+import android.content.res.AssetManager
+import android.graphics.Bitmap
+import android.graphics.Rect
+import android.util.Log
+import androidx.camera.core.ImageProxy
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+// Owns one native NanoDet model. detect() may be called from the analyzer
+// executor (or several threads) while init()/close() take the write lock, so
+// the native object is never freed or reloaded under a running inference.
+// Each engine has its own handle, so several models can be loaded side by side.
+// The first engine created loads the native library; do that off the main thread.
+class NanoDetEngine : AutoCloseable {
+    private val lock = ReentrantReadWriteLock()
+    private var handle = 0L
+    // The native side keeps the AAssetManager behind this for reloads
+    private var assets: AssetManager? = null
+
+    // Class names from labels.txt, index == class id
+    var labels: List<String> = emptyList()
+        private set
+
+    // Which export is loaded; decides the input sizes preprocess() prepares
+    @Volatile
+    var variant = ModelVariant.FP32
+        private set
+
+    // CPU threading and affinity currently in force
+    @Volatile
+    var options = NanoDetOptions()
+        private set
+
+    val isReady: Boolean
+        get() = lock.read { handle != 0L }
+
+    // Loads the model straight from the APK: the param file is parsed from the
+    // asset stream and the weights are used in place from the mapped (stored
+    // uncompressed) .bin, so nothing is copied to internal storage first.
+    fun init(
+        assets: AssetManager,
+        variant: ModelVariant = ModelVariant.FP32, options: NanoDetOptions = this.options
+    ): Boolean = lock.write {
+        if (handle != 0L) nativeDestroy(handle)
+        handle = nativeCreate(
+            assets, variant.paramFile, variant.binFile,
+            variant.inputSize, variant.roiInputSize, variant.fp16Arithmetic,
+            options.threads, options.cluster.powersave, options.lightMode, options.packingLayout
+        )
+        this.assets = assets
+        this.variant = variant
+        this.options = options
+        labels = try {
+            assets.open(LABELS_ASSET).bufferedReader().use { reader -> reader.readLines().map { it.trim() } }
+        } catch (e: IOException) {
+            emptyList()
+        }
+        if (handle == 0L) Log.e("NanoDetEngine", "Failed to load ${variant.paramFile} from assets")
+        handle != 0L
+    }
+
+    // Applies from the next inference on; waits for any running one. A
+    // packingLayout change reloads the model.
+    fun setOptions(options: NanoDetOptions): Boolean = lock.write {
+        if (options == this.options) return@write true
+        this.options = options
+        if (handle == 0L) return@write true // used by the next init()
+        nativeSetOptions(
+            handle, options.threads, options.cluster.powersave, options.lightMode, options.packingLayout
+        ).also { if (!it) Log.e("NanoDetEngine", "Failed to apply $options") }
+    }
+
+    // Median ms per full-size inference on blank input, -1 if not loaded
+    fun benchmark(warmup: Int, runs: Int): Float = lock.read {
+        if (handle == 0L) -1f else nativeBenchmark(handle, warmup, runs)
+    }
+
+    // Resolved once per selection; the per-frame path only deals in ids.
+    // Returns -1 if the model has no such class.
+    fun classIdOf(label: String): Int = labels.indexOf(label)
+
+    // Fills out with boxes in upright (rotation applied) frame pixels.
+    // classFilter is a class id or DetectionBuffer.ALL_CLASSES. A non-null roi
+    // (upright frame pixels) runs the model on that crop only.
+    fun detect(image: ImageProxy, classFilter: Int, out: DetectionBuffer, roi: Rect? = null) = lock.read {
+        val rotated = image.imageInfo.rotationDegrees % 180 != 0
+        out.frameWidth = if (rotated) image.height else image.width
+        out.frameHeight = if (rotated) image.width else image.height
+        if (handle == 0L) {
+            out.clear()
+            return@read
+        }
+        val y = image.planes[0]
+        val u = image.planes[1]
+        val v = image.planes[2]
+        out.count = nativeDetectYuv(
+            handle,
+            y.buffer, u.buffer, v.buffer,
+            image.width, image.height,
+            y.rowStride, u.rowStride, u.pixelStride,
+            image.imageInfo.rotationDegrees,
+            roi?.left ?: 0, roi?.top ?: 0, roi?.width() ?: 0, roi?.height() ?: 0,
+            classFilter, out.classIds, out.values
+        )
+    }
+
+    // Model input prepared off the inference thread (see preprocess()). Native
+    // memory, reused frame to frame; owned by one pipeline slot at a time.
+    class Input : AutoCloseable {
+        internal var handle = nativeCreateInput()
+            private set
+        var frameWidth = 0
+            internal set
+        var frameHeight = 0
+            internal set
+
+        override fun close() {
+            if (handle != 0L) {
+                nativeDestroyInput(handle)
+                handle = 0L
+            }
+        }
+    }
+
+    // First half of detect(image): letterboxes the frame (or roi) into input.
+    // Touches no model state, so it can run on the next frame while detect()
+    // runs on this one.
+    fun preprocess(image: ImageProxy, roi: Rect?, input: Input): Boolean {
+        val rotated = image.imageInfo.rotationDegrees % 180 != 0
+        input.frameWidth = if (rotated) image.height else image.width
+        input.frameHeight = if (rotated) image.width else image.height
+        val y = image.planes[0]
+        val u = image.planes[1]
+        val v = image.planes[2]
+        return nativePreprocessYuv(
+            input.handle,
+            y.buffer, u.buffer, v.buffer,
+            image.width, image.height,
+            y.rowStride, u.rowStride, u.pixelStride,
+            image.imageInfo.rotationDegrees,
+            roi?.left ?: 0, roi?.top ?: 0, roi?.width() ?: 0, roi?.height() ?: 0,
+            if (roi != null) variant.roiInputSize else variant.inputSize
+        )
+    }
+
+    // Second half: runs the model on a prepared input
+    fun detect(input: Input, classFilter: Int, out: DetectionBuffer) = lock.read {
+        out.frameWidth = input.frameWidth
+        out.frameHeight = input.frameHeight
+        if (handle == 0L || input.handle == 0L) {
+            out.clear()
+            return@read
+        }
+        out.count = nativeDetectInput(handle, input.handle, classFilter, out.classIds, out.values)
+    }
+
+    fun detect(bitmap: Bitmap, classFilter: Int, out: DetectionBuffer) = lock.read {
+        out.frameWidth = bitmap.width
+        out.frameHeight = bitmap.height
+        if (handle == 0L) {
+            out.clear()
+            return@read
+        }
+        out.count = nativeDetectBitmap(handle, bitmap, classFilter, out.classIds, out.values)
+    }
+
+    override fun close() = lock.write {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        const val LABELS_ASSET = "labels.txt"
+
+        init {
+            System.loadLibrary("nanodet")
+        }
+
+        // assets null: paramPath and binPath are files rather than asset names
+        @JvmStatic
+        private external fun nativeCreate(
+            assets: AssetManager?, paramPath: String, binPath: String,
+            inputSize: Int, roiInputSize: Int, fp16Arithmetic: Boolean,
+            threads: Int, powersave: Int, lightMode: Boolean, packingLayout: Boolean
+        ): Long
+
+        @JvmStatic
+        private external fun nativeSetOptions(
+            handle: Long, threads: Int, powersave: Int, lightMode: Boolean, packingLayout: Boolean
+        ): Boolean
+
+        @JvmStatic
+        private external fun nativeBenchmark(handle: Long, warmup: Int, runs: Int): Float
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
+
+        @JvmStatic
+        private external fun nativeDetectBitmap(
+            handle: Long, bitmap: Bitmap, classFilter: Int,
+            classIds: IntArray, values: FloatArray
+        ): Int
+
+        @JvmStatic
+        private external fun nativeDetectYuv(
+            handle: Long,
+            yBuffer: ByteBuffer, uBuffer: ByteBuffer, vBuffer: ByteBuffer,
+            width: Int, height: Int,
+            yRowStride: Int, uvRowStride: Int, uvPixelStride: Int,
+            rotationDegrees: Int,
+            roiX: Int, roiY: Int, roiWidth: Int, roiHeight: Int,
+            classFilter: Int,
+            classIds: IntArray, values: FloatArray
+        ): Int
+
+        @JvmStatic
+        private external fun nativeCreateInput(): Long
+
+        @JvmStatic
+        private external fun nativeDestroyInput(input: Long)
+
+        @JvmStatic
+        private external fun nativePreprocessYuv(
+            input: Long,
+            yBuffer: ByteBuffer, uBuffer: ByteBuffer, vBuffer: ByteBuffer,
+            width: Int, height: Int,
+            yRowStride: Int, uvRowStride: Int, uvPixelStride: Int,
+            rotationDegrees: Int,
+            roiX: Int, roiY: Int, roiWidth: Int, roiHeight: Int,
+            size: Int
+        ): Boolean
+
+        @JvmStatic
+        private external fun nativeDetectInput(
+            handle: Long, input: Long, classFilter: Int,
+            classIds: IntArray, values: FloatArray
+        ): Int
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.starpointer
+
+// How NanoDet uses the CPU. On big.LITTLE phones leaving placement to the
+// scheduler lands inference on little cores at random, so it is pinned to a
+// cluster by default.
+data class NanoDetOptions(
+    // 0: one thread per core of the chosen cluster
+    val threads: Int = 0,
+    val cluster: Cluster = Cluster.BIG,
+    // Free intermediate blobs as soon as they are consumed
+    val lightMode: Boolean = true,
+    // SIMD-packed layouts; changing this reloads the model
+    val packingLayout: Boolean = true
+) {
+    // Values are ncnn's powersave modes
+    enum class Cluster(val powersave: Int) {
+        ALL(0),
+        LITTLE(1),
+        BIG(2)
+    }
+
+    companion object {
+        // Slower but much cheaper: two threads on the little cores
+        val POWER_SAVING = NanoDetOptions(threads = 2, cluster = Cluster.LITTLE)
+    }
+}
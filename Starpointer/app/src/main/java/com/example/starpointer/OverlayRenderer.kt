@@ -0,0 +1,221 @@
+package com.example.starpointer
+
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.RectF
+import kotlin.math.asin
+import kotlin.math.atan
+import kotlin.math.atan2
+import kotlin.math.hypot
+import kotlin.math.tan
+
+// One analyzed frame's worth of overlay content. The analyzer builds a new one
+// per frame and never touches it after publishing, so the UI draws it without
+// locking. Boxes are in upright frame pixels, laid out as in DetectionBuffer.
+class OverlaySnapshot private constructor(
+    val classIds: IntArray,
+    val values: FloatArray,
+    val count: Int,
+    val frameWidth: Int,
+    val frameHeight: Int,
+    // Null unless the frame was plate-solved
+    val solution: PlateSolution?
+) {
+    constructor(detections: DetectionBuffer, solution: PlateSolution?) : this(
+        detections.classIds.copyOf(detections.count),
+        detections.values.copyOf(detections.count * DetectionBuffer.STRIDE),
+        detections.count,
+        detections.frameWidth,
+        detections.frameHeight,
+        solution?.takeIf { it.matches > 0 }?.let { PlateSolution().apply { copyFrom(it) } }
+    )
+
+    companion object {
+        val EMPTY = OverlaySnapshot(IntArray(0), FloatArray(0), 0, 0, 0, null)
+    }
+}
+
+// Draws an OverlaySnapshot onto the view in one pass: detection boxes and
+// labels, catalog objects in a plate-solved field, or failing that the catalog
+// placed by the sensor attitude. Frame-to-view mapping follows PreviewView's
+// FILL_CENTER and is cached in a Matrix that is only rebuilt when the view or
+// the upright frame size changes (a rotation swaps the latter). Main thread only.
+class OverlayRenderer(
+    private val catalog: StarCatalog?,
+    private val labelOf: (Int) -> String
+) {
+    private val matrix = Matrix()
+    private var scale = 1f
+    private var viewWidth = 0
+    private var viewHeight = 0
+    private var frameWidth = 0
+    private var frameHeight = 0
+
+    private val rect = RectF()
+    private val point = FloatArray(2)
+    private val ids = IntArray(64)
+    private val skyCentre = FloatArray(3)
+
+    private val boxPaint = Paint().apply {
+        color = Color.GREEN
+        style = Paint.Style.STROKE
+        strokeWidth = 4f
+    }
+    private val labelPaint = Paint().apply {
+        color = Color.GREEN
+        textSize = 36f
+        isAntiAlias = true
+    }
+    private val solvedPaint = Paint().apply {
+        color = Color.YELLOW
+        style = Paint.Style.STROKE
+        strokeWidth = 2f
+        isAntiAlias = true
+    }
+    private val sensorPaint = Paint().apply {
+        color = Color.CYAN
+        style = Paint.Style.STROKE
+        strokeWidth = 2f
+        isAntiAlias = true
+    }
+    private val namePaint = Paint().apply {
+        color = Color.YELLOW
+        textSize = 32f
+        isAntiAlias = true
+    }
+    private val statusPaint = Paint().apply {
+        color = Color.WHITE
+        textSize = 40f
+        textAlign = Paint.Align.CENTER
+        isAntiAlias = true
+    }
+
+    // sky is the sensor attitude and ephemeris, used when the frame isn't
+    // solved; target is a J2000 vector to mark with targetName (e.g. a planet)
+    // and targetIndex the target's catalog entry, or -1. In a solved frame the
+    // star box the target projects onto is labelled targetName.
+    fun draw(
+        canvas: Canvas, snapshot: OverlaySnapshot,
+        ephemeris: Ephemeris?, orientation: SensorFusion.Orientation,
+        target: FloatArray?, targetIndex: Int, targetName: String
+    ) {
+        if (snapshot.frameWidth == 0 || snapshot.frameHeight == 0) return
+        updateMatrix(canvas.width, canvas.height, snapshot.frameWidth, snapshot.frameHeight)
+
+        val solution = snapshot.solution
+        val targetBox = if (solution != null) targetBox(snapshot, solution, target, targetIndex) else -1
+        val v = snapshot.values
+        for (i in 0 until snapshot.count) {
+            val o = i * DetectionBuffer.STRIDE
+            rect.set(v[o + 1], v[o + 2], v[o + 3], v[o + 4])
+            matrix.mapRect(rect)
+            canvas.drawRect(rect, boxPaint)
+            val label = if (i == targetBox) targetName else labelOf(snapshot.classIds[i])
+            canvas.drawText("%s (%.2f)".format(label, v[o]), rect.left, rect.top - 8f, labelPaint)
+        }
+
+        if (solution != null) {
+            drawSolved(canvas, snapshot, solution)
+        } else if (ephemeris != null) {
+            drawSky(canvas, snapshot, ephemeris, orientation, target, targetName)
+        }
+    }
+
+    private fun updateMatrix(vw: Int, vh: Int, fw: Int, fh: Int) {
+        if (vw == viewWidth && vh == viewHeight && fw == frameWidth && fh == frameHeight) return
+        viewWidth = vw
+        viewHeight = vh
+        frameWidth = fw
+        frameHeight = fh
+        // FILL_CENTER: scale to cover the view, centre, crop the overflow
+        scale = maxOf(vw.toFloat() / fw, vh.toFloat() / fh)
+        matrix.setScale(scale, scale)
+        matrix.postTranslate((vw - fw * scale) * 0.5f, (vh - fh * scale) * 0.5f)
+    }
+
+    // The box whose centre is nearest where the solution puts the target,
+    // if within the box or TARGET_MATCH_PX of it; -1 for none
+    private fun targetBox(snapshot: OverlaySnapshot, solution: PlateSolution, target: FloatArray?, targetIndex: Int): Int {
+        val found = when {
+            target != null -> solution.project(target[0], target[1], target[2],
+                snapshot.frameWidth, snapshot.frameHeight, point)
+            targetIndex >= 0 && catalog != null -> solution.project(catalog.x(targetIndex), catalog.y(targetIndex),
+                catalog.z(targetIndex), snapshot.frameWidth, snapshot.frameHeight, point)
+            else -> false
+        }
+        if (!found) return -1
+        val v = snapshot.values
+        var best = -1
+        var bestDistance = Float.MAX_VALUE
+        for (i in 0 until snapshot.count) {
+            val o = i * DetectionBuffer.STRIDE
+            val distance = hypot((v[o + 1] + v[o + 3]) * 0.5f - point[0], (v[o + 2] + v[o + 4]) * 0.5f - point[1])
+            val reach = maxOf(v[o + 3] - v[o + 1], v[o + 4] - v[o + 2]) * 0.5f + TARGET_MATCH_PX
+            if (distance <= reach && distance < bestDistance) {
+                best = i
+                bestDistance = distance
+            }
+        }
+        return best
+    }
+
+    private fun drawSolved(canvas: Canvas, snapshot: OverlaySnapshot, solution: PlateSolution) {
+        if (catalog != null) {
+            val halfDiagonal = hypot(snapshot.frameWidth * 0.5f, snapshot.frameHeight * 0.5f)
+            val radiusDeg = Math.toDegrees(atan(halfDiagonal / solution.focalPx).toDouble()).toFloat()
+            val n = catalog.query(solution.raDeg, solution.decDeg, radiusDeg, 6f, ids)
+            for (k in 0 until n) {
+                val id = ids[k]
+                if (!solution.project(catalog.x(id), catalog.y(id), catalog.z(id),
+                        snapshot.frameWidth, snapshot.frameHeight, point)
+                ) continue
+                matrix.mapPoints(point)
+                mark(canvas, catalog.name(id), 12f, solvedPaint)
+            }
+        }
+        canvas.drawText(
+            "Pointing: RA %.2fh Dec %+.2f° (%d stars)".format(solution.raDeg / 15f, solution.decDeg, solution.matches),
+            viewWidth * 0.5f, viewHeight - 160f, statusPaint
+        )
+    }
+
+    private fun drawSky(
+        canvas: Canvas, snapshot: OverlaySnapshot, ephemeris: Ephemeris,
+        orientation: SensorFusion.Orientation, target: FloatArray?, targetName: String
+    ) {
+        // Same camera model as the plate solver, in view pixels
+        val focalPx = scale * snapshot.frameWidth * 0.5f /
+            tan(Math.toRadians(PlateSolver.DEFAULT_FOV_DEGREES * 0.5).toFloat())
+        if (catalog != null) {
+            val radiusDeg = Math.toDegrees(atan(hypot(viewWidth * 0.5f, viewHeight * 0.5f) / focalPx).toDouble()).toFloat()
+            ephemeris.equatorial(orientation.altitudeDeg, orientation.azimuthDeg, skyCentre)
+            val ra = Math.toDegrees(atan2(skyCentre[1], skyCentre[0]).toDouble()).toFloat()
+            val dec = Math.toDegrees(asin(skyCentre[2].coerceIn(-1f, 1f)).toDouble()).toFloat()
+            val n = catalog.query(if (ra < 0f) ra + 360f else ra, dec, radiusDeg, 4f, ids)
+            for (k in 0 until n) {
+                val id = ids[k]
+                if (!ephemeris.projectToScreen(catalog.x(id), catalog.y(id), catalog.z(id),
+                        orientation.quaternion, focalPx, viewWidth, viewHeight, point)
+                ) continue
+                mark(canvas, catalog.name(id), 12f, sensorPaint)
+            }
+        }
+        if (target != null && ephemeris.projectToScreen(target[0], target[1], target[2],
+                orientation.quaternion, focalPx, viewWidth, viewHeight, point)
+        ) {
+            mark(canvas, targetName, 20f, sensorPaint)
+        }
+    }
+
+    private fun mark(canvas: Canvas, name: String, radius: Float, paint: Paint) {
+        canvas.drawCircle(point[0], point[1], radius, paint)
+        canvas.drawText(name, point[0] + radius + 4f, point[1] - 8f, namePaint)
+    }
+
+    companion object {
+        // Slack for the solution's residual, in frame pixels
+        private const val TARGET_MATCH_PX = 6f
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.starpointer
+
+import android.content.res.AssetManager
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.tan
+
+// Where the camera points, as recovered from the stars in the frame
+class PlateSolution {
+    var raDeg = 0f
+    var decDeg = 0f
+    // Position angle of the top of the frame, north through east
+    var rollDeg = 0f
+    var focalPx = 0f
+    var matches = 0
+
+    // Gnomonic projection of a sky unit vector into the solved frame (upright
+    // pixels, width x height). Returns false for points behind the camera.
+    fun project(x: Float, y: Float, z: Float, width: Int, height: Int, out: FloatArray): Boolean {
+        val ra = Math.toRadians(raDeg.toDouble())
+        val dec = Math.toRadians(decDeg.toDouble())
+        val roll = Math.toRadians(rollDeg.toDouble())
+        val cosDec = cos(dec)
+        val sinDec = sin(dec)
+        val d = x * cosDec * cos(ra) + y * cosDec * sin(ra) + z * sinDec
+        if (d <= 0.0) return false
+        // Tangent-plane offsets towards east and north
+        val xi = (-x * sin(ra) + y * cos(ra)) / d
+        val eta = (-x * sinDec * cos(ra) - y * sinDec * sin(ra) + z * cosDec) / d
+        // Frame up points at position angle roll; with up north, east is on the left
+        out[0] = (width * 0.5 + focalPx * (-xi * cos(roll) + eta * sin(roll))).toFloat()
+        out[1] = (height * 0.5 - focalPx * (xi * sin(roll) + eta * cos(roll))).toFloat()
+        return true
+    }
+
+    fun copyFrom(other: PlateSolution) {
+        raDeg = other.raDeg
+        decDeg = other.decDeg
+        rollDeg = other.rollDeg
+        focalPx = other.focalPx
+        matches = other.matches
+    }
+}
+
+// Plate solver over the triangle index in assets/plate_index.bin (built by
+// jni/host/build_plate_index.cpp). The index is memory-mapped from the APK,
+// nothing is parsed at startup. Feed it StarDetector output.
+class PlateSolver(assets: AssetManager, assetName: String = "plate_index.bin") : AutoCloseable {
+    private var handle = nativeCreate(assets, assetName)
+    private val result = FloatArray(5)
+
+    val available: Boolean get() = handle != 0L
+
+    // horizontalFovDegrees only seeds the search; anything within a factor of
+    // two of the real lens works and the solution carries the refined value
+    fun solve(stars: DetectionBuffer, horizontalFovDegrees: Float, out: PlateSolution): Boolean = synchronized(this) {
+        if (handle == 0L || stars.count < 3 || stars.frameWidth == 0) return false
+        val focalPx = stars.frameWidth * 0.5f / tan(Math.toRadians(horizontalFovDegrees * 0.5).toFloat())
+        if (!nativeSolve(handle, stars.count, stars.values, stars.frameWidth, stars.frameHeight, focalPx, result)) {
+            return false
+        }
+        out.raDeg = result[0]
+        out.decDeg = result[1]
+        out.rollDeg = result[2]
+        out.focalPx = result[3]
+        out.matches = result[4].toInt()
+        return true
+    }
+
+    override fun close() = synchronized(this) {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        // Typical phone main camera, landscape
+        const val DEFAULT_FOV_DEGREES = 66f
+
+        init {
+            System.loadLibrary("nanodet")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(assets: AssetManager, assetName: String): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
+
+        @JvmStatic
+        private external fun nativeSolve(
+            handle: Long,
+            count: Int, values: FloatArray,
+            width: Int, height: Int, focalPx: Float,
+            result: FloatArray
+        ): Boolean
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.starpointer
+
+import android.graphics.Rect
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+// Region-of-interest search for the selected object. After a confident hit the
+// next detections run on a window around the last box only, at the smaller
+// ROI input size (320 vs 416). The window is still scaled up to that input,
+// so point-like targets get more input pixels for less work. After maxMisses
+// empty ROI runs it falls back to full frame.
+class RoiController(
+    private val confidentScore: Float = 0.6f,
+    private val margin: Float = 3f,
+    private val minSize: Int = 160,
+    private val maxMisses: Int = 2
+) {
+    private val roi = Rect()
+    private var misses = 0
+
+    var active = false
+        private set
+
+    // Crop for the next detection, or null for a full-frame search
+    fun nextRoi(): Rect? = if (active) roi else null
+
+    // Feed the result of every detection run (not tracked frames)
+    fun onDetections(boxes: DetectionBuffer) {
+        var best = -1
+        for (i in 0 until boxes.count) {
+            if (best < 0 || boxes.score(i) > boxes.score(best)) best = i
+        }
+
+        if (best < 0) {
+            if (active && ++misses >= maxMisses) active = false
+            return
+        }
+        // Enter ROI mode on a confident hit; once in it, any hit recentres the window
+        if (!active && boxes.score(best) < confidentScore) return
+
+        val w = boxes.right(best) - boxes.left(best)
+        val h = boxes.bottom(best) - boxes.top(best)
+        val size = max(minSize.toFloat(), margin * max(w, h))
+            .coerceAtMost(minOf(boxes.frameWidth, boxes.frameHeight).toFloat())
+            .roundToInt()
+        val cx = (boxes.left(best) + boxes.right(best)) / 2f
+        val cy = (boxes.top(best) + boxes.bottom(best)) / 2f
+        val left = (cx - size / 2f).roundToInt().coerceIn(0, boxes.frameWidth - size)
+        val top = (cy - size / 2f).roundToInt().coerceIn(0, boxes.frameHeight - size)
+        roi.set(left, top, left + size, top + size)
+        active = true
+        misses = 0
+    }
+
+    fun reset() {
+        active = false
+        misses = 0
+    }
+}
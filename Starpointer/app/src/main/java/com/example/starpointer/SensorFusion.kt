@@ -0,0 +1,274 @@
+package com.example.starpointer
+
+import android.hardware.Sensor
+import android.hardware.SensorEvent
+import android.hardware.SensorEventListener
+import android.hardware.SensorManager
+import android.os.Handler
+import android.os.HandlerThread
+import kotlin.math.asin
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+// Fuses accelerometer, gyroscope and magnetometer into the device orientation
+// (a quaternion taking device axes to East-North-Up) with a complementary
+// filter: the gyro is integrated on every sample and the result is pulled
+// towards the gravity/magnetic-north reference by `gain` on every accelerometer
+// sample. Raw samples go into primitive ring buffers and nothing is allocated
+// per event. Callbacks run on a private thread; readers take a snapshot with
+// read() at whatever rate they like. With a recorder set, every raw sample and
+// the attitude it produced are also appended to the session log.
+class SensorFusion(
+    private val sensorManager: SensorManager,
+    private val gain: Float = 0.02f
+) : SensorEventListener {
+
+    // Latest state, copied out by read()
+    class Orientation {
+        var altitudeDeg = 0f
+        var azimuthDeg = 0f // from true north through east once declinationDeg is set
+        val quaternion = floatArrayOf(1f, 0f, 0f, 0f) // w, x, y, z; device -> ENU, north as above
+        val accel = FloatArray(3)
+        val gyro = FloatArray(3)
+        val mag = FloatArray(3)
+        var timestampNs = 0L
+    }
+
+    // Fixed-size history of one sensor's xyz samples
+    class SampleRing(val capacity: Int) {
+        val values = FloatArray(capacity * 3)
+        val timestampsNs = LongArray(capacity)
+        var count = 0
+            private set
+        private var head = 0
+
+        fun push(x: Float, y: Float, z: Float, timestampNs: Long) {
+            values[head * 3] = x
+            values[head * 3 + 1] = y
+            values[head * 3 + 2] = z
+            timestampsNs[head] = timestampNs
+            head = (head + 1) % capacity
+            if (count < capacity) count++
+        }
+
+        // Mean of the newest n samples into out; false if there are none
+        fun mean(n: Int, out: FloatArray): Boolean {
+            val m = minOf(n, count)
+            if (m == 0) return false
+            var x = 0f
+            var y = 0f
+            var z = 0f
+            for (k in 1..m) {
+                val i = (head - k + capacity) % capacity
+                x += values[i * 3]
+                y += values[i * 3 + 1]
+                z += values[i * 3 + 2]
+            }
+            out[0] = x / m
+            out[1] = y / m
+            out[2] = z / m
+            return true
+        }
+    }
+
+    val accel = SampleRing(RING_CAPACITY)
+    val gyro = SampleRing(RING_CAPACITY)
+    val mag = SampleRing(RING_CAPACITY)
+
+    // Magnetic declination at the observer, applied to the azimuth and quaternion
+    @Volatile
+    var declinationDeg = 0f
+
+    @Volatile
+    var recorder: SessionRecorder? = null
+
+    private val lock = Any()
+    private val q = floatArrayOf(1f, 0f, 0f, 0f)
+    private val reference = FloatArray(4)
+    private val a = FloatArray(3)
+    private val m = FloatArray(3)
+    private var initialized = false
+    private var hasGyro = false
+    private var lastGyroNs = 0L
+    private var lastTimestampNs = 0L
+    private var thread: HandlerThread? = null
+
+    // samplingPeriod is a SensorManager.SENSOR_DELAY_* constant or microseconds
+    fun start(samplingPeriod: Int = SensorManager.SENSOR_DELAY_GAME) {
+        if (thread != null) return
+        val t = HandlerThread("SensorFusion").also { it.start() }
+        thread = t
+        val handler = Handler(t.looper)
+        val gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE)
+        hasGyro = gyroscope != null
+        sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
+            samplingPeriod, handler)
+        sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),
+            samplingPeriod, handler)
+        if (gyroscope != null) {
+            sensorManager.registerListener(this, gyroscope, samplingPeriod, handler)
+        }
+    }
+
+    fun stop() {
+        sensorManager.unregisterListener(this)
+        thread?.quitSafely()
+        thread = null
+        synchronized(lock) {
+            initialized = false
+            lastGyroNs = 0L
+        }
+    }
+
+    override fun onSensorChanged(event: SensorEvent) {
+        val v = event.values
+        synchronized(lock) {
+            lastTimestampNs = event.timestamp
+            when (event.sensor.type) {
+                Sensor.TYPE_ACCELEROMETER -> {
+                    accel.push(v[0], v[1], v[2], event.timestamp)
+                    correct()
+                }
+                Sensor.TYPE_MAGNETIC_FIELD -> mag.push(v[0], v[1], v[2], event.timestamp)
+                Sensor.TYPE_GYROSCOPE -> {
+                    gyro.push(v[0], v[1], v[2], event.timestamp)
+                    if (lastGyroNs != 0L && initialized) {
+                        integrate(v[0], v[1], v[2], (event.timestamp - lastGyroNs) * 1e-9f)
+                    }
+                    lastGyroNs = event.timestamp
+                }
+            }
+            recorder?.let {
+                it.recordSensor(event.sensor.type, event.timestamp, v[0], v[1], v[2])
+                if (initialized && event.sensor.type != Sensor.TYPE_MAGNETIC_FIELD) it.recordAttitude(event.timestamp, q)
+            }
+        }
+    }
+
+    override fun onAccuracyChanged(sensor: Sensor?, accuracy: Int) {}
+
+    fun read(out: Orientation) {
+        synchronized(lock) {
+            // Turn magnetic north into true north: rotate about Up by -declination
+            val half = Math.toRadians(-declinationDeg * 0.5).toFloat()
+            val c = cos(half)
+            val s = sin(half)
+            val w = c * q[0] - s * q[3]
+            val x = c * q[1] - s * q[2]
+            val y = c * q[2] + s * q[1]
+            val z = c * q[3] + s * q[0]
+            // Back camera looks along device -Z: minus the third column of R(q)
+            val east = -2f * (x * z + w * y)
+            val north = -2f * (y * z - w * x)
+            val up = -(1f - 2f * (x * x + y * y))
+            out.altitudeDeg = Math.toDegrees(asin(up.coerceIn(-1f, 1f).toDouble())).toFloat()
+            val azimuth = Math.toDegrees(atan2(east, north).toDouble()).toFloat()
+            out.azimuthDeg = if (azimuth < 0f) azimuth + 360f else azimuth
+            out.quaternion[0] = w
+            out.quaternion[1] = x
+            out.quaternion[2] = y
+            out.quaternion[3] = z
+            if (!accel.mean(1, out.accel)) out.accel.fill(0f)
+            if (!gyro.mean(1, out.gyro)) out.gyro.fill(0f)
+            if (!mag.mean(1, out.mag)) out.mag.fill(0f)
+            out.timestampNs = lastTimestampNs
+        }
+    }
+
+    // q += 0.5 * q * (0, omega) * dt
+    private fun integrate(wx: Float, wy: Float, wz: Float, dt: Float) {
+        if (dt <= 0f || dt > 0.5f) return
+        val w = q[0]
+        val x = q[1]
+        val y = q[2]
+        val z = q[3]
+        val h = 0.5f * dt
+        q[0] = w + h * (-x * wx - y * wy - z * wz)
+        q[1] = x + h * (w * wx + y * wz - z * wy)
+        q[2] = y + h * (w * wy - x * wz + z * wx)
+        q[3] = z + h * (w * wz + x * wy - y * wx)
+        normalize(q)
+    }
+
+    // Pulls q towards the accelerometer/magnetometer attitude
+    private fun correct() {
+        if (!accel.mean(REFERENCE_SAMPLES, a) || !mag.mean(REFERENCE_SAMPLES, m)) return
+        if (!referenceAttitude(a, m, reference)) return
+        if (!initialized) {
+            reference.copyInto(q)
+            initialized = true
+            return
+        }
+        // Take the shorter way round
+        val sign = if (q[0] * reference[0] + q[1] * reference[1] + q[2] * reference[2] + q[3] * reference[3] < 0f) -1f else 1f
+        // Without a gyro the reference is all there is; just smooth it
+        val k = if (hasGyro) gain else NO_GYRO_GAIN
+        for (i in 0..3) q[i] += (sign * reference[i] - q[i]) * k
+        normalize(q)
+    }
+
+    companion object {
+        const val RING_CAPACITY = 64
+        private const val REFERENCE_SAMPLES = 4
+        private const val NO_GYRO_GAIN = 0.15f
+
+        private fun normalize(v: FloatArray) {
+            val n = sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2] + v[3] * v[3])
+            if (n == 0f) return
+            for (i in 0..3) v[i] /= n
+        }
+
+        // Device-to-ENU rotation from gravity and magnetic field, as a
+        // quaternion. Rows of the matrix are East, North and Up in device axes.
+        private fun referenceAttitude(a: FloatArray, m: FloatArray, out: FloatArray): Boolean {
+            // East = m x a
+            var ex = m[1] * a[2] - m[2] * a[1]
+            var ey = m[2] * a[0] - m[0] * a[2]
+            var ez = m[0] * a[1] - m[1] * a[0]
+            val en = sqrt(ex * ex + ey * ey + ez * ez)
+            val an = sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2])
+            if (en < 0.1f || an < 0.1f) return false // free fall or next to a magnet
+            ex /= en
+            ey /= en
+            ez /= en
+            val ux = a[0] / an
+            val uy = a[1] / an
+            val uz = a[2] / an
+            // North = Up x East
+            val nx = uy * ez - uz * ey
+            val ny = uz * ex - ux * ez
+            val nz = ux * ey - uy * ex
+
+            // Matrix to quaternion; r(row, col) with rows E, N, U
+            val trace = ex + ny + uz
+            if (trace > 0f) {
+                val s = sqrt(trace + 1f) * 2f
+                out[0] = 0.25f * s
+                out[1] = (uy - nz) / s
+                out[2] = (ez - ux) / s
+                out[3] = (nx - ey) / s
+            } else if (ex > ny && ex > uz) {
+                val s = sqrt(1f + ex - ny - uz) * 2f
+                out[0] = (uy - nz) / s
+                out[1] = 0.25f * s
+                out[2] = (ey + nx) / s
+                out[3] = (ez + ux) / s
+            } else if (ny > uz) {
+                val s = sqrt(1f + ny - ex - uz) * 2f
+                out[0] = (ez - ux) / s
+                out[1] = (ey + nx) / s
+                out[2] = 0.25f * s
+                out[3] = (nz + uy) / s
+            } else {
+                val s = sqrt(1f + uz - ex - ny) * 2f
+                out[0] = (nx - ey) / s
+                out[1] = (ez + ux) / s
+                out[2] = (nz + uy) / s
+                out[3] = 0.25f * s
+            }
+            return true
+        }
+    }
+}
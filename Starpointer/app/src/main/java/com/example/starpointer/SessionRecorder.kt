@@ -0,0 +1,316 @@
+package com.example.starpointer
+
+import android.content.Context
+import android.hardware.Sensor
+import android.hardware.camera2.CameraCharacteristics
+import android.hardware.camera2.CameraMetadata
+import android.location.Location
+import android.os.SystemClock
+import android.util.Log
+import androidx.camera.camera2.interop.Camera2CameraInfo
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop
+import androidx.camera.core.CameraInfo
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+
+// Records an observing session: raw sensors, the fused attitude, location
+// fixes and published detections, one append-only file per stream in dir.
+// Every record starts with a timestamp. Sensor events and location fixes are
+// stamped in elapsedRealtimeNanos; camera frames are too only where the camera
+// reports SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME, so the detections stream
+// records which clock its timestamps come from (see setFrameTimestampSource),
+// and until told it says the clock is unknown. Files are memory-
+// mapped and written in place with no per-record allocation; the header's
+// record count is bumped after each record, so a file is consistent up to the
+// last complete record even if the app dies. The layout is documented in
+// jni/host/session_dump.cpp, the offline reader. record*() may be called from
+// any thread; each stream is locked for the length of one record.
+class SessionRecorder(val dir: File) : AutoCloseable {
+
+    enum class ColumnType(val bytes: Int) {
+        LONG(8),
+        DOUBLE(8),
+        FLOAT(4),
+        INT(4)
+    }
+
+    // One stream of fixed-size records, stored column by column in blocks of
+    // BLOCK_RECORDS so a reader can pull one column without the others. The
+    // first column is always the timestamp. Write a record as begin(),
+    // put*() for the other columns, commit(), holding the stream's lock.
+    class Stream internal constructor(
+        file: File,
+        name: String,
+        columnNames: Array<String>,
+        types: Array<ColumnType>,
+        startWallMs: Long,
+        startNs: Long,
+        timestampSource: Int
+    ) : AutoCloseable {
+        private val channel = RandomAccessFile(file, "rw").channel
+        private val header = try {
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES.toLong()).order(ByteOrder.LITTLE_ENDIAN)
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+        private val columnOffsets = IntArray(types.size)
+        private val blockBytes: Int
+        private var block: ByteBuffer? = null
+        private var blocks = 0
+        private var row = BLOCK_RECORDS
+        private var closed = false
+
+        var count = 0L
+            private set
+
+        init {
+            var offset = 0
+            for (c in types.indices) {
+                columnOffsets[c] = offset
+                offset += types[c].bytes * BLOCK_RECORDS
+            }
+            blockBytes = offset
+
+            for (i in MAGIC.indices) header.put(i, MAGIC[i])
+            header.putInt(4, VERSION)
+            header.putInt(8, types.size)
+            header.putInt(12, BLOCK_RECORDS)
+            header.putLong(COUNT_OFFSET, 0L)
+            header.putLong(24, startWallMs)
+            header.putLong(32, startNs)
+            putName(40, name, STREAM_NAME_BYTES)
+            for (c in types.indices) {
+                val o = COLUMNS_OFFSET + c * COLUMN_BYTES
+                header.putInt(o, types[c].ordinal)
+                putName(o + 4, columnNames[c], COLUMN_BYTES - 4)
+            }
+            header.putInt(TIMESTAMP_SOURCE_OFFSET, timestampSource)
+        }
+
+        // One of the TIMESTAMP_* constants
+        fun setTimestampSource(source: Int) {
+            header.putInt(TIMESTAMP_SOURCE_OFFSET, source)
+        }
+
+        // False once closed; the record must then be dropped
+        fun begin(timestampNs: Long): Boolean {
+            if (closed) return false
+            if (row == BLOCK_RECORDS) {
+                // Mapping past the end grows the file; one syscall per block
+                block = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    HEADER_BYTES + blocks.toLong() * blockBytes, blockBytes.toLong()
+                ).order(ByteOrder.LITTLE_ENDIAN)
+                blocks++
+                row = 0
+            }
+            block!!.putLong(columnOffsets[0] + row * 8, timestampNs)
+            return true
+        }
+
+        fun putLong(column: Int, value: Long) {
+            block!!.putLong(columnOffsets[column] + row * 8, value)
+        }
+
+        fun putDouble(column: Int, value: Double) {
+            block!!.putDouble(columnOffsets[column] + row * 8, value)
+        }
+
+        fun putFloat(column: Int, value: Float) {
+            block!!.putFloat(columnOffsets[column] + row * 4, value)
+        }
+
+        fun putInt(column: Int, value: Int) {
+            block!!.putInt(columnOffsets[column] + row * 4, value)
+        }
+
+        fun commit() {
+            row++
+            count++
+            header.putLong(COUNT_OFFSET, count)
+        }
+
+        // Mappings stay valid until collected; the count already marks the end
+        override fun close() {
+            if (closed) return
+            closed = true
+            channel.close()
+        }
+
+        private fun putName(offset: Int, name: String, capacity: Int) {
+            val bytes = name.toByteArray(Charsets.US_ASCII)
+            for (i in 0 until capacity) header.put(offset + i, if (i < bytes.size && i < capacity - 1) bytes[i] else 0)
+        }
+    }
+
+    private val startWallMs = System.currentTimeMillis()
+    private val startNs = SystemClock.elapsedRealtimeNanos()
+
+    // Opened in order; if one can't be, the ones before it are closed again
+    private val streams = ArrayList<Stream>(6)
+    val accel: Stream
+    val gyro: Stream
+    val mag: Stream
+    val attitude: Stream
+    val location: Stream
+    val detections: Stream
+    private var lastFixNs = Long.MIN_VALUE
+
+    init {
+        try {
+            accel = stream("accel", "t_ns" to ColumnType.LONG, "x" to ColumnType.FLOAT, "y" to ColumnType.FLOAT, "z" to ColumnType.FLOAT)
+            gyro = stream("gyro", "t_ns" to ColumnType.LONG, "x" to ColumnType.FLOAT, "y" to ColumnType.FLOAT, "z" to ColumnType.FLOAT)
+            mag = stream("mag", "t_ns" to ColumnType.LONG, "x" to ColumnType.FLOAT, "y" to ColumnType.FLOAT, "z" to ColumnType.FLOAT)
+            // Device -> ENU quaternion against magnetic north, as SensorFusion integrates it
+            attitude = stream(
+                "attitude", "t_ns" to ColumnType.LONG,
+                "w" to ColumnType.FLOAT, "x" to ColumnType.FLOAT, "y" to ColumnType.FLOAT, "z" to ColumnType.FLOAT
+            )
+            location = stream(
+                "location", "t_ns" to ColumnType.LONG, "lat_deg" to ColumnType.DOUBLE, "lon_deg" to ColumnType.DOUBLE,
+                "alt_m" to ColumnType.FLOAT, "accuracy_m" to ColumnType.FLOAT
+            )
+            // One record per box of a published frame, in upright frame pixels;
+            // source tells detection, tracking and star frames apart
+            detections = stream(
+                "detections", "t_ns" to ColumnType.LONG, "source" to ColumnType.INT, "class" to ColumnType.INT,
+                "score" to ColumnType.FLOAT, "left" to ColumnType.FLOAT, "top" to ColumnType.FLOAT,
+                "right" to ColumnType.FLOAT, "bottom" to ColumnType.FLOAT,
+                "frame_w" to ColumnType.INT, "frame_h" to ColumnType.INT,
+                timestampSource = TIMESTAMP_UNKNOWN
+            )
+        } catch (e: IOException) {
+            for (stream in streams) stream.close()
+            throw e
+        }
+    }
+
+    // Once the camera is bound: its frame timestamps are elapsedRealtimeNanos
+    // if SENSOR_INFO_TIMESTAMP_SOURCE is REALTIME, else a camera clock with an
+    // unknown base
+    @OptIn(ExperimentalCamera2Interop::class)
+    fun setFrameTimestampSource(cameraInfo: CameraInfo) {
+        val source = Camera2CameraInfo.from(cameraInfo)
+            .getCameraCharacteristic(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE)
+        val realtime = source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME
+        synchronized(detections) {
+            detections.setTimestampSource(if (realtime) TIMESTAMP_REALTIME else TIMESTAMP_CAMERA)
+        }
+    }
+
+    // sensorType is Sensor.TYPE_*; other sensors are ignored
+    fun recordSensor(sensorType: Int, timestampNs: Long, x: Float, y: Float, z: Float) {
+        val stream = when (sensorType) {
+            Sensor.TYPE_ACCELEROMETER -> accel
+            Sensor.TYPE_GYROSCOPE -> gyro
+            Sensor.TYPE_MAGNETIC_FIELD -> mag
+            else -> return
+        }
+        synchronized(stream) {
+            if (!stream.begin(timestampNs)) return
+            stream.putFloat(1, x)
+            stream.putFloat(2, y)
+            stream.putFloat(3, z)
+            stream.commit()
+        }
+    }
+
+    // q is w, x, y, z
+    fun recordAttitude(timestampNs: Long, q: FloatArray) {
+        synchronized(attitude) {
+            if (!attitude.begin(timestampNs)) return
+            for (i in 0..3) attitude.putFloat(i + 1, q[i])
+            attitude.commit()
+        }
+    }
+
+    // The same fix handed over twice is recorded once
+    fun recordLocation(fix: Location) {
+        synchronized(location) {
+            if (fix.elapsedRealtimeNanos == lastFixNs) return
+            if (!location.begin(fix.elapsedRealtimeNanos)) return
+            lastFixNs = fix.elapsedRealtimeNanos
+            location.putDouble(1, fix.latitude)
+            location.putDouble(2, fix.longitude)
+            location.putFloat(3, fix.altitude.toFloat())
+            location.putFloat(4, fix.accuracy)
+            location.commit()
+        }
+    }
+
+    fun recordDetections(timestampNs: Long, source: Int, boxes: DetectionBuffer) {
+        synchronized(detections) {
+            for (i in 0 until boxes.count) {
+                if (!detections.begin(timestampNs)) return
+                detections.putInt(1, source)
+                detections.putInt(2, boxes.classId(i))
+                detections.putFloat(3, boxes.score(i))
+                detections.putFloat(4, boxes.left(i))
+                detections.putFloat(5, boxes.top(i))
+                detections.putFloat(6, boxes.right(i))
+                detections.putFloat(7, boxes.bottom(i))
+                detections.putInt(8, boxes.frameWidth)
+                detections.putInt(9, boxes.frameHeight)
+                detections.commit()
+            }
+        }
+    }
+
+    override fun close() {
+        for (stream in streams) synchronized(stream) { stream.close() }
+    }
+
+    private fun stream(
+        name: String,
+        vararg columns: Pair<String, ColumnType>,
+        timestampSource: Int = TIMESTAMP_REALTIME
+    ): Stream =
+        Stream(
+            File(dir, "$name$EXTENSION"), name,
+            Array(columns.size) { columns[it].first }, Array(columns.size) { columns[it].second },
+            startWallMs, startNs, timestampSource
+        ).also { streams.add(it) }
+
+    companion object {
+        const val EXTENSION = ".spsl"
+        const val BLOCK_RECORDS = 4096
+        // What a stream's timestamps count: elapsedRealtimeNanos, a camera
+        // clock with an unknown base, or not known (yet)
+        const val TIMESTAMP_REALTIME = 0
+        const val TIMESTAMP_CAMERA = 1
+        const val TIMESTAMP_UNKNOWN = 2
+        private const val VERSION = 2
+        // Page-sized, so blocks start on page boundaries
+        private const val HEADER_BYTES = 4096
+        private const val COUNT_OFFSET = 16
+        private const val STREAM_NAME_BYTES = 24
+        private const val COLUMNS_OFFSET = 64
+        private const val COLUMN_BYTES = 32
+        // Past the largest column table (32 columns)
+        private const val TIMESTAMP_SOURCE_OFFSET = COLUMNS_OFFSET + 32 * COLUMN_BYTES
+        private val MAGIC = "SPSL".toByteArray(Charsets.US_ASCII)
+
+        // A new session directory under the app's external files, e.g.
+        // Android/data/com.example.starpointer/files/sessions/20261018-213000,
+        // or null if it can't be written
+        fun create(context: Context): SessionRecorder? {
+            val root = context.getExternalFilesDir("sessions") ?: File(context.filesDir, "sessions")
+            val dir = File(root, SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(Date()))
+            return try {
+                dir.mkdirs()
+                SessionRecorder(dir)
+            } catch (e: IOException) {
+                Log.e("SessionRecorder", "Cannot record to $dir", e)
+                null
+            }
+        }
+    }
+}
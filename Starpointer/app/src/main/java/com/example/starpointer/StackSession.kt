@@ -0,0 +1,88 @@
+package com.example.starpointer
+
+import android.graphics.Bitmap
+import androidx.camera.core.ImageProxy
+import java.util.concurrent.atomic.AtomicBoolean
+
+// The latest render of the live stack, in sensor orientation. The screen marks
+// it drawn, which frees the other buffer for the next render.
+class StackPreview(val bitmap: Bitmap, val rotationDegrees: Int) {
+    private val drawn = AtomicBoolean()
+
+    fun markDrawn() = drawn.set(true)
+
+    internal fun isDrawn() = drawn.get()
+}
+
+// Stack mode's per-frame work on the preprocess thread: resets, folding frames
+// into the stacker, and a throttled preview and status line. The preview is
+// rendered into two bitmaps in turn; a new render only starts once the screen
+// has drawn the previous one, so the bitmap on screen is never the one being
+// written. The stacker itself belongs to AnalysisEngines.
+class StackSession(
+    private val onPreview: (StackPreview) -> Unit,
+    private val onStatus: (String) -> Unit,
+    private val previewIntervalMs: Long = 250L,
+    // The preview is rendered at 1/previewDownscale of the sensor resolution
+    private val previewDownscale: Int = 2,
+    private val statusIntervalMs: Long = 1000L
+) {
+    private val resetRequested = AtomicBoolean()
+    private val bitmaps = arrayOfNulls<Bitmap>(2)
+    private val stats = FrameStacker.Stats()
+    // Preprocess thread only from here on
+    private var shown: StackPreview? = null
+    private var lastResult = FrameStacker.Result.FAILED
+    private var rotationDegrees = 0
+    private var previewWidth = 0
+    private var previewHeight = 0
+    private var lastPreviewNs = 0L
+    private var lastStatusNs = 0L
+
+    // Starts the stack over from the next frame; any thread
+    fun requestReset() {
+        resetRequested.set(true)
+    }
+
+    // Folds image into the stack and closes it
+    fun add(stacker: FrameStacker, image: ImageProxy) {
+        if (resetRequested.getAndSet(false)) stacker.reset()
+        lastResult = stacker.add(image)
+        rotationDegrees = image.imageInfo.rotationDegrees
+        previewWidth = image.width / previewDownscale
+        previewHeight = image.height / previewDownscale
+        image.close()
+    }
+
+    // Renders the preview and formats the status when they are due; call
+    // after add(), once the camera buffer is back
+    fun refresh(stacker: FrameStacker) {
+        val now = System.nanoTime()
+        val previous = shown
+        if (lastResult != FrameStacker.Result.TOO_FEW_STARS &&
+            now - lastPreviewNs >= previewIntervalMs * 1_000_000L &&
+            (previous == null || previous.isDrawn())
+        ) {
+            lastPreviewNs = now
+            val back = if (previous?.bitmap === bitmaps[0]) 1 else 0
+            val bitmap = bitmaps[back]?.takeIf { it.width == previewWidth && it.height == previewHeight }
+                ?: Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888)
+                    .also { bitmaps[back] = it }
+            if (stacker.render(bitmap)) {
+                val preview = StackPreview(bitmap, rotationDegrees)
+                shown = preview
+                onPreview(preview)
+            }
+        }
+        // Formatting and a state write per frame would recompose per frame
+        if (now - lastStatusNs >= statusIntervalMs * 1_000_000L) {
+            lastStatusNs = now
+            stacker.stats(stats)
+            onStatus(
+                "Stack: %d frames, %d rejected, %d stars, %.2f px".format(
+                    stats.frames, stats.rejectedFrames, stats.stars, stats.residualPx
+                )
+            )
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.starpointer
+
+import android.content.Context
+import android.util.Log
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import kotlin.math.asin
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.floor
+import kotlin.math.sin
+
+// Stars and deep-sky objects from assets/catalog.bin (built by
+// jni/host/build_catalog.cpp, which documents the layout). The file is mapped
+// straight out of the APK and read in place; only names are decoded, lazily.
+// Objects are bucketed on a grid of 5 degree declination bands cut into
+// roughly 5 degree RA cells, so a cone query touches just the cells it covers.
+class StarCatalog private constructor(private val buffer: ByteBuffer) {
+    val size = buffer.getInt(8)
+    private val bandCount = buffer.getInt(12)
+    private val cellCount = buffer.getInt(16)
+    private val cellsInBandOffset = HEADER_BYTES
+    private val firstCellOffset = cellsInBandOffset + bandCount * 4
+    private val cellStartOffset = firstCellOffset + bandCount * 4
+    private val entriesOffset = cellStartOffset + (cellCount + 1) * 4
+    private val byMagnitudeOffset = entriesOffset + size * ENTRY_BYTES
+    private val namesOffset = byMagnitudeOffset + size * 4
+    private val names = arrayOfNulls<String>(size)
+
+    // Unit vector, J2000 equatorial
+    fun x(i: Int): Float = buffer.getFloat(entriesOffset + i * ENTRY_BYTES)
+    fun y(i: Int): Float = buffer.getFloat(entriesOffset + i * ENTRY_BYTES + 4)
+    fun z(i: Int): Float = buffer.getFloat(entriesOffset + i * ENTRY_BYTES + 8)
+    fun magnitude(i: Int): Float = buffer.getFloat(entriesOffset + i * ENTRY_BYTES + 12)
+    fun isDeepSky(i: Int): Boolean = buffer.getInt(entriesOffset + i * ENTRY_BYTES + 20) == TYPE_DEEP_SKY
+
+    fun raDeg(i: Int): Float {
+        val ra = Math.toDegrees(atan2(y(i), x(i)).toDouble()).toFloat()
+        return if (ra < 0f) ra + 360f else ra
+    }
+
+    fun decDeg(i: Int): Float = Math.toDegrees(asin(z(i).coerceIn(-1f, 1f).toDouble())).toFloat()
+
+    fun name(i: Int): String {
+        names[i]?.let { return it }
+        val start = namesOffset + buffer.getInt(entriesOffset + i * ENTRY_BYTES + 16)
+        var end = start
+        while (buffer.get(end) != 0.toByte()) end++
+        val bytes = ByteArray(end - start)
+        for (k in bytes.indices) bytes[k] = buffer.get(start + k)
+        return String(bytes, Charsets.UTF_8).also { names[i] = it }
+    }
+
+    // Index of the rank-th brightest object
+    fun brightest(rank: Int): Int = buffer.getInt(byMagnitudeOffset + rank * 4)
+
+    fun indexOf(name: String): Int {
+        for (i in 0 until size) {
+            if (name(i).equals(name, ignoreCase = true)) return i
+        }
+        return -1
+    }
+
+    // Objects within radiusDeg of (raDeg, decDeg) and no fainter than
+    // maxMagnitude, written to out (grid order, brightest first per cell).
+    // Returns the count, at most out.size. Allocation-free.
+    fun query(raDeg: Float, decDeg: Float, radiusDeg: Float, maxMagnitude: Float, out: IntArray): Int {
+        val ra = Math.toRadians(raDeg.toDouble())
+        val dec = Math.toRadians(decDeg.toDouble())
+        val r = Math.toRadians(radiusDeg.toDouble())
+        val cx = (cos(dec) * cos(ra)).toFloat()
+        val cy = (cos(dec) * sin(ra)).toFloat()
+        val cz = sin(dec).toFloat()
+        val minDot = cos(r).toFloat()
+
+        val decLo = decDeg - radiusDeg
+        val decHi = decDeg + radiusDeg
+        val bandLo = floor((decLo + 90f) / BAND_DEG).toInt().coerceIn(0, bandCount - 1)
+        val bandHi = floor((decHi + 90f) / BAND_DEG).toInt().coerceIn(0, bandCount - 1)
+        // Half-width in RA of the cone; it wraps all the way round over a pole
+        val polar = decHi >= 90f || decLo <= -90f
+        val halfWidthDeg = if (polar) 180f else Math.toDegrees(asin(sin(r) / cos(dec))).toFloat()
+
+        var count = 0
+        for (band in bandLo..bandHi) {
+            val cells = buffer.getInt(cellsInBandOffset + band * 4)
+            val first = buffer.getInt(firstCellOffset + band * 4)
+            var lo = floor((raDeg - halfWidthDeg) / 360f * cells).toInt()
+            var hi = floor((raDeg + halfWidthDeg) / 360f * cells).toInt()
+            if (polar || hi - lo + 1 >= cells) {
+                lo = 0
+                hi = cells - 1
+            }
+            for (c in lo..hi) {
+                val cell = first + Math.floorMod(c, cells)
+                val end = buffer.getInt(cellStartOffset + (cell + 1) * 4)
+                for (i in buffer.getInt(cellStartOffset + cell * 4) until end) {
+                    if (magnitude(i) > maxMagnitude) break // brightest first within a cell
+                    if (x(i) * cx + y(i) * cy + z(i) * cz < minDot) continue
+                    if (count == out.size) return count
+                    out[count++] = i
+                }
+            }
+        }
+        return count
+    }
+
+    companion object {
+        private const val VERSION = 1
+        private const val HEADER_BYTES = 32
+        private const val ENTRY_BYTES = 24
+        private const val TYPE_DEEP_SKY = 1
+        private const val BAND_DEG = 5f
+
+        @Volatile
+        private var instance: StarCatalog? = null
+
+        // Maps the bundled catalog once per process; null if the asset is missing
+        // or malformed. The asset must be stored uncompressed (noCompress "bin").
+        fun open(context: Context): StarCatalog? {
+            instance?.let { return it }
+            synchronized(this) {
+                instance?.let { return it }
+                val mapped = try {
+                    // The mapping outlives the descriptor
+                    context.assets.openFd("catalog.bin").use { fd ->
+                        FileInputStream(fd.fileDescriptor).channel
+                            .map(FileChannel.MapMode.READ_ONLY, fd.startOffset, fd.length)
+                    }
+                } catch (e: IOException) {
+                    Log.e("StarCatalog", "Cannot map catalog.bin", e)
+                    return null
+                }
+                mapped.order(ByteOrder.LITTLE_ENDIAN)
+                if (mapped.get(0) != 'S'.code.toByte() || mapped.get(1) != 'P'.code.toByte() ||
+                    mapped.get(2) != 'C'.code.toByte() || mapped.get(3) != 'T'.code.toByte() ||
+                    mapped.getInt(4) != VERSION
+                ) {
+                    Log.e("StarCatalog", "catalog.bin has an unknown format")
+                    return null
+                }
+                return StarCatalog(mapped).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.starpointer
+
+import androidx.camera.core.ImageProxy
+import java.nio.ByteBuffer
+
+// Classical point-source detector on the luminance plane (see star_detector.cpp).
+// Results land in a DetectionBuffer exactly like NanoDetEngine's, with every box
+// labelled classId and scored by SNR, so the two detectors are interchangeable.
+// Costs a few milliseconds per 1080p frame, so it can run on every frame.
+class StarDetector(
+    thresholdSigma: Float = 5f,
+    minArea: Int = 2,
+    maxArea: Int = 400
+) : AutoCloseable {
+    private var handle = nativeCreate(thresholdSigma, minArea, maxArea)
+
+    // Brightest stars first
+    fun detect(image: ImageProxy, classId: Int, out: DetectionBuffer): Unit = synchronized(this) {
+        val rotated = image.imageInfo.rotationDegrees % 180 != 0
+        out.frameWidth = if (rotated) image.height else image.width
+        out.frameHeight = if (rotated) image.width else image.height
+        if (handle == 0L) {
+            out.clear()
+            return
+        }
+        val y = image.planes[0]
+        val u = image.planes[1]
+        val v = image.planes[2]
+        out.count = nativeDetect(
+            handle,
+            y.buffer, u.buffer, v.buffer,
+            image.width, image.height,
+            y.rowStride, u.rowStride, u.pixelStride,
+            image.imageInfo.rotationDegrees, classId,
+            out.classIds, out.values
+        )
+    }
+
+    override fun close() = synchronized(this) {
+        if (handle != 0L) {
+            nativeDestroy(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        init {
+            System.loadLibrary("nanodet")
+        }
+
+        @JvmStatic
+        private external fun nativeCreate(thresholdSigma: Float, minArea: Int, maxArea: Int): Long
+
+        @JvmStatic
+        private external fun nativeDestroy(handle: Long)
+
+        @JvmStatic
+        private external fun nativeDetect(
+            handle: Long,
+            yBuffer: ByteBuffer, uBuffer: ByteBuffer, vBuffer: ByteBuffer,
+            width: Int, height: Int,
+            yRowStride: Int, uvRowStride: Int, uvPixelStride: Int,
+            rotationDegrees: Int, classId: Int,
+            classIds: IntArray, values: FloatArray
+        ): Int
+    }
+}
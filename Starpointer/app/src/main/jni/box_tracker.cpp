@@ -0,0 +1,160 @@
+#include "box_tracker.h"
+
+#include <math.h>
+#include <stdlib.h>
+#include <algorithm>
+
+const int BoxTracker::kMaxBoxes;
+const int BoxTracker::kPatch;
+
+namespace {
+
+// alpha-beta gains for position and velocity
+const float kAlpha = 0.85f;
+const float kBeta = 0.3f;
+// Mean absolute difference (0..255) at which match quality reaches zero
+const float kMaxMad = 48.f;
+const float kDropQuality = 0.35f;
+
+struct Frame {
+    const YuvPlanes& planes;
+    int rotation;
+    int width;  // upright
+    int height; // upright
+};
+
+inline int clampi(int v, int lo, int hi) {
+    return v < lo ? lo : (v > hi ? hi : v);
+}
+
+inline int normalizeRotation(int degrees) {
+    return ((degrees % 360) + 360) % 360;
+}
+
+// Nearest-neighbour luminance at each cell centre of the box
+void samplePatch(const Frame& f, float cx, float cy, float w, float h, uint8_t* out) {
+    const int n = BoxTracker::kPatch;
+    int xs[BoxTracker::kPatch];
+    for (int j = 0; j < n; j++) {
+        xs[j] = clampi((int) (cx + ((j + 0.5f) / n - 0.5f) * w), 0, f.width - 1);
+    }
+    for (int i = 0; i < n; i++) {
+        int uy = clampi((int) (cy + ((i + 0.5f) / n - 0.5f) * h), 0, f.height - 1);
+        for (int j = 0; j < n; j++) {
+            out[i * n + j] = f.planes.y[uprightLumaOffset(f.planes, f.rotation, xs[j], uy)];
+        }
+    }
+}
+
+// Sum of absolute differences against the template, stopping once it cannot beat limit
+int sad(const Frame& f, float cx, float cy, float w, float h, const uint8_t* patch, int limit) {
+    const int n = BoxTracker::kPatch;
+    int xs[BoxTracker::kPatch];
+    for (int j = 0; j < n; j++) {
+        xs[j] = clampi((int) (cx + ((j + 0.5f) / n - 0.5f) * w), 0, f.width - 1);
+    }
+    int total = 0;
+    for (int i = 0; i < n; i++) {
+        int uy = clampi((int) (cy + ((i + 0.5f) / n - 0.5f) * h), 0, f.height - 1);
+        const uint8_t* t = patch + i * n;
+        for (int j = 0; j < n; j++) {
+            total += abs((int) f.planes.y[uprightLumaOffset(f.planes, f.rotation, xs[j], uy)] - t[j]);
+        }
+        if (total >= limit) return total;
+    }
+    return total;
+}
+
+} // namespace
+
+void BoxTracker::reset(const YuvPlanes& planes, int rotationDegrees, const Object* objects, int count) {
+    const int rotation = normalizeRotation(rotationDegrees);
+    const bool swap = rotation == 90 || rotation == 270;
+    Frame f = {planes, rotation, swap ? planes.height : planes.width, swap ? planes.width : planes.height};
+
+    count_ = std::min(count, (int) kMaxBoxes);
+    for (int i = 0; i < count_; i++) {
+        const Object& o = objects[i];
+        Track& t = tracks_[i];
+        t.cx = (o.x0 + o.x1) * 0.5f;
+        t.cy = (o.y0 + o.y1) * 0.5f;
+        t.w = std::max(1.f, o.x1 - o.x0);
+        t.h = std::max(1.f, o.y1 - o.y0);
+        t.vx = 0.f;
+        t.vy = 0.f;
+        t.label = o.label;
+        t.score = o.score;
+        samplePatch(f, t.cx, t.cy, t.w, t.h, t.patch);
+    }
+}
+
+int BoxTracker::update(const YuvPlanes& planes, int rotationDegrees, Object* out, int capacity) {
+    const int rotation = normalizeRotation(rotationDegrees);
+    const bool swap = rotation == 90 || rotation == 270;
+    Frame f = {planes, rotation, swap ? planes.height : planes.width, swap ? planes.width : planes.height};
+    const int cells = kPatch * kPatch;
+
+    int kept = 0;
+    int written = 0;
+    for (int i = 0; i < count_; i++) {
+        Track t = tracks_[i];
+        const float px = t.cx + t.vx;
+        const float py = t.cy + t.vy;
+
+        // Coarse grid over the search window, then halve the step around the best hit
+        float radius = std::max(4.f, 0.25f * std::max(t.w, t.h)) + fabsf(t.vx) + fabsf(t.vy);
+        float step = std::max(1.f, radius / 4.f);
+        float bx = px;
+        float by = py;
+        int best = sad(f, bx, by, t.w, t.h, t.patch, 0x7fffffff);
+        for (float dy = -radius; dy <= radius; dy += step) {
+            for (float dx = -radius; dx <= radius; dx += step) {
+                int s = sad(f, px + dx, py + dy, t.w, t.h, t.patch, best);
+                if (s < best) {
+                    best = s;
+                    bx = px + dx;
+                    by = py + dy;
+                }
+            }
+        }
+        while (step > 1.f) {
+            step *= 0.5f;
+            const float cx = bx;
+            const float cy = by;
+            for (int sy = -1; sy <= 1; sy++) {
+                for (int sx = -1; sx <= 1; sx++) {
+                    if (sx == 0 && sy == 0) continue;
+                    int s = sad(f, cx + sx * step, cy + sy * step, t.w, t.h, t.patch, best);
+                    if (s < best) {
+                        best = s;
+                        bx = cx + sx * step;
+                        by = cy + sy * step;
+                    }
+                }
+            }
+        }
+
+        const float quality = 1.f - ((float) best / cells) / kMaxMad;
+        if (quality < kDropQuality) continue;
+
+        const float ex = bx - px;
+        const float ey = by - py;
+        t.cx = px + kAlpha * ex;
+        t.cy = py + kAlpha * ey;
+        t.vx += kBeta * ex;
+        t.vy += kBeta * ey;
+        tracks_[kept++] = t;
+
+        if (written < capacity) {
+            Object& o = out[written++];
+            o.x0 = std::max(0.f, t.cx - t.w * 0.5f);
+            o.y0 = std::max(0.f, t.cy - t.h * 0.5f);
+            o.x1 = std::min((float) f.width, t.cx + t.w * 0.5f);
+            o.y1 = std::min((float) f.height, t.cy + t.h * 0.5f);
+            o.label = t.label;
+            o.score = t.score * quality;
+        }
+    }
+    count_ = kept;
+    return written;
+}
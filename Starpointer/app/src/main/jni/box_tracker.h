@@ -0,0 +1,42 @@
+#ifndef STARPOINTER_BOX_TRACKER_H
+#define STARPOINTER_BOX_TRACKER_H
+
+#include <stdint.h>
+
+#include "nanodet.h"
+#include "yuv_letterbox.h"
+
+// Carries detector boxes forward between NanoDet runs using only the Y plane.
+// Each box keeps a small luminance template and an alpha-beta (steady-state
+// Kalman) constant-velocity model: the prediction centres a coarse-to-fine SAD
+// search, and the match quality scales the box score so the scheduler can
+// tell when tracking has degraded and a fresh detection is needed.
+class BoxTracker {
+public:
+    static const int kMaxBoxes = 16;
+    static const int kPatch = 16;
+
+    // Replaces the tracked set with detections made on this frame, sampling
+    // their templates from it; only the Y plane is read
+    void reset(const YuvPlanes& planes, int rotationDegrees, const Object* objects, int count);
+
+    void clear() { count_ = 0; }
+
+    // Tracks every box into this frame; writes survivors to out and returns
+    // how many there are. Boxes whose match quality falls too low are dropped.
+    int update(const YuvPlanes& planes, int rotationDegrees, Object* out, int capacity);
+
+private:
+    struct Track {
+        float cx, cy, w, h;
+        float vx, vy;
+        int label;
+        float score;
+        uint8_t patch[kPatch * kPatch];
+    };
+
+    Track tracks_[kMaxBoxes];
+    int count_ = 0;
+};
+
+#endif // STARPOINTER_BOX_TRACKER_H
@@ -0,0 +1,67 @@
+#include <jni.h>
+#include <android/log.h>
+
+#include <vector>
+
+#include "box_tracker.h"
+#include "jni_common.h"
+
+#define TAG "BoxTrackerJni"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_BoxTracker_nativeCreate(JNIEnv* /* env */, jclass /* clazz */) {
+    return reinterpret_cast<jlong>(new BoxTracker());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_BoxTracker_nativeDestroy(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    delete reinterpret_cast<BoxTracker*>(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_BoxTracker_nativeClear(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    reinterpret_cast<BoxTracker*>(handle)->clear();
+}
+
+// Takes only a Y plane: the frame a detection ran on, copied out of its
+// ImageProxy (LumaFrame)
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_BoxTracker_nativeReset(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                    jobject yBuffer, jint width, jint height, jint yRowStride,
+                                                    jint rotationDegrees, jint count,
+                                                    jintArray classIds, jfloatArray values) {
+    BoxTracker* tracker = reinterpret_cast<BoxTracker*>(handle);
+    const uint8_t* y = (const uint8_t*) env->GetDirectBufferAddress(yBuffer);
+    const jlong capacity = env->GetDirectBufferCapacity(yBuffer);
+    if (y == 0 || width <= 0 || height <= 0 || yRowStride < width ||
+        capacity < (jlong) (height - 1) * yRowStride + width) {
+        LOGE("Luma frame is not a direct buffer of %dx%d", width, height);
+        tracker->clear();
+        return;
+    }
+    YuvPlanes planes = {y, 0, 0, width, height, yRowStride, 0, 0};
+    Object objects[BoxTracker::kMaxBoxes];
+    int n = readResults(env, count, classIds, values, objects, BoxTracker::kMaxBoxes);
+    tracker->reset(planes, rotationDegrees, objects, n);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_BoxTracker_nativeUpdate(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                     jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                                                     jint width, jint height,
+                                                     jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                                                     jint rotationDegrees,
+                                                     jintArray classIds, jfloatArray values) {
+    BoxTracker* tracker = reinterpret_cast<BoxTracker*>(handle);
+    YuvPlanes planes;
+    if (!planesFromBuffers(env, yBuffer, uBuffer, vBuffer, width, height,
+                           yRowStride, uvRowStride, uvPixelStride, &planes)) {
+        return 0;
+    }
+    Object objects[BoxTracker::kMaxBoxes];
+    int n = tracker->update(planes, rotationDegrees, objects, BoxTracker::kMaxBoxes);
+    std::vector<Object>& results = scratchObjects();
+    results.assign(objects, objects + n);
+    return writeResults(env, results, classIds, values);
+}
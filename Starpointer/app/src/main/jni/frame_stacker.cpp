@@ -0,0 +1,336 @@
+#include "frame_stacker.h"
+
+#include <math.h>
+#include <string.h>
+#include <algorithm>
+
+namespace {
+
+const int kMinStars = 8;
+// Reference stars kept, and how many of the brightest take part in the vote
+const int kReferenceStars = 40;
+const int kVoteStars = 25;
+const float kVoteRadius = 3.f;
+const int kMinMatches = 6;
+const float kMaxResidualPx = 1.5f;
+const int kTileRows = 32;
+// Clipping never gets tighter than this many DN, so a pixel that happened to
+// see identical values a few times isn't frozen
+const float kMinSigma = 2.f;
+
+inline float sq(float v) {
+    return v * v;
+}
+
+inline void apply(const float* t, float x, float y, float* ox, float* oy) {
+    *ox = t[0] * x + t[1] * y + t[2];
+    *oy = t[3] * x + t[4] * y + t[5];
+}
+
+// Least-squares rotation + translation taking r onto f
+void fitRigid(const float* rx, const float* ry, const float* fx, const float* fy, int n, float* t) {
+    float crx = 0.f, cry = 0.f, cfx = 0.f, cfy = 0.f;
+    for (int i = 0; i < n; i++) {
+        crx += rx[i];
+        cry += ry[i];
+        cfx += fx[i];
+        cfy += fy[i];
+    }
+    crx /= n;
+    cry /= n;
+    cfx /= n;
+    cfy /= n;
+    float dot = 0.f;
+    float cross = 0.f;
+    for (int i = 0; i < n; i++) {
+        const float ax = rx[i] - crx, ay = ry[i] - cry;
+        const float bx = fx[i] - cfx, by = fy[i] - cfy;
+        dot += ax * bx + ay * by;
+        cross += ax * by - ay * bx;
+    }
+    const float theta = atan2f(cross, dot);
+    const float c = cosf(theta);
+    const float s = sinf(theta);
+    t[0] = c;
+    t[1] = -s;
+    t[2] = cfx - (c * crx - s * cry);
+    t[3] = s;
+    t[4] = c;
+    t[5] = cfy - (s * crx + c * cry);
+}
+
+// Median luma over a sparse grid, from a histogram
+float backgroundLevel(const YuvPlanes& planes) {
+    int histogram[256] = {0};
+    int n = 0;
+    for (int y = 0; y < planes.height; y += 8) {
+        const uint8_t* row = planes.y + y * planes.yRowStride;
+        for (int x = 0; x < planes.width; x += 8) {
+            histogram[row[x]]++;
+            n++;
+        }
+    }
+    int seen = 0;
+    for (int v = 0; v < 256; v++) {
+        seen += histogram[v];
+        if (seen * 2 >= n) return (float) v;
+    }
+    return 0.f;
+}
+
+} // namespace
+
+FrameStacker::FrameStacker(float clipSigma, int minFramesToClip, int threads)
+    : clipSigma_(clipSigma), minFramesToClip_(std::max(2, minFramesToClip)), pool_(threads) {
+    reset();
+}
+
+void FrameStacker::reset() {
+    reference_.clear();
+    std::fill(count_.begin(), count_.end(), 0);
+    std::fill(mean_.begin(), mean_.end(), 0.f);
+    std::fill(m2_.begin(), m2_.end(), 0.f);
+    const float identity[6] = {1.f, 0.f, 0.f, 0.f, 1.f, 0.f};
+    memcpy(transform_, identity, sizeof(transform_));
+    referenceBackground_ = 0.f;
+    memset(&stats_, 0, sizeof(stats_));
+}
+
+FrameStacker::Result FrameStacker::add(const YuvPlanes& planes) {
+    if (planes.width != width_ || planes.height != height_) {
+        width_ = planes.width;
+        height_ = planes.height;
+        const size_t pixels = (size_t) width_ * height_;
+        count_.assign(pixels, 0);
+        mean_.assign(pixels, 0.f);
+        m2_.assign(pixels, 0.f);
+        clipped_.assign((height_ + kTileRows - 1) / kTileRows, 0);
+        reset();
+    }
+
+    const int n = detector_.detect(planes, 0, stars_, StarDetector::kMaxStars);
+    stats_.stars = n;
+    if (n < kMinStars) {
+        stats_.rejectedFrames++;
+        return kTooFewStars;
+    }
+
+    if (reference_.empty()) {
+        reference_.assign(stars_, stars_ + std::min(n, kReferenceStars));
+        referenceBackground_ = backgroundLevel(planes);
+        accumulate(planes, transform_, 0.f);
+        stats_.frames = 1;
+        stats_.matches = (int) reference_.size();
+        return kReference;
+    }
+
+    // Start from where the previous frame was
+    float t[6];
+    memcpy(t, transform_, sizeof(t));
+    int matches = 0;
+    float residual = 0.f;
+    if (!align(stars_, n, t, &matches, &residual)) {
+        stats_.rejectedFrames++;
+        stats_.matches = matches;
+        return kNotAligned;
+    }
+    memcpy(transform_, t, sizeof(t));
+    stats_.matches = matches;
+    stats_.residualPx = residual;
+    stats_.rotationDeg = atan2f(t[3], t[0]) * 180.f / (float) M_PI;
+    stats_.dx = t[2];
+    stats_.dy = t[5];
+    // Sky brightness drifts (exposure, twilight, light pollution); stack
+    // every frame at the reference's background level
+    accumulate(planes, t, referenceBackground_ - backgroundLevel(planes));
+    stats_.frames++;
+    return kStacked;
+}
+
+bool FrameStacker::align(const Star* stars, int n, float* t, int* matches, float* residual) const {
+    const int nr = (int) reference_.size();
+    float px[kReferenceStars];
+    float py[kReferenceStars];
+    for (int i = 0; i < nr; i++) apply(t, reference_[i].x, reference_[i].y, &px[i], &py[i]);
+
+    // The prediction can be off by a few tens of pixels (a nudge, a gust).
+    // Vote over brightest-star pairs for the offset most of them agree on.
+    const int vr = std::min(nr, kVoteStars);
+    const int vn = std::min(n, kVoteStars);
+    float offsetX = 0.f;
+    float offsetY = 0.f;
+    int bestVotes = 0;
+    for (int a = 0; a < vr; a++) {
+        for (int b = 0; b < vn; b++) {
+            const float dx = stars[b].x - px[a];
+            const float dy = stars[b].y - py[a];
+            int votes = 0;
+            for (int c = 0; c < vr; c++) {
+                const float ex = px[c] + dx;
+                const float ey = py[c] + dy;
+                for (int d = 0; d < vn; d++) {
+                    if (fabsf(stars[d].x - ex) < kVoteRadius && fabsf(stars[d].y - ey) < kVoteRadius) {
+                        votes++;
+                        break;
+                    }
+                }
+            }
+            if (votes > bestVotes) {
+                bestVotes = votes;
+                offsetX = dx;
+                offsetY = dy;
+            }
+        }
+    }
+    *matches = bestVotes;
+    if (bestVotes < kMinMatches) return false;
+    t[2] += offsetX;
+    t[5] += offsetY;
+
+    // Nearest-neighbour matches under the current estimate, refit, tighten
+    float rx[kReferenceStars], ry[kReferenceStars], fx[kReferenceStars], fy[kReferenceStars];
+    const float radii[] = {4.f, 2.f};
+    int m = 0;
+    for (int pass = 0; pass < 2; pass++) {
+        m = 0;
+        for (int i = 0; i < nr; i++) {
+            float ex, ey;
+            apply(t, reference_[i].x, reference_[i].y, &ex, &ey);
+            int best = -1;
+            float bestD = sq(radii[pass]);
+            for (int j = 0; j < n; j++) {
+                const float d = sq(stars[j].x - ex) + sq(stars[j].y - ey);
+                if (d < bestD) {
+                    bestD = d;
+                    best = j;
+                }
+            }
+            if (best < 0) continue;
+            rx[m] = reference_[i].x;
+            ry[m] = reference_[i].y;
+            fx[m] = stars[best].x;
+            fy[m] = stars[best].y;
+            m++;
+        }
+        if (m < kMinMatches) {
+            *matches = m;
+            return false;
+        }
+        fitRigid(rx, ry, fx, fy, m, t);
+    }
+
+    float sum = 0.f;
+    for (int i = 0; i < m; i++) {
+        float ex, ey;
+        apply(t, rx[i], ry[i], &ex, &ey);
+        sum += sq(fx[i] - ex) + sq(fy[i] - ey);
+    }
+    *matches = m;
+    *residual = sqrtf(sum / m);
+    return *residual <= kMaxResidualPx;
+}
+
+void FrameStacker::accumulate(const YuvPlanes& planes, const float* t, float offset) {
+    const int tiles = (int) clipped_.size();
+    pool_.run(tiles, [&](int tile) {
+        const int y0 = tile * kTileRows;
+        const int y1 = std::min(y0 + kTileRows, height_);
+        const float maxX = (float) (width_ - 1);
+        const float maxY = (float) (height_ - 1);
+        int clipped = 0;
+        for (int y = y0; y < y1; y++) {
+            // Walk the row incrementally in source coordinates
+            float sx = t[1] * y + t[2];
+            float sy = t[4] * y + t[5];
+            const size_t base = (size_t) y * width_;
+            for (int x = 0; x < width_; x++, sx += t[0], sy += t[3]) {
+                if (sx < 0.f || sy < 0.f || sx >= maxX || sy >= maxY) continue;
+                const int ix = (int) sx;
+                const int iy = (int) sy;
+                const float ax = sx - ix;
+                const float ay = sy - iy;
+                const uint8_t* p = planes.y + iy * planes.yRowStride + ix;
+                const float top = p[0] + (p[1] - p[0]) * ax;
+                const float bottom = p[planes.yRowStride] + (p[planes.yRowStride + 1] - p[planes.yRowStride]) * ax;
+                const float v = top + (bottom - top) * ay + offset;
+
+                // Welford's running mean and variance, with sigma clipping
+                const size_t i = base + x;
+                const int n = count_[i];
+                const float mean = mean_[i];
+                if (n >= minFramesToClip_) {
+                    const float sigma = std::max(sqrtf(m2_[i] / (n - 1)), kMinSigma);
+                    if (fabsf(v - mean) > clipSigma_ * sigma) {
+                        clipped++;
+                        continue;
+                    }
+                }
+                // Past 65535 samples the mean turns into a slow moving average
+                const int k = n < 65535 ? n + 1 : n;
+                const float delta = v - mean;
+                const float updated = mean + delta / k;
+                mean_[i] = updated;
+                m2_[i] += delta * (v - updated);
+                count_[i] = (uint16_t) k;
+            }
+        }
+        clipped_[tile] = clipped;
+    });
+    int clipped = 0;
+    for (size_t i = 0; i < clipped_.size(); i++) clipped += clipped_[i];
+    stats_.clippedFraction = width_ * height_ > 0 ? (float) clipped / ((float) width_ * height_) : 0.f;
+}
+
+void FrameStacker::render(uint8_t* rgba, int width, int height, int stride) const {
+    if (width_ == 0 || stats_.frames == 0) {
+        for (int y = 0; y < height; y++) memset(rgba + (size_t) y * stride, 0, (size_t) width * 4);
+        return;
+    }
+    // Levels from a sparse histogram of the stacked pixels, quarter-DN bins
+    const int kBins = 1024;
+    int histogram[kBins] = {0};
+    int n = 0;
+    for (int y = 0; y < height_; y += 4) {
+        for (int x = 0; x < width_; x += 4) {
+            const size_t i = (size_t) y * width_ + x;
+            if (count_[i] == 0) continue;
+            histogram[std::min(kBins - 1, std::max(0, (int) (mean_[i] * 4.f)))]++;
+            n++;
+        }
+    }
+    float black = 0.f;
+    float white = 255.f;
+    int seen = 0;
+    bool haveBlack = false;
+    for (int b = 0; b < kBins; b++) {
+        seen += histogram[b];
+        if (!haveBlack && seen * 2 >= n) {
+            black = b * 0.25f;
+            haveBlack = true;
+        }
+        if (seen * 1000 >= n * 998) {
+            white = b * 0.25f;
+            break;
+        }
+    }
+    const float scale = 1.f / std::max(white - black, 1.f);
+
+    for (int y = 0; y < height; y++) {
+        const int sy = std::min(height_ - 1, (int) ((y + 0.5f) * height_ / height));
+        uint8_t* out = rgba + (size_t) y * stride;
+        for (int x = 0; x < width; x++) {
+            const int sx = std::min(width_ - 1, (int) ((x + 0.5f) * width_ / width));
+            const size_t i = (size_t) sy * width_ + sx;
+            uint8_t g = 0;
+            if (count_[i] != 0) {
+                // Square root stretch lifts faint detail above the background
+                const float v = std::min(1.f, std::max(0.f, (mean_[i] - black) * scale));
+                g = (uint8_t) (sqrtf(v) * 255.f + 0.5f);
+            }
+            out[x * 4] = g;
+            out[x * 4 + 1] = g;
+            out[x * 4 + 2] = g;
+            out[x * 4 + 3] = 255;
+        }
+    }
+}
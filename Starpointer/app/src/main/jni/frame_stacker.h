@@ -0,0 +1,82 @@
+#ifndef STARPOINTER_FRAME_STACKER_H
+#define STARPOINTER_FRAME_STACKER_H
+
+#include <stdint.h>
+#include <vector>
+
+#include "star_detector.h"
+#include "tile_pool.h"
+#include "yuv_letterbox.h"
+
+// Deep-sky stacking of the luminance plane. The first frame with enough stars
+// becomes the reference; every later frame is registered to it by star
+// centroids (rotation + translation, predicted from the previous frame so
+// slow drift and field rotation are followed incrementally) and resampled
+// into per-pixel running statistics. A sample further than clipSigma standard
+// deviations from its pixel's running mean is rejected once the pixel has
+// minFramesToClip samples, which drops satellites, planes and hot-pixel
+// flicker without keeping any frames. Memory is fixed by the frame size
+// (10 bytes per pixel) however many frames go in. Work is split into row
+// tiles over a TilePool. Works in sensor orientation; not thread-safe.
+class FrameStacker {
+public:
+    enum Result {
+        kReference = 0, // became the reference frame
+        kStacked = 1,
+        kTooFewStars = 2,
+        kNotAligned = 3
+    };
+
+    struct Stats {
+        int frames;          // stacked, reference included
+        int rejectedFrames;  // not aligned or too few stars
+        int stars;           // in the last frame
+        int matches;         // stars that registered the last frame
+        float residualPx;    // rms registration error of the last frame
+        float rotationDeg;   // of the last frame against the reference
+        float dx;
+        float dy;
+        float clippedFraction; // of the last frame's pixels
+    };
+
+    FrameStacker(float clipSigma, int minFramesToClip, int threads);
+
+    Result add(const YuvPlanes& planes);
+    void reset();
+
+    int width() const { return width_; }
+    int height() const { return height_; }
+    const Stats& stats() const { return stats_; }
+
+    // Stretched greyscale of the current mean into RGBA_8888 pixels of any
+    // size (nearest sampling): background to black, the brightest 0.2% to white
+    void render(uint8_t* rgba, int width, int height, int stride) const;
+
+    // The current mean, 0..255 per pixel in sensor orientation
+    const std::vector<float>& mean() const { return mean_; }
+
+private:
+    bool align(const Star* stars, int n, float* transform, int* matches, float* residual) const;
+    // offset is added to every sample (background matching)
+    void accumulate(const YuvPlanes& planes, const float* transform, float offset);
+
+    float clipSigma_;
+    int minFramesToClip_;
+    TilePool pool_;
+    StarDetector detector_;
+    Star stars_[StarDetector::kMaxStars];
+
+    int width_ = 0;
+    int height_ = 0;
+    std::vector<Star> reference_;
+    // Reference pixel -> current frame pixel: x' = t[0] x + t[1] y + t[2], y' = t[3] x + t[4] y + t[5]
+    float transform_[6];
+    float referenceBackground_ = 0.f;
+    std::vector<uint16_t> count_;
+    std::vector<float> mean_;
+    std::vector<float> m2_;
+    std::vector<int> clipped_; // per tile, last frame
+    Stats stats_;
+};
+
+#endif // STARPOINTER_FRAME_STACKER_H
@@ -0,0 +1,68 @@
+#include <jni.h>
+#include <android/bitmap.h>
+#include <android/log.h>
+
+#include "frame_stacker.h"
+#include "jni_common.h"
+
+#define TAG "FrameStackerJni"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_FrameStacker_nativeCreate(JNIEnv* /* env */, jclass /* clazz */,
+                                                       jfloat clipSigma, jint minFramesToClip, jint threads) {
+    return reinterpret_cast<jlong>(new FrameStacker(clipSigma, minFramesToClip, threads));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_FrameStacker_nativeDestroy(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    delete reinterpret_cast<FrameStacker*>(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_FrameStacker_nativeReset(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    reinterpret_cast<FrameStacker*>(handle)->reset();
+}
+
+// Returns a FrameStacker::Result, or -1 if the planes can't be read
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_FrameStacker_nativeAdd(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                    jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                                                    jint width, jint height,
+                                                    jint yRowStride, jint uvRowStride, jint uvPixelStride) {
+    YuvPlanes planes;
+    if (!planesFromBuffers(env, yBuffer, uBuffer, vBuffer, width, height,
+                           yRowStride, uvRowStride, uvPixelStride, &planes)) {
+        return -1;
+    }
+    return reinterpret_cast<FrameStacker*>(handle)->add(planes);
+}
+
+// stats receives frames, rejected frames, stars, matches, residual px,
+// rotation degrees, dx, dy and clipped fraction
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_FrameStacker_nativeStats(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                      jfloatArray stats) {
+    const FrameStacker::Stats& s = reinterpret_cast<FrameStacker*>(handle)->stats();
+    const jfloat out[9] = {(jfloat) s.frames, (jfloat) s.rejectedFrames, (jfloat) s.stars, (jfloat) s.matches,
+                           s.residualPx, s.rotationDeg, s.dx, s.dy, s.clippedFraction};
+    env->SetFloatArrayRegion(stats, 0, 9, out);
+}
+
+// Into an ARGB_8888 Bitmap of any size, in sensor orientation
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_example_starpointer_FrameStacker_nativeRender(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                       jobject bitmap) {
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS ||
+        info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGE("Stack preview needs an ARGB_8888 bitmap");
+        return JNI_FALSE;
+    }
+    void* pixels = 0;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) return JNI_FALSE;
+    reinterpret_cast<FrameStacker*>(handle)->render((uint8_t*) pixels, (int) info.width, (int) info.height,
+                                                    (int) info.stride);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return JNI_TRUE;
+}
@@ -0,0 +1,180 @@
+// Builds assets/catalog.bin, the object catalog StarCatalog.kt maps in place,
+// from CSV lists (name,ra,dec,mag in J2000 degrees).
+//
+//   g++ -O2 -std=c++11 build_catalog.cpp -o build_catalog
+//   ./build_catalog --stars ../../../../../catalog/bright_stars.csv
+//       --deep-sky ../../../../../catalog/deep_sky.csv ../../assets/catalog.bin
+//
+// Layout (little-endian, every section 4-byte aligned):
+//   header        char magic[4] "SPCT", u32 version, u32 objectCount,
+//                 u32 bandCount, u32 cellCount, u32 nameBytes, u32 0, u32 0
+//   u32           cellsInBand[bandCount]
+//   u32           firstCellOfBand[bandCount]
+//   u32           cellStart[cellCount + 1]         into entries[]
+//   entry         entries[objectCount]             grouped by cell, brightest first
+//                 f32 x, y, z (unit vector), f32 mag, u32 nameOffset, u32 type
+//   u32           byMagnitude[objectCount]         entry indices, brightest first
+//   char          names[nameBytes]                 NUL-terminated UTF-8
+//
+// The sky grid is a set of 5 degree declination bands, each cut into RA cells
+// of about 5 degrees of arc (fewer towards the poles), so cells are close to
+// equal area like HEALPix but trivial to address.
+
+#include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+
+namespace {
+
+const uint32_t kVersion = 1;
+const double kBandDeg = 5.0;
+const uint32_t kTypeStar = 0;
+const uint32_t kTypeDeepSky = 1;
+
+struct Entry {
+    std::string name;
+    double ra;
+    double dec;
+    float mag;
+    uint32_t type;
+    uint32_t cell;
+};
+
+int bandCount() {
+    return (int) (180.0 / kBandDeg + 0.5);
+}
+
+int cellsInBand(int band) {
+    double centre = -90.0 + (band + 0.5) * kBandDeg;
+    return std::max(1, (int) (360.0 / kBandDeg * cos(centre * M_PI / 180.0) + 0.5));
+}
+
+bool readCsv(const char* path, uint32_t type, std::vector<Entry>& entries) {
+    FILE* f = fopen(path, "r");
+    if (!f) return false;
+    char line[512];
+    while (fgets(line, sizeof(line), f)) {
+        if (line[0] == '#' || strncmp(line, "name,", 5) == 0) continue;
+        char* c3 = strrchr(line, ',');
+        if (!c3) continue;
+        *c3 = 0;
+        char* c2 = strrchr(line, ',');
+        if (!c2) continue;
+        *c2 = 0;
+        char* c1 = strrchr(line, ',');
+        if (!c1) continue;
+        *c1 = 0;
+        Entry e;
+        e.name = line;
+        e.ra = atof(c1 + 1);
+        e.dec = atof(c2 + 1);
+        e.mag = (float) atof(c3 + 1);
+        e.type = type;
+        entries.push_back(e);
+    }
+    fclose(f);
+    return true;
+}
+
+void writeU32(FILE* f, uint32_t v) {
+    fwrite(&v, sizeof(v), 1, f);
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    std::vector<Entry> entries;
+    const char* outPath = 0;
+    for (int i = 1; i < argc; i++) {
+        if ((!strcmp(argv[i], "--stars") || !strcmp(argv[i], "--deep-sky")) && i + 1 < argc) {
+            uint32_t type = !strcmp(argv[i], "--stars") ? kTypeStar : kTypeDeepSky;
+            if (!readCsv(argv[++i], type, entries)) {
+                fprintf(stderr, "cannot read %s\n", argv[i]);
+                return 1;
+            }
+        } else {
+            outPath = argv[i];
+        }
+    }
+    if (!outPath || entries.empty()) {
+        fprintf(stderr, "usage: %s --stars a.csv [--deep-sky b.csv ...] catalog.bin\n", argv[0]);
+        return 2;
+    }
+
+    const int bands = bandCount();
+    std::vector<uint32_t> bandCells(bands);
+    std::vector<uint32_t> firstCell(bands);
+    uint32_t cellCount = 0;
+    for (int b = 0; b < bands; b++) {
+        bandCells[b] = (uint32_t) cellsInBand(b);
+        firstCell[b] = cellCount;
+        cellCount += bandCells[b];
+    }
+
+    for (size_t i = 0; i < entries.size(); i++) {
+        Entry& e = entries[i];
+        int band = std::min(bands - 1, std::max(0, (int) ((e.dec + 90.0) / kBandDeg)));
+        double ra = fmod(fmod(e.ra, 360.0) + 360.0, 360.0);
+        int cell = std::min((int) bandCells[band] - 1, (int) (ra / 360.0 * bandCells[band]));
+        e.cell = firstCell[band] + cell;
+    }
+    std::stable_sort(entries.begin(), entries.end(), [](const Entry& a, const Entry& b) {
+        return a.cell != b.cell ? a.cell < b.cell : a.mag < b.mag;
+    });
+
+    std::vector<uint32_t> cellStart(cellCount + 1, 0);
+    for (size_t i = 0; i < entries.size(); i++) cellStart[entries[i].cell + 1]++;
+    for (uint32_t c = 0; c < cellCount; c++) cellStart[c + 1] += cellStart[c];
+
+    std::vector<uint32_t> byMagnitude(entries.size());
+    for (size_t i = 0; i < entries.size(); i++) byMagnitude[i] = (uint32_t) i;
+    std::stable_sort(byMagnitude.begin(), byMagnitude.end(),
+                     [&entries](uint32_t a, uint32_t b) { return entries[a].mag < entries[b].mag; });
+
+    std::string names;
+    std::vector<uint32_t> nameOffset(entries.size());
+    for (size_t i = 0; i < entries.size(); i++) {
+        nameOffset[i] = (uint32_t) names.size();
+        names += entries[i].name;
+        names += '\0';
+    }
+    while (names.size() % 4) names += '\0';
+
+    FILE* out = fopen(outPath, "wb");
+    if (!out) {
+        fprintf(stderr, "cannot write %s\n", outPath);
+        return 1;
+    }
+    fwrite("SPCT", 1, 4, out);
+    writeU32(out, kVersion);
+    writeU32(out, (uint32_t) entries.size());
+    writeU32(out, (uint32_t) bands);
+    writeU32(out, cellCount);
+    writeU32(out, (uint32_t) names.size());
+    writeU32(out, 0);
+    writeU32(out, 0);
+    fwrite(&bandCells[0], sizeof(uint32_t), bands, out);
+    fwrite(&firstCell[0], sizeof(uint32_t), bands, out);
+    fwrite(&cellStart[0], sizeof(uint32_t), cellStart.size(), out);
+    for (size_t i = 0; i < entries.size(); i++) {
+        const Entry& e = entries[i];
+        const double ra = e.ra * M_PI / 180.0;
+        const double dec = e.dec * M_PI / 180.0;
+        float v[4] = {(float) (cos(dec) * cos(ra)), (float) (cos(dec) * sin(ra)), (float) sin(dec), e.mag};
+        fwrite(v, sizeof(float), 4, out);
+        writeU32(out, nameOffset[i]);
+        writeU32(out, e.type);
+    }
+    fwrite(&byMagnitude[0], sizeof(uint32_t), byMagnitude.size(), out);
+    fwrite(names.data(), 1, names.size(), out);
+    long size = ftell(out);
+    fclose(out);
+
+    printf("%zu objects, %u cells, %ld bytes\n", entries.size(), cellCount, size);
+    return 0;
+}
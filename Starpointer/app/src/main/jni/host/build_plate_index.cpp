@@ -0,0 +1,180 @@
+// Builds the plate solver index asset from a star catalog CSV
+// (name,ra,dec,mag in J2000 degrees; '#' lines and the header are skipped).
+//
+//   g++ -O2 -std=c++11 -I.. build_plate_index.cpp ../plate_index.cpp -o build_plate_index
+//   ./build_plate_index ../../../../../catalog/bright_stars.csv ../../assets/plate_index.bin
+//
+// Options: --max-mag M (6.5), --min-side DEG (0.5), --max-side DEG (20),
+//          --neighbors K (10), --bins N (64)
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <algorithm>
+#include <set>
+#include <string>
+#include <vector>
+
+#include "plate_index.h"
+
+namespace {
+
+struct CatalogStar {
+    double ra;
+    double dec;
+    float mag;
+    float v[3];
+};
+
+double angleBetween(const CatalogStar& a, const CatalogStar& b) {
+    double d = (double) a.v[0] * b.v[0] + (double) a.v[1] * b.v[1] + (double) a.v[2] * b.v[2];
+    return acos(std::max(-1.0, std::min(1.0, d)));
+}
+
+bool readCatalog(const char* path, float maxMag, std::vector<CatalogStar>& stars) {
+    FILE* f = fopen(path, "r");
+    if (!f) return false;
+    char line[512];
+    while (fgets(line, sizeof(line), f)) {
+        if (line[0] == '#' || strncmp(line, "name,", 5) == 0) continue;
+        // Name may contain spaces; the numbers are the last three fields
+        char* c3 = strrchr(line, ',');
+        if (!c3) continue;
+        *c3 = 0;
+        char* c2 = strrchr(line, ',');
+        if (!c2) continue;
+        *c2 = 0;
+        char* c1 = strrchr(line, ',');
+        if (!c1) continue;
+        CatalogStar s;
+        s.ra = atof(c1 + 1) * M_PI / 180.0;
+        s.dec = atof(c2 + 1) * M_PI / 180.0;
+        s.mag = (float) atof(c3 + 1);
+        if (s.mag > maxMag) continue;
+        s.v[0] = (float) (cos(s.dec) * cos(s.ra));
+        s.v[1] = (float) (cos(s.dec) * sin(s.ra));
+        s.v[2] = (float) sin(s.dec);
+        stars.push_back(s);
+    }
+    fclose(f);
+    return true;
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    float maxMag = 6.5f;
+    double minSide = 0.5;
+    double maxSide = 20.0;
+    int neighbors = 10;
+    int bins = 64;
+    std::vector<const char*> paths;
+    for (int i = 1; i < argc; i++) {
+        if (!strcmp(argv[i], "--max-mag") && i + 1 < argc) maxMag = (float) atof(argv[++i]);
+        else if (!strcmp(argv[i], "--min-side") && i + 1 < argc) minSide = atof(argv[++i]);
+        else if (!strcmp(argv[i], "--max-side") && i + 1 < argc) maxSide = atof(argv[++i]);
+        else if (!strcmp(argv[i], "--neighbors") && i + 1 < argc) neighbors = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--bins") && i + 1 < argc) bins = atoi(argv[++i]);
+        else paths.push_back(argv[i]);
+    }
+    if (paths.size() != 2) {
+        fprintf(stderr, "usage: %s [options] catalog.csv plate_index.bin\n", argv[0]);
+        return 2;
+    }
+
+    std::vector<CatalogStar> stars;
+    if (!readCatalog(paths[0], maxMag, stars)) {
+        fprintf(stderr, "cannot read %s\n", paths[0]);
+        return 1;
+    }
+    if (stars.size() > 65535) {
+        fprintf(stderr, "too many stars (%zu), lower --max-mag\n", stars.size());
+        return 1;
+    }
+    std::stable_sort(stars.begin(), stars.end(),
+                     [](const CatalogStar& a, const CatalogStar& b) { return a.mag < b.mag; });
+
+    const double minRad = minSide * M_PI / 180.0;
+    const double maxRad = maxSide * M_PI / 180.0;
+
+    // Each star with pairs of its brightest neighbours in range. Limiting the
+    // neighbours keeps the index linear in the catalog size.
+    std::vector<PlateTriangle> triangles;
+    std::set<uint64_t> seen;
+    std::vector<int> near;
+    for (size_t i = 0; i < stars.size(); i++) {
+        near.clear();
+        for (size_t j = 0; j < stars.size() && (int) near.size() < neighbors; j++) {
+            if (j == i) continue;
+            double d = angleBetween(stars[i], stars[j]);
+            if (d >= minRad && d <= maxRad) near.push_back((int) j);
+        }
+        for (size_t p = 0; p < near.size(); p++) {
+            for (size_t q = p + 1; q < near.size(); q++) {
+                int v[3] = {(int) i, near[p], near[q]};
+                double dAB = angleBetween(stars[v[0]], stars[v[1]]);
+                double dBC = angleBetween(stars[v[1]], stars[v[2]]);
+                double dCA = angleBetween(stars[v[2]], stars[v[0]]);
+                if (dBC < minRad || dBC > maxRad) continue;
+
+                int sorted[3] = {v[0], v[1], v[2]};
+                std::sort(sorted, sorted + 3);
+                uint64_t key = ((uint64_t) sorted[0] << 32) | ((uint64_t) sorted[1] << 16) | (uint64_t) sorted[2];
+                if (!seen.insert(key).second) continue;
+
+                PlateTriangle t;
+                int order[3];
+                if (!plateTriangleShape((float) dAB, (float) dBC, (float) dCA, &t.r1, &t.r2, order)) continue;
+                t.a = (uint16_t) v[order[0]];
+                t.b = (uint16_t) v[order[1]];
+                t.c = (uint16_t) v[order[2]];
+                t.pad = 0;
+                triangles.push_back(t);
+            }
+        }
+    }
+
+    // Group by bin
+    const int binCount = bins * bins;
+    std::vector<uint32_t> binStart(binCount + 1, 0);
+    for (size_t t = 0; t < triangles.size(); t++) {
+        binStart[plateBin(triangles[t].r1, bins) * bins + plateBin(triangles[t].r2, bins) + 1]++;
+    }
+    for (int b = 0; b < binCount; b++) binStart[b + 1] += binStart[b];
+    std::vector<PlateTriangle> grouped(triangles.size());
+    std::vector<uint32_t> fill(binStart.begin(), binStart.end() - 1);
+    for (size_t t = 0; t < triangles.size(); t++) {
+        int b = plateBin(triangles[t].r1, bins) * bins + plateBin(triangles[t].r2, bins);
+        grouped[fill[b]++] = triangles[t];
+    }
+
+    PlateIndexHeader header;
+    memcpy(header.magic, "SPIX", 4);
+    header.version = kPlateIndexVersion;
+    header.starCount = (uint32_t) stars.size();
+    header.triangleCount = (uint32_t) grouped.size();
+    header.binsPerAxis = (uint32_t) bins;
+    header.minSideRad = (float) minRad;
+    header.maxSideRad = (float) maxRad;
+    header.reserved = 0;
+
+    FILE* out = fopen(paths[1], "wb");
+    if (!out) {
+        fprintf(stderr, "cannot write %s\n", paths[1]);
+        return 1;
+    }
+    fwrite(&header, sizeof(header), 1, out);
+    for (size_t i = 0; i < stars.size(); i++) {
+        PlateStar s = {stars[i].v[0], stars[i].v[1], stars[i].v[2], stars[i].mag};
+        fwrite(&s, sizeof(s), 1, out);
+    }
+    fwrite(&binStart[0], sizeof(uint32_t), binStart.size(), out);
+    if (!grouped.empty()) fwrite(&grouped[0], sizeof(PlateTriangle), grouped.size(), out);
+    fclose(out);
+
+    printf("%zu stars, %zu triangles, %ld bytes\n", stars.size(), grouped.size(),
+           (long) (sizeof(header) + stars.size() * sizeof(PlateStar) + binStart.size() * sizeof(uint32_t) +
+                   grouped.size() * sizeof(PlateTriangle)));
+    return 0;
+}
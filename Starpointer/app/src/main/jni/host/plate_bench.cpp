@@ -0,0 +1,140 @@
+// Host benchmark for PlateSolver: renders star lists for random pointings
+// from the index itself (centroid noise, dropped stars, false detections, a
+// wrong focal guess) and reports solve rate, pointing error and time.
+//
+//   g++ -O2 -std=c++11 -I.. plate_bench.cpp ../plate_index.cpp ../plate_solver.cpp -o plate_bench
+//   ./plate_bench ../../assets/plate_index.bin [trials]
+
+#include <fcntl.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <algorithm>
+#include <chrono>
+#include <random>
+#include <vector>
+
+#include "plate_solver.h"
+
+namespace {
+
+const int kWidth = 1920;
+const int kHeight = 1080;
+const double kFov = 50.0; // horizontal, degrees
+
+struct Detection {
+    float x, y, mag;
+};
+
+} // namespace
+
+int main(int argc, char** argv) {
+    if (argc < 2) {
+        fprintf(stderr, "usage: %s plate_index.bin [trials]\n", argv[0]);
+        return 2;
+    }
+    const int trials = argc > 2 ? atoi(argv[2]) : 500;
+
+    int fd = open(argv[1], O_RDONLY);
+    struct stat st;
+    if (fd < 0 || fstat(fd, &st) != 0) {
+        fprintf(stderr, "cannot open %s\n", argv[1]);
+        return 1;
+    }
+    void* data = mmap(0, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    PlateIndex index;
+    if (data == MAP_FAILED || !index.attach(data, st.st_size)) {
+        fprintf(stderr, "bad index %s\n", argv[1]);
+        return 1;
+    }
+    PlateSolver solver(index);
+
+    const double focal = kWidth * 0.5 / tan(kFov * 0.5 * M_PI / 180.0);
+    std::mt19937 rng(11);
+    std::uniform_int_distribution<int> pickStar(0, index.starCount() - 1);
+    std::uniform_real_distribution<double> unit(0.0, 1.0);
+    std::normal_distribution<float> jitter(0.f, 0.7f);
+
+    int attempted = 0;
+    int solved = 0;
+    int correct = 0;
+    std::vector<double> ms;
+    std::vector<Detection> detections;
+    std::vector<float> xs;
+    std::vector<float> ys;
+    for (int trial = 0; trial < trials; trial++) {
+        // Point near a random catalog star with a random roll
+        const PlateStar& s = index.stars()[pickStar(rng)];
+        double ra = atan2(s.y, s.x) + (unit(rng) - 0.5) * 0.2;
+        double dec = asin(s.z) + (unit(rng) - 0.5) * 0.2;
+        double roll = unit(rng) * 2.0 * M_PI;
+        // Camera axes in the sky frame: z forward, x right, y down
+        double fz[3] = {cos(dec) * cos(ra), cos(dec) * sin(ra), sin(dec)};
+        double north[3] = {-sin(dec) * cos(ra), -sin(dec) * sin(ra), cos(dec)};
+        double east[3] = {-sin(ra), cos(ra), 0.0};
+        double up[3], fy[3], fx[3];
+        for (int k = 0; k < 3; k++) up[k] = cos(roll) * north[k] + sin(roll) * east[k];
+        for (int k = 0; k < 3; k++) fy[k] = -up[k];
+        fx[0] = fy[1] * fz[2] - fy[2] * fz[1];
+        fx[1] = fy[2] * fz[0] - fy[0] * fz[2];
+        fx[2] = fy[0] * fz[1] - fy[1] * fz[0];
+
+        detections.clear();
+        for (int i = 0; i < index.starCount(); i++) {
+            const PlateStar& c = index.stars()[i];
+            double z = c.x * fz[0] + c.y * fz[1] + c.z * fz[2];
+            if (z <= 0.1) continue;
+            double x = kWidth * 0.5 + focal * (c.x * fx[0] + c.y * fx[1] + c.z * fx[2]) / z;
+            double y = kHeight * 0.5 + focal * (c.x * fy[0] + c.y * fy[1] + c.z * fy[2]) / z;
+            if (x < 0 || y < 0 || x >= kWidth || y >= kHeight) continue;
+            if (unit(rng) < 0.1) continue; // lost in glare or clouds
+            Detection d = {(float) x + jitter(rng), (float) y + jitter(rng), c.mag};
+            detections.push_back(d);
+        }
+        for (int i = 0; i < 3; i++) { // satellites, hot pixels
+            Detection d = {(float) (unit(rng) * kWidth), (float) (unit(rng) * kHeight), (float) (unit(rng) * 5.0)};
+            detections.push_back(d);
+        }
+        std::sort(detections.begin(), detections.end(),
+                  [](const Detection& a, const Detection& b) { return a.mag < b.mag; });
+        if (detections.size() < 8) continue;
+        attempted++;
+
+        xs.clear();
+        ys.clear();
+        for (size_t i = 0; i < detections.size(); i++) {
+            xs.push_back(detections[i].x);
+            ys.push_back(detections[i].y);
+        }
+        const float focalGuess = (float) (focal * (0.8 + 0.4 * unit(rng)));
+        PlateSolution solution;
+        auto t0 = std::chrono::steady_clock::now();
+        bool ok = solver.solve(&xs[0], &ys[0], (int) xs.size(), kWidth, kHeight, focalGuess, &solution);
+        auto t1 = std::chrono::steady_clock::now();
+        ms.push_back(std::chrono::duration<double, std::milli>(t1 - t0).count());
+        if (!ok) continue;
+        solved++;
+
+        double sr = solution.raDeg * M_PI / 180.0;
+        double sd = solution.decDeg * M_PI / 180.0;
+        double err = acos(std::min(1.0, sin(sd) * sin(dec) + cos(sd) * cos(dec) * cos(sr - ra))) * 180.0 / M_PI;
+        if (err < 0.5) correct++;
+    }
+
+    std::sort(ms.begin(), ms.end());
+    double sum = 0.0;
+    for (size_t i = 0; i < ms.size(); i++) sum += ms[i];
+    printf("%d stars, %d triangles; %d/%d fields with >= 8 stars\n",
+           index.starCount(), (int) index.header().triangleCount, attempted, trials);
+    printf("solved %d, correct (< 0.5 deg) %d\n", solved, correct);
+    if (!ms.empty()) {
+        printf("solve time: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms\n",
+               sum / ms.size(), ms[ms.size() / 2], ms[ms.size() * 95 / 100], ms.back());
+    }
+    munmap(data, st.st_size);
+    close(fd);
+    return 0;
+}
@@ -0,0 +1,504 @@
+// Replays recorded frames through the NanoDet path the app runs on the
+// analysis pipeline (NanoDet::preprocessYuv, then detectMat: inference,
+// decoding, NMS, letterbox undo), reports throughput and per-stage latency
+// percentiles, and writes or diffs a golden file of detections.
+//
+//   g++ -O2 -std=c++11 -fopenmp -I.. -I$NCNN/include -I$NCNN/include/ncnn replay.cpp ../nanodet.cpp ../yuv_letterbox.cpp $NCNN/lib/libncnn.a -o replay
+//   ./replay [options] nanodet.param nanodet.bin FRAMES
+//
+// $NCNN is a Linux build of the same ncnn release as the Android one.
+// FRAMES is either a directory of frames replayed in name order, .pgm (P5,
+// taken as luma with neutral chroma), .ppm (P6 RGB) or .nv21 (raw, needs
+// --size), or a single raw NV21 stream of --size frames, "-" for stdin.
+// PNGs and videos go through ffmpeg into such a stream:
+//
+//   ffmpeg -i night.mp4 -f rawvideo -pix_fmt nv21 - | ./replay --size 1920x1080 ... -
+//
+// Options:
+//   --size WxH          sensor size of raw frames
+//   --rotation R        ImageInfo rotation, 0/90/180/270 (0)
+//   --input-size N      model input size (416); 320 for the int8-320 export
+//   --class ID          class filter as in the app, -1 for all (-1)
+//   --threads N         ncnn threads, 0 for all cores (0)
+//   --fp16              fp16 arithmetic, as for the fp16 export
+//   --warmup N          untimed frames first (3)
+//   --write-golden F    save detections as the new reference
+//   --golden F          diff against a reference; exit status 1 on mismatch
+//   --iou T             IoU at which two boxes are the same detection (0.5)
+//   --score-tol T       allowed score drift of a matched detection (0.05)
+//   --compare-bitmap    also time the old LEGACY_BITMAP_PATH route on every
+//                       frame and report both, for the old vs new comparison
+//
+// The bitmap route is the app's ImageProxy.toBitmapViaJpeg() plus
+// nativeDetectBitmap without the JPEG encode and decode in the middle, which
+// the host ncnn has no codec for; its numbers are a lower bound on what the
+// old path costs on a device.
+
+#include <dirent.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <algorithm>
+#include <chrono>
+#include <map>
+#include <string>
+#include <vector>
+
+#include "nanodet.h"
+
+namespace {
+
+struct Frame {
+    std::string name;
+    int width = 0;
+    int height = 0;
+    std::vector<uint8_t> nv21; // Y plane, then interleaved V/U at half resolution
+};
+
+struct Options {
+    int width = 0;
+    int height = 0;
+    int rotation = 0;
+    int inputSize = NanoDet::kInputSize;
+    int classFilter = -1;
+    int threads = 0;
+    bool fp16 = false;
+    int warmup = 3;
+    const char* golden = 0;
+    const char* writeGolden = 0;
+    float iou = 0.5f;
+    float scoreTolerance = 0.05f;
+    bool compareBitmap = false;
+};
+
+typedef std::map<std::string, std::vector<Object> > Detections;
+
+bool hasSuffix(const std::string& s, const char* suffix) {
+    const size_t n = strlen(suffix);
+    return s.size() >= n && s.compare(s.size() - n, n, suffix) == 0;
+}
+
+// Skips whitespace and '#' comments between netpbm header fields
+bool readPnmInt(FILE* f, int* value) {
+    int c = fgetc(f);
+    while (c == '#' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+        if (c == '#') {
+            while (c != '\n' && c != EOF) c = fgetc(f);
+        }
+        c = fgetc(f);
+    }
+    if (c == EOF) return false;
+    ungetc(c, f);
+    return fscanf(f, "%d", value) == 1;
+}
+
+// Frames are cropped to even sizes, like every camera YUV_420_888 output
+bool readPnm(const char* path, Frame* frame) {
+    FILE* f = fopen(path, "rb");
+    if (!f) return false;
+    char magic[3] = {0};
+    int w, h, maxVal;
+    bool ok = fread(magic, 1, 2, f) == 2 && magic[0] == 'P' && (magic[1] == '5' || magic[1] == '6') &&
+              readPnmInt(f, &w) && readPnmInt(f, &h) && readPnmInt(f, &maxVal) && maxVal == 255 &&
+              w >= 2 && h >= 2;
+    if (ok) {
+        fgetc(f); // the single whitespace before the raster
+        const int channels = magic[1] == '6' ? 3 : 1;
+        std::vector<uint8_t> raster((size_t) w * h * channels);
+        ok = fread(&raster[0], 1, raster.size(), f) == raster.size();
+        if (ok) {
+            frame->width = w & ~1;
+            frame->height = h & ~1;
+            const int fw = frame->width;
+            const int fh = frame->height;
+            frame->nv21.assign((size_t) fw * fh * 3 / 2, 128);
+            uint8_t* y = &frame->nv21[0];
+            uint8_t* vu = y + (size_t) fw * fh;
+            for (int r = 0; r < fh; r++) {
+                for (int c = 0; c < fw; c++) {
+                    const uint8_t* p = &raster[((size_t) r * w + c) * channels];
+                    if (channels == 1) {
+                        y[r * fw + c] = p[0];
+                        continue;
+                    }
+                    // Inverse of the full-range BT.601 conversion in yuv_letterbox.cpp
+                    const float red = p[0], green = p[1], blue = p[2];
+                    y[r * fw + c] = (uint8_t) (0.299f * red + 0.587f * green + 0.114f * blue + 0.5f);
+                    if ((r & 1) == 0 && (c & 1) == 0) {
+                        const float u = -0.168736f * red - 0.331264f * green + 0.5f * blue + 128.f;
+                        const float v = 0.5f * red - 0.418688f * green - 0.081312f * blue + 128.f;
+                        uint8_t* dst = vu + (r / 2) * fw + c;
+                        dst[0] = (uint8_t) std::max(0.f, std::min(255.f, v + 0.5f));
+                        dst[1] = (uint8_t) std::max(0.f, std::min(255.f, u + 0.5f));
+                    }
+                }
+            }
+        }
+    }
+    fclose(f);
+    return ok;
+}
+
+bool readRaw(FILE* f, const Options& options, Frame* frame) {
+    frame->width = options.width;
+    frame->height = options.height;
+    frame->nv21.resize((size_t) options.width * options.height * 3 / 2);
+    return fread(&frame->nv21[0], 1, frame->nv21.size(), f) == frame->nv21.size();
+}
+
+// Frames one at a time, so a long stream never has to fit in memory
+class FrameSource {
+public:
+    explicit FrameSource(const Options& options) : options_(options) {}
+
+    ~FrameSource() {
+        if (stream_ != 0 && stream_ != stdin) fclose(stream_);
+    }
+
+    bool open(const char* path) {
+        if (!strcmp(path, "-")) {
+            stream_ = stdin;
+        } else if (DIR* dir = opendir(path)) {
+            while (dirent* entry = readdir(dir)) {
+                std::string name = entry->d_name;
+                if (hasSuffix(name, ".pgm") || hasSuffix(name, ".ppm") || hasSuffix(name, ".nv21")) {
+                    files_.push_back(name);
+                }
+            }
+            closedir(dir);
+            std::sort(files_.begin(), files_.end());
+            dir_ = path;
+            return !files_.empty();
+        } else {
+            stream_ = fopen(path, "rb");
+        }
+        return stream_ != 0 && options_.width > 0 && options_.height > 0;
+    }
+
+    bool next(Frame* frame) {
+        if (stream_ != 0) {
+            char name[32];
+            snprintf(name, sizeof(name), "frame%06d", index_++);
+            frame->name = name;
+            return readRaw(stream_, options_, frame);
+        }
+        while (index_ < (int) files_.size()) {
+            frame->name = files_[index_++];
+            const std::string path = dir_ + "/" + frame->name;
+            bool ok;
+            if (hasSuffix(frame->name, ".nv21")) {
+                FILE* f = fopen(path.c_str(), "rb");
+                ok = f != 0 && options_.width > 0 && readRaw(f, options_, frame);
+                if (f) fclose(f);
+            } else {
+                ok = readPnm(path.c_str(), frame);
+            }
+            if (ok) return true;
+            fprintf(stderr, "skipping unreadable %s\n", path.c_str());
+        }
+        return false;
+    }
+
+private:
+    const Options& options_;
+    FILE* stream_ = 0;
+    std::string dir_;
+    std::vector<std::string> files_;
+    int index_ = 0;
+};
+
+// Golden file: per frame a "frame NAME COUNT" line, then COUNT lines of
+// "label score x0 y0 x1 y1" in upright frame pixels
+bool writeGolden(const char* path, const std::vector<std::string>& order, const Detections& detections) {
+    FILE* f = fopen(path, "w");
+    if (!f) return false;
+    for (size_t i = 0; i < order.size(); i++) {
+        const std::vector<Object>& objects = detections.find(order[i])->second;
+        fprintf(f, "frame %s %zu\n", order[i].c_str(), objects.size());
+        for (size_t k = 0; k < objects.size(); k++) {
+            const Object& o = objects[k];
+            fprintf(f, "%d %.4f %.2f %.2f %.2f %.2f\n", o.label, o.score, o.x0, o.y0, o.x1, o.y1);
+        }
+    }
+    return fclose(f) == 0;
+}
+
+bool readGolden(const char* path, Detections* detections) {
+    FILE* f = fopen(path, "r");
+    if (!f) return false;
+    char name[512];
+    int count;
+    bool ok = true;
+    while (ok && fscanf(f, " frame %511s %d", name, &count) == 2) {
+        std::vector<Object>& objects = (*detections)[name];
+        objects.resize(count);
+        for (int k = 0; k < count && ok; k++) {
+            Object& o = objects[k];
+            ok = fscanf(f, "%d %f %f %f %f %f", &o.label, &o.score, &o.x0, &o.y0, &o.x1, &o.y1) == 6;
+        }
+    }
+    ok = ok && feof(f);
+    fclose(f);
+    return ok;
+}
+
+float iou(const Object& a, const Object& b) {
+    const float w = std::min(a.x1, b.x1) - std::max(a.x0, b.x0);
+    const float h = std::min(a.y1, b.y1) - std::max(a.y0, b.y0);
+    if (w <= 0.f || h <= 0.f) return 0.f;
+    const float inter = w * h;
+    return inter / ((a.x1 - a.x0) * (a.y1 - a.y0) + (b.x1 - b.x0) * (b.y1 - b.y0) - inter);
+}
+
+// Matches each reference box, best score first, to the unmatched box of the
+// same class it overlaps most. Returns the number of problems found.
+int diffGolden(const Options& options, const std::vector<std::string>& order, const Detections& got,
+               const Detections& want) {
+    int missing = 0, extra = 0, drifted = 0, matched = 0, reported = 0;
+    double iouSum = 0.0;
+    float maxDrift = 0.f;
+    for (size_t i = 0; i < order.size(); i++) {
+        const std::vector<Object>& now = got.find(order[i])->second;
+        Detections::const_iterator ref = want.find(order[i]);
+        if (ref == want.end()) {
+            fprintf(stderr, "%s: not in the golden file\n", order[i].c_str());
+            extra += (int) now.size();
+            continue;
+        }
+        std::vector<Object> expected = ref->second;
+        std::sort(expected.begin(), expected.end(),
+                  [](const Object& a, const Object& b) { return a.score > b.score; });
+        std::vector<bool> used(now.size(), false);
+        for (size_t e = 0; e < expected.size(); e++) {
+            const Object& x = expected[e];
+            int best = -1;
+            float bestIou = options.iou;
+            for (size_t k = 0; k < now.size(); k++) {
+                if (used[k] || now[k].label != x.label) continue;
+                const float v = iou(x, now[k]);
+                if (v >= bestIou) {
+                    bestIou = v;
+                    best = (int) k;
+                }
+            }
+            if (best < 0) {
+                missing++;
+                if (reported++ < 20) {
+                    fprintf(stderr, "%s: missing class %d (%.3f) at %.0f,%.0f %.0fx%.0f\n", order[i].c_str(),
+                            x.label, x.score, x.x0, x.y0, x.x1 - x.x0, x.y1 - x.y0);
+                }
+                continue;
+            }
+            used[best] = true;
+            matched++;
+            iouSum += bestIou;
+            const float drift = fabsf(now[best].score - x.score);
+            maxDrift = std::max(maxDrift, drift);
+            if (drift > options.scoreTolerance) {
+                drifted++;
+                if (reported++ < 20) {
+                    fprintf(stderr, "%s: class %d score %.3f, was %.3f\n", order[i].c_str(), x.label,
+                            now[best].score, x.score);
+                }
+            }
+        }
+        for (size_t k = 0; k < now.size(); k++) {
+            if (used[k]) continue;
+            extra++;
+            const Object& o = now[k];
+            if (reported++ < 20) {
+                fprintf(stderr, "%s: extra class %d (%.3f) at %.0f,%.0f %.0fx%.0f\n", order[i].c_str(),
+                        o.label, o.score, o.x0, o.y0, o.x1 - o.x0, o.y1 - o.y0);
+            }
+        }
+    }
+    // Reference frames that weren't replayed at all
+    for (Detections::const_iterator ref = want.begin(); ref != want.end(); ++ref) {
+        if (got.count(ref->first) != 0) continue;
+        fprintf(stderr, "%s: in the golden file but not replayed\n", ref->first.c_str());
+        missing += (int) ref->second.size();
+    }
+    printf("golden: %d matched (mean IoU %.3f, max score drift %.4f), %d missing, %d extra, %d drifted\n",
+           matched, matched ? iouSum / matched : 0.0, maxDrift, missing, extra, drifted);
+    return missing + extra + drifted;
+}
+
+// The legacy route up to the model input, minus the JPEG round trip: the
+// planes copied into one NV21 array, converted to RGB at full resolution
+// (what BitmapFactory hands back), then scaled, normalized and padded as
+// nativeDetectBitmap does. Like toBitmapViaJpeg(), it ignores the rotation.
+void preprocessBitmap(const Frame& frame, int size, std::vector<uint8_t>* nv21, std::vector<uint8_t>* rgb,
+                      NanoDetInput* input) {
+    nv21->assign(frame.nv21.begin(), frame.nv21.end());
+    rgb->resize((size_t) frame.width * frame.height * 3);
+    ncnn::yuv420sp2rgb(&(*nv21)[0], frame.width, frame.height, &(*rgb)[0]);
+
+    const float scale = std::min((float) size / frame.width, (float) size / frame.height);
+    const int w = (int) (frame.width * scale + 0.5f);
+    const int h = (int) (frame.height * scale + 0.5f);
+    ncnn::Mat resized = ncnn::Mat::from_pixels_resize(&(*rgb)[0], ncnn::Mat::PIXEL_RGB2BGR, frame.width,
+                                                      frame.height, w, h);
+    const int padX = (size - w) / 2;
+    const int padY = (size - h) / 2;
+    resized.substract_mean_normalize(kNanoDetMean, kNanoDetNorm);
+    ncnn::copy_make_border(resized, input->mat, padY, size - h - padY, padX, size - w - padX,
+                           ncnn::BORDER_CONSTANT, 0.f);
+    Letterbox lb = {scale, (float) padX, (float) padY, 0.f, 0.f, frame.width, frame.height};
+    input->letterbox = lb;
+}
+
+void printLatency(const char* stage, std::vector<double> ms) {
+    if (ms.empty()) return;
+    std::sort(ms.begin(), ms.end());
+    double sum = 0.0;
+    for (size_t i = 0; i < ms.size(); i++) sum += ms[i];
+    printf("%-10s mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms\n", stage, sum / ms.size(),
+           ms[ms.size() / 2], ms[ms.size() * 90 / 100], ms[ms.size() * 99 / 100], ms.back());
+}
+
+bool parseSize(const char* s, int* w, int* h) {
+    return sscanf(s, "%dx%d", w, h) == 2 && *w > 0 && *h > 0 && (*w & 1) == 0 && (*h & 1) == 0;
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    Options options;
+    std::vector<const char*> paths;
+    for (int i = 1; i < argc; i++) {
+        const bool hasValue = i + 1 < argc;
+        if (!strcmp(argv[i], "--size") && hasValue) {
+            if (!parseSize(argv[++i], &options.width, &options.height)) {
+                fprintf(stderr, "bad --size %s (even WxH)\n", argv[i]);
+                return 2;
+            }
+        } else if (!strcmp(argv[i], "--rotation") && hasValue) options.rotation = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--input-size") && hasValue) options.inputSize = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--class") && hasValue) options.classFilter = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--threads") && hasValue) options.threads = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--fp16")) options.fp16 = true;
+        else if (!strcmp(argv[i], "--warmup") && hasValue) options.warmup = atoi(argv[++i]);
+        else if (!strcmp(argv[i], "--golden") && hasValue) options.golden = argv[++i];
+        else if (!strcmp(argv[i], "--write-golden") && hasValue) options.writeGolden = argv[++i];
+        else if (!strcmp(argv[i], "--iou") && hasValue) options.iou = (float) atof(argv[++i]);
+        else if (!strcmp(argv[i], "--score-tol") && hasValue) options.scoreTolerance = (float) atof(argv[++i]);
+        else if (!strcmp(argv[i], "--compare-bitmap")) options.compareBitmap = true;
+        else paths.push_back(argv[i]);
+    }
+    if (paths.size() != 3) {
+        fprintf(stderr, "usage: %s [options] model.param model.bin FRAMES (see replay.cpp)\n", argv[0]);
+        return 2;
+    }
+
+    NanoDetOptions nanoDetOptions;
+    nanoDetOptions.numThreads = options.threads;
+    nanoDetOptions.powersave = 0; // a desktop has no clusters to choose from
+    NanoDet nanoDet;
+    if (!nanoDet.load(0, paths[0], paths[1], options.inputSize, options.inputSize, options.fp16, nanoDetOptions)) {
+        fprintf(stderr, "cannot load %s / %s\n", paths[0], paths[1]);
+        return 1;
+    }
+    FrameSource source(options);
+    if (!source.open(paths[2])) {
+        fprintf(stderr, "no frames in %s (raw streams need --size)\n", paths[2]);
+        return 1;
+    }
+
+    // Same buffers reused frame to frame, as in the app's analysis slots
+    Frame frame;
+    NanoDetInput input;
+    std::vector<Object> objects;
+    Detections detections;
+    std::vector<std::string> order;
+    std::vector<double> preprocessMs;
+    std::vector<double> detectMs;
+    std::vector<double> totalMs;
+    // --compare-bitmap
+    NanoDetInput bitmapInput;
+    std::vector<Object> bitmapObjects;
+    std::vector<uint8_t> nv21Copy;
+    std::vector<uint8_t> rgb;
+    std::vector<double> bitmapPreprocessMs;
+    std::vector<double> bitmapTotalMs;
+    int warmup = options.warmup;
+    size_t boxes = 0;
+    while (source.next(&frame)) {
+        YuvPlanes planes = {
+            &frame.nv21[0], &frame.nv21[(size_t) frame.width * frame.height + 1],
+            &frame.nv21[(size_t) frame.width * frame.height], frame.width, frame.height,
+            frame.width, frame.width, 2
+        };
+        auto t0 = std::chrono::steady_clock::now();
+        NanoDet::preprocessYuv(planes, options.rotation, 0, options.inputSize, &input);
+        auto t1 = std::chrono::steady_clock::now();
+        if (!nanoDet.detectMat(input.mat, input.letterbox, options.classFilter, objects)) {
+            fprintf(stderr, "%s: inference failed\n", frame.name.c_str());
+            return 1;
+        }
+        auto t2 = std::chrono::steady_clock::now();
+        auto t3 = t2;
+        auto t4 = t2;
+        if (options.compareBitmap) {
+            preprocessBitmap(frame, options.inputSize, &nv21Copy, &rgb, &bitmapInput);
+            t3 = std::chrono::steady_clock::now();
+            nanoDet.detectMat(bitmapInput.mat, bitmapInput.letterbox, options.classFilter, bitmapObjects);
+            t4 = std::chrono::steady_clock::now();
+        }
+        if (warmup > 0) {
+            // Timing only; the results still count
+            warmup--;
+        } else {
+            preprocessMs.push_back(std::chrono::duration<double, std::milli>(t1 - t0).count());
+            detectMs.push_back(std::chrono::duration<double, std::milli>(t2 - t1).count());
+            totalMs.push_back(std::chrono::duration<double, std::milli>(t2 - t0).count());
+            if (options.compareBitmap) {
+                bitmapPreprocessMs.push_back(std::chrono::duration<double, std::milli>(t3 - t2).count());
+                bitmapTotalMs.push_back(std::chrono::duration<double, std::milli>(t4 - t2).count());
+            }
+        }
+        if (detections.count(frame.name) == 0) order.push_back(frame.name);
+        detections[frame.name] = objects;
+        boxes += objects.size();
+    }
+    if (order.empty()) {
+        fprintf(stderr, "no readable frames\n");
+        return 1;
+    }
+
+    double busy = 0.0;
+    for (size_t i = 0; i < totalMs.size(); i++) busy += totalMs[i];
+    printf("%zu frames (%zu timed) at %d px, %zu detections\n", order.size(), totalMs.size(),
+           options.inputSize, boxes);
+    if (busy > 0.0) printf("throughput %.1f frames/s sequential\n", totalMs.size() * 1000.0 / busy);
+    printLatency("preprocess", preprocessMs);
+    printLatency("detect", detectMs);
+    printLatency("total", totalMs);
+    if (options.compareBitmap) {
+        double bitmapBusy = 0.0;
+        for (size_t i = 0; i < bitmapTotalMs.size(); i++) bitmapBusy += bitmapTotalMs[i];
+        if (bitmapBusy > 0.0) {
+            printf("bitmap path (without the JPEG round trip): %.1f frames/s sequential, %.2fx the YUV path\n",
+                   bitmapTotalMs.size() * 1000.0 / bitmapBusy, busy / bitmapBusy);
+        }
+        printLatency("preprocess", bitmapPreprocessMs);
+        printLatency("total", bitmapTotalMs);
+    }
+
+    if (options.writeGolden != 0) {
+        if (!writeGolden(options.writeGolden, order, detections)) {
+            fprintf(stderr, "cannot write %s\n", options.writeGolden);
+            return 1;
+        }
+        printf("wrote %s\n", options.writeGolden);
+    }
+    if (options.golden != 0) {
+        Detections want;
+        if (!readGolden(options.golden, &want)) {
+            fprintf(stderr, "cannot read %s\n", options.golden);
+            return 1;
+        }
+        if (diffGolden(options, order, detections, want) > 0) return 1;
+    }
+    return 0;
+}
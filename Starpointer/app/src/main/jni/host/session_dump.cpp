@@ -0,0 +1,231 @@
+// Reads the session logs SessionRecorder.kt writes: summarizes every stream of
+// a session (records, span, rate, timestamp gaps) or dumps one as CSV.
+//
+//   g++ -O2 -std=c++11 session_dump.cpp -o session_dump
+//   adb pull /sdcard/Android/data/com.example.starpointer/files/sessions/20261018-213000
+//   ./session_dump 20261018-213000
+//   ./session_dump 20261018-213000/gyro.spsl > gyro.csv
+//
+// One file per stream (<name>.spsl). Layout, little-endian:
+//   header (4096 bytes)
+//     0   char magic[4] "SPSL"
+//     4   u32 version (2; 1 lacks timestampSource)
+//     8   u32 columnCount
+//     12  u32 blockRecords
+//     16  i64 recordCount               bumped after each complete record
+//     24  i64 startWallMs               System.currentTimeMillis() at start
+//     32  i64 startElapsedNs            elapsedRealtimeNanos at the same moment
+//     40  char streamName[24]
+//     64  column[columnCount]           u32 type (0 i64, 1 f64, 2 f32, 3 i32), char name[28]
+//     1088 u32 timestampSource          0 elapsedRealtimeNanos, 1 camera clock of
+//                                       unknown base, 2 not known
+//   blocks from offset 4096, each blockRecords records stored column by
+//   column: column c of block b starts at
+//     4096 + b * sum(width) * blockRecords + sum(width of columns < c) * blockRecords
+// Column 0 is the timestamp, in the clock timestampSource names. Only
+// elapsedRealtimeNanos timestamps line up with the other streams and the
+// wall clock. Trailing rows of the last block past recordCount are unwritten.
+
+#include <dirent.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+
+namespace {
+
+const size_t kHeaderBytes = 4096;
+const uint32_t kVersion = 2;
+const size_t kTimestampSourceOffset = 1088;
+const uint32_t kTimestampRealtime = 0;
+const int kTypeBytes[] = {8, 8, 4, 4};
+
+struct Column {
+    uint32_t type;
+    std::string name;
+    size_t offset; // within a block
+};
+
+class Stream {
+public:
+    ~Stream() {
+        if (data_ != MAP_FAILED) munmap(data_, size_);
+    }
+
+    bool open(const char* path) {
+        int fd = ::open(path, O_RDONLY);
+        struct stat st;
+        if (fd < 0 || fstat(fd, &st) != 0) {
+            if (fd >= 0) close(fd);
+            return false;
+        }
+        size_ = st.st_size;
+        if (size_ >= kHeaderBytes) data_ = mmap(0, size_, PROT_READ, MAP_PRIVATE, fd, 0);
+        close(fd);
+        if (data_ == MAP_FAILED) return false;
+
+        const uint8_t* h = (const uint8_t*) data_;
+        const uint32_t version = u32(4);
+        if (memcmp(h, "SPSL", 4) != 0 || version < 1 || version > kVersion) return false;
+        timestampSource_ = version >= 2 ? u32(kTimestampSourceOffset) : kTimestampRealtime;
+        const uint32_t columnCount = u32(8);
+        blockRecords_ = u32(12);
+        count_ = i64(16);
+        startWallMs_ = i64(24);
+        startNs_ = i64(32);
+        name_.assign((const char*) h + 40, strnlen((const char*) h + 40, 24));
+        if (columnCount == 0 || columnCount > 32 || blockRecords_ == 0) return false;
+        size_t offset = 0;
+        for (uint32_t c = 0; c < columnCount; c++) {
+            const size_t o = 64 + c * 32;
+            Column column;
+            column.type = u32(o);
+            if (column.type > 3) return false;
+            column.name.assign((const char*) h + o + 4, strnlen((const char*) h + o + 4, 28));
+            column.offset = offset;
+            offset += (size_t) kTypeBytes[column.type] * blockRecords_;
+            columns_.push_back(column);
+        }
+        blockBytes_ = offset;
+        // A file cut short (e.g. copied while recording) keeps its whole records
+        const size_t blocks = (size_ - kHeaderBytes) / blockBytes_;
+        count_ = std::min<int64_t>(count_, (int64_t) (blocks * blockRecords_));
+        return columns_[0].type == 0;
+    }
+
+    const std::string& name() const { return name_; }
+    int64_t count() const { return count_; }
+    int64_t startWallMs() const { return startWallMs_; }
+    int64_t startNs() const { return startNs_; }
+    bool realtime() const { return timestampSource_ == kTimestampRealtime; }
+    const std::vector<Column>& columns() const { return columns_; }
+
+    const uint8_t* cell(int column, int64_t row) const {
+        const size_t block = (size_t) (row / blockRecords_);
+        const size_t inBlock = (size_t) (row % blockRecords_);
+        return (const uint8_t*) data_ + kHeaderBytes + block * blockBytes_ + columns_[column].offset +
+               inBlock * kTypeBytes[columns_[column].type];
+    }
+
+    int64_t timestamp(int64_t row) const {
+        int64_t t;
+        memcpy(&t, cell(0, row), 8);
+        return t;
+    }
+
+private:
+    uint32_t u32(size_t offset) const {
+        uint32_t v;
+        memcpy(&v, (const uint8_t*) data_ + offset, 4);
+        return v;
+    }
+
+    int64_t i64(size_t offset) const {
+        int64_t v;
+        memcpy(&v, (const uint8_t*) data_ + offset, 8);
+        return v;
+    }
+
+    void* data_ = MAP_FAILED;
+    size_t size_ = 0;
+    std::string name_;
+    std::vector<Column> columns_;
+    uint32_t blockRecords_ = 0;
+    size_t blockBytes_ = 0;
+    int64_t count_ = 0;
+    int64_t startWallMs_ = 0;
+    int64_t startNs_ = 0;
+    uint32_t timestampSource_ = kTimestampRealtime;
+};
+
+void printCell(const Stream& s, int column, int64_t row) {
+    const uint8_t* p = s.cell(column, row);
+    switch (s.columns()[column].type) {
+        case 0: { int64_t v; memcpy(&v, p, 8); printf("%lld", (long long) v); break; }
+        case 1: { double v; memcpy(&v, p, 8); printf("%.8f", v); break; }
+        case 2: { float v; memcpy(&v, p, 4); printf("%g", v); break; }
+        default: { int32_t v; memcpy(&v, p, 4); printf("%d", v); break; }
+    }
+}
+
+// CSV with a wall_ms column derived from the session's clock pair, left
+// empty when the timestamps aren't elapsedRealtimeNanos
+void dumpCsv(const Stream& s) {
+    printf("wall_ms");
+    for (size_t c = 0; c < s.columns().size(); c++) printf(",%s", s.columns()[c].name.c_str());
+    printf("\n");
+    for (int64_t r = 0; r < s.count(); r++) {
+        const int64_t t = s.timestamp(r);
+        if (s.realtime()) printf("%.3f", s.startWallMs() + (t - s.startNs()) / 1e6);
+        for (size_t c = 0; c < s.columns().size(); c++) {
+            printf(",");
+            printCell(s, (int) c, r);
+        }
+        printf("\n");
+    }
+}
+
+// Rate from the median interval, plus the gaps that matter for fusion replay.
+// Several records can share a timestamp (boxes of one frame).
+void summarize(const Stream& s) {
+    std::vector<int64_t> intervals;
+    int64_t backwards = 0;
+    for (int64_t r = 1; r < s.count(); r++) {
+        const int64_t d = s.timestamp(r) - s.timestamp(r - 1);
+        if (d > 0) intervals.push_back(d);
+        else if (d < 0) backwards++;
+    }
+    printf("%-11s %9lld records", s.name().c_str(), (long long) s.count());
+    if (s.count() > 1) {
+        const double span = (s.timestamp(s.count() - 1) - s.timestamp(0)) / 1e9;
+        printf(", %8.1f s", span);
+    }
+    if (!intervals.empty()) {
+        std::sort(intervals.begin(), intervals.end());
+        const double median = intervals[intervals.size() / 2] / 1e6;
+        const double p99 = intervals[intervals.size() * 99 / 100] / 1e6;
+        printf(", %7.1f Hz (median %.2f ms, p99 %.2f ms, max gap %.1f ms)", 1000.0 / median, median, p99,
+               intervals.back() / 1e6);
+    }
+    if (backwards > 0) printf(", %lld out of order", (long long) backwards);
+    if (!s.realtime()) printf(", not on elapsedRealtime");
+    printf("\n");
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    if (argc != 2) {
+        fprintf(stderr, "usage: %s SESSION_DIR | STREAM.spsl\n", argv[0]);
+        return 2;
+    }
+    const std::string path = argv[1];
+    if (DIR* dir = opendir(path.c_str())) {
+        std::vector<std::string> files;
+        while (dirent* entry = readdir(dir)) {
+            const std::string name = entry->d_name;
+            if (name.size() > 5 && name.compare(name.size() - 5, 5, ".spsl") == 0) files.push_back(name);
+        }
+        closedir(dir);
+        std::sort(files.begin(), files.end());
+        for (size_t i = 0; i < files.size(); i++) {
+            Stream s;
+            if (s.open((path + "/" + files[i]).c_str())) summarize(s);
+            else fprintf(stderr, "bad stream %s\n", files[i].c_str());
+        }
+        return files.empty() ? 1 : 0;
+    }
+    Stream s;
+    if (!s.open(path.c_str())) {
+        fprintf(stderr, "bad stream %s\n", path.c_str());
+        return 1;
+    }
+    dumpCsv(s);
+    return 0;
+}
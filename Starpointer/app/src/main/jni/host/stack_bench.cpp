@@ -0,0 +1,167 @@
+// Host benchmark for FrameStacker on synthetic 1080p luminance frames: a star
+// field drifting and rotating about an off-centre point (an untracked mount),
+// Gaussian read noise, and a satellite trail across some frames. Reports
+// registration error against the true motion, time per frame, background
+// noise of the stack against a single frame, and what is left of the trails.
+//
+//   g++ -O2 -std=c++11 -pthread -I.. -I../ncnn-20250503-android-shared/x86_64/include stack_bench.cpp ../frame_stacker.cpp ../star_detector.cpp ../tile_pool.cpp -o stack_bench
+//   ./stack_bench [frames] [threads]
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <algorithm>
+#include <chrono>
+#include <random>
+#include <vector>
+
+#include "frame_stacker.h"
+
+namespace {
+
+const int kWidth = 1920;
+const int kHeight = 1080;
+const int kStars = 300;
+const float kNoise = 6.f;
+
+struct SkyStar {
+    float x, y, peak;
+};
+
+// Frame k sees frame 0 point p at R(angle) (p - pivot) + pivot + shift
+void motion(int k, float* angle, float* shiftX, float* shiftY) {
+    *angle = k * 0.0004f; // ~0.02 degrees per frame
+    *shiftX = k * 0.7f + 3.f * sinf(k * 0.9f);
+    *shiftY = k * -0.4f + 2.f * sinf(k * 1.3f);
+}
+
+void render(int k, const std::vector<SkyStar>& sky, std::mt19937& rng, bool trail, std::vector<uint8_t>& y) {
+    std::normal_distribution<float> noise(0.f, kNoise);
+    std::vector<float> image(kWidth * kHeight);
+    for (size_t i = 0; i < image.size(); i++) image[i] = 30.f + noise(rng);
+
+    float angle, shiftX, shiftY;
+    motion(k, &angle, &shiftX, &shiftY);
+    const float c = cosf(angle), s = sinf(angle);
+    const float pivotX = kWidth * 0.3f, pivotY = kHeight * 0.8f;
+    const float sigma = 1.3f;
+    for (size_t i = 0; i < sky.size(); i++) {
+        const float dx = sky[i].x - pivotX, dy = sky[i].y - pivotY;
+        const float sx = c * dx - s * dy + pivotX + shiftX;
+        const float sy = s * dx + c * dy + pivotY + shiftY;
+        for (int r = (int) sy - 5; r <= (int) sy + 5; r++) {
+            for (int q = (int) sx - 5; q <= (int) sx + 5; q++) {
+                if (r < 0 || q < 0 || r >= kHeight || q >= kWidth) continue;
+                const float ex = q - sx, ey = r - sy;
+                image[r * kWidth + q] += sky[i].peak * expf(-(ex * ex + ey * ey) / (2.f * sigma * sigma));
+            }
+        }
+    }
+    if (trail) {
+        // A bright satellite crossing the frame along row kHeight / 2
+        for (int x = 0; x < kWidth; x++) {
+            for (int r = kHeight / 2 - 1; r <= kHeight / 2 + 1; r++) image[r * kWidth + x] += 120.f;
+        }
+    }
+    for (size_t i = 0; i < image.size(); i++) {
+        y[i] = (uint8_t) std::max(0.f, std::min(255.f, image[i] + 0.5f));
+    }
+}
+
+// Robust standard deviation (1.4826 MAD) over a patch, so stars in it don't count
+template <typename T>
+float patchSigma(const T* values, int x0, int y0, int size) {
+    std::vector<float> v;
+    for (int y = y0; y < y0 + size; y++) {
+        for (int x = x0; x < x0 + size; x++) v.push_back((float) values[y * kWidth + x]);
+    }
+    std::nth_element(v.begin(), v.begin() + v.size() / 2, v.end());
+    const float median = v[v.size() / 2];
+    for (size_t i = 0; i < v.size(); i++) v[i] = fabsf(v[i] - median);
+    std::nth_element(v.begin(), v.begin() + v.size() / 2, v.end());
+    return 1.4826f * v[v.size() / 2];
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    const int frames = argc > 1 ? atoi(argv[1]) : 60;
+    const int threads = argc > 2 ? atoi(argv[2]) : 0;
+
+    std::mt19937 rng(5);
+    std::uniform_real_distribution<float> ux(0.f, kWidth);
+    std::uniform_real_distribution<float> uy(0.f, kHeight);
+    std::uniform_real_distribution<float> peak(15.f, 180.f);
+    std::vector<SkyStar> sky(kStars);
+    for (int i = 0; i < kStars; i++) {
+        SkyStar s = {ux(rng), uy(rng), peak(rng)};
+        sky[i] = s;
+    }
+
+    std::vector<uint8_t> y(kWidth * kHeight);
+    std::vector<uint8_t> uv(kWidth * kHeight / 2, 128);
+    YuvPlanes planes = {&y[0], &uv[0], &uv[1], kWidth, kHeight, kWidth, kWidth, 2};
+    FrameStacker stacker(3.f, 5, threads);
+
+    std::vector<double> ms;
+    double worstError = 0.0;
+    float frameSigma = 0.f;
+    int stacked = 0;
+    for (int k = 0; k < frames; k++) {
+        render(k, sky, rng, k % 10 == 7, y);
+        if (k == 0) frameSigma = patchSigma(&y[0], 100, 100, 64);
+        auto t0 = std::chrono::steady_clock::now();
+        FrameStacker::Result result = stacker.add(planes);
+        auto t1 = std::chrono::steady_clock::now();
+        if (result == FrameStacker::kStacked) {
+            ms.push_back(std::chrono::duration<double, std::milli>(t1 - t0).count());
+            stacked++;
+            // Registration error at the frame corners; the reference is frame 0
+            float angle, shiftX, shiftY;
+            motion(k, &angle, &shiftX, &shiftY);
+            const FrameStacker::Stats& st = stacker.stats();
+            const float c = cosf(angle), s = sinf(angle);
+            const float pivotX = kWidth * 0.3f, pivotY = kHeight * 0.8f;
+            const float ec = cosf(st.rotationDeg * (float) M_PI / 180.f);
+            const float es = sinf(st.rotationDeg * (float) M_PI / 180.f);
+            for (int corner = 0; corner < 4; corner++) {
+                const float px = (corner & 1) ? kWidth : 0.f;
+                const float py = (corner & 2) ? kHeight : 0.f;
+                const float tx = c * (px - pivotX) - s * (py - pivotY) + pivotX + shiftX;
+                const float ty = s * (px - pivotX) + c * (py - pivotY) + pivotY + shiftY;
+                const float gx = ec * px - es * py + st.dx;
+                const float gy = es * px + ec * py + st.dy;
+                worstError = std::max(worstError, (double) hypotf(gx - tx, gy - ty));
+            }
+        } else if (result != FrameStacker::kReference) {
+            printf("frame %d not stacked (%d), %d stars, %d matches\n", k, (int) result, stacker.stats().stars,
+                   stacker.stats().matches);
+        }
+    }
+
+    const std::vector<float>& mean = stacker.mean();
+    const float stackSigma = patchSigma(&mean[0], 100, 100, 64);
+    // Trail row against the rows just outside it, away from the edges
+    double onTrail = 0.0, offTrail = 0.0;
+    for (int x = 200; x < kWidth - 200; x++) {
+        onTrail += mean[(kHeight / 2) * kWidth + x];
+        offTrail += mean[(kHeight / 2 + 12) * kWidth + x];
+    }
+    const int span = kWidth - 400;
+
+    printf("%d/%d frames stacked, %d threads, worst corner registration error %.2f px\n", stacked + 1, frames,
+           TilePool(threads).threads(), worstError);
+    // Bilinear resampling smooths a little on top of averaging
+    printf("background sigma: frame %.2f, stack %.2f (sqrt(N) would give %.2f)\n", frameSigma, stackSigma,
+           frameSigma / sqrtf((float) (stacked + 1)));
+    printf("satellite trail residue %.2f DN (unclipped mean would be %.1f)\n", (onTrail - offTrail) / span,
+           120.0 * (frames / 10) / frames);
+    if (!ms.empty()) {
+        std::sort(ms.begin(), ms.end());
+        double sum = 0.0;
+        for (size_t i = 0; i < ms.size(); i++) sum += ms[i];
+        printf("%dx%d: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms per frame\n", kWidth, kHeight,
+               sum / ms.size(), ms[ms.size() / 2], ms[ms.size() * 95 / 100], ms.back());
+    }
+    return 0;
+}
@@ -0,0 +1,107 @@
+// Host benchmark for StarDetector on synthetic 1080p luminance frames:
+// sky gradient, Gaussian read noise and a field of Gaussian stars.
+//
+//   g++ -O2 -std=c++11 -I.. -I../ncnn-20250503-android-shared/x86_64/include star_bench.cpp ../star_detector.cpp -o star_bench
+//   ./star_bench [frames] [stars]
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <algorithm>
+#include <chrono>
+#include <random>
+#include <vector>
+
+#include "star_detector.h"
+
+namespace {
+
+const int kWidth = 1920;
+const int kHeight = 1080;
+
+void renderFrame(std::mt19937& rng, int starCount, std::vector<uint8_t>& y,
+                 std::vector<float>& truthX, std::vector<float>& truthY) {
+    std::normal_distribution<float> noise(0.f, 3.f);
+    std::uniform_real_distribution<float> ux(8.f, kWidth - 8.f);
+    std::uniform_real_distribution<float> uy(8.f, kHeight - 8.f);
+    std::uniform_real_distribution<float> peak(30.f, 200.f);
+
+    std::vector<float> sky(kWidth * kHeight);
+    for (int r = 0; r < kHeight; r++) {
+        for (int c = 0; c < kWidth; c++) {
+            sky[r * kWidth + c] = 20.f + 15.f * r / kHeight + noise(rng);
+        }
+    }
+    truthX.clear();
+    truthY.clear();
+    const float sigma = 1.2f;
+    for (int s = 0; s < starCount; s++) {
+        const float sx = ux(rng);
+        const float sy = uy(rng);
+        const float a = peak(rng);
+        for (int r = (int) sy - 5; r <= (int) sy + 5; r++) {
+            for (int c = (int) sx - 5; c <= (int) sx + 5; c++) {
+                const float dx = c - sx;
+                const float dy = r - sy;
+                sky[r * kWidth + c] += a * expf(-(dx * dx + dy * dy) / (2.f * sigma * sigma));
+            }
+        }
+        truthX.push_back(sx);
+        truthY.push_back(sy);
+    }
+    for (size_t i = 0; i < sky.size(); i++) {
+        y[i] = (uint8_t) std::max(0.f, std::min(255.f, sky[i] + 0.5f));
+    }
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    const int frames = argc > 1 ? atoi(argv[1]) : 200;
+    const int starCount = argc > 2 ? atoi(argv[2]) : 150;
+
+    std::mt19937 rng(7);
+    std::vector<uint8_t> y(kWidth * kHeight);
+    std::vector<uint8_t> uv(kWidth * kHeight / 2, 128);
+    std::vector<float> truthX;
+    std::vector<float> truthY;
+    renderFrame(rng, starCount, y, truthX, truthY);
+
+    YuvPlanes planes = {&y[0], &uv[0], &uv[1], kWidth, kHeight, kWidth, kWidth, 2};
+    StarDetector detector;
+    Star stars[StarDetector::kMaxStars];
+
+    // Accuracy against the rendered positions (rotation 0)
+    int n = detector.detect(planes, 0, stars, StarDetector::kMaxStars);
+    int matched = 0;
+    double errSum = 0.0;
+    for (size_t t = 0; t < truthX.size(); t++) {
+        float best = 1e9f;
+        for (int i = 0; i < n; i++) {
+            const float dx = stars[i].x - truthX[t];
+            const float dy = stars[i].y - truthY[t];
+            best = std::min(best, sqrtf(dx * dx + dy * dy));
+        }
+        if (best < 1.5f) {
+            matched++;
+            errSum += best;
+        }
+    }
+    printf("detected %d, matched %d/%zu, mean centroid error %.3f px\n",
+           n, matched, truthX.size(), matched ? errSum / matched : 0.0);
+
+    std::vector<double> ms;
+    ms.reserve(frames);
+    for (int f = 0; f < frames; f++) {
+        auto t0 = std::chrono::steady_clock::now();
+        detector.detect(planes, 90, stars, StarDetector::kMaxStars);
+        auto t1 = std::chrono::steady_clock::now();
+        ms.push_back(std::chrono::duration<double, std::milli>(t1 - t0).count());
+    }
+    std::sort(ms.begin(), ms.end());
+    double sum = 0.0;
+    for (size_t i = 0; i < ms.size(); i++) sum += ms[i];
+    printf("%dx%d, %d frames: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms\n",
+           kWidth, kHeight, frames, sum / ms.size(), ms[ms.size() / 2], ms[ms.size() * 95 / 100], ms.back());
+    return 0;
+}
@@ -0,0 +1,73 @@
+#include "jni_common.h"
+
+#include <android/log.h>
+
+#include <algorithm>
+
+#define TAG "StarpointerJni"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+std::vector<Object>& scratchObjects() {
+    static thread_local std::vector<Object> objects;
+    return objects;
+}
+
+jint writeResults(JNIEnv* env, const std::vector<Object>& objects, jintArray classIds, jfloatArray values) {
+    const jsize capacity = std::min(env->GetArrayLength(classIds), env->GetArrayLength(values) / kStride);
+    const jsize count = std::min((jsize) objects.size(), capacity);
+    if (count == 0) return 0;
+
+    jint* ids = (jint*) env->GetPrimitiveArrayCritical(classIds, 0);
+    jfloat* out = (jfloat*) env->GetPrimitiveArrayCritical(values, 0);
+    for (jsize i = 0; i < count; i++) {
+        const Object& o = objects[i];
+        ids[i] = o.label;
+        out[i * kStride] = o.score;
+        out[i * kStride + 1] = o.x0;
+        out[i * kStride + 2] = o.y0;
+        out[i * kStride + 3] = o.x1;
+        out[i * kStride + 4] = o.y1;
+    }
+    env->ReleasePrimitiveArrayCritical(values, out, 0);
+    env->ReleasePrimitiveArrayCritical(classIds, ids, 0);
+    return count;
+}
+
+int readResults(JNIEnv* env, jint count, jintArray classIds, jfloatArray values, Object* objects, int capacity) {
+    const jsize available = std::min(env->GetArrayLength(classIds), env->GetArrayLength(values) / kStride);
+    const int n = std::min(std::min((int) count, (int) available), capacity);
+    if (n <= 0) return 0;
+
+    jint* ids = (jint*) env->GetPrimitiveArrayCritical(classIds, 0);
+    jfloat* in = (jfloat*) env->GetPrimitiveArrayCritical(values, 0);
+    for (int i = 0; i < n; i++) {
+        Object& o = objects[i];
+        o.label = ids[i];
+        o.score = in[i * kStride];
+        o.x0 = in[i * kStride + 1];
+        o.y0 = in[i * kStride + 2];
+        o.x1 = in[i * kStride + 3];
+        o.y1 = in[i * kStride + 4];
+    }
+    env->ReleasePrimitiveArrayCritical(values, in, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(classIds, ids, JNI_ABORT);
+    return n;
+}
+
+bool planesFromBuffers(JNIEnv* env, jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                       jint width, jint height, jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                       YuvPlanes* planes) {
+    planes->y = (const uint8_t*) env->GetDirectBufferAddress(yBuffer);
+    planes->u = (const uint8_t*) env->GetDirectBufferAddress(uBuffer);
+    planes->v = (const uint8_t*) env->GetDirectBufferAddress(vBuffer);
+    if (planes->y == 0 || planes->u == 0 || planes->v == 0) {
+        LOGE("Image planes are not direct buffers");
+        return false;
+    }
+    planes->width = width;
+    planes->height = height;
+    planes->yRowStride = yRowStride;
+    planes->uvRowStride = uvRowStride;
+    planes->uvPixelStride = uvPixelStride;
+    return true;
+}
@@ -0,0 +1,31 @@
+#ifndef STARPOINTER_JNI_COMMON_H
+#define STARPOINTER_JNI_COMMON_H
+
+#include <jni.h>
+
+#include <vector>
+
+#include "nanodet.h"
+#include "yuv_letterbox.h"
+
+// Helpers shared by the per-component JNI glue (nanodet_jni.cpp,
+// box_tracker_jni.cpp, star_detector_jni.cpp, plate_solver_jni.cpp,
+// frame_stacker_jni.cpp)
+
+const int kStride = 5; // score, left, top, right, bottom; see DetectionBuffer.kt
+
+// Scratch space reused across frames on each analyzer thread
+std::vector<Object>& scratchObjects();
+
+// Copies results into the caller's DetectionBuffer arrays, returns the count
+jint writeResults(JNIEnv* env, const std::vector<Object>& objects, jintArray classIds, jfloatArray values);
+
+// Reads the first count entries of a DetectionBuffer back into objects
+int readResults(JNIEnv* env, jint count, jintArray classIds, jfloatArray values, Object* objects, int capacity);
+
+// The planes of an ImageProxy, passed as direct ByteBuffers
+bool planesFromBuffers(JNIEnv* env, jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                       jint width, jint height, jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                       YuvPlanes* planes);
+
+#endif // STARPOINTER_JNI_COMMON_H
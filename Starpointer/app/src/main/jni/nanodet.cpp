@@ -0,0 +1,304 @@
+#include "nanodet.h"
+
+#include "ncnn/cpu.h"
+
+#include <math.h>
+#include <stdint.h>
+#include <time.h>
+#include <algorithm>
+#include <mutex>
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#define TAG "NanoDet"
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+#else
+#include <stdio.h>
+#define LOGI(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOGE(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#endif
+
+const float kNanoDetMean[3] = {103.53f, 116.28f, 123.675f};
+const float kNanoDetNorm[3] = {0.017429f, 0.017507f, 0.017125f};
+
+const int NanoDet::kInputSize;
+const int NanoDet::kRoiInputSize;
+
+namespace {
+
+// NanoDet-Plus 416x416 export: "data" in, "output" out with
+// num_classes scores followed by 4 * (reg_max + 1) distribution bins per point.
+const int kRegMax = 7;
+const int kStrides[] = {8, 16, 32, 64};
+const float kScoreThreshold = 0.4f;
+const float kNmsThreshold = 0.5f;
+
+float intersectionArea(const Object& a, const Object& b) {
+    float w = std::min(a.x1, b.x1) - std::max(a.x0, b.x0);
+    float h = std::min(a.y1, b.y1) - std::max(a.y0, b.y0);
+    return (w > 0 && h > 0) ? w * h : 0.f;
+}
+
+// Greedy per-class NMS, compacting survivors to the front in place
+void nms(std::vector<Object>& objects, float threshold) {
+    std::sort(objects.begin(), objects.end(),
+              [](const Object& a, const Object& b) { return a.score > b.score; });
+    size_t kept = 0;
+    for (size_t i = 0; i < objects.size(); i++) {
+        const Object& a = objects[i];
+        float areaA = (a.x1 - a.x0) * (a.y1 - a.y0);
+        bool keep = true;
+        for (size_t j = 0; j < kept; j++) {
+            const Object& b = objects[j];
+            if (a.label != b.label) continue;
+            float inter = intersectionArea(a, b);
+            float areaB = (b.x1 - b.x0) * (b.y1 - b.y0);
+            if (inter / (areaA + areaB - inter) > threshold) {
+                keep = false;
+                break;
+            }
+        }
+        if (keep) objects[kept++] = a;
+    }
+    objects.resize(kept);
+}
+
+// Decodes the distribution-focal-loss output into boxes in model input pixels.
+void decode(const ncnn::Mat& out, int inputWidth, int inputHeight, int classFilter, std::vector<Object>& objects) {
+    const int numClasses = out.w - 4 * (kRegMax + 1);
+    int point = 0;
+    for (size_t s = 0; s < sizeof(kStrides) / sizeof(kStrides[0]); s++) {
+        const int stride = kStrides[s];
+        const int gridW = (int) ceilf((float) inputWidth / stride);
+        const int gridH = (int) ceilf((float) inputHeight / stride);
+        for (int gy = 0; gy < gridH; gy++) {
+            for (int gx = 0; gx < gridW; gx++, point++) {
+                if (point >= out.h) return;
+                const float* row = out.row(point);
+                int label = 0;
+                float score = row[0];
+                if (classFilter >= 0) {
+                    if (classFilter >= numClasses) return;
+                    label = classFilter;
+                    score = row[classFilter];
+                } else {
+                    for (int c = 1; c < numClasses; c++) {
+                        if (row[c] > score) {
+                            score = row[c];
+                            label = c;
+                        }
+                    }
+                }
+                if (score < kScoreThreshold) continue;
+
+                float dist[4];
+                const float* bins = row + numClasses;
+                for (int side = 0; side < 4; side++) {
+                    const float* b = bins + side * (kRegMax + 1);
+                    float maxBin = b[0];
+                    for (int k = 1; k <= kRegMax; k++) maxBin = std::max(maxBin, b[k]);
+                    float sum = 0.f;
+                    float expect = 0.f;
+                    for (int k = 0; k <= kRegMax; k++) {
+                        float e = expf(b[k] - maxBin);
+                        sum += e;
+                        expect += e * k;
+                    }
+                    dist[side] = expect / sum * stride;
+                }
+                const float cx = (float) gx * stride;
+                const float cy = (float) gy * stride;
+                Object obj;
+                obj.x0 = cx - dist[0];
+                obj.y0 = cy - dist[1];
+                obj.x1 = cx + dist[2];
+                obj.y1 = cy + dist[3];
+                obj.label = label;
+                obj.score = score;
+                objects.push_back(obj);
+            }
+        }
+    }
+}
+
+// set_cpu_powersave() is process-wide state and not thread-safe
+std::mutex& powersaveMutex() {
+    static std::mutex mutex;
+    return mutex;
+}
+
+} // namespace
+
+NanoDet::~NanoDet() {
+    net_.clear();
+    closeModelAsset();
+}
+
+bool NanoDet::load(AAssetManager* assets, const char* paramPath, const char* binPath, int inputSize,
+                   int roiInputSize, bool fp16Arithmetic, const NanoDetOptions& options) {
+    ready_ = false;
+    options_ = options;
+    // The old weights may still be referenced until the net lets go of them
+    net_.clear();
+    closeModelAsset();
+    net_.opt.use_vulkan_compute = false;
+    net_.opt.num_threads = threadCount();
+    net_.opt.lightmode = options.lightmode;
+    net_.opt.use_packing_layout = options.packingLayout;
+    net_.opt.use_fp16_storage = true;
+    net_.opt.use_fp16_arithmetic = fp16Arithmetic;
+    net_.opt.use_int8_inference = true;
+    const bool ok = assets != 0 ? loadFromAssets(assets, paramPath, binPath)
+                                : net_.load_param(paramPath) == 0 && net_.load_model(binPath) == 0;
+    if (!ok) {
+        LOGE("Failed to load %s / %s", paramPath, binPath);
+        return false;
+    }
+    inputSize_ = inputSize;
+    roiInputSize_ = roiInputSize;
+    fp16Arithmetic_ = fp16Arithmetic;
+    assets_ = assets;
+    paramPath_ = paramPath;
+    binPath_ = binPath;
+
+    LOGI("NanoDet loaded from %s (%d px)", paramPath, inputSize);
+    ready_ = true;
+    return true;
+}
+
+bool NanoDet::detectYuv(const YuvPlanes& planes, int rotationDegrees, const RoiRect* roi, int classFilter,
+                        std::vector<Object>& objects) const {
+    // The network is fully convolutional; a square ROI crop needs no padding
+    // and runs at the smaller size
+    NanoDetInput input;
+    preprocessYuv(planes, rotationDegrees, roi, roi != 0 ? roiInputSize_ : inputSize_, &input);
+    return detectMat(input.mat, input.letterbox, classFilter, objects);
+}
+
+void NanoDet::preprocessYuv(const YuvPlanes& planes, int rotationDegrees, const RoiRect* roi,
+                            int size, NanoDetInput* input) {
+    input->mat.create(size, size, 3); // no-op when the size is unchanged
+    yuv420_letterbox_bgr(planes, rotationDegrees, roi, size, size, kNanoDetMean, kNanoDetNorm,
+                         (float*) input->mat.data, (int) input->mat.cstep, &input->letterbox);
+}
+
+bool NanoDet::detectMat(const ncnn::Mat& in, const Letterbox& lb, int classFilter,
+                        std::vector<Object>& objects) const {
+    objects.clear();
+    if (!ready_) return false;
+    ncnn::Mat out;
+    ncnn::Extractor ex = net_.create_extractor();
+    configure(ex);
+    ex.input("data", in);
+    if (ex.extract("output", out) != 0) return false;
+
+    decode(out, in.w, in.h, classFilter, objects);
+    nms(objects, kNmsThreshold);
+
+    // Undo letterbox so boxes are in upright frame pixels
+    for (size_t i = 0; i < objects.size(); i++) {
+        Object& o = objects[i];
+        o.x0 = std::max(0.f, std::min((o.x0 - lb.padX) / lb.scale + lb.roiX, (float) lb.uprightWidth));
+        o.y0 = std::max(0.f, std::min((o.y0 - lb.padY) / lb.scale + lb.roiY, (float) lb.uprightHeight));
+        o.x1 = std::max(0.f, std::min((o.x1 - lb.padX) / lb.scale + lb.roiX, (float) lb.uprightWidth));
+        o.y1 = std::max(0.f, std::min((o.y1 - lb.padY) / lb.scale + lb.roiY, (float) lb.uprightHeight));
+    }
+    return true;
+}
+
+float NanoDet::benchmark(int warmup, int runs) const {
+    if (!ready_ || runs <= 0) return -1.f;
+    ncnn::Mat in(inputSize_, inputSize_, 3);
+    in.fill(0.f);
+    std::vector<float> times;
+    for (int i = 0; i < warmup + runs; i++) {
+        timespec start, end;
+        clock_gettime(CLOCK_MONOTONIC, &start);
+        ncnn::Mat out;
+        ncnn::Extractor ex = net_.create_extractor();
+        configure(ex);
+        ex.input("data", in);
+        if (ex.extract("output", out) != 0) return -1.f;
+        clock_gettime(CLOCK_MONOTONIC, &end);
+        if (i >= warmup) {
+            times.push_back((end.tv_sec - start.tv_sec) * 1000.f + (end.tv_nsec - start.tv_nsec) / 1e6f);
+        }
+    }
+    std::nth_element(times.begin(), times.begin() + times.size() / 2, times.end());
+    return times[times.size() / 2];
+}
+
+#ifdef __ANDROID__
+bool NanoDet::loadFromAssets(AAssetManager* assets, const char* paramName, const char* binName) {
+    if (net_.load_param(assets, paramName) != 0) return false;
+    AAsset* asset = AAssetManager_open(assets, binName, AASSET_MODE_BUFFER);
+    if (asset == 0) return false;
+    // An uncompressed entry is mmapped from the APK and ncnn references the
+    // weights in place; it wants them 4-byte aligned, which zipalign gives
+    const unsigned char* data = (const unsigned char*) AAsset_getBuffer(asset);
+    if (data != 0 && ((uintptr_t) data & 3) == 0) {
+        if (net_.load_model(data) <= 0) {
+            AAsset_close(asset);
+            return false;
+        }
+        modelAsset_ = asset;
+        return true;
+    }
+    // Otherwise stream a copy
+    const int ret = net_.load_model(asset);
+    AAsset_close(asset);
+    return ret == 0;
+}
+
+void NanoDet::closeModelAsset() {
+    if (modelAsset_ != 0) AAsset_close(modelAsset_);
+    modelAsset_ = 0;
+}
+#else
+bool NanoDet::loadFromAssets(AAssetManager*, const char*, const char*) {
+    return false;
+}
+
+void NanoDet::closeModelAsset() {}
+#endif
+
+bool NanoDet::setOptions(const NanoDetOptions& options) {
+    if (options.packingLayout != options_.packingLayout && !paramPath_.empty()) {
+        // Packing is baked into the layers at load time. Copy the paths first,
+        // load() overwrites them.
+        const std::string param = paramPath_;
+        const std::string bin = binPath_;
+        return load(assets_, param.c_str(), bin.c_str(), inputSize_, roiInputSize_, fp16Arithmetic_, options);
+    }
+    options_ = options;
+    net_.opt.num_threads = threadCount();
+    net_.opt.lightmode = options.lightmode;
+    return true;
+}
+
+int NanoDet::threadCount() const {
+    if (options_.numThreads > 0) return options_.numThreads;
+    int n;
+    switch (options_.powersave) {
+        case 1: n = ncnn::get_little_cpu_count(); break;
+        case 2: n = ncnn::get_big_cpu_count(); break;
+        default: n = ncnn::get_cpu_count(); break;
+    }
+    return std::max(1, n);
+}
+
+void NanoDet::configure(ncnn::Extractor& ex) const {
+    // Affinity sticks to the calling thread's worker team, so it is only
+    // redone when this thread last ran with a different setting
+    static thread_local int appliedPowersave = -1;
+    if (appliedPowersave != options_.powersave) {
+        std::lock_guard<std::mutex> lock(powersaveMutex());
+        if (ncnn::set_cpu_powersave(options_.powersave) != 0) {
+            LOGE("Cannot bind to cluster %d", options_.powersave);
+        }
+        appliedPowersave = options_.powersave;
+    }
+    ex.set_num_threads(threadCount());
+    ex.set_light_mode(options_.lightmode);
+}
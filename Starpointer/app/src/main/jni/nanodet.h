@@ -0,0 +1,113 @@
+#ifndef STARPOINTER_NANODET_H
+#define STARPOINTER_NANODET_H
+
+#ifdef __ANDROID__
+#include <android/asset_manager.h>
+#else
+// Host builds (host/replay.cpp) load from files only
+struct AAssetManager;
+struct AAsset;
+#endif
+
+#include <string>
+#include <vector>
+
+#include "ncnn/net.h"
+#include "yuv_letterbox.h"
+
+struct Object {
+    float x0, y0, x1, y1;
+    int label;
+    float score;
+};
+
+// Letterboxed model input prepared ahead of inference. Reused across frames:
+// the Mat is only reallocated when the input size changes (full frame vs ROI).
+struct NanoDetInput {
+    ncnn::Mat mat;
+    Letterbox letterbox;
+};
+
+// How inference uses the CPU; mirrors NanoDetOptions.kt
+struct NanoDetOptions {
+    int numThreads = 0;   // 0: one per core of the chosen cluster
+    int powersave = 2;    // ncnn::set_cpu_powersave(): 0 all cores, 1 little, 2 big
+    bool lightmode = true;
+    bool packingLayout = true;
+};
+
+// One loaded NanoDet-Plus model. Each instance owns its own ncnn::Net, so
+// several models can run side by side. detect() only creates extractors and
+// is safe to call from several threads at once; load() is not and must not
+// overlap with detect() (NanoDetEngine guards this on the Kotlin side).
+class NanoDet {
+public:
+    // Input sizes of the reference fp32 export; other variants pass their own
+    static const int kInputSize = 416;
+    static const int kRoiInputSize = 320;
+
+    NanoDet() {}
+    ~NanoDet();
+    NanoDet(const NanoDet&) = delete;
+    NanoDet& operator=(const NanoDet&) = delete;
+
+    // With assets non-null the paths are asset names and the weights are
+    // referenced straight out of the APK mapping (the .bin must be stored
+    // uncompressed); assets must outlive this object. Otherwise they are files.
+    // fp16Arithmetic lets ncnn compute in half precision where the CPU has it;
+    // an int8 model is recognized from its param file and needs no flag.
+    bool load(AAssetManager* assets, const char* paramPath, const char* binPath, int inputSize = kInputSize,
+              int roiInputSize = kRoiInputSize, bool fp16Arithmetic = false,
+              const NanoDetOptions& options = NanoDetOptions());
+
+    // Threads, cluster and lightmode apply from the next inference on; a
+    // packing change reloads the model. Like load(), must not overlap detect().
+    bool setOptions(const NanoDetOptions& options);
+
+    int inputSize() const { return inputSize_; }
+    int roiInputSize() const { return roiInputSize_; }
+
+    // Boxes are returned in upright frame pixels. classFilter >= 0 keeps only
+    // that class id and is applied while decoding, before NMS; -1 keeps all.
+    // roi (upright pixels, may be null) restricts inference to that window,
+    // scaled up to fill the input. objects is cleared first so callers can
+    // reuse its capacity.
+    bool detectYuv(const YuvPlanes& planes, int rotationDegrees, const RoiRect* roi, int classFilter,
+                   std::vector<Object>& objects) const;
+    bool detectMat(const ncnn::Mat& in, const Letterbox& letterbox, int classFilter,
+                   std::vector<Object>& objects) const;
+
+    // The preprocessing half of detectYuv(), split out so a pipeline can run it
+    // on the next frame while this one is in detectMat(). Needs no model, just
+    // its input size (inputSize() or roiInputSize() for a crop).
+    static void preprocessYuv(const YuvPlanes& planes, int rotationDegrees, const RoiRect* roi,
+                              int size, NanoDetInput* input);
+
+    // Median wall time in ms of runs full-size forward passes on a blank
+    // input, after warmup untimed ones. -1 if the model isn't loaded.
+    float benchmark(int warmup, int runs) const;
+
+private:
+    bool loadFromAssets(AAssetManager* assets, const char* paramName, const char* binName);
+    void closeModelAsset();
+    int threadCount() const;
+    // Thread count, lightmode and (once per thread and setting) core affinity
+    void configure(ncnn::Extractor& ex) const;
+
+    ncnn::Net net_;
+    bool ready_ = false;
+    int inputSize_ = kInputSize;
+    int roiInputSize_ = kRoiInputSize;
+    bool fp16Arithmetic_ = false;
+    NanoDetOptions options_;
+    AAssetManager* assets_ = 0;
+    std::string paramPath_;
+    std::string binPath_;
+    // Mapped weights the net references, when loaded from assets
+    AAsset* modelAsset_ = 0;
+};
+
+extern const float kNanoDetMean[3];
+extern const float kNanoDetNorm[3];
+
+#endif // STARPOINTER_NANODET_H
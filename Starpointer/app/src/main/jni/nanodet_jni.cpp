@@ -0,0 +1,163 @@
+#include <jni.h>
+#include <android/asset_manager_jni.h>
+#include <android/bitmap.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "jni_common.h"
+#include "nanodet.h"
+
+namespace {
+
+NanoDet* fromHandle(jlong handle) {
+    return reinterpret_cast<NanoDet*>(handle);
+}
+
+NanoDetOptions toOptions(jint numThreads, jint powersave, jboolean lightmode, jboolean packingLayout) {
+    NanoDetOptions options;
+    options.numThreads = numThreads;
+    options.powersave = powersave;
+    options.lightmode = lightmode;
+    options.packingLayout = packingLayout;
+    return options;
+}
+
+} // namespace
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeCreate(JNIEnv* env, jclass /* clazz */,
+                                                        jobject assetManager,
+                                                        jstring paramPath, jstring binPath,
+                                                        jint inputSize, jint roiInputSize,
+                                                        jboolean fp16Arithmetic,
+                                                        jint numThreads, jint powersave,
+                                                        jboolean lightmode, jboolean packingLayout) {
+    const char* param = env->GetStringUTFChars(paramPath, 0);
+    const char* bin = env->GetStringUTFChars(binPath, 0);
+
+    // Null assetManager: the paths are files
+    AAssetManager* assets = assetManager != 0 ? AAssetManager_fromJava(env, assetManager) : 0;
+    NanoDet* nanodet = new NanoDet();
+    bool ok = nanodet->load(assets, param, bin, inputSize, roiInputSize, fp16Arithmetic,
+                            toOptions(numThreads, powersave, lightmode, packingLayout));
+
+    env->ReleaseStringUTFChars(binPath, bin);
+    env->ReleaseStringUTFChars(paramPath, param);
+
+    if (!ok) {
+        delete nanodet;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(nanodet);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeDestroy(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    delete fromHandle(handle);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeSetOptions(JNIEnv* /* env */, jclass /* clazz */, jlong handle,
+                                                            jint numThreads, jint powersave,
+                                                            jboolean lightmode, jboolean packingLayout) {
+    return fromHandle(handle)->setOptions(toOptions(numThreads, powersave, lightmode, packingLayout));
+}
+
+extern "C" JNIEXPORT jfloat JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeBenchmark(JNIEnv* /* env */, jclass /* clazz */, jlong handle,
+                                                           jint warmup, jint runs) {
+    return fromHandle(handle)->benchmark(warmup, runs);
+}
+
+// Legacy path: Bitmap decoded from the JPEG round trip
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeDetectBitmap(JNIEnv* env, jclass /* clazz */,
+                                                              jlong handle, jobject bitmap, jint classFilter,
+                                                              jintArray classIds, jfloatArray values) {
+    NanoDet* nanodet = fromHandle(handle);
+    std::vector<Object>& objects = scratchObjects();
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return 0;
+    }
+
+    const int size = nanodet->inputSize();
+    const float scale = std::min((float) size / info.width, (float) size / info.height);
+    const int w = (int) (info.width * scale + 0.5f);
+    const int h = (int) (info.height * scale + 0.5f);
+    ncnn::Mat resized = ncnn::Mat::from_android_bitmap_resize(env, bitmap, ncnn::Mat::PIXEL_BGR, w, h);
+    const int padX = (size - w) / 2;
+    const int padY = (size - h) / 2;
+    resized.substract_mean_normalize(kNanoDetMean, kNanoDetNorm);
+    ncnn::Mat in;
+    ncnn::copy_make_border(resized, in, padY, size - h - padY, padX, size - w - padX,
+                           ncnn::BORDER_CONSTANT, 0.f);
+
+    Letterbox lb = {scale, (float) padX, (float) padY, 0.f, 0.f, (int) info.width, (int) info.height};
+    nanodet->detectMat(in, lb, classFilter, objects);
+    return writeResults(env, objects, classIds, values);
+}
+
+// Direct path: YUV_420_888 planes straight into the input Mat, no JPEG or Bitmap.
+// An empty roi (width or height <= 0) means the whole frame.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeDetectYuv(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                           jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                                                           jint width, jint height,
+                                                           jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                                                           jint rotationDegrees,
+                                                           jint roiX, jint roiY, jint roiWidth, jint roiHeight,
+                                                           jint classFilter,
+                                                           jintArray classIds, jfloatArray values) {
+    NanoDet* nanodet = fromHandle(handle);
+    std::vector<Object>& objects = scratchObjects();
+    YuvPlanes planes;
+    if (!planesFromBuffers(env, yBuffer, uBuffer, vBuffer, width, height,
+                           yRowStride, uvRowStride, uvPixelStride, &planes)) {
+        return 0;
+    }
+
+    RoiRect roi = {roiX, roiY, roiWidth, roiHeight};
+    nanodet->detectYuv(planes, rotationDegrees, roiWidth > 0 && roiHeight > 0 ? &roi : 0, classFilter, objects);
+    return writeResults(env, objects, classIds, values);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeCreateInput(JNIEnv* /* env */, jclass /* clazz */) {
+    return reinterpret_cast<jlong>(new NanoDetInput());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeDestroyInput(JNIEnv* /* env */, jclass /* clazz */, jlong input) {
+    delete reinterpret_cast<NanoDetInput*>(input);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativePreprocessYuv(JNIEnv* env, jclass /* clazz */, jlong input,
+                                                               jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                                                               jint width, jint height,
+                                                               jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                                                               jint rotationDegrees,
+                                                               jint roiX, jint roiY, jint roiWidth, jint roiHeight,
+                                                               jint size) {
+    YuvPlanes planes;
+    if (!planesFromBuffers(env, yBuffer, uBuffer, vBuffer, width, height,
+                           yRowStride, uvRowStride, uvPixelStride, &planes)) {
+        return JNI_FALSE;
+    }
+    RoiRect roi = {roiX, roiY, roiWidth, roiHeight};
+    NanoDet::preprocessYuv(planes, rotationDegrees, roiWidth > 0 && roiHeight > 0 ? &roi : 0, size,
+                           reinterpret_cast<NanoDetInput*>(input));
+    return JNI_TRUE;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_NanoDetEngine_nativeDetectInput(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                             jlong input, jint classFilter,
+                                                             jintArray classIds, jfloatArray values) {
+    const NanoDetInput* in = reinterpret_cast<const NanoDetInput*>(input);
+    std::vector<Object>& objects = scratchObjects();
+    fromHandle(handle)->detectMat(in->mat, in->letterbox, classFilter, objects);
+    return writeResults(env, objects, classIds, values);
+}
@@ -0,0 +1,54 @@
+#include "plate_index.h"
+
+#include <string.h>
+
+bool plateTriangleShape(float dAB, float dBC, float dCA, float* r1, float* r2, int order[3]) {
+    // Each side with the vertex opposite it
+    float side[3] = {dBC, dCA, dAB};
+    int vertex[3] = {0, 1, 2};
+    for (int i = 0; i < 2; i++) {
+        for (int j = 0; j < 2 - i; j++) {
+            if (side[j] < side[j + 1]) {
+                float s = side[j];
+                side[j] = side[j + 1];
+                side[j + 1] = s;
+                int v = vertex[j];
+                vertex[j] = vertex[j + 1];
+                vertex[j + 1] = v;
+            }
+        }
+    }
+    if (side[0] <= 0.f) return false;
+    if (side[0] - side[1] < kPlateMinSideGap * side[0] || side[1] - side[2] < kPlateMinSideGap * side[0]) {
+        return false;
+    }
+    *r1 = side[1] / side[0];
+    *r2 = side[2] / side[0];
+    order[0] = vertex[0];
+    order[1] = vertex[1];
+    order[2] = vertex[2];
+    return true;
+}
+
+bool PlateIndex::attach(const void* data, size_t size) {
+    header_ = 0;
+    if (data == 0 || size < sizeof(PlateIndexHeader)) return false;
+    const PlateIndexHeader* h = (const PlateIndexHeader*) data;
+    if (memcmp(h->magic, "SPIX", 4) != 0 || h->version != kPlateIndexVersion || h->binsPerAxis == 0) {
+        return false;
+    }
+    const size_t bins = (size_t) h->binsPerAxis * h->binsPerAxis;
+    const size_t expected = sizeof(PlateIndexHeader) + h->starCount * sizeof(PlateStar) +
+                            (bins + 1) * sizeof(uint32_t) + h->triangleCount * sizeof(PlateTriangle);
+    if (size < expected) return false;
+
+    const uint8_t* p = (const uint8_t*) data + sizeof(PlateIndexHeader);
+    stars_ = (const PlateStar*) p;
+    p += h->starCount * sizeof(PlateStar);
+    binStart_ = (const uint32_t*) p;
+    p += (bins + 1) * sizeof(uint32_t);
+    triangles_ = (const PlateTriangle*) p;
+    if (binStart_[bins] != h->triangleCount) return false;
+    header_ = h;
+    return true;
+}
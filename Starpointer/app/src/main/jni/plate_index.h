@@ -0,0 +1,80 @@
+#ifndef STARPOINTER_PLATE_INDEX_H
+#define STARPOINTER_PLATE_INDEX_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// On-disk layout of plate_index.bin, written by host/build_plate_index.cpp and
+// used in place (memory-mapped asset), so every field is 4-byte aligned and
+// little-endian:
+//
+//   PlateIndexHeader
+//   PlateStar      stars[starCount]                 brightest first
+//   uint32_t       binStart[binsPerAxis^2 + 1]      into triangles[]
+//   PlateTriangle  triangles[triangleCount]         grouped by hash bin
+//
+// Triangles are hashed by their shape: with sides L >= M >= S the invariants
+// (M / L, S / L) don't change under rotation or scale, so the same triangle
+// of stars lands in the same bin wherever it sits in the frame.
+struct PlateIndexHeader {
+    char magic[4]; // "SPIX"
+    uint32_t version;
+    uint32_t starCount;
+    uint32_t triangleCount;
+    uint32_t binsPerAxis;
+    float minSideRad;
+    float maxSideRad;
+    uint32_t reserved;
+};
+
+struct PlateStar {
+    float x, y, z; // unit vector, J2000 equatorial
+    float mag;
+};
+
+// a is the vertex opposite the longest side, b opposite the middle one,
+// c opposite the shortest
+struct PlateTriangle {
+    float r1; // M / L
+    float r2; // S / L
+    uint16_t a, b, c;
+    uint16_t pad;
+};
+
+const uint32_t kPlateIndexVersion = 1;
+
+// Sides closer than this fraction can swap order under noise, which would
+// scramble the vertex labelling; such triangles are neither indexed nor queried
+const float kPlateMinSideGap = 0.03f;
+
+// Orders the vertices of a triangle with the given side lengths (dAB, dBC,
+// dCA) and computes its invariants. Returns false for ambiguous shapes.
+// order receives the input vertex (0, 1, 2) for a, b and c.
+bool plateTriangleShape(float dAB, float dBC, float dCA, float* r1, float* r2, int order[3]);
+
+inline int plateBin(float r, int binsPerAxis) {
+    int b = (int) (r * binsPerAxis);
+    return b < 0 ? 0 : (b >= binsPerAxis ? binsPerAxis - 1 : b);
+}
+
+// Read-only view over an index blob. Does not own the memory.
+class PlateIndex {
+public:
+    bool attach(const void* data, size_t size);
+
+    const PlateIndexHeader& header() const { return *header_; }
+    const PlateStar* stars() const { return stars_; }
+    int starCount() const { return (int) header_->starCount; }
+    const PlateTriangle* triangles() const { return triangles_; }
+    int binsPerAxis() const { return (int) header_->binsPerAxis; }
+    // Triangles in bin (i1, i2) are [binStart(i), binStart(i + 1))
+    uint32_t binStart(int bin) const { return binStart_[bin]; }
+
+private:
+    const PlateIndexHeader* header_ = 0;
+    const PlateStar* stars_ = 0;
+    const uint32_t* binStart_ = 0;
+    const PlateTriangle* triangles_ = 0;
+};
+
+#endif // STARPOINTER_PLATE_INDEX_H
@@ -0,0 +1,306 @@
+#include "plate_solver.h"
+
+#include <math.h>
+#include <algorithm>
+
+namespace {
+
+const int kMaxImageStars = 32;
+// Good enough to stop looking for a better hypothesis
+const int kConfidentMatches = 12;
+const int kMaxMatches = 64;
+const float kPi = 3.14159265f;
+
+struct Vec3 {
+    float x, y, z;
+};
+
+inline Vec3 sub(const Vec3& a, const Vec3& b) { Vec3 r = {a.x - b.x, a.y - b.y, a.z - b.z}; return r; }
+inline float dot(const Vec3& a, const Vec3& b) { return a.x * b.x + a.y * b.y + a.z * b.z; }
+
+inline Vec3 cross(const Vec3& a, const Vec3& b) {
+    Vec3 r = {a.y * b.z - a.z * b.y, a.z * b.x - a.x * b.z, a.x * b.y - a.y * b.x};
+    return r;
+}
+
+inline Vec3 normalize(const Vec3& v) {
+    const float n = sqrtf(dot(v, v));
+    Vec3 r = {v.x / n, v.y / n, v.z / n};
+    return r;
+}
+
+inline float angle(const Vec3& a, const Vec3& b) {
+    return acosf(std::max(-1.f, std::min(1.f, dot(a, b))));
+}
+
+// Camera frame: x right, y down, z along the optical axis
+inline Vec3 pixelRay(float x, float y, float cx, float cy, float focal) {
+    Vec3 v = {x - cx, y - cy, focal};
+    return normalize(v);
+}
+
+inline Vec3 catalogVector(const PlateStar& s) {
+    Vec3 v = {s.x, s.y, s.z};
+    return v;
+}
+
+// Rotation taking camera vectors to sky vectors, rows m[0..2]
+struct Mat3 {
+    Vec3 m[3];
+
+    Vec3 apply(const Vec3& v) const {
+        Vec3 r = {dot(m[0], v), dot(m[1], v), dot(m[2], v)};
+        return r;
+    }
+
+    Vec3 applyTransposed(const Vec3& v) const {
+        Vec3 r = {m[0].x * v.x + m[1].x * v.y + m[2].x * v.z,
+                  m[0].y * v.x + m[1].y * v.y + m[2].y * v.z,
+                  m[0].z * v.x + m[1].z * v.y + m[2].z * v.z};
+        return r;
+    }
+};
+
+// TRIAD: attitude from two vector pairs, exact on the first
+Mat3 triad(const Vec3& b1, const Vec3& b2, const Vec3& r1, const Vec3& r2) {
+    const Vec3 tb2 = normalize(cross(b1, b2));
+    const Vec3 tb3 = cross(b1, tb2);
+    const Vec3 tr2 = normalize(cross(r1, r2));
+    const Vec3 tr3 = cross(r1, tr2);
+    // R = [r1 tr2 tr3] * [b1 tb2 tb3]^T
+    Mat3 R;
+    R.m[0].x = r1.x * b1.x + tr2.x * tb2.x + tr3.x * tb3.x;
+    R.m[0].y = r1.x * b1.y + tr2.x * tb2.y + tr3.x * tb3.y;
+    R.m[0].z = r1.x * b1.z + tr2.x * tb2.z + tr3.x * tb3.z;
+    R.m[1].x = r1.y * b1.x + tr2.y * tb2.x + tr3.y * tb3.x;
+    R.m[1].y = r1.y * b1.y + tr2.y * tb2.y + tr3.y * tb3.y;
+    R.m[1].z = r1.y * b1.z + tr2.y * tb2.z + tr3.y * tb3.z;
+    R.m[2].x = r1.z * b1.x + tr2.z * tb2.x + tr3.z * tb3.x;
+    R.m[2].y = r1.z * b1.y + tr2.z * tb2.y + tr3.z * tb3.y;
+    R.m[2].z = r1.z * b1.z + tr2.z * tb2.z + tr3.z * tb3.z;
+    return R;
+}
+
+// Detections of one solve() call
+struct Frame {
+    const float* xs;
+    const float* ys;
+    int count;
+    int width;
+    int height;
+    float cx;
+    float cy;
+    float matchRadiusSq;
+};
+
+struct Match {
+    int detection;
+    int star;
+};
+
+// Projects the catalog through attitude R and focal length, pairs every star
+// landing in the frame with a detection within the match radius. Returns the
+// number of pairs; inFrame receives the number of stars predicted in frame.
+int verify(const PlateIndex& index, const Frame& f, const Mat3& R, float focal, int* inFrame,
+           Match* matches, int capacity) {
+    const Vec3 forward = {0.f, 0.f, 1.f};
+    const Vec3 boresight = R.apply(forward);
+    // Catalog stars further than this from the centre can't be in the frame
+    const float minCos = cosf(atanf(sqrtf(f.cx * f.cx + f.cy * f.cy) / focal));
+    const PlateStar* stars = index.stars();
+    int found = 0;
+    *inFrame = 0;
+    for (int s = 0; s < index.starCount(); s++) {
+        const Vec3 v = catalogVector(stars[s]);
+        if (dot(v, boresight) < minCos) continue;
+        const Vec3 c = R.applyTransposed(v);
+        const float px = f.cx + focal * c.x / c.z;
+        const float py = f.cy + focal * c.y / c.z;
+        if (px < 0.f || py < 0.f || px >= f.width || py >= f.height) continue;
+        (*inFrame)++;
+        for (int d = 0; d < f.count; d++) {
+            const float dx = f.xs[d] - px;
+            const float dy = f.ys[d] - py;
+            if (dx * dx + dy * dy < f.matchRadiusSq) {
+                if (found < capacity) {
+                    matches[found].detection = d;
+                    matches[found].star = s;
+                }
+                found++;
+                break;
+            }
+        }
+    }
+    return found;
+}
+
+// The triangle alone pins down attitude and scale only roughly; refit both
+// to every confirmed star: focal length from the angles between them, then
+// TRIAD on the two matches furthest apart
+void refine(const PlateIndex& index, const Frame& f, Mat3* R, float* focal) {
+    Match matches[kMaxMatches];
+    for (int iteration = 0; iteration < 2; iteration++) {
+        int inFrame;
+        const int n = std::min(verify(index, f, *R, *focal, &inFrame, matches, kMaxMatches), kMaxMatches);
+        if (n < 2) return;
+
+        // Pixel angles shrink roughly as 1 / focal, so rescale until the
+        // summed angles between confirmed stars agree with the catalog
+        const int used = std::min(n, 16);
+        float skySum = 0.f;
+        for (int a = 0; a < used; a++) {
+            for (int b = a + 1; b < used; b++) {
+                skySum += angle(catalogVector(index.stars()[matches[a].star]),
+                                catalogVector(index.stars()[matches[b].star]));
+            }
+        }
+        for (int step = 0; step < 3; step++) {
+            Vec3 rays[16];
+            for (int a = 0; a < used; a++) {
+                rays[a] = pixelRay(f.xs[matches[a].detection], f.ys[matches[a].detection], f.cx, f.cy, *focal);
+            }
+            float pixelSum = 0.f;
+            for (int a = 0; a < used; a++) {
+                for (int b = a + 1; b < used; b++) pixelSum += angle(rays[a], rays[b]);
+            }
+            if (skySum <= 0.f || pixelSum <= 0.f) return;
+            *focal *= pixelSum / skySum;
+        }
+
+        int bi = 0;
+        int bj = 1;
+        float widest = -1.f;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                const float dx = f.xs[matches[i].detection] - f.xs[matches[j].detection];
+                const float dy = f.ys[matches[i].detection] - f.ys[matches[j].detection];
+                if (dx * dx + dy * dy > widest) {
+                    widest = dx * dx + dy * dy;
+                    bi = i;
+                    bj = j;
+                }
+            }
+        }
+        const int di = matches[bi].detection;
+        const int dj = matches[bj].detection;
+        *R = triad(pixelRay(f.xs[di], f.ys[di], f.cx, f.cy, *focal),
+                   pixelRay(f.xs[dj], f.ys[dj], f.cx, f.cy, *focal),
+                   catalogVector(index.stars()[matches[bi].star]),
+                   catalogVector(index.stars()[matches[bj].star]));
+    }
+}
+
+} // namespace
+
+bool PlateSolver::solve(const float* xs, const float* ys, int count, int width, int height, float focalPx,
+                        PlateSolution* solution) const {
+    const int n = std::min(std::min(count, maxImageStars), kMaxImageStars);
+    if (n < 3 || focalPx <= 0.f) return false;
+
+    const PlateIndexHeader& header = index_.header();
+    const PlateStar* stars = index_.stars();
+    const PlateTriangle* triangles = index_.triangles();
+    const int bins = index_.binsPerAxis();
+    const float cx = width * 0.5f;
+    const float cy = height * 0.5f;
+    const float matchRadius = std::max(3.f, 0.008f * std::max(width, height));
+    const Frame frame = {xs, ys, count, width, height, cx, cy, matchRadius * matchRadius};
+
+    Vec3 rays[kMaxImageStars];
+    for (int i = 0; i < n; i++) rays[i] = pixelRay(xs[i], ys[i], cx, cy, focalPx);
+
+    int bestMatches = 0;
+    Mat3 bestR = {};
+    float bestFocal = 0.f;
+
+    // Small index combinations first, so the brightest stars are tried early
+    for (int k = 2; k < n && bestMatches < kConfidentMatches; k++) {
+        for (int j = 1; j < k && bestMatches < kConfidentMatches; j++) {
+            for (int i = 0; i < j && bestMatches < kConfidentMatches; i++) {
+                const int vertex[3] = {i, j, k};
+                const float dAB = angle(rays[i], rays[j]);
+                const float dBC = angle(rays[j], rays[k]);
+                const float dCA = angle(rays[k], rays[i]);
+                float r1, r2;
+                int order[3];
+                if (!plateTriangleShape(dAB, dBC, dCA, &r1, &r2, order)) continue;
+                const float longest = std::max(dAB, std::max(dBC, dCA));
+                // The focal guess may be off by 2x either way
+                if (longest < 0.5f * header.minSideRad || longest > 2.f * header.maxSideRad) continue;
+
+                const int ia = vertex[order[0]];
+                const int ib = vertex[order[1]];
+                const int ic = vertex[order[2]];
+                const float pixelLongest = sqrtf((xs[ib] - xs[ic]) * (xs[ib] - xs[ic]) +
+                                                 (ys[ib] - ys[ic]) * (ys[ib] - ys[ic]));
+
+                const int b1Lo = plateBin(r1 - shapeTolerance, bins);
+                const int b1Hi = plateBin(r1 + shapeTolerance, bins);
+                const int b2Lo = plateBin(r2 - shapeTolerance, bins);
+                const int b2Hi = plateBin(r2 + shapeTolerance, bins);
+                for (int b1 = b1Lo; b1 <= b1Hi; b1++) {
+                    for (int b2 = b2Lo; b2 <= b2Hi; b2++) {
+                        const int bin = b1 * bins + b2;
+                        for (uint32_t t = index_.binStart(bin); t < index_.binStart(bin + 1); t++) {
+                            const PlateTriangle& tri = triangles[t];
+                            if (fabsf(tri.r1 - r1) > shapeTolerance || fabsf(tri.r2 - r2) > shapeTolerance) {
+                                continue;
+                            }
+                            const Vec3 sa = catalogVector(stars[tri.a]);
+                            const Vec3 sb = catalogVector(stars[tri.b]);
+                            const Vec3 sc = catalogVector(stars[tri.c]);
+
+                            // Focal length that makes the longest side match the catalog
+                            const float skyLongest = angle(sb, sc);
+                            const float focal = pixelLongest / (2.f * tanf(skyLongest * 0.5f));
+                            if (focal < 0.5f * focalPx || focal > 2.f * focalPx) continue;
+
+                            const Vec3 ra = pixelRay(xs[ia], ys[ia], cx, cy, focal);
+                            const Vec3 rb = pixelRay(xs[ib], ys[ib], cx, cy, focal);
+                            const Vec3 rc = pixelRay(xs[ic], ys[ic], cx, cy, focal);
+                            // Mirror images have the same shape; reject them by handedness
+                            if (dot(cross(sub(rb, ra), sub(rc, ra)), ra) *
+                                dot(cross(sub(sb, sa), sub(sc, sa)), sa) <= 0.f) {
+                                continue;
+                            }
+                            Mat3 R = triad(rb, rc, sb, sc);
+                            float refinedFocal = focal;
+                            int inFrame;
+                            int matches = verify(index_, frame, R, focal, &inFrame, 0, 0);
+                            if (matches <= bestMatches || matches < minMatches) continue;
+                            refine(index_, frame, &R, &refinedFocal);
+                            if (refinedFocal < 0.5f * focalPx || refinedFocal > 2.f * focalPx) continue;
+                            matches = verify(index_, frame, R, refinedFocal, &inFrame, 0, 0);
+
+                            // A wrong attitude can line up a few stars by chance, but
+                            // then most of the stars it predicts are missing
+                            if (matches > bestMatches && matches >= minMatchFraction * inFrame) {
+                                bestMatches = matches;
+                                bestR = R;
+                                bestFocal = refinedFocal;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    if (bestMatches < minMatches) return false;
+
+    const Vec3 forward = {0.f, 0.f, 1.f};
+    const Vec3 up = {0.f, -1.f, 0.f};
+    const Vec3 b = bestR.apply(forward);
+    const Vec3 u = bestR.apply(up);
+    const float ra = atan2f(b.y, b.x);
+    const float dec = asinf(std::max(-1.f, std::min(1.f, b.z)));
+    const Vec3 north = {-sinf(dec) * cosf(ra), -sinf(dec) * sinf(ra), cosf(dec)};
+    const Vec3 east = {-sinf(ra), cosf(ra), 0.f};
+
+    solution->raDeg = (ra < 0.f ? ra + 2.f * kPi : ra) * 180.f / kPi;
+    solution->decDeg = dec * 180.f / kPi;
+    solution->rollDeg = atan2f(dot(u, east), dot(u, north)) * 180.f / kPi;
+    solution->focalPx = bestFocal;
+    solution->matches = bestMatches;
+    return true;
+}
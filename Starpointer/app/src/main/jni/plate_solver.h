@@ -0,0 +1,38 @@
+#ifndef STARPOINTER_PLATE_SOLVER_H
+#define STARPOINTER_PLATE_SOLVER_H
+
+#include "plate_index.h"
+
+struct PlateSolution {
+    float raDeg;   // pointing of the image centre, J2000
+    float decDeg;
+    float rollDeg; // position angle of image "up", north through east
+    float focalPx; // refined from the matched triangle
+    int matches;   // catalog stars confirmed in the frame
+};
+
+// Identifies the sky region from star centroids: every triangle among the
+// brightest image stars is looked up by shape in the index, each candidate
+// yields an attitude (TRIAD on the triangle's vertices) and the attitude
+// that lines up the most further catalog stars with detections wins.
+// Holds no per-call state, so one instance can be shared between threads.
+class PlateSolver {
+public:
+    explicit PlateSolver(const PlateIndex& index) : index_(index) {}
+
+    int maxImageStars = 16;
+    float shapeTolerance = 0.01f;
+    int minMatches = 5;
+    // Share of the catalog stars predicted in the frame that must be detected
+    float minMatchFraction = 0.4f;
+
+    // xs/ys are upright pixel centroids, brightest first. focalPx is a guess
+    // (from the lens field of view) and may be off by up to a factor of two.
+    bool solve(const float* xs, const float* ys, int count, int width, int height, float focalPx,
+               PlateSolution* solution) const;
+
+private:
+    const PlateIndex& index_;
+};
+
+#endif // STARPOINTER_PLATE_SOLVER_H
@@ -0,0 +1,80 @@
+#include <jni.h>
+#include <android/asset_manager_jni.h>
+#include <android/log.h>
+
+#include <algorithm>
+
+#include "jni_common.h"
+#include "plate_solver.h"
+
+#define TAG "PlateSolverJni"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+
+namespace {
+
+// Index asset kept open (and so mapped) for the solver's lifetime
+struct PlateSolverHandle {
+    explicit PlateSolverHandle(AAsset* asset) : asset(asset), solver(index) {}
+    ~PlateSolverHandle() { AAsset_close(asset); }
+
+    AAsset* asset;
+    PlateIndex index;
+    PlateSolver solver;
+};
+
+} // namespace
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_PlateSolver_nativeCreate(JNIEnv* env, jclass /* clazz */,
+                                                      jobject assetManager, jstring assetName) {
+    AAssetManager* manager = AAssetManager_fromJava(env, assetManager);
+    const char* name = env->GetStringUTFChars(assetName, 0);
+    // AASSET_MODE_BUFFER maps stored (uncompressed) entries straight from the APK
+    AAsset* asset = AAssetManager_open(manager, name, AASSET_MODE_BUFFER);
+    env->ReleaseStringUTFChars(assetName, name);
+    if (asset == 0) {
+        LOGE("Plate index asset not found");
+        return 0;
+    }
+    PlateSolverHandle* handle = new PlateSolverHandle(asset);
+    if (!handle->index.attach(AAsset_getBuffer(asset), (size_t) AAsset_getLength(asset))) {
+        LOGE("Plate index asset is invalid");
+        delete handle;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_PlateSolver_nativeDestroy(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    delete reinterpret_cast<PlateSolverHandle*>(handle);
+}
+
+// Stars are the box centres of a DetectionBuffer, brightest first.
+// result receives ra, dec, roll, focal length and match count.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_example_starpointer_PlateSolver_nativeSolve(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                     jint count, jfloatArray values,
+                                                     jint width, jint height, jfloat focalPx,
+                                                     jfloatArray result) {
+    PlateSolverHandle* solver = reinterpret_cast<PlateSolverHandle*>(handle);
+    const int kMaxStars = 64;
+    float xs[kMaxStars];
+    float ys[kMaxStars];
+    const int n = std::min(std::min((int) count, (int) env->GetArrayLength(values) / kStride), kMaxStars);
+    if (n < 3) return JNI_FALSE;
+
+    jfloat* in = (jfloat*) env->GetPrimitiveArrayCritical(values, 0);
+    for (int i = 0; i < n; i++) {
+        xs[i] = (in[i * kStride + 1] + in[i * kStride + 3]) * 0.5f;
+        ys[i] = (in[i * kStride + 2] + in[i * kStride + 4]) * 0.5f;
+    }
+    env->ReleasePrimitiveArrayCritical(values, in, JNI_ABORT);
+
+    PlateSolution solution;
+    if (!solver->solver.solve(xs, ys, n, width, height, focalPx, &solution)) return JNI_FALSE;
+    const jfloat out[5] = {solution.raDeg, solution.decDeg, solution.rollDeg, solution.focalPx,
+                           (jfloat) solution.matches};
+    env->SetFloatArrayRegion(result, 0, 5, out);
+    return JNI_TRUE;
+}
@@ -0,0 +1,198 @@
+#include "star_detector.h"
+
+#include <math.h>
+#include <string.h>
+#include <algorithm>
+
+const int StarDetector::kTile;
+const int StarDetector::kMaxStars;
+
+namespace {
+
+// Neighbours are grown down to this many sigma once a seed clears the threshold
+const float kGrowSigma = 2.5f;
+const float kMinSigma = 1.f;
+
+inline void toUpright(int rotation, int width, int height, float sx, float sy, float* ux, float* uy) {
+    switch (rotation) {
+        case 90: *ux = height - 1 - sy; *uy = sx; break;
+        case 180: *ux = width - 1 - sx; *uy = height - 1 - sy; break;
+        case 270: *ux = sy; *uy = width - 1 - sx; break;
+        default: *ux = sx; *uy = sy; break;
+    }
+}
+
+} // namespace
+
+void StarDetector::estimateBackground(const YuvPlanes& planes) {
+    for (int ty = 0; ty < tilesY_; ty++) {
+        const int y0 = ty * kTile;
+        const int y1 = std::min(y0 + kTile, height_);
+        for (int tx = 0; tx < tilesX_; tx++) {
+            const int x0 = tx * kTile;
+            const int x1 = std::min(x0 + kTile, width_);
+
+            // Every other pixel, then once more with bright outliers (stars) clipped
+            float mean = 0.f;
+            float sigma = 0.f;
+            float clip = 256.f;
+            for (int pass = 0; pass < 2; pass++) {
+                int n = 0;
+                int sum = 0;
+                int sumSq = 0;
+                for (int y = y0; y < y1; y += 2) {
+                    const uint8_t* row = planes.y + y * planes.yRowStride;
+                    for (int x = x0; x < x1; x += 2) {
+                        int v = row[x];
+                        if (v >= clip) continue;
+                        sum += v;
+                        sumSq += v * v;
+                        n++;
+                    }
+                }
+                if (n == 0) break;
+                mean = (float) sum / n;
+                sigma = sqrtf(std::max(0.f, (float) sumSq / n - mean * mean));
+                clip = mean + 3.f * std::max(sigma, kMinSigma);
+            }
+
+            const int t = ty * tilesX_ + tx;
+            background_[t] = mean;
+            noise_[t] = std::max(sigma, kMinSigma);
+            threshold_[t] = mean + thresholdSigma * noise_[t];
+        }
+    }
+}
+
+int StarDetector::detect(const YuvPlanes& planes, int rotationDegrees, Star* out, int capacity) {
+    if (planes.width != width_ || planes.height != height_) {
+        width_ = planes.width;
+        height_ = planes.height;
+        tilesX_ = (width_ + kTile - 1) / kTile;
+        tilesY_ = (height_ + kTile - 1) / kTile;
+        background_.assign(tilesX_ * tilesY_, 0.f);
+        threshold_.assign(tilesX_ * tilesY_, 0.f);
+        noise_.assign(tilesX_ * tilesY_, 0.f);
+        visited_.assign(width_ * height_, 0);
+        stack_.resize(maxArea * 8 + 8);
+        epoch_ = 0;
+    }
+
+    // visited_ holds the epoch a pixel was last filled in, so it only needs
+    // clearing once every 255 frames
+    if (++epoch_ == 0) {
+        memset(&visited_[0], 0, visited_.size());
+        epoch_ = 1;
+    }
+    const uint8_t epoch = epoch_;
+
+    estimateBackground(planes);
+
+    int found = 0;
+    const int stackCapacity = (int) stack_.size();
+    for (int y = 0; y < height_; y++) {
+        const uint8_t* row = planes.y + y * planes.yRowStride;
+        const float* thresholds = &threshold_[(y / kTile) * tilesX_];
+        uint8_t* visitedRow = &visited_[y * width_];
+        for (int x = 0; x < width_; x++) {
+            // Skip ahead over the tile span below threshold, which is almost all of it
+            const int tileEnd = std::min((x / kTile + 1) * kTile, width_);
+            const int limit = (int) thresholds[x / kTile];
+            while (x < tileEnd && row[x] <= limit) x++;
+            if (x == tileEnd) {
+                x--;
+                continue;
+            }
+            if (visitedRow[x] == epoch) continue;
+
+            const int tile = (y / kTile) * tilesX_ + x / kTile;
+            const float bg = background_[tile];
+            const float sigma = noise_[tile];
+            const int grow = (int) (bg + kGrowSigma * sigma);
+
+            // 8-connected flood fill; once a blob exceeds maxArea it is
+            // rejected and no longer expanded
+            int top = 0;
+            stack_[top++] = y * width_ + x;
+            visitedRow[x] = epoch;
+            int area = 0;
+            float sumW = 0.f;
+            float sumX = 0.f;
+            float sumY = 0.f;
+            bool rejected = false;
+            while (top > 0) {
+                const int p = stack_[--top];
+                const int py = p / width_;
+                const int px = p - py * width_;
+                const float w = planes.y[py * planes.yRowStride + px] - bg;
+                area++;
+                sumW += w;
+                sumX += w * px;
+                sumY += w * py;
+                if (area > maxArea) rejected = true;
+                if (rejected) continue;
+
+                for (int dy = -1; dy <= 1; dy++) {
+                    const int ny = py + dy;
+                    if (ny < 0 || ny >= height_) continue;
+                    const uint8_t* nrow = planes.y + ny * planes.yRowStride;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        const int nx = px + dx;
+                        if (nx < 0 || nx >= width_ || (dx == 0 && dy == 0)) continue;
+                        const int q = ny * width_ + nx;
+                        if (visited_[q] == epoch || nrow[nx] <= grow) continue;
+                        if (top >= stackCapacity) {
+                            rejected = true;
+                            continue;
+                        }
+                        visited_[q] = epoch;
+                        stack_[top++] = q;
+                    }
+                }
+            }
+
+            if (rejected || area < minArea || sumW <= 0.f) continue;
+
+            Star star;
+            toUpright(((rotationDegrees % 360) + 360) % 360, width_, height_,
+                      sumX / sumW, sumY / sumW, &star.x, &star.y);
+            star.flux = sumW;
+            star.snr = sumW / (sigma * sqrtf((float) area));
+            star.area = area;
+
+            // Keep the kMaxStars brightest
+            if (found < kMaxStars) {
+                stars_[found++] = star;
+            } else {
+                int faintest = 0;
+                for (int i = 1; i < kMaxStars; i++) {
+                    if (stars_[i].flux < stars_[faintest].flux) faintest = i;
+                }
+                if (star.flux > stars_[faintest].flux) stars_[faintest] = star;
+            }
+        }
+    }
+
+    std::sort(stars_, stars_ + found, [](const Star& a, const Star& b) { return a.flux > b.flux; });
+    const int n = std::min(found, capacity);
+    std::copy(stars_, stars_ + n, out);
+    return n;
+}
+
+int StarDetector::detectObjects(const YuvPlanes& planes, int rotationDegrees, int classId, Object* objects,
+                                int capacity) {
+    Star stars[kMaxStars];
+    const int n = detect(planes, rotationDegrees, stars, std::min(capacity, (int) kMaxStars));
+    for (int i = 0; i < n; i++) {
+        const Star& s = stars[i];
+        const float radius = std::max(3.f, 2.f * sqrtf(s.area / 3.14159265f));
+        Object& o = objects[i];
+        o.x0 = s.x - radius;
+        o.y0 = s.y - radius;
+        o.x1 = s.x + radius;
+        o.y1 = s.y + radius;
+        o.label = classId;
+        o.score = s.snr / (s.snr + 10.f);
+    }
+    return n;
+}
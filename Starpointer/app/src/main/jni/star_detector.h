@@ -0,0 +1,55 @@
+#ifndef STARPOINTER_STAR_DETECTOR_H
+#define STARPOINTER_STAR_DETECTOR_H
+
+#include <stdint.h>
+#include <vector>
+
+#include "nanodet.h"
+#include "yuv_letterbox.h"
+
+struct Star {
+    float x;    // sub-pixel centroid, upright frame pixels
+    float y;
+    float flux; // background-subtracted sum over the blob
+    float snr;
+    int area;
+};
+
+// Classical point-source finder on the luminance plane: tiled background and
+// noise estimate, k-sigma threshold, 8-connected flood fill and an
+// intensity-weighted centroid per blob. All working memory is sized on the
+// first frame of a given resolution and reused afterwards.
+class StarDetector {
+public:
+    static const int kTile = 32;
+    static const int kMaxStars = 256;
+
+    float thresholdSigma = 5.f;
+    int minArea = 2;
+    int maxArea = 400;
+
+    // Returns the brightest stars (at most capacity), sorted by flux
+    int detect(const YuvPlanes& planes, int rotationDegrees, Star* stars, int capacity);
+
+    // Same result in NanoDet form: a box of about two blob radii around each
+    // centroid, score = SNR mapped to 0..1, label = classId
+    int detectObjects(const YuvPlanes& planes, int rotationDegrees, int classId, Object* objects,
+                      int capacity);
+
+private:
+    void estimateBackground(const YuvPlanes& planes);
+
+    int width_ = 0;
+    int height_ = 0;
+    int tilesX_ = 0;
+    int tilesY_ = 0;
+    std::vector<float> background_; // per tile
+    std::vector<float> threshold_;  // per tile, absolute luminance
+    std::vector<float> noise_;      // per tile sigma
+    std::vector<uint8_t> visited_;  // per pixel, epoch_ of the frame it was filled in
+    std::vector<int> stack_;        // flood fill
+    uint8_t epoch_ = 0;
+    Star stars_[kMaxStars];
+};
+
+#endif // STARPOINTER_STAR_DETECTOR_H
@@ -0,0 +1,43 @@
+#include <jni.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "jni_common.h"
+#include "star_detector.h"
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_example_starpointer_StarDetector_nativeCreate(JNIEnv* /* env */, jclass /* clazz */,
+                                                       jfloat thresholdSigma, jint minArea, jint maxArea) {
+    StarDetector* detector = new StarDetector();
+    detector->thresholdSigma = thresholdSigma;
+    detector->minArea = minArea;
+    detector->maxArea = maxArea;
+    return reinterpret_cast<jlong>(detector);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_example_starpointer_StarDetector_nativeDestroy(JNIEnv* /* env */, jclass /* clazz */, jlong handle) {
+    delete reinterpret_cast<StarDetector*>(handle);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_example_starpointer_StarDetector_nativeDetect(JNIEnv* env, jclass /* clazz */, jlong handle,
+                                                       jobject yBuffer, jobject uBuffer, jobject vBuffer,
+                                                       jint width, jint height,
+                                                       jint yRowStride, jint uvRowStride, jint uvPixelStride,
+                                                       jint rotationDegrees, jint classId,
+                                                       jintArray classIds, jfloatArray values) {
+    StarDetector* detector = reinterpret_cast<StarDetector*>(handle);
+    YuvPlanes planes;
+    if (!planesFromBuffers(env, yBuffer, uBuffer, vBuffer, width, height,
+                           yRowStride, uvRowStride, uvPixelStride, &planes)) {
+        return 0;
+    }
+    Object objects[StarDetector::kMaxStars];
+    const int capacity = std::min((int) env->GetArrayLength(classIds), (int) StarDetector::kMaxStars);
+    int n = detector->detectObjects(planes, rotationDegrees, classId, objects, capacity);
+    std::vector<Object>& results = scratchObjects();
+    results.assign(objects, objects + n);
+    return writeResults(env, results, classIds, values);
+}
@@ -0,0 +1,62 @@
+#include "tile_pool.h"
+
+#include <algorithm>
+
+const int TilePool::kMaxThreads;
+
+TilePool::TilePool(int threads) : next_(0) {
+    if (threads <= 0) threads = std::min((int) std::thread::hardware_concurrency(), kMaxThreads);
+    for (int i = 1; i < threads; i++) workers_.push_back(std::thread(&TilePool::work, this));
+}
+
+TilePool::~TilePool() {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        quit_ = true;
+    }
+    wake_.notify_all();
+    for (size_t i = 0; i < workers_.size(); i++) workers_[i].join();
+}
+
+void TilePool::run(int tiles, const std::function<void(int)>& fn) {
+    if (workers_.empty() || tiles <= 1) {
+        for (int t = 0; t < tiles; t++) fn(t);
+        return;
+    }
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        fn_ = &fn;
+        tiles_ = tiles;
+        next_.store(0);
+        busy_ = (int) workers_.size();
+        generation_++;
+    }
+    wake_.notify_all();
+    drain();
+    // Workers may still be finishing their last tile
+    std::unique_lock<std::mutex> lock(mutex_);
+    done_.wait(lock, [this] { return busy_ == 0; });
+    fn_ = 0;
+}
+
+void TilePool::drain() {
+    for (int t = next_.fetch_add(1); t < tiles_; t = next_.fetch_add(1)) (*fn_)(t);
+}
+
+void TilePool::work() {
+    unsigned seen = 0;
+    for (;;) {
+        {
+            std::unique_lock<std::mutex> lock(mutex_);
+            wake_.wait(lock, [this, seen] { return quit_ || generation_ != seen; });
+            if (quit_) return;
+            seen = generation_;
+        }
+        drain();
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            busy_--;
+        }
+        done_.notify_one();
+    }
+}
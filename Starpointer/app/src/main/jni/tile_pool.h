@@ -0,0 +1,44 @@
+#ifndef STARPOINTER_TILE_POOL_H
+#define STARPOINTER_TILE_POOL_H
+
+#include <atomic>
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// Persistent worker threads for splitting one image operation into tiles.
+// run() hands out tile indices from a shared counter to the workers and the
+// calling thread, and returns once every tile is done. One run() at a time.
+class TilePool {
+public:
+    // threads <= 0: one per core, at most kMaxThreads (the caller counts as one)
+    explicit TilePool(int threads = 0);
+    ~TilePool();
+    TilePool(const TilePool&) = delete;
+    TilePool& operator=(const TilePool&) = delete;
+
+    static const int kMaxThreads = 4;
+
+    int threads() const { return (int) workers_.size() + 1; }
+
+    void run(int tiles, const std::function<void(int)>& fn);
+
+private:
+    void work();
+    void drain();
+
+    std::vector<std::thread> workers_;
+    std::mutex mutex_;
+    std::condition_variable wake_;
+    std::condition_variable done_;
+    const std::function<void(int)>* fn_ = 0;
+    int tiles_ = 0;
+    std::atomic<int> next_;
+    int busy_ = 0;
+    unsigned generation_ = 0;
+    bool quit_ = false;
+};
+
+#endif // STARPOINTER_TILE_POOL_H
@@ -0,0 +1,159 @@
+#include "yuv_letterbox.h"
+
+#include <math.h>
+#include <string.h>
+
+namespace {
+
+const int kMaxSide = 1024;
+
+// Per output column (or row) lookup: byte offsets of the two bilinear
+// neighbours in the Y plane, the nearest chroma sample and the blend weight.
+struct Tap {
+    int y0;
+    int y1;
+    int c;
+    int w; // 0..256
+};
+
+inline int clampi(int v, int lo, int hi) {
+    return v < lo ? lo : (v > hi ? hi : v);
+}
+
+inline float clampf(float v) {
+    return v < 0.f ? 0.f : (v > 255.f ? 255.f : v);
+}
+
+// Each upright axis maps onto exactly one sensor axis, so the contribution of
+// an upright column (or row) index to the plane offsets is independent of the
+// other axis and can be tabulated once per frame.
+void sensorOffsets(const YuvPlanes& src, int rotation, bool column, int i, int* yOff, int* cOff) {
+    int sx = 0;
+    int sy = 0;
+    switch (rotation) {
+        case 90:
+            if (column) sy = src.height - 1 - i; else sx = i;
+            break;
+        case 180:
+            if (column) sx = src.width - 1 - i; else sy = src.height - 1 - i;
+            break;
+        case 270:
+            if (column) sy = i; else sx = src.width - 1 - i;
+            break;
+        default:
+            if (column) sx = i; else sy = i;
+            break;
+    }
+    *yOff = sy * src.yRowStride + sx;
+    *cOff = (sy >> 1) * src.uvRowStride + (sx >> 1) * src.uvPixelStride;
+}
+
+void buildTaps(const YuvPlanes& src, int rotation, bool column, int roiOrigin, int uprightExtent,
+               float scale, int pad, int count, Tap* taps) {
+    int unused;
+    for (int i = 0; i < count; i++) {
+        float u = roiOrigin + (i - pad + 0.5f) / scale - 0.5f;
+        if (u < 0.f) u = 0.f;
+        if (u > uprightExtent - 1) u = (float) (uprightExtent - 1);
+        int i0 = (int) u;
+        int i1 = i0 + 1 < uprightExtent ? i0 + 1 : i0;
+        int ic = clampi((int) (u + 0.5f), 0, uprightExtent - 1);
+        taps[i].w = (int) ((u - i0) * 256.f);
+        int c0, c1;
+        sensorOffsets(src, rotation, column, i0, &taps[i].y0, &c0);
+        sensorOffsets(src, rotation, column, i1, &taps[i].y1, &c1);
+        sensorOffsets(src, rotation, column, ic, &unused, &taps[i].c);
+    }
+}
+
+} // namespace
+
+void yuv420_letterbox_bgr(const YuvPlanes& src, int rotationDegrees, const RoiRect* roi,
+                          int dstWidth, int dstHeight, const float mean[3], const float norm[3],
+                          float* dst, int channelStep, Letterbox* letterbox) {
+    const int rotation = ((rotationDegrees % 360) + 360) % 360;
+    const bool swap = rotation == 90 || rotation == 270;
+    const int uprightW = swap ? src.height : src.width;
+    const int uprightH = swap ? src.width : src.height;
+
+    RoiRect r = {0, 0, uprightW, uprightH};
+    if (roi != 0 && roi->w > 0 && roi->h > 0) {
+        r.x = clampi(roi->x, 0, uprightW - 1);
+        r.y = clampi(roi->y, 0, uprightH - 1);
+        r.w = clampi(roi->w, 1, uprightW - r.x);
+        r.h = clampi(roi->h, 1, uprightH - r.y);
+    }
+
+    dstWidth = clampi(dstWidth, 1, kMaxSide);
+    dstHeight = clampi(dstHeight, 1, kMaxSide);
+
+    const float scale = fminf((float) dstWidth / r.w, (float) dstHeight / r.h);
+    const int scaledW = clampi((int) (r.w * scale + 0.5f), 1, dstWidth);
+    const int scaledH = clampi((int) (r.h * scale + 0.5f), 1, dstHeight);
+    const int padX = (dstWidth - scaledW) / 2;
+    const int padY = (dstHeight - scaledH) / 2;
+
+    if (letterbox != 0) {
+        letterbox->scale = scale;
+        letterbox->padX = (float) padX;
+        letterbox->padY = (float) padY;
+        letterbox->roiX = (float) r.x;
+        letterbox->roiY = (float) r.y;
+        letterbox->uprightWidth = uprightW;
+        letterbox->uprightHeight = uprightH;
+    }
+
+    Tap cols[kMaxSide];
+    Tap rows[kMaxSide];
+    buildTaps(src, rotation, true, r.x, uprightW, scale, padX, dstWidth, cols);
+    buildTaps(src, rotation, false, r.y, uprightH, scale, padY, dstHeight, rows);
+
+    float* outB = dst;
+    float* outG = dst + channelStep;
+    float* outR = dst + channelStep * 2;
+
+    for (int dy = 0; dy < dstHeight; dy++) {
+        float* b = outB + dy * dstWidth;
+        float* g = outG + dy * dstWidth;
+        float* rr = outR + dy * dstWidth;
+
+        if (dy < padY || dy >= padY + scaledH) {
+            memset(b, 0, dstWidth * sizeof(float));
+            memset(g, 0, dstWidth * sizeof(float));
+            memset(rr, 0, dstWidth * sizeof(float));
+            continue;
+        }
+
+        const Tap& row = rows[dy];
+        const uint8_t* yRow0 = src.y + row.y0;
+        const uint8_t* yRow1 = src.y + row.y1;
+        const uint8_t* uRow = src.u + row.c;
+        const uint8_t* vRow = src.v + row.c;
+        const int wy = row.w;
+
+        for (int dx = 0; dx < dstWidth; dx++) {
+            if (dx < padX || dx >= padX + scaledW) {
+                b[dx] = 0.f;
+                g[dx] = 0.f;
+                rr[dx] = 0.f;
+                continue;
+            }
+            const Tap& col = cols[dx];
+            const int wx = col.w;
+            int top = yRow0[col.y0] * (256 - wx) + yRow0[col.y1] * wx;
+            int bottom = yRow1[col.y0] * (256 - wx) + yRow1[col.y1] * wx;
+            float yv = (top * (256 - wy) + bottom * wy) * (1.f / 65536.f);
+            float uv = uRow[col.c] - 128.f;
+            float vv = vRow[col.c] - 128.f;
+
+            // BT.601 full range, which is what CameraX delivers for YUV_420_888
+            float rv = clampf(yv + 1.402f * vv);
+            float gv = clampf(yv - 0.344136f * uv - 0.714136f * vv);
+            float bv = clampf(yv + 1.772f * uv);
+
+            b[dx] = (bv - mean[0]) * norm[0];
+            g[dx] = (gv - mean[1]) * norm[1];
+            rr[dx] = (rv - mean[2]) * norm[2];
+        }
+    }
+}
@@ -0,0 +1,60 @@
+#ifndef STARPOINTER_YUV_LETTERBOX_H
+#define STARPOINTER_YUV_LETTERBOX_H
+
+#include <stdint.h>
+
+// One YUV_420_888 frame as handed out by ImageProxy.getPlanes(), without copying.
+// The U and V planes share row/pixel strides on every device CameraX supports.
+struct YuvPlanes {
+    const uint8_t* y;
+    const uint8_t* u;
+    const uint8_t* v;
+    int width;
+    int height;
+    int yRowStride;
+    int uvRowStride;
+    int uvPixelStride;
+};
+
+// Source window in upright (rotation applied) frame pixels.
+struct RoiRect {
+    int x;
+    int y;
+    int w;
+    int h;
+};
+
+// How a letterboxed model input maps back to the upright frame:
+// frame = (input - pad) / scale + roi origin
+struct Letterbox {
+    float scale;
+    float padX;
+    float padY;
+    float roiX;
+    float roiY;
+    int uprightWidth;
+    int uprightHeight;
+};
+
+// Byte offset in the Y plane of upright pixel (ux, uy). rotationDegrees is
+// normalized to 0, 90, 180 or 270; coordinates must already be in range.
+inline int uprightLumaOffset(const YuvPlanes& src, int rotationDegrees, int ux, int uy) {
+    switch (rotationDegrees) {
+        case 90: return (src.height - 1 - ux) * src.yRowStride + uy;
+        case 180: return (src.height - 1 - uy) * src.yRowStride + (src.width - 1 - ux);
+        case 270: return ux * src.yRowStride + (src.width - 1 - uy);
+        default: return uy * src.yRowStride + ux;
+    }
+}
+
+// Samples the (rotated) source window straight from the YUV planes into three
+// planar float channels laid out as B, G, R with the given channel step,
+// applying (pixel - mean) * norm on the fly. Padding is written as 0, which is
+// the normalized value of the mean colour.
+// rotationDegrees is ImageInfo.getRotationDegrees() (0, 90, 180 or 270).
+// roi may be null to use the whole upright frame.
+void yuv420_letterbox_bgr(const YuvPlanes& src, int rotationDegrees, const RoiRect* roi,
+                          int dstWidth, int dstHeight, const float mean[3], const float norm[3],
+                          float* dst, int channelStep, Letterbox* letterbox);
+
+#endif // STARPOINTER_YUV_LETTERBOX_H
@@ -13,13 +13,14 @@ import androidx.camera.core.*
 import androidx.camera.lifecycle.ProcessCameraProvider
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
-import java.io.File
+import com.example.burstwriter.BurstWriter
 
 class MainActivity : AppCompatActivity() {
 
     private lateinit var imageCapture: ImageCapture
     private val handler = Handler(Looper.getMainLooper())
     private var count = 0
+    private val writer by lazy { BurstWriter(BurstWriter.fileSink(getExternalFilesDir(null)!!)) }
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -68,24 +69,27 @@ class MainActivity : AppCompatActivity() {
                     captureImage()
                     count++
                     handler.postDelayed(this, 1000)
+                } else {
+                    val stats = writer.stats()
+                    Log.d("MainActivity", "Saved ${stats.written} images (%.1f/s, %.0f ms each), %d refused, %d failed"
+                        .format(stats.shotsPerSecond, stats.meanWriteMs, stats.refused, stats.failed))
                 }
             }
         })
     }
 
+    // Into memory; the writer saves it in the background
     private fun captureImage() {
-        val file = File(getExternalFilesDir(null), "image_${System.currentTimeMillis()}.jpg")
-        val outputOptions = ImageCapture.OutputFileOptions.Builder(file).build()
-
-        imageCapture.takePicture(outputOptions, ContextCompat.getMainExecutor(this), object : ImageCapture.OnImageSavedCallback {
-            override fun onImageSaved(outputFileResults: ImageCapture.OutputFileResults) {
-                Log.d("MainActivity", "Image saved: ${file.absolutePath}")
-            }
+        val name = "image_${System.currentTimeMillis()}"
+        writer.capture(imageCapture, name) { captured ->
+            if (!captured) Log.w("MainActivity", "Image $name not captured")
+        }
+    }
 
-            override fun onError(exception: ImageCaptureException) {
-                Log.e("MainActivity", "Error saving image", exception)
-            }
-        })
+    override fun onDestroy() {
+        super.onDestroy()
+        handler.removeCallbacksAndMessages(null)
+        writer.close()
     }
 
     override fun onRequestPermissionsResult(requestCode: Int, permissions: Array<out String>, grantResults: IntArray) {
@@ -36,6 +36,15 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    // BurstWriter, shared with the other capture apps; its JVM tests run here
+    sourceSets {
+        getByName("main") {
+            java.srcDir("../../shared/burstwriter/src/main/java")
+        }
+        getByName("test") {
+            java.srcDir("../../shared/burstwriter/src/test/java")
+        }
+    }
 }
 
 dependencies {
@@ -0,0 +1,94 @@
+package com.example.fin
+
+import android.os.SystemClock
+import android.util.Log
+import androidx.camera.core.Camera
+import androidx.camera.core.CameraSelector
+import androidx.camera.core.ExperimentalZeroShutterLag
+import androidx.camera.core.ImageCapture
+import androidx.camera.core.Preview
+import androidx.camera.lifecycle.ProcessCameraProvider
+import androidx.camera.view.PreviewView
+import androidx.core.content.ContextCompat
+import androidx.lifecycle.LifecycleOwner
+
+// The screen's one CameraX session: preview and still capture are bound in a
+// single bindToLifecycle, so the camera is configured once, and every control
+// works on the resulting Camera instead of binding use cases of its own.
+// Also times startup, from start() to the first preview frame and to the end
+// of the first still capture. Main thread only.
+@ExperimentalZeroShutterLag
+class CameraSession(
+    private val owner: LifecycleOwner,
+    private val viewFinder: PreviewView,
+    private val cameraSelector: CameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
+) {
+    var camera: Camera? = null
+        private set
+    var imageCapture: ImageCapture? = null
+        private set
+
+    private val pending = mutableListOf<(Camera) -> Unit>()
+    private var startNs = 0L
+    private var firstFrameLogged = false
+    private var firstCaptureLogged = false
+
+    fun start() {
+        if (startNs != 0L) return
+        startNs = SystemClock.elapsedRealtimeNanos()
+        viewFinder.previewStreamState.observe(owner) { state ->
+            if (state == PreviewView.StreamState.STREAMING && !firstFrameLogged) {
+                firstFrameLogged = true
+                Log.i(TAG, "First preview frame %.0f ms after start".format(sinceStartMs()))
+            }
+        }
+
+        val context = viewFinder.context
+        val cameraProviderFuture = ProcessCameraProvider.getInstance(context)
+        cameraProviderFuture.addListener({
+            val cameraProvider = cameraProviderFuture.get()
+            val preview = Preview.Builder()
+                .build()
+                .also { it.setSurfaceProvider(viewFinder.surfaceProvider) }
+            val imageCapture = ImageCapture.Builder()
+                .setCaptureMode(ImageCapture.CAPTURE_MODE_ZERO_SHUTTER_LAG)
+                .build()
+            try {
+                cameraProvider.unbindAll()
+                val camera = cameraProvider.bindToLifecycle(owner, cameraSelector, preview, imageCapture)
+                this.camera = camera
+                this.imageCapture = imageCapture
+                Log.i(TAG, "Use cases bound %.0f ms after start".format(sinceStartMs()))
+                pending.forEach { it(camera) }
+                pending.clear()
+            } catch (exc: Exception) {
+                Log.e(TAG, "Use case binding failed", exc)
+            }
+        }, ContextCompat.getMainExecutor(context))
+    }
+
+    // Runs block with the bound Camera: now if it is bound, else once it is
+    fun whenReady(block: (Camera) -> Unit) {
+        val camera = camera
+        if (camera != null) block(camera) else pending.add(block)
+    }
+
+    // Report a finished capture requested at requestedNs (elapsedRealtimeNanos);
+    // the first one is logged. Any thread.
+    fun onCaptureCompleted(requestedNs: Long) {
+        synchronized(this) {
+            if (firstCaptureLogged) return
+            firstCaptureLogged = true
+        }
+        val now = SystemClock.elapsedRealtimeNanos()
+        Log.i(TAG, "First capture done %.0f ms after start, %.0f ms after it was requested".format(
+            sinceStartMs(now), (now - requestedNs) / 1e6
+        ))
+    }
+
+    private fun sinceStartMs(now: Long = SystemClock.elapsedRealtimeNanos()) = (now - startNs) / 1e6
+
+    companion object {
+        private const val TAG = "CameraSession"
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.fin
+
+import android.os.SystemClock
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.thread
+import kotlin.concurrent.withLock
+import kotlin.math.sqrt
+
+// Fires shots on a fixed grid of deadlines, slot k at start + k * interval on
+// the monotonic clock, so neither the time a capture takes nor a late wakeup
+// shifts the slots after it. One capture is in flight at a time; a slot that
+// comes due while the previous capture is still running (or while no shooter
+// is attached) is handled by the MissedSlotPolicy. Runs on its own thread and
+// holds no reference to an Activity beyond the attached shooter, so it can be
+// kept in a ViewModel across recreation.
+class CaptureScheduler(
+    private val intervalNanos: Long,
+    private val slots: Long,
+    private val policy: MissedSlotPolicy,
+    // For MissedSlotPolicy.QUEUE: missed slots kept to shoot back to back later
+    private val queueLimit: Int = 2,
+    // Monotonic nanoseconds; replaceable so the scheduler runs off-device
+    private val clock: () -> Long = SystemClock::elapsedRealtimeNanos
+) {
+    init {
+        require(intervalNanos > 0) { "Interval must be positive, was $intervalNanos ns" }
+        require(slots > 0) { "Slot count must be positive, was $slots" }
+    }
+
+    enum class MissedSlotPolicy {
+        // Drop it; the next shot waits for its own slot
+        SKIP,
+        // Shoot once as soon as the capture in flight completes, however many
+        // slots were missed meanwhile
+        COALESCE,
+        // Shoot each missed slot as soon as possible, up to queueLimit of them
+        QUEUE
+    }
+
+    // Takes a picture and calls done exactly once, success or not, on any thread
+    fun interface Shooter {
+        fun shoot(done: () -> Unit)
+    }
+
+    class Stats {
+        var slots = 0L          // that came due
+        var shots = 0L
+        var completed = 0L
+        var dropped = 0L
+        var meanIntervalMs = 0.0 // between shots
+        var jitterMs = 0.0       // rms of shot time minus its slot's deadline
+        var maxLateMs = 0.0
+        var running = false
+    }
+
+    private val lock = ReentrantLock()
+    private val wake = lock.newCondition()
+    private var shooter: Shooter? = null
+    private var busy = false
+    private var cancelled = false
+    private var queued = 0
+    private var coalesced = false
+    // Deadline a pending (queued or coalesced) shot stands for
+    private val pendingDeadlines = ArrayDeque<Long>()
+
+    private val stats = Stats()
+    private var firstShotNs = 0L
+    private var lastShotNs = 0L
+    private var lateSumSq = 0.0
+
+    // Called with a fresh snapshot after every event, on the scheduler or a
+    // capture thread, never with the scheduler's lock held
+    @Volatile
+    var onStats: ((Stats) -> Unit)? = null
+
+    fun start() {
+        lock.withLock { stats.running = true }
+        thread(name = "CaptureScheduler") { run() }
+    }
+
+    // Detach before the Activity goes away, attach the new one after
+    fun attach(shooter: Shooter?) = lock.withLock {
+        this.shooter = shooter
+        wake.signalAll()
+    }
+
+    fun cancel() = lock.withLock {
+        cancelled = true
+        wake.signalAll()
+    }
+
+    fun stats(): Stats = lock.withLock { snapshot() }
+
+    private fun run() {
+        val start = clock()
+        var slot = 0L
+        lock.lock()
+        try {
+            while (!cancelled) {
+                // Pending shots go out as soon as nothing is in flight
+                if (!busy && shooter != null && pendingDeadlines.isNotEmpty()) {
+                    if (policy == MissedSlotPolicy.QUEUE) queued-- else coalesced = false
+                    fire(pendingDeadlines.removeFirst())
+                    continue
+                }
+                if (slot >= slots) {
+                    if (!busy && pendingDeadlines.isEmpty()) break
+                    wake.await()
+                    continue
+                }
+                val deadline = start + slot * intervalNanos
+                val wait = deadline - clock()
+                if (wait > 0) {
+                    wake.awaitNanos(wait)
+                    continue
+                }
+                slot++
+                stats.slots++
+                if (!busy && shooter != null) fire(deadline) else miss(deadline)
+            }
+        } finally {
+            stats.running = false
+            val snapshot = snapshot()
+            lock.unlock()
+            onStats?.invoke(snapshot)
+        }
+    }
+
+    // Under the lock
+    private fun miss(deadline: Long) {
+        when (policy) {
+            MissedSlotPolicy.SKIP -> stats.dropped++
+            MissedSlotPolicy.COALESCE ->
+                if (coalesced) {
+                    stats.dropped++
+                } else {
+                    coalesced = true
+                    pendingDeadlines.addLast(deadline)
+                }
+            MissedSlotPolicy.QUEUE ->
+                if (queued < queueLimit) {
+                    queued++
+                    pendingDeadlines.addLast(deadline)
+                } else {
+                    stats.dropped++
+                }
+        }
+        publish()
+    }
+
+    // Under the lock; the shooter itself is called without it
+    private fun fire(deadline: Long) {
+        val shooter = shooter ?: return
+        val now = clock()
+        busy = true
+        stats.shots++
+        if (stats.shots == 1L) firstShotNs = now
+        lastShotNs = now
+        val lateMs = (now - deadline) / 1e6
+        lateSumSq += lateMs * lateMs
+        if (lateMs > stats.maxLateMs) stats.maxLateMs = lateMs
+        publish()
+        lock.unlock()
+        try {
+            shooter.shoot { onShotDone() }
+        } finally {
+            lock.lock()
+        }
+    }
+
+    private fun onShotDone() = lock.withLock {
+        busy = false
+        stats.completed++
+        publish()
+        wake.signalAll()
+    }
+
+    // Under the lock: takes the snapshot, then lets go of the lock while the
+    // listener runs, so a slow listener can't hold up the scheduler or a
+    // capture thread. Callers must expect state to have moved on.
+    private fun publish() {
+        val listener = onStats ?: return
+        val snapshot = snapshot()
+        lock.unlock()
+        try {
+            listener(snapshot)
+        } finally {
+            lock.lock()
+        }
+    }
+
+    private fun snapshot() = Stats().also {
+        it.slots = stats.slots
+        it.shots = stats.shots
+        it.completed = stats.completed
+        it.dropped = stats.dropped
+        it.meanIntervalMs = if (stats.shots > 1) (lastShotNs - firstShotNs) / 1e6 / (stats.shots - 1) else 0.0
+        it.jitterMs = if (stats.shots > 0) sqrt(lateSumSq / stats.shots) else 0.0
+        it.maxLateMs = stats.maxLateMs
+        it.running = stats.running
+    }
+
+    companion object {
+        // Throws IllegalArgumentException unless intervalMillis is positive
+        fun every(intervalMillis: Long, durationMillis: Long, policy: MissedSlotPolicy): CaptureScheduler {
+            require(intervalMillis > 0) { "Interval must be positive, was $intervalMillis ms" }
+            return CaptureScheduler(
+                TimeUnit.MILLISECONDS.toNanos(intervalMillis),
+                maxOf(1L, durationMillis / intervalMillis),
+                policy
+            )
+        }
+    }
+}
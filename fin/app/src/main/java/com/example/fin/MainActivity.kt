@@ -5,41 +5,61 @@ import android.content.ContentValues
 import android.content.pm.PackageManager
 import android.os.Build
 import android.os.Bundle
+import android.os.Environment
+import android.os.SystemClock
 import android.provider.MediaStore
 import androidx.appcompat.app.AppCompatActivity
 import androidx.camera.core.ImageCapture
 import androidx.core.content.ContextCompat
+import com.example.burstwriter.BurstWriter
 import com.example.fin.databinding.ActivityMainBinding
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import android.widget.SeekBar
 import android.widget.Toast
-import androidx.camera.lifecycle.ProcessCameraProvider
-import androidx.camera.core.Preview
-import androidx.camera.core.CameraSelector
 import android.util.Log
+import android.util.Range
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop
 import androidx.camera.core.ExperimentalZeroShutterLag
 import androidx.camera.core.ImageCaptureException
+import androidx.lifecycle.ViewModel
+import androidx.lifecycle.ViewModelProvider
+import java.io.File
 import java.text.SimpleDateFormat
 import java.util.Locale
+import kotlin.math.exp
+import kotlin.math.ln
+import kotlin.math.roundToInt
 
 
 @ExperimentalZeroShutterLag
+@ExperimentalCamera2Interop
 class MainActivity : AppCompatActivity() {
-    private var isBurstModeActive = false
+    // Holds the running burst across recreation
+    private lateinit var burst: BurstViewModel
 
     private lateinit var viewBinding: ActivityMainBinding
-    private var imageCapture: ImageCapture? = null
+    private lateinit var session: CameraSession
+    private var manualExposure: ManualExposure? = null
+    private val imageCapture: ImageCapture?
+        get() = session.imageCapture
     private lateinit var cameraExecutor: ExecutorService
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         viewBinding = ActivityMainBinding.inflate(layoutInflater)
         setContentView(viewBinding.root)
+        session = CameraSession(this, viewBinding.viewFinder)
+        burst = ViewModelProvider(this)[BurstViewModel::class.java]
+        burst.scheduler?.let {
+            attach(it)
+            // Ended while no Activity was attached
+            if (!it.stats().running) finishTimeLapse()
+        }
 
         // Request camera permissions
         if (allPermissionsGranted()) {
-            startCamera()
+            session.start()
         } else {
             requestPermissions()
         }
@@ -58,6 +78,13 @@ class MainActivity : AppCompatActivity() {
     }
 
     private fun handleCapture() {
+        // A second press stops a running burst
+        val running = burst.scheduler
+        if (running != null && running.stats().running) {
+            running.cancel()
+            return
+        }
+
         // Get input values
         val photosPerMinuteStr = viewBinding.photosPerMinute.text.toString()
         val durationStr = viewBinding.minutesDuration.text.toString()
@@ -75,11 +102,7 @@ class MainActivity : AppCompatActivity() {
     }
 
     private fun setupExposureControl() {
-        val cameraProviderFuture = ProcessCameraProvider.getInstance(this)
-        cameraProviderFuture.addListener({
-            val cameraProvider: ProcessCameraProvider = cameraProviderFuture.get()
-            val cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
-            val camera = cameraProvider.bindToLifecycle(this, cameraSelector, imageCapture)
+        session.whenReady { camera ->
             val exposureState = camera.cameraInfo.exposureState
 
             viewBinding.exposureSeekBar.apply {
@@ -92,6 +115,8 @@ class MainActivity : AppCompatActivity() {
 
                 setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
                     override fun onProgressChanged(seekBar: SeekBar?, progress: Int, fromUser: Boolean) {
+                        // Compensation only means something under auto exposure
+                        if (fromUser) manualExposure?.auto()
                         camera.cameraControl.setExposureCompensationIndex(progress)
                     }
 
@@ -99,70 +124,72 @@ class MainActivity : AppCompatActivity() {
                     override fun onStopTrackingTouch(seekBar: SeekBar?) {}
                 })
             }
-        }, ContextCompat.getMainExecutor(this))
+        }
     }
 
+    // Shutter speed on a log scale across the sensor's exposure time range,
+    // and ISO, both manual (AE off) as soon as either is moved
     private fun setupShutterSpeedControl() {
-        val cameraProviderFuture = ProcessCameraProvider.getInstance(this)
-        cameraProviderFuture.addListener({
-            val cameraProvider: ProcessCameraProvider = cameraProviderFuture.get()
-            val cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
-            val camera = cameraProvider.bindToLifecycle(this, cameraSelector, imageCapture)
-            val exposureState = camera.cameraInfo.exposureState
-
-            // Adjust max and min values based on your requirements
-            val shutterSpeedRange = 1..30000 // Example range (in milliseconds)
+        session.whenReady { camera ->
+            val exposure = ManualExposure(camera, ContextCompat.getMainExecutor(this))
+            manualExposure = exposure
+            val shutterSpeedRange = exposure.exposureRangeNs
+            val isoRange = exposure.isoRange
             viewBinding.shutterSpeedSeekBar.apply {
-                max = shutterSpeedRange.last
+                isEnabled = exposure.supported
+                max = SHUTTER_SPEED_STEPS
+                progress = exposureToProgress(exposure.exposureNs, shutterSpeedRange)
+
+                setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
+                    override fun onProgressChanged(seekBar: SeekBar?, progress: Int, fromUser: Boolean) {
+                        if (fromUser) exposure.setExposureTime(progressToExposure(progress, shutterSpeedRange))
+                    }
+
+                    override fun onStartTrackingTouch(seekBar: SeekBar?) {}
+                    override fun onStopTrackingTouch(seekBar: SeekBar?) {}
+                })
+            }
+            viewBinding.isoSeekBar.apply {
+                isEnabled = exposure.supported
+                max = isoRange.upper
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    min = shutterSpeedRange.first
+                    min = isoRange.lower
                 }
-                progress = 500 // Default shutter speed in milliseconds (adjust as needed)
+                progress = exposure.iso
 
                 setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
                     override fun onProgressChanged(seekBar: SeekBar?, progress: Int, fromUser: Boolean) {
-                        // Set shutter speed, convert milliseconds to nanoseconds
-                        val shutterSpeedInNanoseconds = progress * 1_000_000
-                        camera.cameraControl.setExposureCompensationIndex(shutterSpeedInNanoseconds)
+                        if (fromUser) exposure.setIso(progress)
                     }
 
                     override fun onStartTrackingTouch(seekBar: SeekBar?) {}
                     override fun onStopTrackingTouch(seekBar: SeekBar?) {}
                 })
             }
-        }, ContextCompat.getMainExecutor(this))
+        }
     }
 
-    private fun startCamera() {
-        val cameraProviderFuture = ProcessCameraProvider.getInstance(this)
-        cameraProviderFuture.addListener({
-            // Used to bind the lifecycle of cameras to the lifecycle owner
-            val cameraProvider: ProcessCameraProvider = cameraProviderFuture.get()
-            // Preview
-            val preview = Preview.Builder()
-                .build()
-                .also {
-                    it.setSurfaceProvider(viewBinding.viewFinder.surfaceProvider)
-                }
+    private fun progressToExposure(progress: Int, range: Range<Long>): Long {
+        val lower = ln(range.lower.coerceAtLeast(1L).toDouble())
+        val upper = ln(range.upper.coerceAtLeast(1L).toDouble())
+        return exp(lower + (upper - lower) * progress / SHUTTER_SPEED_STEPS).toLong()
+    }
 
-            // Set up the ImageCapture use case
-            val builder = ImageCapture.Builder()
-                .setCaptureMode(ImageCapture.CAPTURE_MODE_ZERO_SHUTTER_LAG) // Enable Zero-Shutter Lag
-
-            // Build the ImageCapture instance
-            imageCapture = builder.build()
-
-            // Select back camera as a default
-            val cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA
-            try {
-                // Unbind use cases before rebinding
-                cameraProvider.unbindAll()
-                // Bind use cases to camera
-                cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageCapture)
-            } catch (exc: Exception) {
-                Log.e(TAG, "Use case binding failed", exc)
-            }
-        }, ContextCompat.getMainExecutor(this))
+    private fun exposureToProgress(exposureNs: Long, range: Range<Long>): Int {
+        val lower = ln(range.lower.coerceAtLeast(1L).toDouble())
+        val upper = ln(range.upper.coerceAtLeast(1L).toDouble())
+        if (upper <= lower) return 0
+        return ((ln(exposureNs.coerceAtLeast(1L).toDouble()) - lower) / (upper - lower) * SHUTTER_SPEED_STEPS).roundToInt()
+    }
+
+    // A burst shoots at whatever exposure is set when it starts; every shot
+    // then reuses the session's options as they are
+    private fun setExposureControlsEnabled(enabled: Boolean) {
+        val manual = manualExposure?.supported == true
+        viewBinding.shutterSpeedSeekBar.isEnabled = enabled && manual
+        viewBinding.isoSeekBar.isEnabled = enabled && manual
+        viewBinding.exposureSeekBar.isEnabled = enabled &&
+            session.camera?.cameraInfo?.exposureState?.isExposureCompensationSupported == true
     }
 
     private fun requestPermissions() {
@@ -175,6 +202,12 @@ class MainActivity : AppCompatActivity() {
 
     override fun onDestroy() {
         super.onDestroy()
+        // The scheduler outlives this instance; shots due before the next one
+        // attaches count as missed
+        burst.scheduler?.let {
+            it.attach(null)
+            it.onStats = null
+        }
         cameraExecutor.shutdown()
     }
 
@@ -201,6 +234,7 @@ class MainActivity : AppCompatActivity() {
             .build()
 
         // Set up image capture listener, which is triggered after photo has been taken
+        val requestedNs = SystemClock.elapsedRealtimeNanos()
         imageCapture.takePicture(
             outputOptions,
             ContextCompat.getMainExecutor(this),
@@ -210,6 +244,7 @@ class MainActivity : AppCompatActivity() {
                 }
 
                 override fun onImageSaved(output: ImageCapture.OutputFileResults) {
+                    session.onCaptureCompleted(requestedNs)
                     val msg = "Photo capture succeeded: ${output.savedUri}"
                     Toast.makeText(baseContext, msg, Toast.LENGTH_SHORT).show()
                     Log.d(TAG, msg)
@@ -219,28 +254,115 @@ class MainActivity : AppCompatActivity() {
     }
 
     private fun startBurstMode(photosPerMinute: Int, durationInMinutes: Int) {
-        if (isBurstModeActive) return
-        isBurstModeActive = true
+        if (photosPerMinute <= 0 || durationInMinutes <= 0) return
 
         val intervalMillis = (60_000 / photosPerMinute).toLong() // Calculate interval in milliseconds
         val totalBurstDuration = durationInMinutes * 60_000L // Convert minutes to milliseconds
+        if (intervalMillis <= 0) {
+            // More than one shot a millisecond
+            Toast.makeText(baseContext, "At most 60000 photos per minute", Toast.LENGTH_SHORT).show()
+            return
+        }
+
+        if (viewBinding.timeLapseSwitch.isChecked) {
+            val name = SimpleDateFormat(FILENAME_FORMAT, Locale.US)
+                .format(System.currentTimeMillis())
+            burst.timeLapse = TimeLapseEncoder(
+                File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "$name.mp4"),
+                TimeLapseEncoder.preferredMimeType(),
+                frameRate = TIME_LAPSE_FRAME_RATE,
+                bitRate = TIME_LAPSE_BIT_RATE,
+                keyFrameIntervalSeconds = TIME_LAPSE_KEY_FRAME_INTERVAL_S
+            )
+        }
+        val scheduler = CaptureScheduler.every(intervalMillis, totalBurstDuration, BURST_MISSED_SLOT_POLICY)
+        burst.scheduler = scheduler
+        setExposureControlsEnabled(false)
+        attach(scheduler)
+        scheduler.start()
+    }
+
+    private fun attach(scheduler: CaptureScheduler) {
+        // ImageCapture wants its calls from the main thread
+        scheduler.attach { done -> runOnUiThread { takeBurstPhoto(done) } }
+        scheduler.onStats = { stats ->
+            val writer = burst.writer?.stats()
+            val video = burst.timeLapse?.stats()
+            var text = "%s %d/%d shots, %d dropped, every %.0f ms, jitter %.1f ms (max %.0f)".format(
+                if (stats.running) "Burst" else "Burst done:",
+                stats.completed, stats.slots, stats.dropped,
+                stats.meanIntervalMs, stats.jitterMs, stats.maxLateMs
+            )
+            if (video != null) {
+                text += "\nVideo: %d frames, %.1f MB, %.0f ms per frame%s".format(
+                    video.frames, video.bytes / 1e6, video.meanFrameMs,
+                    if (video.failed) ", encoder failed" else ""
+                )
+            } else if (writer != null) {
+                text += "\nSaved %d (%.1f/s, %.0f ms each), %d queued, %d refused, %d failed".format(
+                    writer.written, writer.shotsPerSecond, writer.meanWriteMs,
+                    writer.queued, writer.refused, writer.failed
+                )
+            }
+            if (!stats.running) {
+                Log.d(TAG, text)
+                finishTimeLapse()
+            }
+            runOnUiThread {
+                viewBinding.burstStats.text = text
+                if (!stats.running) setExposureControlsEnabled(true)
+            }
+        }
+    }
 
-        // Start capturing photos in a coroutine
-        cameraExecutor.execute {
-            val startTime = System.currentTimeMillis()
-            val endTime = startTime + totalBurstDuration
+    private fun finishTimeLapse() {
+        burst.finishTimeLapse { file ->
+            if (file == null) return@finishTimeLapse
+            val msg = "Time-lapse saved: ${file.absolutePath}"
+            Log.d(TAG, msg)
+            runOnUiThread { Toast.makeText(baseContext, msg, Toast.LENGTH_SHORT).show() }
+        }
+    }
 
-            while (System.currentTimeMillis() < endTime) {
-                takePhoto() // Capture photo
-                Thread.sleep(intervalMillis) // Wait for the next capture
+    // Burst shots are captured into memory and saved by the writer (or drawn
+    // into the time-lapse video) in the background, so the scheduler can fire
+    // the next one as soon as the camera is free rather than after the JPEG is
+    // on disk
+    private fun takeBurstPhoto(done: () -> Unit) {
+        val imageCapture = imageCapture ?: run {
+            done()
+            return
+        }
+        val requestedNs = SystemClock.elapsedRealtimeNanos()
+        burst.timeLapse?.let { video ->
+            video.capture(imageCapture) { captured ->
+                if (captured) session.onCaptureCompleted(requestedNs)
+                done()
             }
-            isBurstModeActive = false // Reset flag after completing burst
+            return
+        }
+        val writer = burst.writer ?: BurstWriter(
+            BurstWriter.mediaStoreSink(applicationContext.contentResolver, "Pictures/CameraX-Image")
+        ).also { burst.writer = it }
+        val name = SimpleDateFormat(FILENAME_FORMAT, Locale.US)
+            .format(System.currentTimeMillis())
+        writer.capture(imageCapture, name) { captured ->
+            if (captured) session.onCaptureCompleted(requestedNs)
+            done()
         }
     }
 
     companion object {
         private const val TAG = "CameraXApp"
         private const val FILENAME_FORMAT = "yyyy-MM-dd-HH-mm-ss-SSS"
+        private const val SHUTTER_SPEED_STEPS = 1000
+        // Time-lapse video, in TimeLapseEncoder.preferredMimeType()
+        private const val TIME_LAPSE_FRAME_RATE = 30
+        private const val TIME_LAPSE_BIT_RATE = 12_000_000
+        private const val TIME_LAPSE_KEY_FRAME_INTERVAL_S = 1
+        // A shot that would start while the previous one is still saving is
+        // dropped, keeping every later shot on its slot
+        private val BURST_MISSED_SLOT_POLICY = CaptureScheduler.MissedSlotPolicy.SKIP
         private val REQUIRED_PERMISSIONS =
             mutableListOf(
                 Manifest.permission.CAMERA,
@@ -251,7 +373,24 @@ class MainActivity : AppCompatActivity() {
                 }
             }.toTypedArray()
     }
+}
 
+class BurstViewModel : ViewModel() {
+    var scheduler: CaptureScheduler? = null
+    var writer: BurstWriter? = null
+    var timeLapse: TimeLapseEncoder? = null
 
+    // Closes the time-lapse video, if there is one, once
+    fun finishTimeLapse(onFinished: (File?) -> Unit) {
+        val video = synchronized(this) { timeLapse.also { timeLapse = null } } ?: return
+        video.finish(onFinished)
+    }
 
+    // Leaving the screen for good ends the burst; shots already captured
+    // still get written
+    override fun onCleared() {
+        scheduler?.cancel()
+        writer?.close()
+        finishTimeLapse { file -> if (file != null) Log.d("BurstViewModel", "Time-lapse saved: $file") }
+    }
 }
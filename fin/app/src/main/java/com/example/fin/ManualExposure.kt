@@ -0,0 +1,92 @@
+package com.example.fin
+
+import android.hardware.camera2.CameraCharacteristics
+import android.hardware.camera2.CameraMetadata
+import android.hardware.camera2.CaptureRequest
+import android.util.Range
+import androidx.camera.camera2.interop.Camera2CameraControl
+import androidx.camera.camera2.interop.Camera2CameraInfo
+import androidx.camera.camera2.interop.CaptureRequestOptions
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop
+import androidx.camera.core.Camera
+import java.util.concurrent.Executor
+
+// Manual exposure time and ISO on a bound Camera, through Camera2 interop:
+// AE off plus SENSOR_EXPOSURE_TIME and SENSOR_SENSITIVITY. The options go on
+// the session, so the repeating preview request and every still capture
+// (single or burst) are built with them without further work per shot.
+// Updates are conflated: while one is waiting to reach a frame, newer values
+// only replace the pending one, so a dragged slider costs at most one request
+// update per frame. Main thread only.
+@ExperimentalCamera2Interop
+class ManualExposure(camera: Camera, private val mainExecutor: Executor) {
+    private val control = Camera2CameraControl.from(camera.cameraControl)
+    private val info = Camera2CameraInfo.from(camera.cameraInfo)
+
+    val supported: Boolean = info.getCameraCharacteristic(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES)
+        ?.contains(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR) == true
+    val exposureRangeNs: Range<Long> =
+        info.getCameraCharacteristic(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE) ?: Range(0L, 0L)
+    val isoRange: Range<Int> =
+        info.getCameraCharacteristic(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE) ?: Range(0, 0)
+
+    var exposureNs = exposureRangeNs.clamp(DEFAULT_EXPOSURE_NS)
+        private set
+    var iso = isoRange.clamp(DEFAULT_ISO)
+        private set
+    var manual = false
+        private set
+
+    private var inFlight = false
+    private var pending: CaptureRequestOptions? = null
+
+    fun setExposureTime(exposureNs: Long) {
+        this.exposureNs = exposureRangeNs.clamp(exposureNs)
+        manual = true
+        submit(manualOptions())
+    }
+
+    fun setIso(iso: Int) {
+        this.iso = isoRange.clamp(iso)
+        manual = true
+        submit(manualOptions())
+    }
+
+    // Back to auto exposure (where exposure compensation applies again)
+    fun auto() {
+        if (!manual) return
+        manual = false
+        submit(CaptureRequestOptions.Builder().build())
+    }
+
+    private fun manualOptions() = CaptureRequestOptions.Builder()
+        .setCaptureRequestOption(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF)
+        .setCaptureRequestOption(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureNs)
+        .setCaptureRequestOption(CaptureRequest.SENSOR_SENSITIVITY, iso)
+        // Long exposures need a frame at least as long; the HAL raises
+        // shorter ones to its minimum frame duration
+        .setCaptureRequestOption(CaptureRequest.SENSOR_FRAME_DURATION, exposureNs)
+        .build()
+
+    // The future completes once the repeating request carrying the options
+    // has been applied, i.e. on a frame
+    private fun submit(options: CaptureRequestOptions) {
+        if (!supported) return
+        if (inFlight) {
+            pending = options
+            return
+        }
+        inFlight = true
+        control.setCaptureRequestOptions(options).addListener({
+            inFlight = false
+            val next = pending ?: return@addListener
+            pending = null
+            submit(next)
+        }, mainExecutor)
+    }
+
+    companion object {
+        private const val DEFAULT_EXPOSURE_NS = 500_000_000L
+        private const val DEFAULT_ISO = 100
+    }
+}
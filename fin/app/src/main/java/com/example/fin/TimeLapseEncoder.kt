@@ -0,0 +1,462 @@
+package com.example.fin
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.opengl.EGL14
+import android.opengl.EGLConfig
+import android.opengl.EGLContext
+import android.opengl.EGLDisplay
+import android.opengl.EGLExt
+import android.opengl.EGLSurface
+import android.opengl.GLES20
+import android.opengl.GLUtils
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import android.util.Log
+import android.view.Surface
+import androidx.camera.core.ImageCapture
+import androidx.camera.core.ImageCaptureException
+import androidx.camera.core.ImageProxy
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.Executor
+
+// Time-lapse straight to video: every interval capture is decoded at about
+// the video size, drawn with GLES through an EGL window surface on the
+// MediaCodec input surface, and the encoded stream is muxed into one MP4.
+// Frame n is presented at n / frameRate (eglPresentationTimeANDROID), so
+// shots taken seconds apart play back at frameRate, and the bit rate and
+// key frame interval are in video time rather than capture time. The video
+// keeps the sensor orientation, with the capture's rotation as the muxer's
+// orientation hint. The encoder and EGL context are set up from the first
+// frame; everything (capture callbacks, decoding, drawing, codec callbacks)
+// runs on one thread, where the context is current.
+class TimeLapseEncoder(
+    private val file: File,
+    private val mimeType: String = MediaFormat.MIMETYPE_VIDEO_AVC,
+    // The video fits within longSide x shortSide, keeping the frame's aspect
+    private val longSide: Int = 1920,
+    private val shortSide: Int = 1080,
+    private val frameRate: Int = 30,
+    private val bitRate: Int = 12_000_000,
+    private val keyFrameIntervalSeconds: Int = 1
+) {
+    class Stats {
+        var frames = 0        // encoded
+        var bytes = 0L
+        var meanFrameMs = 0.0 // decode and draw
+        var failed = false
+    }
+
+    private val thread = HandlerThread("TimeLapseEncoder").apply { start() }
+    private val handler = Handler(thread.looper)
+    private val executor = Executor { handler.post(it) }
+
+    private var codec: MediaCodec? = null
+    private var surface: Surface? = null
+    private var eglDisplay: EGLDisplay = EGL14.EGL_NO_DISPLAY
+    private var eglContext: EGLContext = EGL14.EGL_NO_CONTEXT
+    private var eglSurface: EGLSurface = EGL14.EGL_NO_SURFACE
+    private var program = 0
+    private var texture = 0
+    private var queued = 0 // frames sent to the encoder
+    private var muxer: MediaMuxer? = null
+    private var track = -1
+    private var width = 0
+    private var height = 0
+    private var jpeg = ByteArray(0)
+    private var bitmap: Bitmap? = null
+
+    private var finishing = false
+    // Captures whose callback hasn't run yet; the thread is only quit once
+    // released and none are left, so no callback is posted to a dead looper
+    private var capturing = 0
+    private var released = false
+    private var onFinished: ((File?) -> Unit)? = null
+    private var output: File? = null
+    private var drawNs = 0L
+    private var drawn = 0
+
+    private val lock = Any()
+    private val stats = Stats()
+
+    // Takes a picture and queues it as the next video frame. onCaptured(true)
+    // fires once the JPEG is copied out of the camera buffer, onCaptured(false)
+    // if the capture failed or the video is finished; on the encoder thread,
+    // or on the caller's once the encoder is released.
+    fun capture(imageCapture: ImageCapture, onCaptured: (Boolean) -> Unit) {
+        val open = synchronized(lock) {
+            if (!released) capturing++
+            !released
+        }
+        if (!open) {
+            onCaptured(false)
+            return
+        }
+        imageCapture.takePicture(executor, object : ImageCapture.OnImageCapturedCallback() {
+            override fun onCaptureSuccess(image: ImageProxy) {
+                if (finishing || stats().failed) {
+                    image.close()
+                    onCaptured(false)
+                    captureDone()
+                    return
+                }
+                val rotationDegrees = image.imageInfo.rotationDegrees
+                val buffer = image.planes[0].buffer
+                buffer.rewind()
+                val length = buffer.remaining()
+                if (jpeg.size < length) jpeg = ByteArray(length + length / 8)
+                buffer.get(jpeg, 0, length)
+                image.close()
+                onCaptured(true)
+                addFrame(length, rotationDegrees)
+                captureDone()
+            }
+
+            override fun onError(exception: ImageCaptureException) {
+                Log.e(TAG, "Time-lapse capture failed: ${exception.message}", exception)
+                onCaptured(false)
+                captureDone()
+            }
+        })
+    }
+
+    // Ends the stream and closes the file; onFinished gets it, or null when
+    // nothing was encoded, on the encoder thread
+    fun finish(onFinished: (File?) -> Unit) {
+        handler.post {
+            if (finishing) return@post
+            finishing = true
+            this.onFinished = onFinished
+            val codec = codec
+            if (codec == null) {
+                release()
+            } else {
+                try {
+                    codec.signalEndOfInputStream()
+                } catch (e: IllegalStateException) {
+                    Log.e(TAG, "Cannot end the stream", e)
+                    release()
+                }
+            }
+        }
+    }
+
+    fun stats(): Stats = synchronized(lock) {
+        Stats().also {
+            it.frames = stats.frames
+            it.bytes = stats.bytes
+            it.meanFrameMs = stats.meanFrameMs
+            it.failed = stats.failed
+        }
+    }
+
+    private fun captureDone() {
+        val quit = synchronized(lock) {
+            capturing--
+            released && capturing == 0
+        }
+        if (quit) thread.quitSafely()
+    }
+
+    private fun addFrame(length: Int, rotationDegrees: Int) {
+        val start = SystemClock.elapsedRealtimeNanos()
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeByteArray(jpeg, 0, length, bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.e(TAG, "Cannot decode frame")
+            return
+        }
+        if (codec == null && !startCodec(bounds.outWidth, bounds.outHeight, rotationDegrees)) return
+        if (eglSurface == EGL14.EGL_NO_SURFACE) return
+
+        // Decode at the smallest power-of-two reduction still at least the
+        // video size, into the previous frame's bitmap when it fits
+        var sampleSize = 1
+        while (bounds.outWidth / (sampleSize * 2) >= width && bounds.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2
+        }
+        val frame = decode(length, sampleSize) ?: return
+        bitmap = frame
+
+        val scale = minOf(width.toFloat() / frame.width, height.toFloat() / frame.height)
+        val w = (frame.width * scale).toInt()
+        val h = (frame.height * scale).toInt()
+        GLES20.glViewport(0, 0, width, height)
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
+        // Centred, so the flipped GL origin doesn't matter
+        GLES20.glViewport((width - w) / 2, (height - h) / 2, w, h)
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, frame, 0)
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, queued * 1_000_000_000L / frameRate)
+        if (!EGL14.eglSwapBuffers(eglDisplay, eglSurface)) {
+            Log.e(TAG, "Cannot draw frame: EGL error 0x${Integer.toHexString(EGL14.eglGetError())}")
+            return
+        }
+        queued++
+        drawNs += SystemClock.elapsedRealtimeNanos() - start
+        drawn++
+        synchronized(lock) { stats.meanFrameMs = drawNs / 1e6 / drawn }
+    }
+
+    private fun decode(length: Int, sampleSize: Int): Bitmap? {
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = sampleSize
+            inMutable = true
+            inBitmap = bitmap
+        }
+        return try {
+            BitmapFactory.decodeByteArray(jpeg, 0, length, options)
+        } catch (e: IllegalArgumentException) {
+            // The previous bitmap can't be reused for this one
+            options.inBitmap = null
+            BitmapFactory.decodeByteArray(jpeg, 0, length, options)
+        }
+    }
+
+    private fun startCodec(frameWidth: Int, frameHeight: Int, rotationDegrees: Int): Boolean {
+        val (maxWidth, maxHeight) = if (frameWidth >= frameHeight) longSide to shortSide else shortSide to longSide
+        val scale = minOf(1f, maxWidth.toFloat() / frameWidth, maxHeight.toFloat() / frameHeight)
+        // Encoders want dimensions aligned to macroblocks
+        width = (frameWidth * scale).toInt() / 16 * 16
+        height = (frameHeight * scale).toInt() / 16 * 16
+
+        val format = MediaFormat.createVideoFormat(mimeType, width, height).apply {
+            setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+            setInteger(MediaFormat.KEY_BIT_RATE, bitRate)
+            setInteger(MediaFormat.KEY_FRAME_RATE, frameRate)
+            setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSeconds)
+        }
+        return try {
+            muxer = MediaMuxer(file.absolutePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4).apply {
+                setOrientationHint(rotationDegrees)
+            }
+            val codec = MediaCodec.createEncoderByType(mimeType)
+            this.codec = codec
+            codec.setCallback(callback, handler)
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            val surface = codec.createInputSurface()
+            this.surface = surface
+            startEgl(surface)
+            codec.start()
+            Log.i(TAG, "Encoding $mimeType ${width}x$height at $bitRate bps into $file")
+            true
+        } catch (e: Exception) {
+            // IOException, or a CodecException / IllegalStateException for a
+            // format the encoder doesn't take
+            Log.e(TAG, "Cannot start the $mimeType encoder at ${width}x$height", e)
+            synchronized(lock) { stats.failed = true }
+            release()
+            false
+        }
+    }
+
+    private val callback = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {}
+
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            val muxer = muxer ?: return
+            track = muxer.addTrack(format)
+            muxer.start()
+        }
+
+        override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            // Codec config goes into the track format, not the samples
+            if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) info.size = 0
+            val muxer = muxer
+            if (info.size > 0 && muxer != null && track >= 0) {
+                val buffer = codec.getOutputBuffer(index)
+                if (buffer != null) {
+                    muxer.writeSampleData(track, buffer, info)
+                    synchronized(lock) {
+                        stats.frames++
+                        stats.bytes += info.size
+                    }
+                }
+            }
+            codec.releaseOutputBuffer(index, false)
+            // Not from inside the codec's own callback
+            if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) handler.post { release() }
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            Log.e(TAG, "Encoder failed", e)
+            synchronized(lock) { stats.failed = true }
+            handler.post { release() }
+        }
+    }
+
+    // A GLES 2 context drawing into the encoder's input surface, with one
+    // texture for the frame on a full-viewport quad
+    private fun startEgl(surface: Surface) {
+        val display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY)
+        val version = IntArray(2)
+        check(EGL14.eglInitialize(display, version, 0, version, 1)) { "Cannot initialise EGL" }
+        eglDisplay = display
+        val attributes = intArrayOf(
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+        )
+        val configs = arrayOfNulls<EGLConfig>(1)
+        val count = IntArray(1)
+        check(EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, count, 0) && count[0] > 0) {
+            "No recordable EGL config"
+        }
+        val config = configs[0]
+        eglContext = EGL14.eglCreateContext(
+            display, config, EGL14.EGL_NO_CONTEXT,
+            intArrayOf(EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE), 0
+        )
+        check(eglContext != EGL14.EGL_NO_CONTEXT) { "Cannot create an EGL context" }
+        eglSurface = EGL14.eglCreateWindowSurface(display, config, surface, intArrayOf(EGL14.EGL_NONE), 0)
+        check(eglSurface != EGL14.EGL_NO_SURFACE) { "Cannot create an EGL surface" }
+        check(EGL14.eglMakeCurrent(display, eglSurface, eglSurface, eglContext)) { "Cannot make EGL current" }
+
+        program = GLES20.glCreateProgram()
+        GLES20.glAttachShader(program, shader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER))
+        GLES20.glAttachShader(program, shader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER))
+        GLES20.glLinkProgram(program)
+        val linked = IntArray(1)
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0)
+        check(linked[0] != 0) { "Cannot link: ${GLES20.glGetProgramInfoLog(program)}" }
+        GLES20.glUseProgram(program)
+
+        // x, y, s, t; the bitmap's first row is the top of the picture
+        val quad = ByteBuffer.allocateDirect(QUAD.size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer()
+        quad.put(QUAD).position(0)
+        val position = GLES20.glGetAttribLocation(program, "aPosition")
+        val texCoord = GLES20.glGetAttribLocation(program, "aTexCoord")
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 16, quad)
+        GLES20.glEnableVertexAttribArray(position)
+        quad.position(2)
+        GLES20.glVertexAttribPointer(texCoord, 2, GLES20.GL_FLOAT, false, 16, quad)
+        GLES20.glEnableVertexAttribArray(texCoord)
+
+        val textures = IntArray(1)
+        GLES20.glGenTextures(1, textures, 0)
+        texture = textures[0]
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE)
+        GLES20.glClearColor(0f, 0f, 0f, 1f)
+    }
+
+    private fun shader(type: Int, source: String): Int {
+        val shader = GLES20.glCreateShader(type)
+        GLES20.glShaderSource(shader, source)
+        GLES20.glCompileShader(shader)
+        val compiled = IntArray(1)
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0)
+        check(compiled[0] != 0) { "Cannot compile shader: ${GLES20.glGetShaderInfoLog(shader)}" }
+        return shader
+    }
+
+    private fun releaseEgl() {
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY) return
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)
+        if (eglSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(eglDisplay, eglSurface)
+        if (eglContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(eglDisplay, eglContext)
+        EGL14.eglReleaseThread()
+        EGL14.eglTerminate(eglDisplay)
+        eglDisplay = EGL14.EGL_NO_DISPLAY
+        eglContext = EGL14.EGL_NO_CONTEXT
+        eglSurface = EGL14.EGL_NO_SURFACE
+        program = 0
+        texture = 0
+    }
+
+    // On the encoder thread
+    private fun release() {
+        releaseEgl()
+        try {
+            codec?.stop()
+        } catch (e: IllegalStateException) {
+            Log.w(TAG, "Encoder already stopped", e)
+        }
+        codec?.release()
+        codec = null
+        surface?.release()
+        surface = null
+        muxer?.let { muxer ->
+            try {
+                if (track >= 0) {
+                    muxer.stop()
+                    output = file
+                }
+            } catch (e: IllegalStateException) {
+                Log.e(TAG, "Cannot finish $file", e)
+            }
+            muxer.release()
+            if (output == null) file.delete()
+        }
+        muxer = null
+        track = -1
+        bitmap = null
+
+        // An encoder failure mid-stream ends the video early; later captures
+        // are refused, and what was written is handed over on finish()
+        if (finishing) {
+            onFinished?.invoke(output)
+            onFinished = null
+            val quit = synchronized(lock) {
+                released = true
+                capturing == 0
+            }
+            if (quit) thread.quitSafely()
+        }
+    }
+
+    companion object {
+        private const val TAG = "TimeLapseEncoder"
+        // EGLExt.EGL_RECORDABLE_ANDROID is API 26
+        private const val EGL_RECORDABLE_ANDROID = 0x3142
+
+        private val QUAD = floatArrayOf(
+            -1f, -1f, 0f, 1f,
+            1f, -1f, 1f, 1f,
+            -1f, 1f, 0f, 0f,
+            1f, 1f, 1f, 0f
+        )
+
+        private const val VERTEX_SHADER = """
+            attribute vec4 aPosition;
+            attribute vec2 aTexCoord;
+            varying vec2 vTexCoord;
+            void main() {
+                gl_Position = aPosition;
+                vTexCoord = aTexCoord;
+            }
+        """
+
+        private const val FRAGMENT_SHADER = """
+            precision mediump float;
+            varying vec2 vTexCoord;
+            uniform sampler2D uTexture;
+            void main() {
+                gl_FragColor = texture2D(uTexture, vTexCoord);
+            }
+        """
+
+        // HEVC where the device has an encoder for it, else AVC, which every
+        // device has
+        fun preferredMimeType(): String {
+            val hevc = MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos.any { info ->
+                info.isEncoder && info.supportedTypes.any { it.equals(MediaFormat.MIMETYPE_VIDEO_HEVC, ignoreCase = true) }
+            }
+            return if (hevc) MediaFormat.MIMETYPE_VIDEO_HEVC else MediaFormat.MIMETYPE_VIDEO_AVC
+        }
+    }
+}
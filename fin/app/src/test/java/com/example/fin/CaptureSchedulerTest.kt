@@ -0,0 +1,109 @@
+package com.example.fin
+
+import com.example.fin.CaptureScheduler.MissedSlotPolicy
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+// Runs the scheduler on the JVM clock against a fake shooter that finishes
+// each shot after a set delay, every slowEvery-th one after slowMillis
+class CaptureSchedulerTest {
+    private val camera: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+
+    @After
+    fun tearDown() {
+        camera.shutdownNow()
+    }
+
+    @Test
+    fun fastShooterTakesEverySlot() {
+        for (policy in MissedSlotPolicy.entries) {
+            val stats = run(scheduler(policy), shotMillis = 2, slowEvery = 0)
+            assertEquals("$policy slots", SLOTS, stats.slots)
+            assertEquals("$policy completed", SLOTS, stats.completed)
+            assertEquals("$policy dropped", 0L, stats.dropped)
+        }
+    }
+
+    @Test
+    fun skipDropsSlotsThatComeDueDuringASlowShot() {
+        val stats = run(scheduler(MissedSlotPolicy.SKIP), shotMillis = 2, slowEvery = 5)
+        assertEquals(SLOTS, stats.slots)
+        assertTrue("dropped ${stats.dropped}", stats.dropped > 0)
+        assertEquals(SLOTS, stats.completed + stats.dropped)
+        assertEquals(stats.shots, stats.completed)
+    }
+
+    @Test
+    fun queueShootsMissedSlotsLater() {
+        val skip = run(scheduler(MissedSlotPolicy.SKIP), shotMillis = 2, slowEvery = 5)
+        val queue = run(scheduler(MissedSlotPolicy.QUEUE), shotMillis = 2, slowEvery = 5)
+        assertEquals(SLOTS, queue.completed + queue.dropped)
+        assertTrue("queue ${queue.completed} vs skip ${skip.completed}", queue.completed > skip.completed)
+    }
+
+    @Test
+    fun coalesceShootsOnceForSeveralMissedSlots() {
+        val stats = run(scheduler(MissedSlotPolicy.COALESCE), shotMillis = 2, slowEvery = 5)
+        assertEquals(SLOTS, stats.completed + stats.dropped)
+        assertTrue("dropped ${stats.dropped}", stats.dropped > 0)
+    }
+
+    @Test
+    fun statsListenerRunsWithoutTheLock() {
+        val scheduler = scheduler(MissedSlotPolicy.SKIP)
+        val blocked = AtomicBoolean()
+        val calls = AtomicInteger()
+        scheduler.onStats = {
+            // Only the first few; each waits on another thread
+            if (calls.incrementAndGet() <= 3) {
+                val reader = Thread { scheduler.stats() }
+                reader.start()
+                reader.join(1000)
+                if (reader.isAlive) blocked.set(true)
+            }
+        }
+        run(scheduler, shotMillis = 2, slowEvery = 0)
+        assertTrue(calls.get() > 0)
+        assertFalse("stats() blocked while the listener ran", blocked.get())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun everyRejectsAZeroInterval() {
+        // 60_000 / 120_000 photos per minute
+        CaptureScheduler.every(0L, 60_000L, MissedSlotPolicy.SKIP)
+    }
+
+    private fun scheduler(policy: MissedSlotPolicy) =
+        CaptureScheduler(TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS), SLOTS, policy, clock = System::nanoTime)
+
+    private fun run(scheduler: CaptureScheduler, shotMillis: Long, slowEvery: Int): CaptureScheduler.Stats {
+        val shots = AtomicInteger()
+        scheduler.attach { done ->
+            val n = shots.incrementAndGet()
+            val delay = if (slowEvery > 0 && n % slowEvery == 0) SLOW_SHOT_MILLIS else shotMillis
+            camera.schedule({ done() }, delay, TimeUnit.MILLISECONDS)
+        }
+        scheduler.start()
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (scheduler.stats().running) {
+            assertTrue("scheduler still running", System.nanoTime() < deadline)
+            Thread.sleep(5)
+        }
+        return scheduler.stats()
+    }
+
+    companion object {
+        private const val INTERVAL_MILLIS = 20L
+        private const val SLOTS = 30L
+        // Long enough that two more slots come due
+        private const val SLOW_SHOT_MILLIS = 55L
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.anew
+
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.media.Image
+import android.os.BatteryManager
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.math.abs
+
+// A RAW_SENSOR frame copied out of its Image, without row padding
+class RawFrame(val width: Int, val height: Int, val pixels: ShortArray) {
+    companion object {
+        fun from(image: Image): RawFrame {
+            val plane = image.planes[0]
+            val buffer = plane.buffer.order(ByteOrder.nativeOrder()).asShortBuffer()
+            val rowShorts = plane.rowStride / 2
+            val pixels = ShortArray(image.width * image.height)
+            for (y in 0 until image.height) {
+                buffer.position(y * rowShorts)
+                buffer.get(pixels, y * image.width, image.width)
+            }
+            return RawFrame(image.width, image.height, pixels)
+        }
+    }
+}
+
+// What a master dark is valid for. Dark current doubles every few degrees, so
+// temperature is part of the key, in TEMPERATURE_BUCKET_C steps.
+data class DarkKey(val cameraId: String, val exposureNs: Long, val iso: Int, val temperatureBucket: Int) {
+    val fileName: String
+        get() = "${cameraId}_${exposureNs / 1000}us_iso${iso}_t${temperatureBucket}.dark"
+
+    companion object {
+        const val TEMPERATURE_BUCKET_C = 5
+
+        // Camera2 doesn't report sensor temperature; the battery sits next to it
+        fun currentTemperatureBucket(context: Context): Int {
+            val battery = context.registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+            val tenthsC = battery?.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 250) ?: 250
+            return Math.floorDiv(tenthsC, TEMPERATURE_BUCKET_C * 10)
+        }
+    }
+}
+
+// Averaged dark frame plus the pixels that stand out of it. Values keep the
+// sensor's black level, as the lights do.
+class MasterDark(
+    val width: Int,
+    val height: Int,
+    val frames: Int,
+    val pixels: ShortArray,
+    val hotPixels: IntArray
+) {
+    private val hot: java.util.BitSet by lazy {
+        java.util.BitSet(width * height).apply { for (i in hotPixels) set(i) }
+    }
+
+    // Subtracts the dark in place, keeping blackLevel as the pedestal, then
+    // replaces every hot pixel with the mean of its same-colour (Bayer)
+    // neighbours two pixels away that aren't hot themselves
+    fun calibrate(frame: RawFrame, blackLevel: Int, whiteLevel: Int) {
+        require(frame.width == width && frame.height == height) { "Dark is ${width}x$height" }
+        val light = frame.pixels
+        // One flat loop with no branches but the clamps, which ART vectorizes
+        for (i in light.indices) {
+            val v = (light[i].toInt() and 0xffff) - (pixels[i].toInt() and 0xffff) + blackLevel
+            light[i] = (if (v < 0) 0 else if (v > whiteLevel) whiteLevel else v).toShort()
+        }
+        for (i in hotPixels) {
+            val x = i % width
+            val y = i / width
+            var sum = 0
+            var n = 0
+            for (d in NEIGHBOURS) {
+                val nx = x + d[0]
+                val ny = y + d[1]
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue
+                val j = ny * width + nx
+                if (hot[j]) continue
+                sum += light[j].toInt() and 0xffff
+                n++
+            }
+            if (n > 0) light[i] = ((sum + n / 2) / n).toShort()
+        }
+    }
+
+    companion object {
+        private val NEIGHBOURS = arrayOf(intArrayOf(-2, 0), intArrayOf(2, 0), intArrayOf(0, -2), intArrayOf(0, 2))
+    }
+}
+
+// Averages dark frames (lens covered, same exposure and ISO as the lights)
+class DarkFrameAccumulator(val width: Int, val height: Int) {
+    private val sums = IntArray(width * height)
+    var frames = 0
+        private set
+
+    fun add(frame: RawFrame) {
+        require(frame.width == width && frame.height == height) { "Frame is ${frame.width}x${frame.height}" }
+        val p = frame.pixels
+        for (i in sums.indices) sums[i] += p[i].toInt() and 0xffff
+        frames++
+    }
+
+    // Hot pixels sit more than hotSigma robust deviations (and at least
+    // minHotDn) above the median of the master
+    fun build(hotSigma: Float = 8f, minHotDn: Int = 16): MasterDark {
+        check(frames > 0) { "No dark frames" }
+        val pixels = ShortArray(sums.size)
+        val histogram = IntArray(65536)
+        for (i in sums.indices) {
+            val v = (sums[i] + frames / 2) / frames
+            pixels[i] = v.toShort()
+            histogram[v]++
+        }
+        val median = percentile(histogram, sums.size / 2)
+        val deviations = IntArray(65536)
+        for (v in histogram.indices) if (histogram[v] > 0) deviations[abs(v - median)] += histogram[v]
+        val mad = percentile(deviations, sums.size / 2)
+        val threshold = median + maxOf((hotSigma * 1.4826f * mad).toInt(), minHotDn)
+        var hotCount = 0
+        for (v in threshold + 1 until histogram.size) hotCount += histogram[v]
+        val hotPixels = IntArray(hotCount)
+        var n = 0
+        for (i in pixels.indices) if ((pixels[i].toInt() and 0xffff) > threshold) hotPixels[n++] = i
+        return MasterDark(width, height, frames, pixels, hotPixels)
+    }
+
+    private fun percentile(histogram: IntArray, rank: Int): Int {
+        var seen = 0
+        for (v in histogram.indices) {
+            seen += histogram[v]
+            if (seen > rank) return v
+        }
+        return histogram.size - 1
+    }
+}
+
+// Master darks on disk, one deflated file per DarkKey, with the last one used
+// kept in memory. A dark is mostly black level plus a little noise, so it
+// deflates to a fraction of the raw frame. Reading and writing take a while;
+// keep them off the main thread.
+class DarkFrameLibrary(private val dir: File) {
+    private var cachedKey: DarkKey? = null
+    private var cached: MasterDark? = null
+
+    fun put(key: DarkKey, dark: MasterDark) {
+        dir.mkdirs()
+        val file = File(dir, key.fileName)
+        val temp = File(dir, key.fileName + ".tmp")
+        DataOutputStream(
+            BufferedOutputStream(DeflaterOutputStream(FileOutputStream(temp), Deflater(Deflater.BEST_SPEED)))
+        ).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(dark.width)
+            out.writeInt(dark.height)
+            out.writeInt(dark.frames)
+            out.writeInt(dark.hotPixels.size)
+            // Big-endian, as DataOutputStream writes them, in one go each
+            val pixels = ByteBuffer.allocate(dark.pixels.size * 2)
+            pixels.asShortBuffer().put(dark.pixels)
+            out.write(pixels.array())
+            val hot = ByteBuffer.allocate(dark.hotPixels.size * 4)
+            hot.asIntBuffer().put(dark.hotPixels)
+            out.write(hot.array())
+        }
+        if (!temp.renameTo(file)) throw IOException("Cannot write $file")
+        cachedKey = key
+        cached = dark
+    }
+
+    // The width x height dark for key, else one a temperature bucket either
+    // side, else null
+    fun find(key: DarkKey, width: Int, height: Int): MasterDark? {
+        for (delta in intArrayOf(0, -1, 1)) {
+            val candidate = key.copy(temperatureBucket = key.temperatureBucket + delta)
+            if (candidate == cachedKey) {
+                val dark = cached
+                if (dark != null && dark.width == width && dark.height == height) return dark
+                continue
+            }
+            val dark = load(File(dir, candidate.fileName), width, height) ?: continue
+            cachedKey = candidate
+            cached = dark
+            return dark
+        }
+        return null
+    }
+
+    // Null unless the file holds a width x height dark; the header is checked
+    // before anything is sized from it
+    private fun load(file: File, width: Int, height: Int): MasterDark? {
+        if (!file.exists()) return null
+        return try {
+            DataInputStream(BufferedInputStream(InflaterInputStream(FileInputStream(file)))).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) return null
+                val fileWidth = input.readInt()
+                val fileHeight = input.readInt()
+                val frames = input.readInt()
+                val hotCount = input.readInt()
+                if (fileWidth != width || fileHeight != height || frames <= 0 ||
+                    hotCount < 0 || hotCount > width * height
+                ) {
+                    Log.w("DarkFrameLibrary", "$file is ${fileWidth}x$fileHeight, $hotCount hot; expected ${width}x$height")
+                    return null
+                }
+                val pixelBytes = ByteArray(width * height * 2)
+                input.readFully(pixelBytes)
+                val pixels = ShortArray(width * height)
+                ByteBuffer.wrap(pixelBytes).asShortBuffer().get(pixels)
+                val hotBytes = ByteArray(hotCount * 4)
+                input.readFully(hotBytes)
+                val hotPixels = IntArray(hotCount)
+                ByteBuffer.wrap(hotBytes).asIntBuffer().get(hotPixels)
+                if (hotPixels.any { it < 0 || it >= width * height }) {
+                    Log.w("DarkFrameLibrary", "$file has hot pixels out of the frame")
+                    return null
+                }
+                MasterDark(width, height, frames, pixels, hotPixels)
+            }
+        } catch (e: IOException) {
+            Log.e("DarkFrameLibrary", "Bad dark $file", e)
+            null
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x4441524b // "DARK"
+        private const val VERSION = 1
+
+        fun open(context: Context) = DarkFrameLibrary(File(context.getExternalFilesDir(null), "darks"))
+    }
+}
@@ -5,10 +5,10 @@ import android.content.Context
 import android.content.pm.PackageManager
 import android.graphics.ImageFormat
 import android.hardware.camera2.*
-import android.media.Image
 import android.media.ImageReader
 import android.os.Bundle
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.Looper
 import android.util.Log
 import android.view.Surface
@@ -19,7 +19,9 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.core.app.ActivityCompat
 import java.io.File
 import java.io.FileOutputStream
+import java.io.IOException
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 @Suppress("DEPRECATION")
 class MainActivity : AppCompatActivity() {
@@ -30,15 +32,37 @@ class MainActivity : AppCompatActivity() {
     private lateinit var imageReader: ImageReader
     private lateinit var textureView: TextureView
     private lateinit var captureButton: Button
+    private lateinit var darksButton: Button
+    // Main thread
     private var isCapturing = false
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Capture results, images, calibration and file I/O run on this thread;
+    // everything below is only touched there. It posts the toasts and the end
+    // of each capture back to the main thread.
+    private val worker = HandlerThread("Capture").apply { start() }
+    private val workerHandler = Handler(worker.looper)
     private var captureCount = 0
 
+    // Dark calibration: a series of DARK_FRAMES captures with the lens covered,
+    // at the lights' exposure and ISO, averaged into a master dark
+    private val darkLibrary by lazy { DarkFrameLibrary.open(this) }
+    private var darkAccumulator: DarkFrameAccumulator? = null
+    private var darksRemaining = 0
+    // A capture's image and result arrive separately; both are needed, and they
+    // belong together only if the image's timestamp is the result's
+    // SENSOR_TIMESTAMP
+    private var pendingFrame: RawFrame? = null
+    private var pendingFrameNs = 0L
+    private var pendingResult: TotalCaptureResult? = null
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
 
         textureView = findViewById(R.id.textureView)
         captureButton = findViewById(R.id.captureButton)
+        darksButton = findViewById(R.id.darksButton)
 
         cameraManager = getSystemService(Context.CAMERA_SERVICE) as CameraManager
 
@@ -57,6 +81,17 @@ class MainActivity : AppCompatActivity() {
                 Toast.makeText(this, "Already capturing", Toast.LENGTH_SHORT).show()
             }
         }
+
+        darksButton.setOnClickListener {
+            if (!isCapturing) {
+                Toast.makeText(this, "Cover the lens; capturing $DARK_FRAMES darks", Toast.LENGTH_LONG).show()
+                // Queued ahead of this capture's callbacks
+                workerHandler.post { darksRemaining = DARK_FRAMES }
+                captureImage()
+            } else {
+                Toast.makeText(this, "Already capturing", Toast.LENGTH_SHORT).show()
+            }
+        }
     }
 
     private fun setupCameraAndCapture() {
@@ -118,9 +153,10 @@ class MainActivity : AppCompatActivity() {
         // Set up the ImageReader for RAW format (DNG)
         imageReader = ImageReader.newInstance(1920, 1080, ImageFormat.RAW_SENSOR, 1)
 
+        // The RAW reader is only a target of still captures; with it in the
+        // repeating request, preview frames would fill it between captures
         val captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
         captureRequestBuilder.addTarget(surface)
-        captureRequestBuilder.addTarget(imageReader.surface)
 
         cameraDevice.createCaptureSession(listOf(surface, imageReader.surface), object : CameraCaptureSession.StateCallback() {
             override fun onConfigured(session: CameraCaptureSession) {
@@ -134,6 +170,7 @@ class MainActivity : AppCompatActivity() {
         }, null)
     }
 
+    // Main thread
     private fun captureImage() {
         if (isCapturing) return
 
@@ -141,43 +178,132 @@ class MainActivity : AppCompatActivity() {
         val captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE)
         captureRequestBuilder.addTarget(imageReader.surface)
 
-        // Use the maximum exposure time for the capture
-        val exposureTimeRange = cameraManager.getCameraCharacteristics(cameraId)
-            .get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE)
+        // Use the maximum exposure time for the capture, at a fixed ISO, with
+        // auto-exposure off so lights and darks are taken alike
+        val characteristics = cameraManager.getCameraCharacteristics(cameraId)
+        val exposureTimeRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE)
+        val sensitivityRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE)
+        captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF)
 
         // Set exposure time to maximum allowed for the camera
         exposureTimeRange?.let {
             captureRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, it.upper)
         }
+        sensitivityRange?.let {
+            captureRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, it.clamp(CAPTURE_ISO))
+        }
 
         imageReader.setOnImageAvailableListener({ reader ->
-            val image = reader.acquireLatestImage()
+            val image = reader.acquireNextImage()
             image?.let {
-                saveImage(it)
-                Log.d("CameraCapture", "Image captured: $captureCount")
-                captureCount++ // Increment the count after capturing
+                // Copy out and hand the buffer straight back to the camera
+                pendingFrame = RawFrame.from(it)
+                pendingFrameNs = it.timestamp
                 it.close()
-                isCapturing = false // Allow capturing again
+                onCaptureReady()
             }
-        }, Handler(Looper.getMainLooper()))
+        }, workerHandler)
 
         captureSession.capture(captureRequestBuilder.build(), object : CameraCaptureSession.CaptureCallback() {
             override fun onCaptureCompleted(session: CameraCaptureSession, request: CaptureRequest, result: TotalCaptureResult) {
                 super.onCaptureCompleted(session, request, result)
                 Log.d("CameraCapture", "Capture completed: $captureCount")
+                pendingResult = result
+                onCaptureReady()
             }
-        }, null)
+
+            override fun onCaptureFailed(session: CameraCaptureSession, request: CaptureRequest, failure: CaptureFailure) {
+                super.onCaptureFailed(session, request, failure)
+                Log.e("CameraCapture", "Capture failed: reason ${failure.reason}")
+                endCapture()
+                darksRemaining = 0
+                darkAccumulator = null
+                mainHandler.post { isCapturing = false }
+            }
+        }, workerHandler)
     }
 
-    private fun saveImage(image: Image) {
-        val buffer: ByteBuffer = image.planes[0].buffer
-        val bytes = ByteArray(buffer.remaining())
-        buffer.get(bytes)
+    // Stops listening for this capture's image and forgets anything half paired
+    private fun endCapture() {
+        imageReader.setOnImageAvailableListener(null, null)
+        pendingFrame = null
+        pendingResult = null
+    }
+
+    // Runs once both the image and the result of a capture are in; on the
+    // worker thread
+    private fun onCaptureReady() {
+        val frame = pendingFrame ?: return
+        val result = pendingResult ?: return
+        if (pendingFrameNs != result.get(CaptureResult.SENSOR_TIMESTAMP)) {
+            // Not this capture's image; wait for the one that is
+            Log.w("CameraCapture", "Dropping an image from another frame")
+            pendingFrame = null
+            return
+        }
+        endCapture()
+        // The settings the sensor actually used, not the ones requested
+        val key = DarkKey(
+            cameraId,
+            result.get(CaptureResult.SENSOR_EXPOSURE_TIME) ?: 0L,
+            result.get(CaptureResult.SENSOR_SENSITIVITY) ?: 0,
+            DarkKey.currentTemperatureBucket(this)
+        )
+
+        if (darksRemaining > 0) {
+            val accumulator = darkAccumulator?.takeIf { it.width == frame.width && it.height == frame.height }
+                ?: DarkFrameAccumulator(frame.width, frame.height).also { darkAccumulator = it }
+            accumulator.add(frame)
+            darksRemaining--
+            if (darksRemaining > 0) {
+                mainHandler.post {
+                    isCapturing = false
+                    captureImage()
+                }
+                return
+            }
+            val dark = accumulator.build()
+            darkAccumulator = null
+            try {
+                darkLibrary.put(key, dark)
+                Log.d("CameraCapture", "Master dark ${key.fileName}: ${dark.frames} frames, ${dark.hotPixels.size} hot pixels")
+                mainHandler.post {
+                    Toast.makeText(this, "Dark saved, ${dark.hotPixels.size} hot pixels", Toast.LENGTH_SHORT).show()
+                }
+            } catch (e: IOException) {
+                Log.e("CameraCapture", "Cannot save dark: ${e.message}")
+            }
+            mainHandler.post { isCapturing = false }
+            return
+        }
+
+        val dark = darkLibrary.find(key, frame.width, frame.height)
+        if (dark != null) {
+            val characteristics = cameraManager.getCameraCharacteristics(cameraId)
+            val black = characteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN)
+            val blackLevel = black?.let {
+                (it.getOffsetForIndex(0, 0) + it.getOffsetForIndex(1, 0) +
+                    it.getOffsetForIndex(0, 1) + it.getOffsetForIndex(1, 1)) / 4
+            } ?: 0
+            val whiteLevel = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL) ?: 65535
+            dark.calibrate(frame, blackLevel, whiteLevel)
+        } else {
+            Log.d("CameraCapture", "No dark for ${key.fileName}")
+        }
+        saveImage(frame)
+        Log.d("CameraCapture", "Image captured: $captureCount")
+        captureCount++ // Increment the count after capturing
+        mainHandler.post { isCapturing = false } // Allow capturing again
+    }
+
+    private fun saveImage(frame: RawFrame) {
+        val buffer = ByteBuffer.allocate(frame.pixels.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.asShortBuffer().put(frame.pixels)
 
         // Save the image to a file in DNG format
         val file = File(getExternalFilesDir(null), "captured_image_${captureCount}.dng")
         FileOutputStream(file).use { output ->
-            output.write(bytes)
+            output.write(buffer.array())
             Log.d("CameraCapture", "Image saved: ${file.absolutePath}")
         }
     }
@@ -203,11 +329,20 @@ class MainActivity : AppCompatActivity() {
             captureSession.close()
         }
         if (::imageReader.isInitialized) {
-            imageReader.close()
+            // After any image the worker is still copying out of it
+            val reader = imageReader
+            workerHandler.post { reader.close() }
         }
     }
 
+    override fun onDestroy() {
+        super.onDestroy()
+        worker.quitSafely()
+    }
+
     companion object {
         private const val CAMERA_PERMISSION_REQUEST_CODE = 1001
+        private const val CAPTURE_ISO = 800
+        private const val DARK_FRAMES = 16
     }
 }
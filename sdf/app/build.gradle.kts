@@ -33,6 +33,12 @@ android {
     kotlinOptions {
         jvmTarget = "1.8"
     }
+    // BurstWriter, shared with the other capture apps
+    sourceSets {
+        getByName("main") {
+            java.srcDir("../../shared/burstwriter/src/main/java")
+        }
+    }
 }
 
 dependencies {
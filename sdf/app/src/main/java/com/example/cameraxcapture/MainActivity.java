@@ -13,18 +13,17 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageCapture;
-import androidx.camera.core.ImageCaptureException;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.example.burstwriter.BurstWriter;
 import com.example.sdf.R;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.io.File;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -34,6 +33,7 @@ public class MainActivity extends AppCompatActivity {
     private ImageCapture imageCapture;
     private Handler handler = new Handler(Looper.getMainLooper());
     private int photoCount = 0;
+    private BurstWriter writer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,34 +78,39 @@ public class MainActivity extends AppCompatActivity {
                     photoCount++;
                     handler.postDelayed(this, 2000); // Capture every 2 seconds
                 } else {
+                    BurstWriter.Stats stats = writer.stats();
+                    Log.d("CameraXApp", String.format(Locale.US,
+                            "Saved %d photos (%.1f/s, %.0f ms each), %d refused, %d failed",
+                            stats.getWritten(), stats.getShotsPerSecond(), stats.getMeanWriteMs(),
+                            stats.getRefused(), stats.getFailed()));
                     Toast.makeText(MainActivity.this, "Photo capturing completed!", Toast.LENGTH_SHORT).show();
                 }
             }
         }, 2000); // Initial delay of 2 seconds
     }
 
+    // Into memory; the writer saves it in the background
     private void capturePhoto() {
-        File photoFile = new File(getExternalFilesDir(null), "photo_" + System.currentTimeMillis() + ".jpg");
-        ImageCapture.OutputFileOptions outputOptions = new ImageCapture.OutputFileOptions.Builder(photoFile).build();
-
-        imageCapture.takePicture(outputOptions, Executors.newSingleThreadExecutor(), new ImageCapture.OnImageSavedCallback() {
-
-            public void onImageSaved(@NonNull ImageCaptureOutputFileResults output) {
-                Log.d("CameraXApp", "Photo captured successfully: " + photoFile.getAbsolutePath());
-            }
-
-            @Override
-            public void onImageSaved(@NonNull ImageCapture.OutputFileResults outputFileResults) {
-
-            }
-
-            @Override
-            public void onError(@NonNull ImageCaptureException exception) {
-                Log.e("CameraXApp", "Photo capture failed: " + exception.getMessage());
+        if (writer == null) {
+            writer = new BurstWriter(BurstWriter.fileSink(getExternalFilesDir(null)));
+        }
+        String name = "photo_" + System.currentTimeMillis();
+        writer.capture(imageCapture, name, captured -> {
+            if (!captured) {
+                Log.e("CameraXApp", "Photo capture failed: " + name);
             }
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacksAndMessages(null);
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
     private boolean allPermissionsGranted() {
         for (String permission : REQUIRED_PERMISSIONS) {
             if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
@@ -0,0 +1,260 @@
+package com.example.burstwriter
+
+import android.content.ContentResolver
+import android.content.ContentValues
+import android.media.ExifInterface
+import android.os.Build
+import android.os.SystemClock
+import android.provider.MediaStore
+import android.util.Log
+import androidx.camera.core.ImageCapture
+import androidx.camera.core.ImageCaptureException
+import androidx.camera.core.ImageProxy
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+
+// Burst captures land in memory (OnImageCapturedCallback) instead of going
+// through ImageCapture's file or MediaStore output, so the next shot can start
+// as soon as the JPEG is copied out of the camera buffer. Writing happens on a
+// small pool of I/O threads. At most queueCapacity shots are held in memory
+// (queued or being written); past that capture() refuses the shot, which is
+// the backpressure: the caller's schedule decides what a refused shot means.
+// JPEG buffers are pooled and reused.
+//
+// Shared by fin, capture, CameraCaptureApp and sdf (from Java), which each add
+// this directory to their main source set.
+class BurstWriter @JvmOverloads constructor(
+    private val sink: Sink,
+    ioThreads: Int = 2,
+    queueCapacity: Int = 6,
+    // Monotonic nanoseconds, for the stats; replaceable so it runs off-device
+    private val clock: () -> Long = SystemClock::elapsedRealtimeNanos
+) : AutoCloseable {
+
+    // Stores one JPEG; called on an I/O thread
+    fun interface Sink {
+        @Throws(IOException::class)
+        fun write(name: String, jpeg: ByteArray, length: Int, rotationDegrees: Int)
+    }
+
+    fun interface Listener {
+        fun onCaptured(captured: Boolean)
+    }
+
+    class Stats {
+        var captured = 0     // in memory, queued for writing
+        var written = 0
+        var refused = 0      // queue full, or closed
+        var failed = 0       // capture or write errors
+        var queued = 0
+        var shotsPerSecond = 0.0 // written, since the first capture
+        var meanWriteMs = 0.0
+    }
+
+    private val permits = Semaphore(queueCapacity)
+    private val buffers = ArrayBlockingQueue<ByteArray>(queueCapacity)
+    private val threadCount = AtomicInteger()
+    private val io = Executors.newFixedThreadPool(ioThreads) { r ->
+        Thread(r, "BurstWriter-${threadCount.incrementAndGet()}").apply { priority = Thread.NORM_PRIORITY - 1 }
+    }
+    // Capture callbacks (and the copy out of the camera buffer) run here, so a
+    // capture in flight still completes if the Activity that started it is gone
+    private val callbacks = Executors.newSingleThreadExecutor { r -> Thread(r, "BurstWriter-capture") }
+
+    private val lock = Any()
+    private val stats = Stats()
+    // Shots reserved whose JPEG isn't queued yet (a capture in flight); the
+    // executors are shut down once close() has been called and this is 0
+    private var pending = 0
+    private var closed = false
+    private var firstCaptureNs = 0L
+    private var lastWriteNs = 0L
+    private var writeNs = 0L
+
+    // Takes a picture into memory and queues it for writing as name.
+    // onCaptured(true) fires once the camera buffer is copied and released,
+    // onCaptured(false) if the queue was full, the writer closed or the
+    // capture failed; either may come on any thread. A capture in flight when
+    // the writer is closed is still written.
+    fun capture(imageCapture: ImageCapture, name: String, listener: Listener) {
+        if (!reserve()) {
+            listener.onCaptured(false)
+            return
+        }
+        imageCapture.takePicture(callbacks, object : ImageCapture.OnImageCapturedCallback() {
+            override fun onCaptureSuccess(image: ImageProxy) {
+                val rotationDegrees = image.imageInfo.rotationDegrees
+                queue(name, image.planes[0].buffer, rotationDegrees)
+                image.close()
+                listener.onCaptured(true)
+            }
+
+            override fun onError(exception: ImageCaptureException) {
+                Log.e(TAG, "Burst capture failed: ${exception.message}", exception)
+                synchronized(lock) { stats.failed++ }
+                permits.release()
+                listener.onCaptured(false)
+                unreserve()
+            }
+        })
+    }
+
+    // Queues a JPEG that is already in memory (copied before returning), as
+    // if captured; false if the queue is full or the writer closed
+    fun submit(name: String, jpeg: ByteBuffer, rotationDegrees: Int): Boolean {
+        if (!reserve()) return false
+        queue(name, jpeg, rotationDegrees)
+        return true
+    }
+
+    fun stats(): Stats = synchronized(lock) {
+        Stats().also {
+            it.captured = stats.captured
+            it.written = stats.written
+            it.refused = stats.refused
+            it.failed = stats.failed
+            it.queued = stats.queued
+            val spanNs = lastWriteNs - firstCaptureNs
+            it.shotsPerSecond = if (stats.written > 1 && spanNs > 0) stats.written * 1e9 / spanNs else 0.0
+            it.meanWriteMs = if (stats.written > 0) writeNs / 1e6 / stats.written else 0.0
+        }
+    }
+
+    // Refuses new shots; captures in flight and queued shots finish writing in
+    // the background
+    override fun close() {
+        val idle = synchronized(lock) {
+            closed = true
+            pending == 0
+        }
+        if (idle) shutdown()
+    }
+
+    // A queue slot for one shot, counted as pending until queue() or unreserve()
+    private fun reserve(): Boolean {
+        synchronized(lock) {
+            if (!closed && permits.tryAcquire()) {
+                pending++
+                return true
+            }
+            stats.refused++
+            return false
+        }
+    }
+
+    private fun unreserve() {
+        val last = synchronized(lock) {
+            pending--
+            closed && pending == 0
+        }
+        if (last) shutdown()
+    }
+
+    // Copies the JPEG out of source and hands it to the I/O threads, which
+    // can't have been shut down while this shot was pending
+    private fun queue(name: String, source: ByteBuffer, rotationDegrees: Int) {
+        source.rewind()
+        val length = source.remaining()
+        val jpeg = obtainBuffer(length)
+        source.get(jpeg, 0, length)
+        synchronized(lock) {
+            if (stats.captured == 0) firstCaptureNs = clock()
+            stats.captured++
+            stats.queued++
+        }
+        io.execute { write(name, jpeg, length, rotationDegrees) }
+        unreserve()
+    }
+
+    private fun shutdown() {
+        callbacks.shutdown()
+        io.shutdown()
+    }
+
+    private fun write(name: String, jpeg: ByteArray, length: Int, rotationDegrees: Int) {
+        val start = clock()
+        var ok = false
+        try {
+            sink.write(name, jpeg, length, rotationDegrees)
+            ok = true
+        } catch (e: IOException) {
+            Log.e(TAG, "Cannot write $name", e)
+        } finally {
+            buffers.offer(jpeg)
+            val end = clock()
+            synchronized(lock) {
+                stats.queued--
+                if (ok) {
+                    stats.written++
+                    writeNs += end - start
+                    lastWriteNs = end
+                } else {
+                    stats.failed++
+                }
+            }
+            permits.release()
+        }
+    }
+
+    // A pooled buffer big enough for length bytes; JPEG sizes vary from shot
+    // to shot, so a buffer grows with some headroom instead of exactly
+    private fun obtainBuffer(length: Int): ByteArray {
+        val pooled = buffers.poll()
+        if (pooled != null && pooled.size >= length) return pooled
+        return ByteArray(length + length / 8)
+    }
+
+    companion object {
+        private const val TAG = "BurstWriter"
+
+        // Into MediaStore under relativePath (e.g. "Pictures/CameraX-Image"),
+        // with the rotation in the ORIENTATION column rather than rewriting EXIF
+        @JvmStatic
+        fun mediaStoreSink(resolver: ContentResolver, relativePath: String) = Sink { name, jpeg, length, rotation ->
+            val values = ContentValues().apply {
+                put(MediaStore.MediaColumns.DISPLAY_NAME, name)
+                put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg")
+                put(MediaStore.Images.Media.ORIENTATION, rotation)
+                if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
+                    put(MediaStore.Images.Media.RELATIVE_PATH, relativePath)
+                    put(MediaStore.MediaColumns.IS_PENDING, 1)
+                }
+            }
+            val uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values)
+                ?: throw IOException("MediaStore insert failed")
+            try {
+                val out = resolver.openOutputStream(uri) ?: throw IOException("Cannot open $uri")
+                out.use { it.write(jpeg, 0, length) }
+            } catch (e: IOException) {
+                resolver.delete(uri, null, null)
+                throw e
+            }
+            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
+                resolver.update(uri, ContentValues().apply { put(MediaStore.MediaColumns.IS_PENDING, 0) }, null, null)
+            }
+        }
+
+        // Into dir as name.jpg; the rotation goes into EXIF
+        @JvmStatic
+        fun fileSink(dir: File) = Sink { name, jpeg, length, rotation ->
+            val file = File(dir, "$name.jpg")
+            FileOutputStream(file).use { it.write(jpeg, 0, length) }
+            val orientation = when (rotation) {
+                90 -> ExifInterface.ORIENTATION_ROTATE_90
+                180 -> ExifInterface.ORIENTATION_ROTATE_180
+                270 -> ExifInterface.ORIENTATION_ROTATE_270
+                else -> return@Sink
+            }
+            ExifInterface(file.absolutePath).apply {
+                setAttribute(ExifInterface.TAG_ORIENTATION, orientation.toString())
+                saveAttributes()
+            }
+        }
+    }
+}
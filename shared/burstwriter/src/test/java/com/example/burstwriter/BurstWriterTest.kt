@@ -0,0 +1,102 @@
+package com.example.burstwriter
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+// Drives the writer with in-memory JPEG-sized buffers instead of a camera,
+// into a temporary directory; rotation 0 keeps EXIF (an Android class) out
+class BurstWriterTest {
+    private val dir: File = Files.createTempDirectory("burst").toFile()
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun writesEveryShotOfABurst() {
+        val writer = writer(BurstWriter.fileSink(dir))
+        val jpeg = jpeg(JPEG_BYTES)
+        val start = System.nanoTime()
+        for (i in 0 until SHOTS) {
+            // Refused while the queue is full, like a camera shooting too fast
+            while (!writer.submit(name(i), jpeg, 0)) Thread.sleep(1)
+        }
+        writer.close()
+        val stats = await(writer, SHOTS)
+        val shotsPerSecond = SHOTS / ((System.nanoTime() - start) / 1e9)
+        assertEquals(SHOTS, stats.written)
+        assertEquals(0, stats.failed)
+        assertEquals(SHOTS, dir.listFiles()!!.size)
+        assertEquals(JPEG_BYTES.toLong(), File(dir, "${name(0)}.jpg").length())
+        assertTrue("%.1f shots/s".format(shotsPerSecond), shotsPerSecond >= MIN_SHOTS_PER_SECOND)
+    }
+
+    @Test
+    fun refusesShotsWhileTheQueueIsFull() {
+        val release = CountDownLatch(1)
+        val writer = writer(blockingSink(release))
+        val jpeg = jpeg(1024)
+        repeat(QUEUE_CAPACITY) { assertTrue(writer.submit(name(it), jpeg, 0)) }
+        assertFalse(writer.submit(name(QUEUE_CAPACITY), jpeg, 0))
+        assertEquals(1, writer.stats().refused)
+        release.countDown()
+        writer.close()
+        assertEquals(QUEUE_CAPACITY, await(writer, QUEUE_CAPACITY).written)
+    }
+
+    @Test
+    fun queuedShotsFinishAfterClose() {
+        val release = CountDownLatch(1)
+        val writer = writer(blockingSink(release))
+        val jpeg = jpeg(1024)
+        repeat(3) { assertTrue(writer.submit(name(it), jpeg, 0)) }
+        writer.close()
+        assertFalse("submit after close", writer.submit(name(3), jpeg, 0))
+        release.countDown()
+        val stats = await(writer, 3)
+        assertEquals(3, stats.written)
+        assertEquals(1, stats.refused)
+    }
+
+    private fun writer(sink: BurstWriter.Sink) =
+        BurstWriter(sink, ioThreads = 2, queueCapacity = QUEUE_CAPACITY, clock = System::nanoTime)
+
+    private fun blockingSink(release: CountDownLatch) = BurstWriter.Sink { _, _, _, _ ->
+        release.await(10, TimeUnit.SECONDS)
+    }
+
+    private fun await(writer: BurstWriter, shots: Int): BurstWriter.Stats {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30)
+        while (true) {
+            val stats = writer.stats()
+            if (stats.written + stats.failed >= shots) return stats
+            assertTrue("still writing", System.nanoTime() < deadline)
+            Thread.sleep(5)
+        }
+    }
+
+    private fun jpeg(size: Int): ByteBuffer =
+        ByteBuffer.wrap(ByteArray(size).also { Random(size.toLong()).nextBytes(it) })
+
+    private fun name(i: Int) = "shot_%03d".format(i)
+
+    companion object {
+        private const val SHOTS = 60
+        // About a 12 MP JPEG
+        private const val JPEG_BYTES = 3 * 1024 * 1024
+        private const val QUEUE_CAPACITY = 6
+        // Far below a desktop disk (a few hundred per second); catches the
+        // writer serialising on something other than I/O
+        private const val MIN_SHOTS_PER_SECOND = 20.0
+    }
+}